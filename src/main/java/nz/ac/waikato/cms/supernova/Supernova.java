@@ -72,7 +72,12 @@ public class Supernova {
 
   public static final String MARGIN = "margin";
 
-  public static void main(String[] args) throws Exception {
+  /**
+   * Creates the parser for the command-line options.
+   *
+   * @return		the parser
+   */
+  public static ArgumentParser createParser() {
     ArgumentParser parser;
 
     parser = ArgumentParsers.newArgumentParser("I am supernova");
@@ -224,17 +229,16 @@ public class Supernova {
       .action(Arguments.storeTrue())
       .help("Whether to output logging information.");
 
-    Namespace namespace;
-    try {
-      namespace = parser.parseArgs(args);
-    }
-    catch (Exception e) {
-      if (!(e instanceof HelpScreenException))
-	parser.printHelp();
-      return;
-    }
+    return parser;
+  }
 
-    // test values
+  /**
+   * Returns the scores/percentiles from the parsed options.
+   *
+   * @param namespace	the parsed options
+   * @return		the statistics
+   */
+  public static Map<String,List<Double>> getTest(Namespace namespace) {
     Map<String,List<Double>> test = new HashMap<>();
     test.put(AbstractOutputGenerator.OPENNESS, new ArrayList<>(Arrays.asList(new Double[]{
       namespace.getDouble(AbstractOutputGenerator.OPENNESS + SCORE_SUFFIX),
@@ -257,7 +261,16 @@ public class Supernova {
       namespace.getDouble(AbstractOutputGenerator.AGREEABLENESS + PERCENTILE_SUFFIX)
     })));
 
-    // colors
+    return test;
+  }
+
+  /**
+   * Returns the colors from the parsed options.
+   *
+   * @param namespace	the parsed options
+   * @return		the colors
+   */
+  public static Map<String,Color> getColors(Namespace namespace) {
     Map<String,Color> colors = new HashMap<>();
     colors.put(AbstractOutputGenerator.OPENNESS,          ColorHelper.valueOf(namespace.getString(AbstractOutputGenerator.OPENNESS          + COLOR_SUFFIX), Color.ORANGE));
     colors.put(AbstractOutputGenerator.EXTRAVERSION,      ColorHelper.valueOf(namespace.getString(AbstractOutputGenerator.EXTRAVERSION      + COLOR_SUFFIX), Color.YELLOW));
@@ -265,27 +278,75 @@ public class Supernova {
     colors.put(AbstractOutputGenerator.CONSCIENTIOUSNESS, ColorHelper.valueOf(namespace.getString(AbstractOutputGenerator.CONSCIENTIOUSNESS + COLOR_SUFFIX), Color.BLUE));
     colors.put(AbstractOutputGenerator.NEUROTICISM,       ColorHelper.valueOf(namespace.getString(AbstractOutputGenerator.NEUROTICISM       + COLOR_SUFFIX), Color.RED));
 
-    File outfile = new File(namespace.getString(OUTPUT));
+    return colors;
+  }
 
+  /**
+   * Returns the classname of the triangle center calculation.
+   *
+   * @param namespace	the parsed options
+   * @return		the classname
+   */
+  public static String getCenterClassname(Namespace namespace) {
     String centerCls = namespace.getString(CENTER);
     if (!centerCls.contains("."))
       centerCls = AbstractTriangleCenterCalculation.class.getPackage().getName() + "." + centerCls;
+    return centerCls;
+  }
+
+  /**
+   * Returns the classname of the output generator.
+   *
+   * @param namespace	the parsed options
+   * @return		the classname
+   */
+  public static String getGeneratorClassname(Namespace namespace) {
     String generatorCls = namespace.getString(GENERATOR);
     if (!generatorCls.contains("."))
       generatorCls = AbstractOutputGenerator.class.getPackage().getName() + "." + generatorCls;
-    AbstractOutputGenerator generator = (AbstractOutputGenerator) Class.forName(generatorCls).newInstance();
+    return generatorCls;
+  }
+
+  /**
+   * Configures the generator with the parsed options.
+   *
+   * @param generator	the generator to configure
+   * @param center	the triangle center calculation to use
+   * @param namespace	the parsed options
+   */
+  public static void configure(AbstractOutputGenerator generator, AbstractTriangleCenterCalculation center, Namespace namespace) {
     generator.setVerbose(namespace.getBoolean(VERBOSE));
-    generator.setColors(colors);
+    generator.setColors(getColors(namespace));
     generator.setBackground(ColorHelper.valueOf(namespace.getString(BACKGROUND), Color.BLACK));
     generator.setOpacity(namespace.getDouble(OPACITY));
     generator.setMargin(namespace.getDouble(MARGIN));
-    generator.setCenter((AbstractTriangleCenterCalculation) Class.forName(centerCls).newInstance());
+    generator.setCenter(center);
     if (generator instanceof AbstractOutputGeneratorWithDimensions) {
       AbstractOutputGeneratorWithDimensions pixel = (AbstractOutputGeneratorWithDimensions) generator;
       pixel.setWidth(namespace.getInt(WIDTH));
       pixel.setHeight(namespace.getInt(HEIGHT));
     }
-    String msg = generator.generate(test, outfile);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgumentParser parser;
+
+    parser = createParser();
+    Namespace namespace;
+    try {
+      namespace = parser.parseArgs(args);
+    }
+    catch (Exception e) {
+      if (!(e instanceof HelpScreenException))
+	parser.printHelp();
+      return;
+    }
+
+    File outfile = new File(namespace.getString(OUTPUT));
+
+    AbstractOutputGenerator generator = (AbstractOutputGenerator) Class.forName(getGeneratorClassname(namespace)).newInstance();
+    configure(generator, (AbstractTriangleCenterCalculation) Class.forName(getCenterClassname(namespace)).newInstance(), namespace);
+    String msg = generator.generate(getTest(namespace), outfile);
     System.out.println("\nOutput file '" + outfile + "' generated?\n" + (msg == null ? "yes" : "no, because: " + msg));
   }
 }
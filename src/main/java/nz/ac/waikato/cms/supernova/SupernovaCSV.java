@@ -25,26 +25,52 @@ import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.Namespace;
 import net.sourceforge.argparse4j.internal.HelpScreenException;
+import nz.ac.waikato.cms.supernova.batch.BatchRenderer;
+import nz.ac.waikato.cms.supernova.batch.ClaimTable;
+import nz.ac.waikato.cms.supernova.batch.RenderResult;
+import nz.ac.waikato.cms.supernova.batch.RunManifest;
+import nz.ac.waikato.cms.supernova.batch.Shard;
+import nz.ac.waikato.cms.supernova.batch.StagedPipeline;
+import nz.ac.waikato.cms.supernova.cache.RenderCache;
 import nz.ac.waikato.cms.supernova.core.Registry;
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.farm.FarmCoordinator;
+import nz.ac.waikato.cms.supernova.farm.FarmProtocol;
 import nz.ac.waikato.cms.supernova.gui.ColorHelper;
+import nz.ac.waikato.cms.supernova.input.BinaryProfileReader;
+import nz.ac.waikato.cms.supernova.input.BinaryProfileWriter;
+import nz.ac.waikato.cms.supernova.input.InputFiles;
+import nz.ac.waikato.cms.supernova.input.InputFormat;
+import nz.ac.waikato.cms.supernova.input.InputStatistics;
+import nz.ac.waikato.cms.supernova.input.LongCSVReader;
+import nz.ac.waikato.cms.supernova.input.NDJSONReader;
+import nz.ac.waikato.cms.supernova.input.ProfileHandler;
+import nz.ac.waikato.cms.supernova.input.WatchFolder;
+import nz.ac.waikato.cms.supernova.input.WideCSVReader;
 import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
 import nz.ac.waikato.cms.supernova.io.AbstractOutputGeneratorWithDimensions;
 import nz.ac.waikato.cms.supernova.io.PNG;
+import nz.ac.waikato.cms.supernova.sink.AbstractOutputSink;
+import nz.ac.waikato.cms.supernova.sink.AbstractStreamSink;
+import nz.ac.waikato.cms.supernova.sink.DirectorySink;
+import nz.ac.waikato.cms.supernova.sink.PackFileSink;
+import nz.ac.waikato.cms.supernova.sink.TarStreamSink;
 import nz.ac.waikato.cms.supernova.triangle.AbstractTriangleCenterCalculation;
 import nz.ac.waikato.cms.supernova.triangle.Incenter;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 
 import java.awt.Color;
 import java.io.File;
 import java.io.FileReader;
-import java.io.Reader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Generates output for "I am supernova".
@@ -83,6 +109,84 @@ public class SupernovaCSV {
 
   public static final String MARGIN = "margin";
 
+  public static final String SINK = "sink";
+
+  public static final String FANOUT = "fanout";
+
+  public static final String INDEX = "index";
+
+  public static final String DEDUP = "dedup";
+
+  public static final String LINK_TYPE = "link_type";
+
+  public static final String THREADS = "threads";
+
+  public static final String VIRTUAL_THREADS = "virtual_threads";
+
+  public static final String MAX_PENDING_WRITES = "max_pending_writes";
+
+  public static final String PIPELINE = "pipeline";
+
+  public static final String MAX_PROFILES = "max_profiles";
+
+  public static final String FORMAT = "format";
+
+  public static final String CONVERT = "convert";
+
+  public static final String WIDE_COLUMNS = "wide_columns";
+
+  public static final String SCORE_SUFFIX = "score_suffix";
+
+  public static final String PERCENTILE_SUFFIX = "percentile_suffix";
+
+  public static final String MMAP = "mmap";
+
+  public static final String PARSE_THREADS = "parse_threads";
+
+  public static final String TMP_DIR = "tmp_dir";
+
+  public static final String PATTERN = "pattern";
+
+  public static final String READ_THREADS = "read_threads";
+
+  public static final String MANIFEST = "manifest";
+
+  public static final String INCREMENTAL = "incremental";
+
+  public static final String CACHE_MEMORY = "cache_memory";
+
+  public static final String CACHE_DIR = "cache_dir";
+
+  public static final String CACHE_DISK = "cache_disk";
+
+  public static final String SHARD = "shard";
+
+  public static final String GEOMETRY_THREADS = "geometry_threads";
+
+  public static final String ENCODE_THREADS = "encode_threads";
+
+  public static final String WRITE_THREADS = "write_threads";
+
+  public static final String QUEUE_SIZE = "queue_size";
+
+  public static final String FARM_PORT = "farm_port";
+
+  public static final String LOCAL_WORKERS = "local_workers";
+
+  public static final String BATCH_SIZE = "batch_size";
+
+  public static final String WORKER_TIMEOUT = "worker_timeout";
+
+  public static final String WATCH = "watch";
+
+  public static final String ARCHIVE = "archive";
+
+  public static final String SETTLE = "settle";
+
+  public static final String STDIN = "stdin";
+
+  public static final String ID_KEY = "id_key";
+
   public static final String MEASURE_LIST =
     AbstractOutputGenerator.OPENNESS + ","
       + AbstractOutputGenerator.EXTRAVERSION + ","
@@ -90,6 +194,192 @@ public class SupernovaCSV {
       + AbstractOutputGenerator.CONSCIENTIOUSNESS + ","
       + AbstractOutputGenerator.NEUROTICISM;
 
+  /**
+   * Reads the profiles from the input file and hands them to the handler.
+   *
+   * Only IDs of the specified shard get handed on.
+   *
+   * @param namespace	the parsed options
+   * @param file	the input file
+   * @param shard	the shard to read
+   * @param handler	the handler for the profiles
+   * @param stats	for recording progress and errors
+   * @throws Exception	if reading fails
+   */
+  protected static void readProfiles(Namespace namespace, File file, Shard shard, ProfileHandler handler, InputStatistics stats) throws Exception {
+    ProfileHandler counting = (String id, Map<String,List<Double>> test) -> {
+      if (!shard.accept(id))
+	return;
+      stats.incProfiles();
+      handler.handleProfile(id, test);
+    };
+
+    boolean stdin = InputFiles.isStdin(file);
+    if (stdin && ((namespace.get(FORMAT) == InputFormat.BINARY) || (namespace.get(FORMAT) == InputFormat.WIDE) || namespace.getBoolean(MMAP))) {
+      stats.setError("Format " + namespace.get(FORMAT) + (namespace.getBoolean(MMAP) ? " (memory-mapped)" : "") + " cannot be read from stdin!");
+      return;
+    }
+
+    if (namespace.get(FORMAT) == InputFormat.NDJSON) {
+      NDJSONReader ndjson = new NDJSONReader(stdin ? new InputStreamReader(System.in, StandardCharsets.UTF_8) : new FileReader(file));
+      ndjson.setIDKey(namespace.getString(ID_KEY));
+      ndjson.setSuffixes(namespace.getString(SCORE_SUFFIX), namespace.getString(PERCENTILE_SUFFIX));
+      String readMsg = ndjson.read(counting);
+      if (readMsg != null)
+	stats.setError(readMsg);
+      return;
+    }
+
+    if (namespace.get(FORMAT) == InputFormat.BINARY) {
+      BinaryProfileReader binary = new BinaryProfileReader(file);
+      String readMsg = binary.read(counting);
+      if (readMsg != null)
+	stats.setError(readMsg);
+      return;
+    }
+
+    if (namespace.get(FORMAT) == InputFormat.WIDE) {
+      WideCSVReader wide = new WideCSVReader(file);
+      wide.setIDColumn(namespace.getInt(ID) - 1);
+      wide.setSuffixes(namespace.getString(SCORE_SUFFIX), namespace.getString(PERCENTILE_SUFFIX));
+      wide.setNumThreads(namespace.getInt(PARSE_THREADS));
+      if (namespace.getString(WIDE_COLUMNS) != null) {
+	String[] parts = namespace.getString(WIDE_COLUMNS).split(",");
+	int[] cols = new int[parts.length];
+	for (int i = 0; i < parts.length; i++)
+	  cols[i] = Integer.parseInt(parts[i].trim()) - 1;
+	wide.setValueColumns(cols);
+      }
+      String readMsg = wide.read(counting);
+      if (readMsg != null)
+	stats.setError(readMsg);
+      return;
+    }
+
+    LongCSVReader csv = stdin ? new LongCSVReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)) : new LongCSVReader(file);
+    csv.setColumns(namespace.getInt(ID) - 1, namespace.getInt(MEASURE) - 1, namespace.getInt(SCORE) - 1, namespace.getInt(PERCENTILE) - 1);
+    csv.setMapped(namespace.getBoolean(MMAP));
+    csv.setNumThreads(namespace.getInt(PARSE_THREADS));
+    csv.setMaxProfiles(namespace.getInt(MAX_PROFILES));
+    csv.setTempDir(new File(namespace.getString(TMP_DIR)));
+    csv.setIncompleteHandler((String id, Map<String,List<Double>> test) -> {
+      stats.incIncomplete();
+      System.err.println("Incomplete profile for ID: " + id + " " + test.keySet() + " in " + file);
+    });
+    // drop the rows of other shards right away, so the grouper only holds IDs of this shard
+    csv.setIDFilter(shard::accept);
+    String readMsg = csv.read(counting);
+    if (readMsg != null)
+      stats.setError(readMsg);
+  }
+
+  /**
+   * Reads the input files concurrently and hands the profiles to the
+   * renderer, using the position of the file as rank. With more than one
+   * file, ID collisions get resolved in favor of the file with the lowest
+   * rank. Errors get recorded per file.
+   *
+   * @param namespace	the parsed options
+   * @param files	the input files
+   * @param shard	the shard to read
+   * @param renderer	the renderer to hand the profiles to
+   * @return		the statistics per file
+   * @throws Exception	if waiting for the readers fails
+   */
+  protected static List<InputStatistics> readInputs(Namespace namespace, List<File> files, Shard shard, BatchRenderer renderer) throws Exception {
+    List<InputStatistics> result = new ArrayList<>();
+    ClaimTable claims = (files.size() > 1) ? new ClaimTable(files.size()) : null;
+    renderer.setClaims(claims);
+    int numThreads = namespace.getInt(READ_THREADS);
+    if (numThreads <= 0)
+      numThreads = ThreadHelper.getNumCores();
+    numThreads = Math.min(numThreads, files.size());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads, ThreadHelper.newPlatformThreadFactory("read"));
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < files.size(); i++) {
+      final int rank = i;
+      InputStatistics stats = new InputStatistics(files.get(i), rank);
+      result.add(stats);
+      futures.add(executor.submit(() -> {
+	long start = System.currentTimeMillis();
+	try {
+	  readProfiles(namespace, stats.getFile(), shard, (String id, Map<String,List<Double>> test) -> {
+	    // stop reading once the stream can no longer be written to (e.g., closed pipe)
+	    if ((renderer.getSink() instanceof AbstractStreamSink) && (((AbstractStreamSink) renderer.getSink()).getError() != null))
+	      throw new IOException(((AbstractStreamSink) renderer.getSink()).getError());
+	    renderer.submit(id, test, rank);
+	  }, stats);
+	}
+	catch (Exception e) {
+	  stats.setError("Failed to read " + stats.getFile() + ": " + e);
+	}
+	stats.setDuration(System.currentTimeMillis() - start);
+	if (claims != null) {
+	  // so far, inputs with lower rank may still be reading
+	  stats.setNumLost(claims.getNumLost(rank));
+	  System.err.println("Finished reading " + stats);
+	}
+	else if (!stats.isSuccess())
+	  System.err.println(stats.getError());
+      }));
+    }
+    executor.shutdown();
+    for (Future<?> future: futures)
+      future.get();
+
+    if (claims != null) {
+      for (InputStatistics stats: result)
+	stats.setNumLost(claims.getNumLost(stats.getRank()));
+    }
+    return result;
+  }
+
+  /**
+   * Processes the files dropped into the watched directory until the
+   * watcher gets closed: the files get read and their outputs generated by
+   * the (already running) renderer, then they get archived.
+   *
+   * @param namespace	the parsed options
+   * @param watcher	the watcher to obtain the files from
+   * @param shard	the shard to read
+   * @param renderer	the renderer to hand the profiles to
+   * @throws Exception	if reading or waiting fails
+   */
+  protected static void watch(Namespace namespace, WatchFolder watcher, Shard shard, BatchRenderer renderer) throws Exception {
+    System.err.println("Watching " + watcher.getDirectory() + " for " + watcher.getPattern() + ", archiving to " + watcher.getArchive());
+    List<File> files;
+    while ((files = watcher.next()) != null) {
+      long start = System.currentTimeMillis();
+      long begun = renderer.getNumBegun();
+      List<InputStatistics> inputs = readInputs(namespace, files, shard, renderer);
+      renderer.flush();
+      for (InputStatistics stats: inputs) {
+	String archiveMsg = watcher.archive(stats.getFile(), !stats.isSuccess());
+	if (archiveMsg != null)
+	  System.err.println(archiveMsg);
+	if (!stats.isSuccess())
+	  System.err.println(stats.getError());
+      }
+      System.err.println("Processed " + files.size() + " file(s), " + (renderer.getNumBegun() - begun) + " output(s) generated in " + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  /**
+   * Adds the suffix of the shard to the file name (before the extension),
+   * if there is more than one shard.
+   *
+   * @param name	the file name
+   * @param shard	the shard
+   * @return		the file name for the shard
+   */
+  protected static String shardName(String name, Shard shard) {
+    if (shard.getCount() == 1)
+      return name;
+    if (name.lastIndexOf('.') > 0)
+      return name.substring(0, name.lastIndexOf('.')) + shard.getSuffix() + name.substring(name.lastIndexOf('.'));
+    return name + shard.getSuffix();
+  }
+
   public static void main(String[] args) throws Exception {
     ArgumentParser parser;
 
@@ -137,8 +427,57 @@ public class SupernovaCSV {
     parser.addArgument("--" + CSV)
       .metavar(CSV)
       .type(String.class)
-      .required(true)
-      .help("The CSV file containing the scores/percentiles (header must be present).");
+      .nargs("+")
+      .help("The CSV file(s) containing the scores/percentiles (header must be present), or binary profile file(s) (see '" + FORMAT + "'). "
+	+ "Directories and glob patterns (e.g., 'data/*.csv') get expanded, '-' reads from stdin (see '" + STDIN + "'). Multiple files get read concurrently (see '" + READ_THREADS + "'); "
+	+ "in case of identical IDs, the output of the file that comes first (sorted by path) is kept.");
+
+    parser.addArgument("--" + STDIN)
+      .metavar(STDIN)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Reads the profiles from stdin (CSV or NDJSON format) instead of '" + CSV + "', processing them as they arrive.");
+
+    parser.addArgument("--" + PATTERN)
+      .metavar(PATTERN)
+      .type(String.class)
+      .help("The glob pattern for the file names when listing directories, defaults to '*.csv' (or '*.snp' in binary format, '*.ndjson' in NDJSON format).");
+
+    parser.addArgument("--" + READ_THREADS)
+      .metavar(READ_THREADS)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of input files to read concurrently, 0 for the number of cores.");
+
+    parser.addArgument("--" + FORMAT)
+      .metavar(FORMAT)
+      .type(InputFormat.class)
+      .setDefault(InputFormat.CSV)
+      .help("The format of the input file.");
+
+    parser.addArgument("--" + WIDE_COLUMNS)
+      .metavar(WIDE_COLUMNS)
+      .type(String.class)
+      .help("The comma-separated, 1-based score and percentile columns for each measure (" + MEASURE_LIST + ") "
+	+ "in wide format, e.g., '2,3,4,5,6,7,8,9,10,11'; uses the header and the suffixes if omitted.");
+
+    parser.addArgument("--" + SCORE_SUFFIX)
+      .metavar(SCORE_SUFFIX)
+      .type(String.class)
+      .setDefault(WideCSVReader.SCORE_SUFFIX)
+      .help("The suffix of the score columns in wide format, e.g., 'openness" + WideCSVReader.SCORE_SUFFIX + "'.");
+
+    parser.addArgument("--" + PERCENTILE_SUFFIX)
+      .metavar(PERCENTILE_SUFFIX)
+      .type(String.class)
+      .setDefault(WideCSVReader.PERCENTILE_SUFFIX)
+      .help("The suffix of the percentile columns in wide format, e.g., 'openness" + WideCSVReader.PERCENTILE_SUFFIX + "'.");
+
+    parser.addArgument("--" + CONVERT)
+      .metavar(CONVERT)
+      .type(String.class)
+      .help("Converts the input file into the specified binary profile file instead of generating outputs, "
+	+ "for reading it faster in subsequent runs.");
 
     parser.addArgument("--" + ID)
       .metavar(ID)
@@ -146,6 +485,13 @@ public class SupernovaCSV {
       .setDefault(1)
       .help("The 1-based index of the column in the CSV file containing the ID for the output file.");
 
+    parser.addArgument("--" + ID_KEY)
+      .metavar(ID_KEY)
+      .type(String.class)
+      .setDefault(NDJSONReader.ID_KEY)
+      .help("The key of the ID in NDJSON format (scores/percentiles use the measure plus '" + SCORE_SUFFIX + "'/'" + PERCENTILE_SUFFIX + "', "
+	+ "or the measure with an array of score and percentile).");
+
     parser.addArgument("--" + MEASURE)
       .metavar(MEASURE)
       .type(Integer.class)
@@ -214,7 +560,198 @@ public class SupernovaCSV {
     parser.addArgument("--" + OUTPUT)
       .metavar(OUTPUT)
       .type(String.class)
-      .help("The directory to store the output in.");
+      .help("The directory to store the output in, '-' for stdout (as tar stream, unless a stream sink is specified).");
+
+    parser.addArgument("--" + SINK)
+      .metavar(SINK)
+      .type(String.class)
+      .setDefault(DirectorySink.class.getName())
+      .help(
+	"The name of the sink class for storing the outputs in the output directory.\n"
+	  + "Available: " + Registry.toString(Registry.getSinks(), true));
+
+    parser.addArgument("--" + FANOUT)
+      .metavar(FANOUT)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of hashed sub-directory levels to distribute the output files across (0 = flat, " + DirectorySink.class.getSimpleName() + " only).");
+
+    parser.addArgument("--" + INDEX)
+      .metavar(INDEX)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Whether to write an index file (" + DirectorySink.INDEX_FILE + ") mapping ID to path (" + DirectorySink.class.getSimpleName() + " only).");
+
+    parser.addArgument("--" + DEDUP)
+      .metavar(DEDUP)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Whether to generate identical profiles only once and link the duplicates to the first output.");
+
+    parser.addArgument("--" + LINK_TYPE)
+      .metavar(LINK_TYPE)
+      .type(DirectorySink.LinkType.class)
+      .setDefault(DirectorySink.LinkType.HARDLINK)
+      .help("How to store duplicates when deduplicating (" + DirectorySink.class.getSimpleName() + " only).");
+
+    parser.addArgument("--" + THREADS)
+      .metavar(THREADS)
+      .type(Integer.class)
+      .setDefault(1)
+      .help("The number of threads to use for generating the outputs, 0 for the number of cores (parsing is always sequential).");
+
+    parser.addArgument("--" + VIRTUAL_THREADS)
+      .metavar(VIRTUAL_THREADS)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Whether to write the outputs on virtual threads (Java 21+, otherwise platform threads), "
+	+ "keeping the '" + THREADS + "' threads for generating the outputs.");
+
+    parser.addArgument("--" + MAX_PENDING_WRITES)
+      .metavar(MAX_PENDING_WRITES)
+      .type(Integer.class)
+      .setDefault(256)
+      .help("The maximum number of generated outputs waiting to be written (virtual threads only).");
+
+    parser.addArgument("--" + MMAP)
+      .metavar(MMAP)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Whether to use the fast CSV reader, which memory-maps the file and parses line-aligned byte ranges in parallel "
+	+ "(no line breaks within quoted fields).");
+
+    parser.addArgument("--" + PARSE_THREADS)
+      .metavar(PARSE_THREADS)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of threads for parsing the CSV file with the fast reader (or in wide format), 0 for the number of cores.");
+
+    parser.addArgument("--" + MAX_PROFILES)
+      .metavar(MAX_PROFILES)
+      .type(Integer.class)
+      .setDefault(100000)
+      .help("The maximum number of incomplete profiles to keep in memory before spilling them to disk (the rows of an ID do not have to be contiguous).");
+
+    parser.addArgument("--" + TMP_DIR)
+      .metavar(TMP_DIR)
+      .type(String.class)
+      .setDefault(System.getProperty("java.io.tmpdir"))
+      .help("The directory for the incomplete profiles spilled to disk.");
+
+    parser.addArgument("--" + MANIFEST)
+      .metavar(MANIFEST)
+      .type(String.class)
+      .help("The manifest file to record the generated outputs in (ID, input hash, config hash, output, size, duration), "
+	+ "defaults to '" + RunManifest.DEFAULT_NAME + "' in the output directory (none when writing to stdout).");
+
+    parser.addArgument("--" + INCREMENTAL)
+      .metavar(INCREMENTAL)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Whether to skip IDs whose output, scores/percentiles and generator settings match the manifest "
+	+ "(e.g., for resuming an aborted run or after editing the data); otherwise the manifest gets overwritten.");
+
+    parser.addArgument("--" + CACHE_MEMORY)
+      .metavar(CACHE_MEMORY)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The size in MB of the in-memory cache for outputs of identical profiles (and settings), 0 to disable.");
+
+    parser.addArgument("--" + CACHE_DIR)
+      .metavar(CACHE_DIR)
+      .type(String.class)
+      .help("The directory for caching outputs on disk (across runs), enables the cache.");
+
+    parser.addArgument("--" + CACHE_DISK)
+      .metavar(CACHE_DISK)
+      .type(Integer.class)
+      .setDefault(1024)
+      .help("The maximum size in MB of the disk cache; least recently used outputs get removed.");
+
+    parser.addArgument("--" + SHARD)
+      .metavar(SHARD)
+      .type(String.class)
+      .setDefault("0/1")
+      .help("The shard to generate in format 'i/n' (0-based), i.e., only the IDs whose hash modulo n equals i; "
+	+ "for spreading a run across processes/machines writing to the same output directory. "
+	+ "Manifest, index and pack file get a shard-specific name, e.g., '-1-of-4'.");
+
+    parser.addArgument("--" + PIPELINE)
+      .metavar(PIPELINE)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Whether to use a staged pipeline (geometry, raster, encode, write) with separate thread pools; "
+	+ "'" + THREADS + "' determines the number of raster threads. Outputs queue statistics at the end.");
+
+    parser.addArgument("--" + GEOMETRY_THREADS)
+      .metavar(GEOMETRY_THREADS)
+      .type(Integer.class)
+      .setDefault(1)
+      .help("The number of threads for calculating the geometry (pipeline only).");
+
+    parser.addArgument("--" + ENCODE_THREADS)
+      .metavar(ENCODE_THREADS)
+      .type(Integer.class)
+      .setDefault(1)
+      .help("The number of threads for encoding the outputs (pipeline only).");
+
+    parser.addArgument("--" + WRITE_THREADS)
+      .metavar(WRITE_THREADS)
+      .type(Integer.class)
+      .setDefault(1)
+      .help("The number of threads for writing the outputs (pipeline only).");
+
+    parser.addArgument("--" + QUEUE_SIZE)
+      .metavar(QUEUE_SIZE)
+      .type(Integer.class)
+      .setDefault(16)
+      .help("The size of the queue of each stage (pipeline only).");
+
+    parser.addArgument("--" + FARM_PORT)
+      .metavar(FARM_PORT)
+      .type(Integer.class)
+      .setDefault(-1)
+      .help("Acts as coordinator of a render farm, listening on this port (0 for any free port) for workers "
+	+ "(" + SupernovaFarmWorker.class.getName() + ") that generate the outputs; -1 to generate locally. "
+	+ "Workers have to present the token from the environment variable " + FarmProtocol.ENV_TOKEN + " (if set).");
+
+    parser.addArgument("--" + LOCAL_WORKERS)
+      .metavar(LOCAL_WORKERS)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of worker processes to launch on this machine, each using '" + THREADS + "' threads (farm only).");
+
+    parser.addArgument("--" + BATCH_SIZE)
+      .metavar(BATCH_SIZE)
+      .type(Integer.class)
+      .setDefault(64)
+      .help("The number of profiles to hand to a worker at a time (farm only).");
+
+    parser.addArgument("--" + WORKER_TIMEOUT)
+      .metavar(WORKER_TIMEOUT)
+      .type(Integer.class)
+      .setDefault(30)
+      .help("The time in seconds after which a silent worker is considered lost and its batches get requeued (farm only).");
+
+    parser.addArgument("--" + WATCH)
+      .metavar(WATCH)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Runs as daemon, watching the directory specified via '" + CSV + "' for new files matching '" + PATTERN + "', "
+	+ "which get processed once unchanged for '" + SETTLE + "' msec and then archived; implies '" + INCREMENTAL + "'. "
+	+ "Stop with Ctrl+C.");
+
+    parser.addArgument("--" + ARCHIVE)
+      .metavar(ARCHIVE)
+      .type(String.class)
+      .help("The directory to move processed files to, failed ones get moved to its '" + WatchFolder.FAILED + "' sub-directory "
+	+ "(watch only; default: '" + WatchFolder.DEFAULT_ARCHIVE + "' below the watched directory).");
+
+    parser.addArgument("--" + SETTLE)
+      .metavar(SETTLE)
+      .type(Integer.class)
+      .setDefault(1000)
+      .help("The time in msec a file must remain unchanged before it gets processed (watch only).");
 
     parser.addArgument("--" + VERBOSE)
       .metavar(VERBOSE)
@@ -240,6 +777,73 @@ public class SupernovaCSV {
     colors.put(AbstractOutputGenerator.CONSCIENTIOUSNESS, ColorHelper.valueOf(namespace.getString(AbstractOutputGenerator.CONSCIENTIOUSNESS + COLOR_SUFFIX), Color.BLUE));
     colors.put(AbstractOutputGenerator.NEUROTICISM,       ColorHelper.valueOf(namespace.getString(AbstractOutputGenerator.NEUROTICISM       + COLOR_SUFFIX), Color.RED));
 
+    Shard shard;
+    try {
+      shard = Shard.parse(namespace.getString(SHARD));
+    }
+    catch (Exception e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+
+    // input files
+    String pattern = namespace.getString(PATTERN);
+    if (pattern == null)
+      pattern = (namespace.get(FORMAT) == InputFormat.BINARY) ? "*.snp" : ((namespace.get(FORMAT) == InputFormat.NDJSON) ? "*.ndjson" : "*.csv");
+    List<File> files;
+    WatchFolder watcher = null;
+    if (namespace.getBoolean(WATCH)) {
+      if ((namespace.getList(CSV) == null) || (namespace.getList(CSV).size() != 1) || !new File(namespace.<String>getList(CSV).get(0)).isDirectory()) {
+	System.err.println("Watching requires a single directory as input!");
+	return;
+      }
+      watcher = new WatchFolder(new File(namespace.<String>getList(CSV).get(0)));
+      watcher.setPattern(pattern);
+      watcher.setSettleTime(namespace.getInt(SETTLE));
+      if (namespace.getString(ARCHIVE) != null)
+	watcher.setArchive(new File(namespace.getString(ARCHIVE)));
+      files = new ArrayList<>();
+    }
+    else if (namespace.getBoolean(STDIN)) {
+      files = new ArrayList<>();
+      files.add(new File(InputFiles.STDIN));
+    }
+    else if (namespace.getList(CSV) == null) {
+      System.err.println("Either '" + CSV + "' or '" + STDIN + "' must be specified!");
+      return;
+    }
+    else {
+      try {
+	files = InputFiles.expand(namespace.<String>getList(CSV), pattern);
+      }
+      catch (Exception e) {
+	System.err.println(e.getMessage());
+	return;
+      }
+    }
+    if (files.isEmpty() && (watcher == null)) {
+      System.err.println("No input files found!");
+      return;
+    }
+
+    if (namespace.getString(CONVERT) != null) {
+      if (files.size() != 1) {
+	System.err.println("Only a single input file can be converted at a time!");
+	return;
+      }
+      BinaryProfileWriter writer = new BinaryProfileWriter(new File(namespace.getString(CONVERT)));
+      try {
+	InputStatistics stats = new InputStatistics(files.get(0), 0);
+	readProfiles(namespace, files.get(0), shard, writer, stats);
+	if (!stats.isSuccess())
+	  System.err.println(stats.getError());
+      }
+      finally {
+	writer.close();
+      }
+      return;
+    }
+
     File outdir = new File(namespace.getString(OUTPUT));
 
     String centerCls = namespace.getString(CENTER);
@@ -261,38 +865,158 @@ public class SupernovaCSV {
       pixel.setHeight(namespace.getInt(HEIGHT));
     }
 
-    int colID = namespace.getInt(ID) - 1;
-    int colMeasure = namespace.getInt(MEASURE) - 1;
-    int colScore = namespace.getInt(SCORE) - 1;
-    int colPercentile = namespace.getInt(PERCENTILE) - 1;
-    Reader reader = new FileReader(namespace.getString(CSV));
-    CSVParser csvparser = new CSVParser(reader, CSVFormat.EXCEL.withHeader());
-    String oldID = "";
-    Map<String,List<Double>> test = new HashMap<>();
-    for (CSVRecord rec: csvparser) {
-      if (rec.size() < 4)
-	continue;
-      String id = rec.get(colID);
-      if (!id.equals(oldID)) {
-	if (!test.isEmpty()) {
-	  File outfile = new File(outdir + File.separator + oldID + "." + generator.getExtension());
-	  String msg = generator.generate(test, outfile);
-	  if (msg != null)
-	    System.err.println("Failed to generate output for ID: " + oldID);
-	}
-	test.clear();
-	oldID = id;
+    RenderCache cache = null;
+    if ((namespace.getInt(CACHE_MEMORY) > 0) || (namespace.getString(CACHE_DIR) != null)) {
+      cache = new RenderCache();
+      cache.setMaxMemory(namespace.getInt(CACHE_MEMORY) * 1024L * 1024L);
+      if (namespace.getString(CACHE_DIR) != null) {
+	cache.setDirectory(new File(namespace.getString(CACHE_DIR)));
+	cache.setMaxDisk(namespace.getInt(CACHE_DISK) * 1024L * 1024L);
+      }
+      String cacheMsg = cache.open();
+      if (cacheMsg != null) {
+	System.err.println(cacheMsg);
+	return;
       }
-      String measure = rec.get(colMeasure);
-      double score = Double.parseDouble(rec.get(colScore));
-      double percentile = Double.parseDouble(rec.get(colPercentile));
-      test.put(measure, new ArrayList<>(Arrays.asList(new Double[]{score, percentile})));
+      generator.setCache(cache);
+    }
+
+    String sinkCls = namespace.getString(SINK);
+    if (!sinkCls.contains("."))
+      sinkCls = AbstractOutputSink.class.getPackage().getName() + "." + sinkCls;
+    AbstractOutputSink sink = (AbstractOutputSink) Class.forName(sinkCls).newInstance();
+    boolean stdout = outdir.getPath().equals(AbstractStreamSink.STDOUT);
+    if (stdout && !(sink instanceof AbstractStreamSink))
+      sink = new TarStreamSink();
+    sink.setVerbose(namespace.getBoolean(VERBOSE));
+    sink.setOutput(outdir);
+    if (sink instanceof DirectorySink) {
+      DirectorySink dir = (DirectorySink) sink;
+      dir.setFanOut(namespace.getInt(FANOUT));
+      dir.setWriteIndex(namespace.getBoolean(INDEX));
+      dir.setLinkType((DirectorySink.LinkType) namespace.get(LINK_TYPE));
+      dir.setIndexName(shardName(DirectorySink.INDEX_FILE, shard));
+    }
+    if (sink instanceof PackFileSink) {
+      PackFileSink pack = (PackFileSink) sink;
+      pack.setName(shardName(pack.getName(), shard));
+    }
+    String sinkMsg = sink.open();
+    if (sinkMsg != null) {
+      System.err.println(sinkMsg);
+      return;
+    }
+
+    RunManifest manifest = null;
+    if (!stdout || (namespace.getString(MANIFEST) != null)) {
+      manifest = new RunManifest(
+	(namespace.getString(MANIFEST) != null) ? new File(namespace.getString(MANIFEST)) : new File(outdir, shardName(RunManifest.DEFAULT_NAME, shard)));
+      manifest.setIncremental(namespace.getBoolean(INCREMENTAL) || (watcher != null));
+      String manifestMsg = manifest.open();
+      if (manifestMsg != null) {
+	System.err.println(manifestMsg);
+	sink.close();
+	return;
+      }
+    }
+
+    BatchRenderer renderer;
+    FarmCoordinator farm = null;
+    if (namespace.getInt(FARM_PORT) >= 0) {
+      if (namespace.getBoolean(DEDUP))
+	System.err.println("Deduplication not supported by render farm, ignored!");
+      farm = new FarmCoordinator();
+      farm.setPort(namespace.getInt(FARM_PORT));
+      farm.setLocalWorkers(namespace.getInt(LOCAL_WORKERS));
+      farm.setBatchSize(namespace.getInt(BATCH_SIZE));
+      farm.setTimeout(namespace.getInt(WORKER_TIMEOUT) * 1000);
+      renderer = farm;
+    }
+    else if (namespace.getBoolean(PIPELINE)) {
+      StagedPipeline pipeline = new StagedPipeline();
+      pipeline.setGeometryThreads(namespace.getInt(GEOMETRY_THREADS));
+      pipeline.setEncodeThreads(namespace.getInt(ENCODE_THREADS));
+      pipeline.setWriteThreads(namespace.getInt(WRITE_THREADS));
+      pipeline.setQueueSize(namespace.getInt(QUEUE_SIZE));
+      renderer = pipeline;
+    }
+    else {
+      renderer = new BatchRenderer();
+    }
+    renderer.setGenerator(generator);
+    renderer.setSink(sink);
+    renderer.setNumThreads(namespace.getInt(THREADS));
+    renderer.setDeduplicate(namespace.getBoolean(DEDUP));
+    renderer.setVirtualThreads(namespace.getBoolean(VIRTUAL_THREADS));
+    renderer.setMaxPendingWrites(namespace.getInt(MAX_PENDING_WRITES));
+    renderer.setManifest(manifest);
+    renderer.setListener((RenderResult result) -> {
+      if (!result.isSuccess())
+	System.err.println("Failed to generate output for ID: " + result.getID());
+    });
+    if (farm != null) {
+      String farmMsg = farm.open();
+      if (farmMsg != null) {
+	System.err.println(farmMsg);
+	if (manifest != null)
+	  manifest.close();
+	sink.close();
+	return;
+      }
+    }
+    if (watcher != null) {
+      String watchMsg = watcher.open();
+      if (watchMsg != null) {
+	System.err.println(watchMsg);
+	if (manifest != null)
+	  manifest.close();
+	sink.close();
+	return;
+      }
+    }
+    renderer.start();
+
+    List<InputStatistics> inputs;
+    if (watcher != null) {
+      // shut down gracefully on Ctrl+C/SIGTERM
+      WatchFolder w = watcher;
+      Thread main = Thread.currentThread();
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	w.close();
+	try {
+	  main.join(60000);
+	}
+	catch (InterruptedException e) {
+	  // ignored
+	}
+      }));
+      watch(namespace, watcher, shard, renderer);
+      inputs = new ArrayList<>();
+    }
+    else {
+      inputs = readInputs(namespace, files, shard, renderer);
+    }
+    renderer.finish();
+    if (renderer instanceof StagedPipeline)
+      System.err.println(((StagedPipeline) renderer).getStatistics());
+    if (farm != null)
+      System.err.println(farm.getStatistics());
+    if (cache != null)
+      System.err.println(cache.getStatistics());
+    if (inputs.size() > 1) {
+      System.err.println("Inputs:");
+      for (InputStatistics stats: inputs)
+	System.err.println("  " + stats);
     }
-    if (!test.isEmpty()) {
-      File outfile = new File(outdir + File.separator + oldID + "." + generator.getExtension());
-      String msg = generator.generate(test, outfile);
-      if (msg != null)
-	System.err.println("Failed to generate output for ID: " + oldID);
+    if (manifest != null) {
+      if (manifest.getIncremental())
+	System.err.println("Manifest: " + manifest.getNumLoaded() + " loaded, " + manifest.getNumSkipped() + " up-to-date, " + manifest.getNumRecorded() + " generated");
+      String manifestMsg = manifest.close();
+      if (manifestMsg != null)
+	System.err.println(manifestMsg);
     }
+    sinkMsg = sink.close();
+    if (sinkMsg != null)
+      System.err.println(sinkMsg);
   }
 }
@@ -0,0 +1,115 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * SupernovaFarmWorker.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, New Zealand
+ */
+
+package nz.ac.waikato.cms.supernova;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.internal.HelpScreenException;
+import nz.ac.waikato.cms.supernova.farm.FarmProtocol;
+import nz.ac.waikato.cms.supernova.farm.FarmWorker;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Worker process of a render farm, generating outputs for a coordinator
+ * (see option 'farm_port' of {@link SupernovaCSV}).
+ *
+ * @author  fracpete (fracpete at waikato dot ac dot nz)
+ */
+public class SupernovaFarmWorker {
+
+  public static final String HOST = "host";
+
+  public static final String PORT = "port";
+
+  public static final String THREADS = "threads";
+
+  public static final String NAME = "name";
+
+  public static final String CONNECT_TIMEOUT = "connect_timeout";
+
+  public static void main(String[] args) throws Exception {
+    ArgumentParser parser;
+
+    parser = ArgumentParsers.newArgumentParser("I am supernova");
+    parser.description(
+      "Generates output according to 'I am supernova' by Keith Soo.\n"
+	+ "Worker of a render farm: connects to a coordinator, which hands out the profiles to generate.\n"
+	+ "The token shared with the coordinator is read from the environment variable " + FarmProtocol.ENV_TOKEN + ".\n"
+	+ "\n"
+	+ "Project homepage:\n"
+	+ "https://github.com/fracpete/i-am-supernova");
+
+    parser.addArgument("--" + HOST)
+      .metavar(HOST)
+      .type(String.class)
+      .setDefault("localhost")
+      .help("The host of the coordinator.");
+
+    parser.addArgument("--" + PORT)
+      .metavar(PORT)
+      .type(Integer.class)
+      .setDefault(FarmProtocol.DEFAULT_PORT)
+      .help("The port of the coordinator.");
+
+    parser.addArgument("--" + THREADS)
+      .metavar(THREADS)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of threads to use for generating the outputs, 0 for the number of cores.");
+
+    parser.addArgument("--" + NAME)
+      .metavar(NAME)
+      .type(String.class)
+      .setDefault(ManagementFactory.getRuntimeMXBean().getName())
+      .help("The name of the worker, for logging.");
+
+    parser.addArgument("--" + CONNECT_TIMEOUT)
+      .metavar(CONNECT_TIMEOUT)
+      .type(Integer.class)
+      .setDefault(30)
+      .help("How long to keep trying to connect to the coordinator (seconds).");
+
+    Namespace namespace;
+    try {
+      namespace = parser.parseArgs(args);
+    }
+    catch (Exception e) {
+      if (!(e instanceof HelpScreenException))
+	parser.printHelp();
+      return;
+    }
+
+    FarmWorker worker = new FarmWorker();
+    worker.setHost(namespace.getString(HOST));
+    worker.setPort(namespace.getInt(PORT));
+    worker.setNumThreads(namespace.getInt(THREADS));
+    worker.setName(namespace.getString(NAME));
+    worker.setConnectTimeout(namespace.getInt(CONNECT_TIMEOUT) * 1000);
+    String msg = worker.run();
+    if (msg != null) {
+      System.err.println(msg);
+      System.exit(1);
+    }
+  }
+}
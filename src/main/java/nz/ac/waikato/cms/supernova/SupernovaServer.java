@@ -0,0 +1,228 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * SupernovaServer.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, New Zealand
+ */
+
+package nz.ac.waikato.cms.supernova;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.internal.HelpScreenException;
+import nz.ac.waikato.cms.supernova.cache.RenderCache;
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.server.AdmissionController;
+import nz.ac.waikato.cms.supernova.server.RenderServer;
+
+
+/**
+ * HTTP service for generating outputs (see {@link RenderServer}).
+ *
+ * @author  fracpete (fracpete at waikato dot ac dot nz)
+ */
+public class SupernovaServer {
+
+  public static final String PORT = "port";
+
+  public static final String ADDRESS = "address";
+
+  public static final String THREADS = "threads";
+
+  public static final String VIRTUAL_THREADS = "virtual_threads";
+
+  public static final String BACKLOG = "backlog";
+
+  public static final String IDLE_TIMEOUT = "idle_timeout";
+
+  public static final String MAX_AGE = "max_age";
+
+  public static final String CACHE_MEMORY = "cache_memory";
+
+  public static final String SLOTS = "slots";
+
+  public static final String LARGE_SLOTS = "large_slots";
+
+  public static final String MEMORY_BUDGET = "memory_budget";
+
+  public static final String LARGE_THRESHOLD = "large_threshold";
+
+  public static final String MAX_QUEUED = "max_queued";
+
+  public static final String QUEUE_TIMEOUT = "queue_timeout";
+
+  public static void main(String[] args) throws Exception {
+    ArgumentParser parser;
+
+    parser = ArgumentParsers.newArgumentParser("I am supernova");
+    parser.description(
+      "Generates output according to 'I am supernova' by Keith Soo.\n"
+	+ "HTTP service: GET " + RenderServer.CONTEXT + " with the options of the 'run' script as query parameters.\n"
+	+ "\n"
+	+ "Project homepage:\n"
+	+ "https://github.com/fracpete/i-am-supernova");
+
+    parser.addArgument("--" + PORT)
+      .metavar(PORT)
+      .type(Integer.class)
+      .setDefault(RenderServer.DEFAULT_PORT)
+      .help("The port to listen on.");
+
+    parser.addArgument("--" + ADDRESS)
+      .metavar(ADDRESS)
+      .type(String.class)
+      .setDefault(RenderServer.DEFAULT_ADDRESS)
+      .help("The address to listen on, use 0.0.0.0 for all interfaces (requests are not authenticated).");
+
+    parser.addArgument("--" + THREADS)
+      .metavar(THREADS)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of threads for handling requests, 0 for the number of cores (without admission control) or slots plus queued requests.");
+
+    parser.addArgument("--" + VIRTUAL_THREADS)
+      .metavar(VIRTUAL_THREADS)
+      .type(Boolean.class)
+      .action(Arguments.storeTrue())
+      .help("Whether to handle each request on a new virtual thread (Java 21+) instead of a pool of threads.");
+
+    parser.addArgument("--" + BACKLOG)
+      .metavar(BACKLOG)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The maximum number of pending connections, 0 for the system default.");
+
+    parser.addArgument("--" + IDLE_TIMEOUT)
+      .metavar(IDLE_TIMEOUT)
+      .type(Integer.class)
+      .setDefault(30)
+      .help("How long to keep idle connections alive (seconds).");
+
+    parser.addArgument("--" + MAX_AGE)
+      .metavar(MAX_AGE)
+      .type(Integer.class)
+      .setDefault(3600)
+      .help("The max-age of the responses for the Cache-Control header (seconds), -1 to omit.");
+
+    parser.addArgument("--" + CACHE_MEMORY)
+      .metavar(CACHE_MEMORY)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The size in MB of the in-memory cache for outputs, 0 to disable.");
+
+    parser.addArgument("--" + SLOTS)
+      .metavar(SLOTS)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of concurrent generations for admission control, 0 for the number of cores, -1 to disable admission control.");
+
+    parser.addArgument("--" + LARGE_SLOTS)
+      .metavar(LARGE_SLOTS)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The number of slots that large requests can occupy, 0 for half of the slots.");
+
+    parser.addArgument("--" + MEMORY_BUDGET)
+      .metavar(MEMORY_BUDGET)
+      .type(Integer.class)
+      .setDefault(0)
+      .help("The memory budget in MB for the estimated memory of concurrent generations, 0 for half of the maximum heap.");
+
+    parser.addArgument("--" + LARGE_THRESHOLD)
+      .metavar(LARGE_THRESHOLD)
+      .type(Integer.class)
+      .setDefault(16)
+      .help("The estimated memory in MB from which on a request counts as large (e.g., PNG: width*height*5 bytes).");
+
+    parser.addArgument("--" + MAX_QUEUED)
+      .metavar(MAX_QUEUED)
+      .type(Integer.class)
+      .setDefault(16)
+      .help("The maximum number of requests waiting for admission per lane (small/large), further ones get rejected with 503.");
+
+    parser.addArgument("--" + QUEUE_TIMEOUT)
+      .metavar(QUEUE_TIMEOUT)
+      .type(Integer.class)
+      .setDefault(5)
+      .help("The maximum time to wait for admission (seconds), before getting rejected with 503.");
+
+    Namespace namespace;
+    try {
+      namespace = parser.parseArgs(args);
+    }
+    catch (Exception e) {
+      if (!(e instanceof HelpScreenException))
+	parser.printHelp();
+      return;
+    }
+
+    RenderServer.setIdleInterval(namespace.getInt(IDLE_TIMEOUT));
+    RenderServer server = new RenderServer();
+    server.setPort(namespace.getInt(PORT));
+    server.setAddress(namespace.getString(ADDRESS));
+    server.setBacklog(namespace.getInt(BACKLOG));
+    server.setMaxAge(namespace.getInt(MAX_AGE));
+    int threads = ThreadHelper.getNumCores();
+    int queued  = threads;
+    if (namespace.getInt(SLOTS) >= 0) {
+      AdmissionController admission = new AdmissionController();
+      admission.setSlots(namespace.getInt(SLOTS));
+      admission.setLargeSlots(namespace.getInt(LARGE_SLOTS));
+      if (namespace.getInt(MEMORY_BUDGET) > 0)
+	admission.setMaxMemory(namespace.getInt(MEMORY_BUDGET) * 1024L * 1024L);
+      admission.setLargeThreshold(namespace.getInt(LARGE_THRESHOLD) * 1024L * 1024L);
+      admission.setMaxQueued(namespace.getInt(MAX_QUEUED));
+      admission.setQueueTimeout(namespace.getInt(QUEUE_TIMEOUT) * 1000L);
+      server.setAdmission(admission);
+      // requests wait for admission on the handler threads, not in the executor's queue
+      threads = admission.getSlots() + 2 * admission.getMaxQueued();
+      queued  = 0;
+    }
+    if (namespace.getInt(THREADS) > 0)
+      threads = namespace.getInt(THREADS);
+    if (namespace.getBoolean(VIRTUAL_THREADS))
+      server.setExecutor(ThreadHelper.newIOExecutor("http"));
+    else
+      server.setExecutor(server.newBoundedExecutor(threads, queued));
+    if (namespace.getInt(CACHE_MEMORY) > 0) {
+      RenderCache cache = new RenderCache();
+      cache.setMaxMemory(namespace.getInt(CACHE_MEMORY) * 1024L * 1024L);
+      String cacheMsg = cache.open();
+      if (cacheMsg != null) {
+	System.err.println(cacheMsg);
+	System.exit(1);
+      }
+      server.setCache(cache);
+    }
+    String msg = server.start();
+    if (msg != null) {
+      System.err.println(msg);
+      System.exit(1);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.stop(1);
+      if (server.getSingleFlight() != null)
+	System.err.println(server.getSingleFlight().getStatistics());
+      if (server.getCache() != null)
+	System.err.println(server.getCache().getStatistics());
+      if (server.getAdmission() != null)
+	System.err.println(server.getAdmission().getStatistics());
+    }));
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * SupernovaWorker.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, New Zealand
+ */
+
+package nz.ac.waikato.cms.supernova;
+
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import nz.ac.waikato.cms.supernova.core.JsonHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.server.AdmissionController;
+import nz.ac.waikato.cms.supernova.triangle.AbstractTriangleCenterCalculation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Long-lived worker that reads one JSON request per line from stdin and
+ * writes one JSON response per line to stdout, avoiding the JVM startup
+ * of {@link Supernova} for every output. A request uses the same options
+ * as {@link Supernova} as keys (without the leading dashes), e.g.:
+ * <pre>
+ * {"id": "u1", "openness_score": 4.5, "openness_percentile": 87, ..., "output": "/some/where/u1.png"}
+ * </pre>
+ * The response contains the output file or the error, plus the "id" of
+ * the request, if any:
+ * <pre>
+ * {"id": "u1", "output": "/some/where/u1.png"}
+ * {"id": "u2", "error": "..."}
+ * </pre>
+ * Options supplied on the command-line act as defaults for all requests.
+ * Parser and generators get reused across requests (stay warm), anything
+ * written to stdout by the generators gets redirected to stderr. Requests
+ * whose estimated memory exceeds the budget of the {@link AdmissionController}
+ * get rejected with an error instead of exhausting the heap.
+ *
+ * @author  fracpete (fracpete at waikato dot ac dot nz)
+ */
+public class SupernovaWorker {
+
+  /** the key for the ID of the request. */
+  public static final String ID = "id";
+
+  /** the key for the output file in the response. */
+  public static final String OUTPUT = "output";
+
+  /** the key for the error in the response. */
+  public static final String ERROR = "error";
+
+  /** the parser for the options. */
+  protected ArgumentParser m_Parser;
+
+  /** the default options. */
+  protected List<String> m_Defaults;
+
+  /** the generators (classname - generator). */
+  protected Map<String,AbstractOutputGenerator> m_Generators;
+
+  /** the center calculations (classname - calculation). */
+  protected Map<String,AbstractTriangleCenterCalculation> m_Centers;
+
+  /** the admission control. */
+  protected AdmissionController m_Admission;
+
+  /**
+   * Initializes the worker.
+   *
+   * @param defaults	the default options for all requests
+   */
+  public SupernovaWorker(String[] defaults) {
+    m_Parser     = Supernova.createParser();
+    m_Defaults   = new ArrayList<>(Arrays.asList(defaults));
+    m_Generators = new HashMap<>();
+    m_Centers    = new HashMap<>();
+    m_Admission  = new AdmissionController();
+    m_Admission.setSlots(1);
+    m_Admission.setMaxQueued(0);
+  }
+
+  /**
+   * Turns the JSON request into command-line options.
+   *
+   * @param request	the request to convert
+   * @return		the options
+   * @throws IllegalArgumentException	if a value is not supported
+   */
+  protected List<String> toOptions(Map<String,Object> request) {
+    List<String>	result;
+    Object		value;
+    double		d;
+
+    result = new ArrayList<>(m_Defaults);
+    for (String key: request.keySet()) {
+      if (key.equals(ID))
+	continue;
+      value = request.get(key);
+      if ((value == null) || Boolean.FALSE.equals(value))
+	continue;
+      if (Boolean.TRUE.equals(value)) {
+	result.add("--" + key);
+      }
+      else if (value instanceof Double) {
+	d = (Double) value;
+	result.add("--" + key);
+	// integer options can't parse "2000.0"
+	if ((d == Math.rint(d)) && (Math.abs(d) < 1e15))
+	  result.add("" + (long) d);
+	else
+	  result.add("" + d);
+      }
+      else if (value instanceof String) {
+	result.add("--" + key);
+	result.add((String) value);
+      }
+      else {
+	throw new IllegalArgumentException("Unsupported value for '" + key + "': " + JsonHelper.toJson(value));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the (cached) generator for the options.
+   *
+   * @param namespace	the parsed options
+   * @return		the configured generator
+   * @throws Exception	if instantiation fails
+   */
+  protected AbstractOutputGenerator getGenerator(Namespace namespace) throws Exception {
+    AbstractOutputGenerator		result;
+    AbstractTriangleCenterCalculation	center;
+    String				cls;
+
+    cls    = Supernova.getCenterClassname(namespace);
+    center = m_Centers.get(cls);
+    if (center == null) {
+      center = (AbstractTriangleCenterCalculation) Class.forName(cls).newInstance();
+      m_Centers.put(cls, center);
+    }
+
+    cls    = Supernova.getGeneratorClassname(namespace);
+    result = m_Generators.get(cls);
+    if (result == null) {
+      result = (AbstractOutputGenerator) Class.forName(cls).newInstance();
+      m_Generators.put(cls, result);
+    }
+    Supernova.configure(result, center, namespace);
+
+    return result;
+  }
+
+  /**
+   * Processes the request.
+   *
+   * @param line	the JSON request
+   * @return		the JSON response
+   */
+  public String process(String line) {
+    Map<String,Object>		response;
+    Map<String,Object>		request;
+    Namespace			namespace;
+    AbstractOutputGenerator	generator;
+    AdmissionController.Permit	permit;
+    String			output;
+    String			msg;
+
+    response = new LinkedHashMap<>();
+    try {
+      request = JsonHelper.parseObject(line);
+      if (request.containsKey(ID))
+	response.put(ID, request.get(ID));
+      namespace = m_Parser.parseArgs(toOptions(request).toArray(new String[0]));
+      output    = namespace.getString(Supernova.OUTPUT);
+      if (output == null) {
+	msg = "No output file specified!";
+      }
+      else {
+	generator = getGenerator(namespace);
+	permit    = m_Admission.acquire(generator.estimateMemory(Supernova.getTest(namespace)));
+	if (permit.isAdmitted()) {
+	  try {
+	    msg = generator.generate(Supernova.getTest(namespace), new File(output));
+	  }
+	  finally {
+	    m_Admission.release(permit);
+	  }
+	}
+	else {
+	  msg = permit.getError();
+	}
+      }
+      if (msg == null)
+	response.put(OUTPUT, output);
+      else
+	response.put(ERROR, msg);
+    }
+    catch (ArgumentParserException e) {
+      response.put(ERROR, e.getMessage());
+    }
+    catch (Exception e) {
+      response.put(ERROR, e.toString());
+    }
+
+    return JsonHelper.toJson(response);
+  }
+
+  /**
+   * Processes requests from stdin until end of input.
+   *
+   * @param args	the default options for all requests
+   * @throws Exception	if reading/writing fails
+   */
+  public static void main(String[] args) throws Exception {
+    SupernovaWorker	worker;
+    BufferedReader	reader;
+    PrintWriter		writer;
+    String		line;
+
+    // keep stdout for the responses
+    writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+    System.setOut(System.err);
+
+    worker = new SupernovaWorker(args);
+    reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    while ((line = reader.readLine()) != null) {
+      if (line.trim().isEmpty())
+	continue;
+      writer.println(worker.process(line));
+      writer.flush();
+    }
+  }
+}
@@ -0,0 +1,876 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * BatchRenderer.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.io.PNG;
+import nz.ac.waikato.cms.supernova.sink.AbstractOutputSink;
+import nz.ac.waikato.cms.supernova.sink.DirectorySink;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Generates the outputs of a batch run and stores them in a sink.
+ * With more than one thread, the profiles get handed to a bounded pool
+ * of workers, each using its own copy of the generator. Submitting blocks
+ * while the queue of the pool is full.
+ * <br>
+ * When deduplicating, profiles with identical content key (see
+ * {@link AbstractOutputGenerator#getContentKey(Map)}) get only generated
+ * once, the duplicates get linked to the first output via the sink.
+ * <br>
+ * With virtual threads enabled, the workers only generate the encoded
+ * outputs (CPU-bound) and the blocking writes to the sink get run on virtual
+ * threads (Java 21+, otherwise on a cached pool of platform threads), so
+ * that slow storage does not stall the generation. The number of encoded
+ * outputs waiting to be written is limited.
+ * <br>
+ * When generating outputs from multiple inputs, ID collisions can be
+ * resolved via a {@link ClaimTable}: each profile gets submitted with the
+ * rank of its input and the output of the input with the lowest rank is
+ * kept, regardless of the order in which the profiles arrive.
+ * <br>
+ * With a {@link RunManifest}, every stored output gets recorded and
+ * outputs that are up-to-date according to the manifest get skipped.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class BatchRenderer {
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the generator to use (template for the workers). */
+  protected AbstractOutputGenerator m_Generator;
+
+  /** the sink to store the outputs in. */
+  protected AbstractOutputSink m_Sink;
+
+  /** the number of threads to use. */
+  protected int m_NumThreads;
+
+  /** whether to deduplicate. */
+  protected boolean m_Deduplicate;
+
+  /** the listener to notify, can be null. */
+  protected RenderListener m_Listener;
+
+  /** the content keys generated so far (key - ID of first output, null if failed). */
+  protected Map<String,CompletableFuture<String>> m_Keys;
+
+  /** the generator per worker thread. */
+  protected ThreadLocal<AbstractOutputGenerator> m_Generators;
+
+  /** whether to write the outputs on virtual threads. */
+  protected boolean m_VirtualThreads;
+
+  /** the maximum number of encoded outputs waiting to be written. */
+  protected int m_MaxPendingWrites;
+
+  /** the executor for the workers, null if sequential. */
+  protected ThreadPoolExecutor m_Executor;
+
+  /** the executor for writing the outputs, null if writing in the workers. */
+  protected ExecutorService m_IOExecutor;
+
+  /** limits the number of outputs waiting to be written. */
+  protected Semaphore m_PendingWrites;
+
+  /** the claims for resolving ID collisions across inputs, can be null. */
+  protected ClaimTable m_Claims;
+
+  /** the manifest to record the outputs in, can be null. */
+  protected RunManifest m_Manifest;
+
+  /** the hash of the generator settings (manifest only). */
+  protected String m_ConfigHash;
+
+  /** the number of outputs that got accepted for generating. */
+  protected long m_NumBegun;
+
+  /** the number of outputs that have been finished. */
+  protected long m_NumFinished;
+
+  /** the message for outputs that got superseded by an input with lower rank. */
+  public static final String SUPERSEDED = "Superseded by input with lower rank";
+
+  /**
+   * Initializes the renderer.
+   */
+  public BatchRenderer() {
+    super();
+
+    m_Logger      = Logger.getLogger(getClass().getName());
+    m_Generator   = new PNG();
+    m_Sink        = new DirectorySink();
+    m_NumThreads  = 1;
+    m_Deduplicate = false;
+    m_Listener    = null;
+    m_Keys        = new ConcurrentHashMap<>();
+    m_Generators  = ThreadLocal.withInitial(() -> m_Generator.copy());
+    m_VirtualThreads   = false;
+    m_MaxPendingWrites = 256;
+    m_Executor         = null;
+    m_IOExecutor       = null;
+    m_PendingWrites    = null;
+    m_Claims           = null;
+    m_Manifest         = null;
+    m_ConfigHash       = null;
+    m_NumBegun         = 0;
+    m_NumFinished      = 0;
+  }
+
+  /**
+   * Sets the generator to use. Gets copied for each worker thread.
+   *
+   * @param value	the generator
+   */
+  public void setGenerator(AbstractOutputGenerator value) {
+    m_Generator = value;
+  }
+
+  /**
+   * Returns the generator to use.
+   *
+   * @return		the generator
+   */
+  public AbstractOutputGenerator getGenerator() {
+    return m_Generator;
+  }
+
+  /**
+   * Sets the sink to store the outputs in.
+   *
+   * @param value	the sink
+   */
+  public void setSink(AbstractOutputSink value) {
+    m_Sink = value;
+  }
+
+  /**
+   * Returns the sink to store the outputs in.
+   *
+   * @return		the sink
+   */
+  public AbstractOutputSink getSink() {
+    return m_Sink;
+  }
+
+  /**
+   * Sets the number of threads to use.
+   *
+   * @param value	the number of threads (1 = sequential, on calling thread,
+   * 			0 = number of cores)
+   */
+  public void setNumThreads(int value) {
+    if (value == 0)
+      m_NumThreads = ThreadHelper.getNumCores();
+    else if (value > 0)
+      m_NumThreads = value;
+  }
+
+  /**
+   * Returns the number of threads to use.
+   *
+   * @return		the number of threads
+   */
+  public int getNumThreads() {
+    return m_NumThreads;
+  }
+
+  /**
+   * Sets whether to deduplicate identical profiles.
+   *
+   * @param value	true if to deduplicate
+   */
+  public void setDeduplicate(boolean value) {
+    m_Deduplicate = value;
+  }
+
+  /**
+   * Returns whether to deduplicate identical profiles.
+   *
+   * @return		true if to deduplicate
+   */
+  public boolean getDeduplicate() {
+    return m_Deduplicate;
+  }
+
+  /**
+   * Sets whether to write the outputs on virtual threads, keeping the
+   * workers for generating the outputs.
+   *
+   * @param value	true if to use virtual threads
+   * @see		ThreadHelper#isVirtualThreadsAvailable()
+   */
+  public void setVirtualThreads(boolean value) {
+    m_VirtualThreads = value;
+  }
+
+  /**
+   * Returns whether to write the outputs on virtual threads, keeping the
+   * workers for generating the outputs.
+   *
+   * @return		true if to use virtual threads
+   */
+  public boolean getVirtualThreads() {
+    return m_VirtualThreads;
+  }
+
+  /**
+   * Sets the maximum number of encoded outputs waiting to be written
+   * (virtual threads only).
+   *
+   * @param value	the maximum
+   */
+  public void setMaxPendingWrites(int value) {
+    if (value > 0)
+      m_MaxPendingWrites = value;
+  }
+
+  /**
+   * Returns the maximum number of encoded outputs waiting to be written
+   * (virtual threads only).
+   *
+   * @return		the maximum
+   */
+  public int getMaxPendingWrites() {
+    return m_MaxPendingWrites;
+  }
+
+  /**
+   * Sets the listener to notify about finished outputs.
+   *
+   * @param value	the listener, null to unset
+   */
+  public void setListener(RenderListener value) {
+    m_Listener = value;
+  }
+
+  /**
+   * Returns the listener to notify about finished outputs.
+   *
+   * @return		the listener, null if none set
+   */
+  public RenderListener getListener() {
+    return m_Listener;
+  }
+
+  /**
+   * Sets the claims for resolving ID collisions across multiple inputs.
+   * With deduplication, duplicates may get linked to an output that gets
+   * overwritten afterwards by an input with lower rank. Sinks replace
+   * outputs rather than rewriting them in place, so copies and hard links
+   * keep the previous content; symbolic links and index entries follow
+   * the replacement.
+   *
+   * @param value	the claims, null to unset
+   */
+  public void setClaims(ClaimTable value) {
+    m_Claims = value;
+  }
+
+  /**
+   * Returns the claims for resolving ID collisions across multiple inputs.
+   *
+   * @return		the claims, null if none set
+   */
+  public ClaimTable getClaims() {
+    return m_Claims;
+  }
+
+  /**
+   * Sets the manifest to record the stored outputs in and to check for
+   * up-to-date outputs. Must be open already.
+   *
+   * @param value	the manifest, null to unset
+   */
+  public void setManifest(RunManifest value) {
+    m_Manifest = value;
+  }
+
+  /**
+   * Returns the manifest to record the stored outputs in.
+   *
+   * @return		the manifest, null if none set
+   */
+  public RunManifest getManifest() {
+    return m_Manifest;
+  }
+
+  /**
+   * Creates a fixed-size thread pool with a bounded queue. Submitting a
+   * task blocks while the queue is full.
+   *
+   * @param name	the name prefix for the threads
+   * @param numThreads	the number of threads
+   * @param queueSize	the size of the queue
+   * @return		the executor
+   */
+  public static ThreadPoolExecutor newBlockingExecutor(String name, int numThreads, int queueSize) {
+    return new ThreadPoolExecutor(
+      numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(queueSize),
+      ThreadHelper.newPlatformThreadFactory(name),
+      (Runnable r, ThreadPoolExecutor executor) -> {
+	if (executor.isShutdown())
+	  throw new RejectedExecutionException("Executor already shut down!");
+	try {
+	  executor.getQueue().put(r);
+	}
+	catch (InterruptedException e) {
+	  Thread.currentThread().interrupt();
+	  throw new RejectedExecutionException("Interrupted while waiting for queue", e);
+	}
+      });
+  }
+
+  /**
+   * Resets the state of the previous run. Must be called by all
+   * implementations of {@link #start()}, as the up-to-date check and the
+   * manifest records rely on the configuration hash.
+   */
+  protected void prepareRun() {
+    m_Keys.clear();
+    m_ConfigHash = null;
+    if (m_Manifest != null)
+      m_ConfigHash = RunManifest.configHash(m_Generator);
+  }
+
+  /**
+   * Starts up the workers (if more than one thread) and the executor for
+   * writing (if using virtual threads).
+   */
+  public void start() {
+    prepareRun();
+    if (m_NumThreads > 1)
+      m_Executor = newBlockingExecutor("render", m_NumThreads, m_NumThreads * 2);
+    if (m_VirtualThreads) {
+      if (!ThreadHelper.isVirtualThreadsAvailable())
+	m_Logger.warning("Virtual threads not available (requires Java 21+), writing on platform threads instead.");
+      m_IOExecutor    = ThreadHelper.newIOExecutor("io");
+      m_PendingWrites = new Semaphore(m_MaxPendingWrites);
+    }
+  }
+
+  /**
+   * Generates the output for the ID, either directly or by handing it to
+   * the workers. Blocks if all workers are busy and the queue is full.
+   * The test results must not get modified afterwards.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   */
+  public void submit(String id, Map<String,List<Double>> test) {
+    submit(id, test, 0);
+  }
+
+  /**
+   * Generates the output for the ID, either directly or by handing it to
+   * the workers. Blocks if all workers are busy and the queue is full.
+   * The test results must not get modified afterwards. Can be called
+   * from multiple threads.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input the profile is from
+   * @see		#setClaims(ClaimTable)
+   */
+  public void submit(String id, Map<String,List<Double>> test, int rank) {
+    if (!begin(id, test, rank))
+      return;
+
+    if (m_IOExecutor != null) {
+      if (m_Executor == null) {
+	synchronized(m_Generator) {
+	  renderAsync(m_Generator, id, test, rank);
+	}
+      }
+      else {
+	m_Executor.execute(() -> renderAsync(m_Generators.get(), id, test, rank));
+      }
+    }
+    else {
+      if (m_Executor == null) {
+	synchronized(m_Generator) {
+	  render(m_Generator, id, test, rank);
+	}
+      }
+      else {
+	m_Executor.execute(() -> render(m_Generators.get(), id, test, rank));
+      }
+    }
+  }
+
+  /**
+   * Checks whether the output needs generating, i.e., the input holds the
+   * claim on the ID and the output is not up-to-date. Every accepted output
+   * must get passed to {@link #finished(String, Map, String, long)}.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input
+   * @return		true if the output is to be generated
+   * @see		#flush()
+   */
+  protected boolean begin(String id, Map<String,List<Double>> test, int rank) {
+    if (!claim(id, rank) || isUpToDate(id, test))
+      return false;
+    synchronized(this) {
+      m_NumBegun++;
+    }
+    return true;
+  }
+
+  /**
+   * Claims the ID for the input, if claims are set.
+   *
+   * @param id		the ID of the output
+   * @param rank	the rank of the input
+   * @return		true if the output is to be generated
+   */
+  protected boolean claim(String id, int rank) {
+    return (m_Claims == null) || m_Claims.claim(id, rank);
+  }
+
+  /**
+   * Checks whether the output is up-to-date according to the manifest
+   * (if set), i.e., whether it can be skipped.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @return		true if up-to-date
+   */
+  protected boolean isUpToDate(String id, Map<String,List<Double>> test) {
+    String	ext;
+
+    if (m_Manifest == null)
+      return false;
+
+    ext = m_Generator.getExtension();
+    if (!m_Manifest.isUpToDate(id, RunManifest.inputHash(test), m_ConfigHash, m_Sink.size(id, ext)))
+      return false;
+    m_Manifest.skipped();
+
+    return true;
+  }
+
+  /**
+   * Removes the ID from the manifest (if set), as its output is about
+   * to get overwritten.
+   *
+   * @param id		the ID of the output
+   */
+  protected void invalidate(String id) {
+    if (m_Manifest != null)
+      m_Manifest.invalidate(id);
+  }
+
+  /**
+   * Generates and stores the output. If claims are set, the output gets
+   * generated in memory and only stored if the input still holds the claim.
+   *
+   * @param generator	the generator to use
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input
+   * @return		null if successful, {@link #SUPERSEDED} or error message
+   */
+  protected String store(AbstractOutputGenerator generator, String id, Map<String,List<Double>> test, int rank) {
+    StringBuilder	errors;
+    ByteBuffer		data;
+
+    if (m_Claims == null) {
+      invalidate(id);
+      return m_Sink.write(id, generator, test);
+    }
+
+    errors = new StringBuilder();
+    data   = generator.generate(test, errors);
+    if (data == null)
+      return errors.toString();
+    return store(id, generator.getExtension(), data, rank);
+  }
+
+  /**
+   * Stores the encoded output. If claims are set, the output only gets
+   * stored if the input still holds the claim.
+   *
+   * @param id		the ID of the output
+   * @param ext		the extension of the output
+   * @param data	the encoded output
+   * @param rank	the rank of the input
+   * @return		null if successful, {@link #SUPERSEDED} or error message
+   */
+  protected String store(String id, String ext, ByteBuffer data, int rank) {
+    if (m_Claims == null) {
+      invalidate(id);
+      return m_Sink.write(id, ext, data);
+    }
+
+    synchronized(m_Claims.getLock(id)) {
+      if (!m_Claims.isClaimed(id, rank))
+	return SUPERSEDED;
+      invalidate(id);
+      return m_Sink.write(id, ext, data);
+    }
+  }
+
+  /**
+   * Links the duplicate to the first output. If claims are set, only
+   * links if the input still holds the claim.
+   *
+   * @param id		the ID of the duplicate
+   * @param first	the ID of the first output
+   * @param generator	the generator in use
+   * @param rank	the rank of the input
+   * @return		null if successful, {@link #SUPERSEDED} or error message
+   */
+  protected String link(String id, String first, AbstractOutputGenerator generator, int rank) {
+    if (m_Claims == null) {
+      invalidate(id);
+      return m_Sink.link(id, first, generator);
+    }
+
+    synchronized(m_Claims.getLock(id)) {
+      if (!m_Claims.isClaimed(id, rank))
+	return SUPERSEDED;
+      invalidate(id);
+      return m_Sink.link(id, first, generator);
+    }
+  }
+
+  /**
+   * Generates and stores the output, deduplicating if enabled.
+   *
+   * @param generator	the generator to use
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input
+   * @return		null if successful, {@link #SUPERSEDED} or error message
+   */
+  protected String write(AbstractOutputGenerator generator, String id, Map<String,List<Double>> test, int rank) {
+    String				key;
+    CompletableFuture<String>		future;
+    CompletableFuture<String>		existing;
+    String				first;
+    String				msg;
+
+    if (!m_Deduplicate)
+      return store(generator, id, test, rank);
+
+    key      = generator.getContentKey(test);
+    future   = new CompletableFuture<>();
+    existing = m_Keys.putIfAbsent(key, future);
+    if (existing != null) {
+      // wait for the first output with this key to be written
+      first = existing.join();
+      if (first != null)
+	return link(id, first, generator, rank);
+      // first one failed, generate it ourselves
+      return store(generator, id, test, rank);
+    }
+
+    msg = null;
+    try {
+      msg = store(generator, id, test, rank);
+    }
+    finally {
+      future.complete(msg == null ? id : null);
+    }
+
+    return msg;
+  }
+
+  /**
+   * Generates and stores the output, notifies the listener.
+   *
+   * @param generator	the generator to use
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input
+   */
+  protected void render(AbstractOutputGenerator generator, String id, Map<String,List<Double>> test, int rank) {
+    long	start;
+    String	msg;
+
+    start = System.currentTimeMillis();
+    try {
+      msg = write(generator, id, test, rank);
+    }
+    catch (Exception e) {
+      msg = "Failed to generate output for ID '" + id + "': " + e;
+    }
+
+    finished(id, test, msg, start);
+  }
+
+  /**
+   * Generates the output and hands it to the I/O executor for writing,
+   * deduplicating if enabled. Duplicates get linked on the I/O executor
+   * as well, once the first output with the same content key was written.
+   * Until then, duplicates occupy neither a thread nor a pending write.
+   *
+   * @param generator	the generator to use
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input
+   */
+  protected void renderAsync(AbstractOutputGenerator generator, String id, Map<String,List<Double>> test, int rank) {
+    long				start;
+    String				key;
+    CompletableFuture<String>		future;
+    CompletableFuture<String>		existing;
+    StringBuilder			errors;
+    ByteBuffer				data;
+    String				ext;
+
+    start  = System.currentTimeMillis();
+    future = null;
+    if (m_Deduplicate) {
+      key      = generator.getContentKey(test);
+      future   = new CompletableFuture<>();
+      existing = m_Keys.putIfAbsent(key, future);
+      if (existing != null) {
+	existing.whenComplete((String first, Throwable t) -> queueLink(id, test, rank, first, start));
+	return;
+      }
+    }
+
+    errors = new StringBuilder();
+    try {
+      data = generator.generate(test, errors);
+    }
+    catch (Exception e) {
+      data = null;
+      errors.append("Failed to generate output for ID '").append(id).append("': ").append(e);
+    }
+    if (data == null) {
+      if (future != null)
+	future.complete(null);
+      finished(id, test, errors.toString(), start);
+      return;
+    }
+
+    ext = generator.getExtension();
+    queueWrite(id, test, ext, data, rank, future, start);
+  }
+
+  /**
+   * Hands the encoded output to the I/O executor for writing. Blocks
+   * if too many outputs are waiting to be written.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param ext		the extension of the output
+   * @param data	the encoded output
+   * @param rank	the rank of the input
+   * @param future	the future to complete for deduplication, can be null
+   * @param start	the start time (msec)
+   */
+  protected void queueWrite(String id, Map<String,List<Double>> test, String ext, ByteBuffer data, int rank, CompletableFuture<String> future, long start) {
+    m_PendingWrites.acquireUninterruptibly();
+    m_IOExecutor.execute(() -> writeAsync(id, test, ext, data, rank, future, start));
+  }
+
+  /**
+   * Hands the duplicate to the I/O executor for linking, once the first
+   * output with the same content key is finished. Blocks if too many
+   * outputs are waiting to be written.
+   *
+   * @param id		the ID of the duplicate
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input
+   * @param first	the ID of the first output, null if not stored
+   * @param start	the start time (msec)
+   */
+  protected void queueLink(String id, Map<String,List<Double>> test, int rank, String first, long start) {
+    m_PendingWrites.acquireUninterruptibly();
+    m_IOExecutor.execute(() -> linkAsync(id, test, rank, first, start));
+  }
+
+  /**
+   * Links the duplicate to the first output with the same content key
+   * (run by the I/O executor).
+   *
+   * @param id		the ID of the duplicate
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input
+   * @param first	the ID of the first output, null if not stored
+   * @param start	the start time (msec)
+   */
+  protected void linkAsync(String id, Map<String,List<Double>> test, int rank, String first, long start) {
+    String	msg;
+
+    try {
+      if (first != null)
+	msg = link(id, first, m_Generator, rank);
+      else  // first one failed, generate it ourselves
+	msg = store(m_Generator.copy(), id, test, rank);
+    }
+    catch (Exception e) {
+      msg = "Failed to generate output for ID '" + id + "': " + e;
+    }
+    finally {
+      m_PendingWrites.release();
+    }
+
+    finished(id, test, msg, start);
+  }
+
+  /**
+   * Writes the encoded output to the sink (run by the I/O executor).
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param ext		the extension of the output
+   * @param data	the encoded output
+   * @param rank	the rank of the input
+   * @param future	the future to complete for deduplication, can be null
+   * @param start	the start time (msec)
+   */
+  protected void writeAsync(String id, Map<String,List<Double>> test, String ext, ByteBuffer data, int rank, CompletableFuture<String> future, long start) {
+    String	msg;
+
+    msg = null;
+    try {
+      msg = store(id, ext, data, rank);
+    }
+    catch (Exception e) {
+      msg = "Failed to write output for ID '" + id + "': " + e;
+    }
+    finally {
+      m_PendingWrites.release();
+      if (future != null)
+	future.complete(msg == null ? id : null);
+    }
+
+    finished(id, test, msg, start);
+  }
+
+  /**
+   * Records the stored output in the manifest (if set) and notifies the
+   * listener about the finished output. Superseded outputs count as
+   * successful.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param msg		null if successful, {@link #SUPERSEDED} or error message
+   * @param start	the start time (msec)
+   */
+  protected void finished(String id, Map<String,List<Double>> test, String msg, long start) {
+    long	duration;
+    String	ext;
+    String	manifestMsg;
+
+    duration = System.currentTimeMillis() - start;
+    ext      = m_Generator.getExtension();
+    // with colliding IDs, the entry can be outdated (output of input with lower rank
+    // stored in the meantime), which at most results in generating it again next time
+    if ((msg == null) && (m_Manifest != null)) {
+      manifestMsg = m_Manifest.record(id, RunManifest.inputHash(test), m_ConfigHash, m_Sink.getLocation(id, ext), m_Sink.size(id, ext), duration);
+      if (manifestMsg != null)
+	m_Logger.warning(manifestMsg);
+    }
+    if (SUPERSEDED.equals(msg))
+      msg = null;
+    if (m_Listener != null)
+      m_Listener.renderFinished(new RenderResult(id, msg, duration, (msg == null) ? m_Sink.getLocation(id, ext) : null, null));
+    synchronized(this) {
+      m_NumFinished++;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns the number of outputs that got accepted for generating so far.
+   *
+   * @return		the number of outputs
+   */
+  public synchronized long getNumBegun() {
+    return m_NumBegun;
+  }
+
+  /**
+   * Returns the number of outputs that have been finished so far.
+   *
+   * @return		the number of outputs
+   */
+  public synchronized long getNumFinished() {
+    return m_NumFinished;
+  }
+
+  /**
+   * Waits for all outputs submitted so far to be finished, keeping the
+   * workers running for further submissions. The content keys of the
+   * finished outputs get forgotten, so that long-running batches (e.g.,
+   * watch mode) do not accumulate them; later duplicates get generated
+   * again.
+   *
+   * @throws InterruptedException	if interrupted while waiting
+   */
+  public void flush() throws InterruptedException {
+    synchronized(this) {
+      while (m_NumFinished < m_NumBegun)
+	wait(1000);
+    }
+    m_Keys.values().removeIf(CompletableFuture::isDone);
+  }
+
+  /**
+   * Waits for all submitted outputs to be finished and shuts down the workers.
+   *
+   * @throws InterruptedException	if interrupted while waiting
+   */
+  public void finish() throws InterruptedException {
+    if (m_Executor != null) {
+      m_Executor.shutdown();
+      while (!m_Executor.awaitTermination(1, TimeUnit.SECONDS)) {
+	// still busy
+      }
+      m_Executor = null;
+    }
+
+    // links get queued by the I/O threads, wait for those as well
+    if (m_IOExecutor != null) {
+      flush();
+      m_IOExecutor.shutdown();
+      while (!m_IOExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+	// still writing
+      }
+      m_IOExecutor    = null;
+      m_PendingWrites = null;
+    }
+  }
+}
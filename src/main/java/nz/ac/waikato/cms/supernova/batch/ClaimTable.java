@@ -0,0 +1,150 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * ClaimTable.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import nz.ac.waikato.cms.supernova.core.LongHashMap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of which input (identified by its rank, lower is preferred)
+ * claims an ID, for resolving ID collisions across multiple inputs
+ * deterministically: the input with the lowest rank wins, regardless of
+ * the order in which the inputs get processed.
+ * <br>
+ * An ID can be claimed by an input with lower rank after an input with
+ * higher rank already generated the output. Therefore, outputs must only
+ * be written while holding the lock of the ID (see {@link #getLock(String)})
+ * and if the input still holds the claim (see {@link #isClaimed(String, int)}).
+ * Later writes overwrite earlier ones.
+ * <br>
+ * The IDs are stored as 64bit hashes in open-addressing tables (see
+ * {@link LongHashMap}), split into stripes with their own locks.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class ClaimTable {
+
+  /** the number of stripes (power of 2). */
+  public static final int NUM_STRIPES = 256;
+
+  /** the stripes (hash of ID - rank). */
+  protected LongHashMap[] m_Stripes;
+
+  /** the number of outputs lost per input (rank). */
+  protected AtomicLongArray m_Lost;
+
+  /**
+   * Initializes the table.
+   *
+   * @param numRanks	the number of inputs
+   */
+  public ClaimTable(int numRanks) {
+    int		i;
+
+    m_Stripes = new LongHashMap[NUM_STRIPES];
+    for (i = 0; i < m_Stripes.length; i++)
+      m_Stripes[i] = new LongHashMap();
+    m_Lost = new AtomicLongArray(numRanks);
+  }
+
+  /**
+   * Returns the stripe for the key.
+   *
+   * @param key		the key
+   * @return		the stripe
+   */
+  protected LongHashMap stripe(long key) {
+    return m_Stripes[(int) (key & (NUM_STRIPES - 1))];
+  }
+
+  /**
+   * Returns the lock to hold while checking the claim and writing the output.
+   *
+   * @param id		the ID
+   * @return		the lock
+   */
+  public Object getLock(String id) {
+    return stripe(LongHashMap.key(id));
+  }
+
+  /**
+   * Claims the ID for the input. Succeeds if the ID has not been claimed yet
+   * or only by inputs with higher rank (the output of which will get
+   * overwritten or not written at all).
+   *
+   * @param id		the ID to claim
+   * @param rank	the rank of the input
+   * @return		true if the input holds the claim
+   */
+  public boolean claim(String id, int rank) {
+    long		key;
+    LongHashMap		stripe;
+    int			current;
+
+    key    = LongHashMap.key(id);
+    stripe = stripe(key);
+    synchronized(stripe) {
+      current = (int) stripe.get(key, -1);
+      if (current == -1) {
+	stripe.put(key, rank);
+	return true;
+      }
+      if (current < rank) {
+	m_Lost.incrementAndGet(rank);
+	return false;
+      }
+      if (current > rank) {
+	m_Lost.incrementAndGet(current);
+	stripe.put(key, rank);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Checks whether the input still holds the claim for the ID. Caller must
+   * hold the lock of the ID.
+   *
+   * @param id		the ID to check
+   * @param rank	the rank of the input
+   * @return		true if the input holds the claim
+   * @see		#getLock(String)
+   */
+  public boolean isClaimed(String id, int rank) {
+    long	key;
+
+    key = LongHashMap.key(id);
+    return stripe(key).get(key, -1) == rank;
+  }
+
+  /**
+   * Returns the number of outputs of the input that were lost due to
+   * collisions with inputs of lower rank.
+   *
+   * @param rank	the rank of the input
+   * @return		the number of lost outputs
+   */
+  public long getNumLost(int rank) {
+    return m_Lost.get(rank);
+  }
+}
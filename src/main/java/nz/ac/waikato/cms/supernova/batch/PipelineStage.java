@@ -0,0 +1,233 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * PipelineStage.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single stage of a {@link StagedPipeline}: a pool of threads with a
+ * bounded input queue. Submitting blocks while the queue is full, which
+ * propagates backpressure to the previous stage. Keeps track of the
+ * queue depth to identify bottlenecks.
+ * <br>
+ * Stages with blocking I/O can use virtual threads instead (Java 21+), in
+ * which case the queue size limits the number of items being processed
+ * concurrently.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ * @param <I> the type of items being processed
+ */
+public class PipelineStage<I> {
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the name of the stage. */
+  protected String m_Name;
+
+  /** the number of threads. */
+  protected int m_NumThreads;
+
+  /** the size of the queue. */
+  protected int m_QueueSize;
+
+  /** the processor for the items. */
+  protected Consumer<I> m_Processor;
+
+  /** whether to use virtual threads. */
+  protected boolean m_VirtualThreads;
+
+  /** the executor. */
+  protected ExecutorService m_Executor;
+
+  /** limits the items in progress when using virtual threads. */
+  protected Semaphore m_Permits;
+
+  /** the number of submitted items. */
+  protected AtomicLong m_Submitted;
+
+  /** the sum of the queue depths at submission time. */
+  protected AtomicLong m_DepthTotal;
+
+  /** the maximum queue depth. */
+  protected AtomicInteger m_MaxDepth;
+
+  /** the number of submissions that found the queue full. */
+  protected AtomicLong m_Full;
+
+  /** the time spent processing (nanoseconds). */
+  protected AtomicLong m_Busy;
+
+  /**
+   * Initializes the stage.
+   *
+   * @param name	the name of the stage
+   * @param numThreads	the number of threads
+   * @param queueSize	the size of the input queue
+   * @param processor	the processor for the items
+   */
+  public PipelineStage(String name, int numThreads, int queueSize, Consumer<I> processor) {
+    m_Logger     = Logger.getLogger(getClass().getName());
+    m_Name       = name;
+    m_NumThreads = Math.max(1, numThreads);
+    m_QueueSize  = Math.max(1, queueSize);
+    m_Processor  = processor;
+    m_Submitted  = new AtomicLong();
+    m_DepthTotal = new AtomicLong();
+    m_MaxDepth   = new AtomicInteger();
+    m_Full       = new AtomicLong();
+    m_Busy       = new AtomicLong();
+    m_VirtualThreads = false;
+    m_Executor       = null;
+    m_Permits        = null;
+  }
+
+  /**
+   * Returns the name of the stage.
+   *
+   * @return		the name
+   */
+  public String getName() {
+    return m_Name;
+  }
+
+  /**
+   * Sets whether to process the items on virtual threads (for blocking I/O).
+   * Must be set before starting the stage.
+   *
+   * @param value	true if to use virtual threads
+   */
+  public void setVirtualThreads(boolean value) {
+    m_VirtualThreads = value;
+  }
+
+  /**
+   * Returns whether to process the items on virtual threads.
+   *
+   * @return		true if to use virtual threads
+   */
+  public boolean getVirtualThreads() {
+    return m_VirtualThreads;
+  }
+
+  /**
+   * Starts the threads.
+   */
+  public void start() {
+    if (m_VirtualThreads) {
+      m_Executor = ThreadHelper.newIOExecutor(m_Name);
+      m_Permits  = new Semaphore(m_QueueSize);
+    }
+    else {
+      m_Executor = BatchRenderer.newBlockingExecutor(m_Name, m_NumThreads, m_QueueSize);
+      m_Permits  = null;
+    }
+  }
+
+  /**
+   * Processes the item, records the time.
+   *
+   * @param item	the item to process
+   */
+  protected void process(I item) {
+    long	start;
+
+    start = System.nanoTime();
+    try {
+      m_Processor.accept(item);
+    }
+    catch (Throwable t) {
+      m_Logger.log(Level.SEVERE, "Stage '" + m_Name + "' failed to process item!", t);
+    }
+    finally {
+      m_Busy.addAndGet(System.nanoTime() - start);
+      if (m_Permits != null)
+	m_Permits.release();
+    }
+  }
+
+  /**
+   * Queues the item for processing. Blocks if the queue is full (or too
+   * many items are in progress, when using virtual threads).
+   *
+   * @param item	the item to process
+   */
+  public void submit(I item) {
+    int		depth;
+
+    if (m_Permits != null)
+      depth = m_QueueSize - m_Permits.availablePermits();
+    else
+      depth = ((ThreadPoolExecutor) m_Executor).getQueue().size();
+    m_Submitted.incrementAndGet();
+    m_DepthTotal.addAndGet(depth);
+    m_MaxDepth.accumulateAndGet(depth, Math::max);
+    if (depth >= m_QueueSize)
+      m_Full.incrementAndGet();
+    if (m_Permits != null)
+      m_Permits.acquireUninterruptibly();
+    m_Executor.execute(() -> process(item));
+  }
+
+  /**
+   * Waits for all items to be processed and stops the threads.
+   *
+   * @throws InterruptedException	if interrupted while waiting
+   */
+  public void finish() throws InterruptedException {
+    if (m_Executor == null)
+      return;
+
+    m_Executor.shutdown();
+    while (!m_Executor.awaitTermination(1, TimeUnit.SECONDS)) {
+      // still busy
+    }
+    m_Executor = null;
+    m_Permits  = null;
+  }
+
+  /**
+   * Returns the statistics of the stage.
+   *
+   * @return		the statistics
+   */
+  public String getStatistics() {
+    long	submitted;
+
+    submitted = m_Submitted.get();
+    return String.format(
+      "%-10s threads=%s, items=%d, avg queue=%.2f/%d, max queue=%d, queue full=%d, busy=%.1fs",
+      m_Name, (m_VirtualThreads ? "virtual" : "" + m_NumThreads), submitted,
+      (submitted == 0 ? 0.0 : (double) m_DepthTotal.get() / submitted), m_QueueSize,
+      m_MaxDepth.get(), m_Full.get(), m_Busy.get() / 1e9);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * RenderResult.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The outcome of generating the output for a single ID.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class RenderResult {
+
+  /** the ID. */
+  protected String m_ID;
+
+  /** the error message, null if successful. */
+  protected String m_Error;
+
+  /** the time it took in msec. */
+  protected long m_Duration;
+
+  /** the location of the stored output, null if not stored. */
+  protected String m_Location;
+
+  /** the encoded output, null if not kept. */
+  protected ByteBuffer m_Data;
+
+  /**
+   * Initializes the result.
+   *
+   * @param id		the ID
+   * @param error	the error message, null if successful
+   * @param duration	the time it took in msec
+   */
+  public RenderResult(String id, String error, long duration) {
+    this(id, error, duration, null, null);
+  }
+
+  /**
+   * Initializes the result.
+   *
+   * @param id		the ID
+   * @param error	the error message, null if successful
+   * @param duration	the time it took in msec
+   * @param location	the location of the stored output, null if not stored
+   * @param data	the encoded output, null if not kept
+   */
+  public RenderResult(String id, String error, long duration, String location, ByteBuffer data) {
+    m_ID       = id;
+    m_Error    = error;
+    m_Duration = duration;
+    m_Location = location;
+    m_Data     = data;
+  }
+
+  /**
+   * Returns the ID.
+   *
+   * @return		the ID
+   */
+  public String getID() {
+    return m_ID;
+  }
+
+  /**
+   * Returns the error message.
+   *
+   * @return		the error, null if successful
+   */
+  public String getError() {
+    return m_Error;
+  }
+
+  /**
+   * Returns whether the output was generated successfully.
+   *
+   * @return		true if successful
+   */
+  public boolean isSuccess() {
+    return (m_Error == null);
+  }
+
+  /**
+   * Returns the time it took to generate and store the output.
+   *
+   * @return		the duration in msec
+   */
+  public long getDuration() {
+    return m_Duration;
+  }
+
+  /**
+   * Returns the location of the stored output, e.g., the file.
+   *
+   * @return		the location, null if not stored
+   */
+  public String getLocation() {
+    return m_Location;
+  }
+
+  /**
+   * Returns the encoded output.
+   *
+   * @return		the output, null if not kept (e.g., stored instead)
+   */
+  public ByteBuffer getData() {
+    return m_Data;
+  }
+
+  /**
+   * Returns a short description of the result.
+   *
+   * @return		the description
+   */
+  @Override
+  public String toString() {
+    return m_ID + ": " + (m_Error == null ? "OK" : m_Error) + " (" + m_Duration + "ms)";
+  }
+}
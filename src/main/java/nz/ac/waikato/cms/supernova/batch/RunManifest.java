@@ -0,0 +1,453 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * RunManifest.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import nz.ac.waikato.cms.supernova.core.FileHelper;
+import nz.ac.waikato.cms.supernova.core.HashHelper;
+import nz.ac.waikato.cms.supernova.core.LongHashMap;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tab-separated manifest of a batch run, with one line per finished output,
+ * appended as soon as the output has been stored:
+ * <pre>
+ * ID  input_hash  config_hash  output  size  duration
+ * </pre>
+ * The input hash is the hash of the normalized test results, the config
+ * hash the hash of the generator settings (see
+ * {@link AbstractOutputGenerator#getConfigString()}). In incremental mode,
+ * an existing manifest gets loaded (and compacted if necessary) and outputs
+ * whose input hash, config hash and size match the manifest can be skipped,
+ * which also allows resuming a run that died. Otherwise, the manifest gets
+ * overwritten.
+ * <br>
+ * In memory, only the hash of the ID and a fingerprint of hashes and size
+ * get kept per output (see {@link LongHashMap}).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class RunManifest {
+
+  /** the default file name. */
+  public static final String DEFAULT_NAME = "manifest.tsv";
+
+  /** the header of the manifest. */
+  public static final String HEADER = "ID\tinput_hash\tconfig_hash\toutput\tsize\tduration";
+
+  /** the number of stripes (power of 2). */
+  public static final int NUM_STRIPES = 64;
+
+  /** the manifest file. */
+  protected File m_File;
+
+  /** whether to load the existing manifest. */
+  protected boolean m_Incremental;
+
+  /** the channel for appending to the manifest. */
+  protected FileChannel m_Channel;
+
+  /** the stripes (hash of ID - fingerprint). */
+  protected LongHashMap[] m_Stripes;
+
+  /** the number of entries loaded. */
+  protected int m_NumLoaded;
+
+  /** the number of outputs recorded. */
+  protected AtomicLong m_NumRecorded;
+
+  /** the number of outputs skipped. */
+  protected AtomicLong m_NumSkipped;
+
+  /**
+   * Initializes the manifest.
+   *
+   * @param file	the manifest file
+   */
+  public RunManifest(File file) {
+    int		i;
+
+    m_File        = file;
+    m_Incremental = false;
+    m_Channel     = null;
+    m_Stripes     = new LongHashMap[NUM_STRIPES];
+    for (i = 0; i < m_Stripes.length; i++)
+      m_Stripes[i] = new LongHashMap();
+    m_NumLoaded   = 0;
+    m_NumRecorded = new AtomicLong();
+    m_NumSkipped  = new AtomicLong();
+  }
+
+  /**
+   * Returns the manifest file.
+   *
+   * @return		the file
+   */
+  public File getFile() {
+    return m_File;
+  }
+
+  /**
+   * Sets whether to load the existing manifest and append to it, rather
+   * than overwriting it.
+   *
+   * @param value	true if incremental
+   */
+  public void setIncremental(boolean value) {
+    m_Incremental = value;
+  }
+
+  /**
+   * Returns whether to load the existing manifest and append to it, rather
+   * than overwriting it.
+   *
+   * @return		true if incremental
+   */
+  public boolean getIncremental() {
+    return m_Incremental;
+  }
+
+  /**
+   * Returns the hash of the normalized test results.
+   *
+   * @param test	the test results (measure - [score, percentile])
+   * @return		the hash
+   * @see		AbstractOutputGenerator#toProfileString(Map)
+   */
+  public static String inputHash(Map<String,List<Double>> test) {
+    return String.format("%016x", HashHelper.mix64(HashHelper.fnv1a64(AbstractOutputGenerator.toProfileString(test))));
+  }
+
+  /**
+   * Returns the hash of the generator settings.
+   *
+   * @param generator	the generator
+   * @return		the hash
+   * @see		AbstractOutputGenerator#getConfigString()
+   */
+  public static String configHash(AbstractOutputGenerator generator) {
+    return HashHelper.sha256(generator.getConfigString());
+  }
+
+  /**
+   * Combines hashes and size into a single fingerprint.
+   *
+   * @param inputHash	the input hash
+   * @param configHash	the config hash
+   * @param size	the size of the output
+   * @return		the fingerprint
+   */
+  protected static long fingerprint(String inputHash, String configHash, long size) {
+    return HashHelper.mix64(HashHelper.fnv1a64(inputHash + "\t" + configHash + "\t" + size));
+  }
+
+  /**
+   * Returns the stripe for the key.
+   *
+   * @param key		the key
+   * @return		the stripe
+   */
+  protected LongHashMap stripe(long key) {
+    return m_Stripes[(int) (key & (NUM_STRIPES - 1))];
+  }
+
+  /**
+   * Loads the existing manifest. Rewrites it if it contains outdated
+   * entries (IDs recorded more than once) or invalid lines (e.g., the
+   * last line of a run that died).
+   *
+   * @throws IOException	if reading/writing fails
+   */
+  protected void load() throws IOException {
+    LongHashMap		lines;
+    BufferedReader	reader;
+    BufferedWriter	writer;
+    String		line;
+    String[]		parts;
+    int			lineNo;
+    int			numValid;
+    boolean		compact;
+    long		key;
+    File		tmp;
+
+    lines    = new LongHashMap();
+    lineNo   = 0;
+    numValid = 0;
+    compact  = false;
+    reader   = Files.newBufferedReader(m_File.toPath(), StandardCharsets.UTF_8);
+    try {
+      while ((line = reader.readLine()) != null) {
+	lineNo++;
+	if (line.equals(HEADER))
+	  continue;
+	parts = line.split("\t", -1);
+	if (parts.length != 6) {
+	  compact = true;
+	  continue;
+	}
+	try {
+	  key = LongHashMap.key(parts[0]);
+	  stripe(key).put(key, fingerprint(parts[1], parts[2], Long.parseLong(parts[4])));
+	  lines.put(key, lineNo);
+	  numValid++;
+	}
+	catch (NumberFormatException e) {
+	  compact = true;
+	}
+      }
+    }
+    finally {
+      reader.close();
+    }
+    m_NumLoaded = lines.size();
+
+    // incomplete last line?
+    if (!compact && (m_File.length() > 0)) {
+      try (RandomAccessFile raf = new RandomAccessFile(m_File, "r")) {
+	raf.seek(m_File.length() - 1);
+	compact = (raf.read() != '\n');
+      }
+    }
+    if (!compact && (numValid == m_NumLoaded))
+      return;
+
+    // only keep the last valid line per ID
+    tmp = FileHelper.newTempFile(m_File);
+    try {
+      reader = Files.newBufferedReader(m_File.toPath(), StandardCharsets.UTF_8);
+      writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+      try {
+	writer.write(HEADER);
+	writer.newLine();
+	lineNo = 0;
+	while ((line = reader.readLine()) != null) {
+	  lineNo++;
+	  parts = line.split("\t", -1);
+	  if ((parts.length != 6) || line.equals(HEADER))
+	    continue;
+	  if (lines.get(LongHashMap.key(parts[0]), -1) == lineNo) {
+	    writer.write(line);
+	    writer.newLine();
+	  }
+	}
+      }
+      finally {
+	reader.close();
+	writer.close();
+      }
+      FileHelper.replace(tmp, m_File);
+    }
+    finally {
+      FileHelper.discard(tmp);
+    }
+  }
+
+  /**
+   * Opens the manifest, loading the existing one in incremental mode.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String open() {
+    boolean	exists;
+
+    try {
+      exists = m_File.exists() && (m_File.length() > 0);
+      if (m_Incremental && exists) {
+	load();
+	m_Channel = FileChannel.open(m_File.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      }
+      else {
+	m_Channel = FileChannel.open(m_File.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	write(HEADER + "\n");
+      }
+    }
+    catch (Exception e) {
+      return "Failed to open manifest '" + m_File + "': " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Writes the string to the manifest.
+   *
+   * @param s		the string to write
+   * @throws IOException	if writing fails
+   */
+  protected void write(String s) throws IOException {
+    ByteBuffer	buffer;
+
+    buffer = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining())
+      m_Channel.write(buffer);
+  }
+
+  /**
+   * Checks whether the output for the ID is up-to-date.
+   *
+   * @param id		the ID of the output
+   * @param inputHash	the input hash
+   * @param configHash	the config hash
+   * @param size	the current size of the output, -1 if not present
+   * @return		true if up-to-date
+   */
+  public boolean isUpToDate(String id, String inputHash, String configHash, long size) {
+    long		key;
+    LongHashMap		stripe;
+    long		current;
+
+    if (size < 0)
+      return false;
+
+    key    = LongHashMap.key(id);
+    stripe = stripe(key);
+    synchronized(stripe) {
+      if (!stripe.containsKey(key))
+	return false;
+      current = stripe.get(key, 0);
+    }
+
+    return current == fingerprint(inputHash, configHash, size);
+  }
+
+  /**
+   * Removes the ID, as its output is about to get overwritten.
+   *
+   * @param id		the ID of the output
+   */
+  public void invalidate(String id) {
+    long		key;
+    LongHashMap		stripe;
+
+    key    = LongHashMap.key(id);
+    stripe = stripe(key);
+    synchronized(stripe) {
+      stripe.remove(key);
+    }
+  }
+
+  /**
+   * Increments the number of skipped outputs.
+   */
+  public void skipped() {
+    m_NumSkipped.incrementAndGet();
+  }
+
+  /**
+   * Appends the finished output to the manifest.
+   *
+   * @param id		the ID of the output
+   * @param inputHash	the input hash
+   * @param configHash	the config hash
+   * @param output	the location of the output
+   * @param size	the size of the output
+   * @param duration	the time it took to generate the output (msec)
+   * @return		null if successful, otherwise error message
+   */
+  public String record(String id, String inputHash, String configHash, String output, long size, long duration) {
+    long		key;
+    LongHashMap		stripe;
+
+    if (m_Channel == null)
+      return "Manifest not open!";
+
+    try {
+      synchronized(this) {
+	write(id + "\t" + inputHash + "\t" + configHash + "\t" + output + "\t" + size + "\t" + duration + "\n");
+      }
+    }
+    catch (Exception e) {
+      return "Failed to record ID '" + id + "' in manifest '" + m_File + "': " + e;
+    }
+
+    key    = LongHashMap.key(id);
+    stripe = stripe(key);
+    synchronized(stripe) {
+      stripe.put(key, fingerprint(inputHash, configHash, size));
+    }
+    m_NumRecorded.incrementAndGet();
+
+    return null;
+  }
+
+  /**
+   * Returns the number of entries loaded from the existing manifest.
+   *
+   * @return		the number
+   */
+  public int getNumLoaded() {
+    return m_NumLoaded;
+  }
+
+  /**
+   * Returns the number of outputs recorded in this run.
+   *
+   * @return		the number
+   */
+  public long getNumRecorded() {
+    return m_NumRecorded.get();
+  }
+
+  /**
+   * Returns the number of up-to-date outputs skipped in this run.
+   *
+   * @return		the number
+   */
+  public long getNumSkipped() {
+    return m_NumSkipped.get();
+  }
+
+  /**
+   * Closes the manifest.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public synchronized String close() {
+    if (m_Channel == null)
+      return null;
+
+    try {
+      m_Channel.close();
+    }
+    catch (Exception e) {
+      return "Failed to close manifest '" + m_File + "': " + e;
+    }
+    finally {
+      m_Channel = null;
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Shard.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import nz.ac.waikato.cms.supernova.core.HashHelper;
+
+/**
+ * Deterministic assignment of IDs to one of n shards, using the mixed
+ * FNV-1a hash of the ID (stable across JVMs and machines). That way,
+ * several processes can each generate their share of the outputs of the
+ * same input without any coordination.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class Shard {
+
+  /** the index of the shard (0-based). */
+  protected int m_Index;
+
+  /** the number of shards. */
+  protected int m_Count;
+
+  /**
+   * Initializes the shard.
+   *
+   * @param index	the index of the shard (0-based)
+   * @param count	the number of shards
+   */
+  public Shard(int index, int count) {
+    if (count < 1)
+      throw new IllegalArgumentException("Number of shards must be at least 1: " + count);
+    if ((index < 0) || (index >= count))
+      throw new IllegalArgumentException("Shard index must be from 0 to " + (count - 1) + ": " + index);
+    m_Index = index;
+    m_Count = count;
+  }
+
+  /**
+   * Returns the index of the shard.
+   *
+   * @return		the index (0-based)
+   */
+  public int getIndex() {
+    return m_Index;
+  }
+
+  /**
+   * Returns the number of shards.
+   *
+   * @return		the number
+   */
+  public int getCount() {
+    return m_Count;
+  }
+
+  /**
+   * Returns the shard the ID belongs to.
+   *
+   * @param id		the ID
+   * @param count	the number of shards
+   * @return		the index of the shard (0-based)
+   */
+  public static int shardOf(String id, int count) {
+    return (int) Long.remainderUnsigned(HashHelper.mix64(HashHelper.fnv1a64(id)), count);
+  }
+
+  /**
+   * Checks whether the ID belongs to this shard.
+   *
+   * @param id		the ID to check
+   * @return		true if part of this shard
+   */
+  public boolean accept(String id) {
+    return (m_Count == 1) || (shardOf(id, m_Count) == m_Index);
+  }
+
+  /**
+   * Returns a suffix for file names that are specific to this shard,
+   * e.g., "-2-of-8".
+   *
+   * @return		the suffix
+   */
+  public String getSuffix() {
+    return "-" + m_Index + "-of-" + m_Count;
+  }
+
+  /**
+   * Parses the shard in the format "i/n".
+   *
+   * @param s		the string to parse
+   * @return		the shard
+   * @throws IllegalArgumentException	if invalid format
+   */
+  public static Shard parse(String s) {
+    String[]	parts;
+
+    parts = s.trim().split("/");
+    if (parts.length != 2)
+      throw new IllegalArgumentException("Shard must be in format 'i/n': " + s);
+    try {
+      return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Shard must be in format 'i/n': " + s);
+    }
+  }
+
+  /**
+   * Returns the shard in the format "i/n".
+   *
+   * @return		the shard
+   */
+  @Override
+  public String toString() {
+    return m_Index + "/" + m_Count;
+  }
+}
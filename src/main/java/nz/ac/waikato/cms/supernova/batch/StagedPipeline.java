@@ -0,0 +1,453 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * StagedPipeline.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.io.ByteBufferOutputStream;
+import nz.ac.waikato.cms.supernova.io.PlotGeometry;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates the outputs of a batch run in separate stages, each with its
+ * own thread pool and bounded queue: geometry -&gt; raster -&gt; encode -&gt; write.
+ * Parsing happens on the thread that submits the profiles. That way,
+ * encoding can overlap with rasterizing the next ID and writing with both.
+ * The number of raster threads is determined by {@link #setNumThreads(int)}.
+ * With virtual threads enabled, the write stage uses virtual threads, with
+ * up to {@link #getMaxPendingWrites()} outputs being written concurrently.
+ * <br>
+ * When deduplicating, duplicates get linked as soon as the first output
+ * with the same content key has been written. Linking happens on a
+ * separate thread, not the write stage. If the first output failed or got
+ * superseded by an input with lower rank, the duplicate gets generated
+ * itself.
+ * <br>
+ * If the generator has a cache, cached outputs get handed straight to the
+ * write stage and newly encoded outputs get added to the cache.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class StagedPipeline
+  extends BatchRenderer {
+
+  /**
+   * Container for an ID passing through the pipeline.
+   */
+  protected static class Job {
+
+    /** the ID. */
+    public String id;
+
+    /** the test results. */
+    public Map<String,List<Double>> test;
+
+    /** the geometry. */
+    public PlotGeometry geometry;
+
+    /** the intermediate plot. */
+    public Object plot;
+
+    /** the encoded data. */
+    public ByteBuffer data;
+
+    /** the extension. */
+    public String extension;
+
+    /** the key for the cache, null if no cache. */
+    public String cacheKey;
+
+    /** the rank of the input. */
+    public int rank;
+
+    /** the start time (msec). */
+    public long start;
+
+    /** the future to complete for deduplication, can be null. */
+    public CompletableFuture<String> key;
+  }
+
+  /** the number of geometry threads. */
+  protected int m_GeometryThreads;
+
+  /** the number of encoding threads. */
+  protected int m_EncodeThreads;
+
+  /** the number of writing threads. */
+  protected int m_WriteThreads;
+
+  /** the size of the queue of each stage. */
+  protected int m_QueueSize;
+
+  /** the geometry stage. */
+  protected PipelineStage<Job> m_GeometryStage;
+
+  /** the raster stage. */
+  protected PipelineStage<Job> m_RasterStage;
+
+  /** the encoding stage. */
+  protected PipelineStage<Job> m_EncodeStage;
+
+  /** the writing stage. */
+  protected PipelineStage<Job> m_WriteStage;
+
+  /** for linking/dispatching duplicates once the first output is finished. */
+  protected ExecutorService m_LinkExecutor;
+
+  /** the number of IDs still being processed. */
+  protected long m_Pending;
+
+  /**
+   * Initializes the pipeline.
+   */
+  public StagedPipeline() {
+    super();
+
+    m_GeometryThreads = 1;
+    m_EncodeThreads   = 1;
+    m_WriteThreads    = 1;
+    m_QueueSize       = 16;
+    m_Pending         = 0;
+  }
+
+  /**
+   * Sets the number of threads for calculating the geometry.
+   *
+   * @param value	the number of threads
+   */
+  public void setGeometryThreads(int value) {
+    if (value > 0)
+      m_GeometryThreads = value;
+  }
+
+  /**
+   * Returns the number of threads for calculating the geometry.
+   *
+   * @return		the number of threads
+   */
+  public int getGeometryThreads() {
+    return m_GeometryThreads;
+  }
+
+  /**
+   * Sets the number of threads for encoding.
+   *
+   * @param value	the number of threads
+   */
+  public void setEncodeThreads(int value) {
+    if (value > 0)
+      m_EncodeThreads = value;
+  }
+
+  /**
+   * Returns the number of threads for encoding.
+   *
+   * @return		the number of threads
+   */
+  public int getEncodeThreads() {
+    return m_EncodeThreads;
+  }
+
+  /**
+   * Sets the number of threads for writing.
+   *
+   * @param value	the number of threads
+   */
+  public void setWriteThreads(int value) {
+    if (value > 0)
+      m_WriteThreads = value;
+  }
+
+  /**
+   * Returns the number of threads for writing.
+   *
+   * @return		the number of threads
+   */
+  public int getWriteThreads() {
+    return m_WriteThreads;
+  }
+
+  /**
+   * Sets the size of the queue of each stage.
+   *
+   * @param value	the size
+   */
+  public void setQueueSize(int value) {
+    if (value > 0)
+      m_QueueSize = value;
+  }
+
+  /**
+   * Returns the size of the queue of each stage.
+   *
+   * @return		the size
+   */
+  public int getQueueSize() {
+    return m_QueueSize;
+  }
+
+  /**
+   * Starts up the stages.
+   */
+  @Override
+  public void start() {
+    prepareRun();
+    m_Pending       = 0;
+    m_GeometryStage = new PipelineStage<>("geometry", m_GeometryThreads, m_QueueSize, this::geometry);
+    m_RasterStage   = new PipelineStage<>("raster",   m_NumThreads,      m_QueueSize, this::raster);
+    m_EncodeStage   = new PipelineStage<>("encode",   m_EncodeThreads,   m_QueueSize, this::encode);
+    if (m_VirtualThreads) {
+      if (!ThreadHelper.isVirtualThreadsAvailable())
+	m_Logger.warning("Virtual threads not available (requires Java 21+), writing on platform threads instead.");
+      m_WriteStage = new PipelineStage<>("write", m_WriteThreads, m_MaxPendingWrites, this::write);
+      m_WriteStage.setVirtualThreads(true);
+    }
+    else {
+      m_WriteStage = new PipelineStage<>("write", m_WriteThreads, m_QueueSize, this::write);
+    }
+    m_LinkExecutor = Executors.newSingleThreadExecutor(ThreadHelper.newPlatformThreadFactory("link"));
+    m_WriteStage.start();
+    m_EncodeStage.start();
+    m_RasterStage.start();
+    m_GeometryStage.start();
+  }
+
+  /**
+   * Hands the profile to the pipeline. Blocks if the first stage is full.
+   * The test results must not get modified afterwards.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input the profile is from
+   */
+  @Override
+  public void submit(String id, Map<String,List<Double>> test, int rank) {
+    Job				job;
+    String			key;
+    CompletableFuture<String>	existing;
+
+    if (!begin(id, test, rank))
+      return;
+
+    job       = new Job();
+    job.id    = id;
+    job.test  = test;
+    job.rank  = rank;
+    job.start = System.currentTimeMillis();
+    synchronized(this) {
+      m_Pending++;
+    }
+
+    if (m_Deduplicate) {
+      key      = m_Generator.getContentKey(test);
+      job.key  = new CompletableFuture<>();
+      existing = m_Keys.putIfAbsent(key, job.key);
+      if (existing != null) {
+	job.key = null;
+	// unbounded queue, never blocks the thread completing the first output
+	existing.whenCompleteAsync((String first, Throwable t) -> duplicate(job, first), m_LinkExecutor);
+	return;
+      }
+    }
+
+    dispatch(job);
+  }
+
+  /**
+   * Handles a duplicate once the first output with the same content key is
+   * finished (run by the link executor). Links to the first output if it
+   * was stored, otherwise (failed or superseded) generates the duplicate.
+   *
+   * @param job		the duplicate
+   * @param first	the ID of the first output, null if not stored
+   */
+  protected void duplicate(Job job, String first) {
+    if (first == null) {
+      dispatch(job);
+      return;
+    }
+    try {
+      complete(job, link(job.id, first, m_Generator, job.rank));
+    }
+    catch (Exception e) {
+      complete(job, "Failed to link output for ID '" + job.id + "': " + e);
+    }
+  }
+
+  /**
+   * Hands the job to the write stage if the output is cached, otherwise
+   * to the geometry stage. Blocks if the stage is full.
+   *
+   * @param job		the job to process
+   */
+  protected void dispatch(Job job) {
+    if (m_Generator.getCache() != null) {
+      job.cacheKey = m_Generator.getCacheKey(job.test);
+      job.data     = m_Generator.getCache().get(job.cacheKey);
+      if (job.data != null) {
+	job.extension = m_Generator.getExtension();
+	m_WriteStage.submit(job);
+	return;
+      }
+    }
+
+    m_GeometryStage.submit(job);
+  }
+
+  /**
+   * Calculates the geometry.
+   *
+   * @param job		the job to process
+   */
+  protected void geometry(Job job) {
+    try {
+      job.geometry = m_Generators.get().calcGeometry(job.test);
+    }
+    catch (Exception e) {
+      complete(job, "Failed to calculate geometry for ID '" + job.id + "': " + e);
+      return;
+    }
+    m_RasterStage.submit(job);
+  }
+
+  /**
+   * Generates the plot.
+   *
+   * @param job		the job to process
+   */
+  protected void raster(Job job) {
+    StringBuilder	errors;
+
+    errors = new StringBuilder();
+    try {
+      job.plot = m_Generators.get().generatePlot(job.test, job.geometry, errors);
+    }
+    catch (Exception e) {
+      errors.append("Failed to generate plot for ID '").append(job.id).append("': ").append(e);
+    }
+    if (errors.length() != 0) {
+      complete(job, errors.toString());
+      return;
+    }
+    m_EncodeStage.submit(job);
+  }
+
+  /**
+   * Encodes the plot.
+   *
+   * @param job		the job to process
+   */
+  protected void encode(Job job) {
+    AbstractOutputGenerator	generator;
+    ByteBufferOutputStream	output;
+    String			msg;
+
+    generator = m_Generators.get();
+    output    = new ByteBufferOutputStream(AbstractOutputGenerator.INITIAL_BUFFER_SIZE);
+    try {
+      msg = generator.savePlot(job.plot, output);
+    }
+    catch (Exception e) {
+      msg = "Failed to encode output for ID '" + job.id + "': " + e;
+    }
+    job.plot = null;
+    if (msg != null) {
+      complete(job, msg);
+      return;
+    }
+    job.data      = output.toByteBuffer();
+    job.extension = generator.getExtension();
+    if (job.cacheKey != null)
+      generator.getCache().put(job.cacheKey, job.data);
+    m_WriteStage.submit(job);
+  }
+
+  /**
+   * Writes the encoded output.
+   *
+   * @param job		the job to process
+   */
+  protected void write(Job job) {
+    String	msg;
+
+    try {
+      msg = store(job.id, job.extension, job.data, job.rank);
+    }
+    catch (Exception e) {
+      msg = "Failed to write output for ID '" + job.id + "': " + e;
+    }
+    job.data = null;
+    complete(job, msg);
+  }
+
+  /**
+   * Finishes the job, notifies the listener.
+   *
+   * @param job		the finished job
+   * @param msg		null if successful, {@link #SUPERSEDED} or error message
+   */
+  protected void complete(Job job, String msg) {
+    if (job.key != null)
+      job.key.complete(msg == null ? job.id : null);
+    finished(job.id, job.test, msg, job.start);
+    synchronized(this) {
+      m_Pending--;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Waits for all submitted outputs to be finished and shuts down the stages.
+   *
+   * @throws InterruptedException	if interrupted while waiting
+   */
+  @Override
+  public void finish() throws InterruptedException {
+    synchronized(this) {
+      while (m_Pending > 0)
+	wait(1000);
+    }
+    m_LinkExecutor.shutdown();
+    m_GeometryStage.finish();
+    m_RasterStage.finish();
+    m_EncodeStage.finish();
+    m_WriteStage.finish();
+  }
+
+  /**
+   * Returns the statistics of all the stages.
+   *
+   * @return		the statistics, one line per stage
+   */
+  public String getStatistics() {
+    return m_GeometryStage.getStatistics() + "\n"
+      + m_RasterStage.getStatistics() + "\n"
+      + m_EncodeStage.getStatistics() + "\n"
+      + m_WriteStage.getStatistics();
+  }
+}
@@ -0,0 +1,503 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * RenderCache.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.cache;
+
+import nz.ac.waikato.cms.supernova.core.LongHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Two-tier cache for encoded outputs: a size-bounded in-memory LRU,
+ * split into stripes with their own locks, backed by an optional
+ * size-bounded directory on disk (least recently used files get deleted).
+ * Hits on disk get promoted to memory.
+ * <br>
+ * The keys must be usable as file names, e.g., the content key plus
+ * extension (see {@link nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator#getCacheKey(Map)}).
+ * The disk files get stored in sub-directories using the first two
+ * characters of the key.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class RenderCache {
+
+  /** the default maximum size of the memory tier (bytes). */
+  public static final long DEFAULT_MAX_MEMORY = 64L * 1024 * 1024;
+
+  /** the default maximum size of the disk tier (bytes). */
+  public static final long DEFAULT_MAX_DISK = 1024L * 1024 * 1024;
+
+  /** the number of stripes of the memory tier (power of 2). */
+  public static final int NUM_STRIPES = 16;
+
+  /** the suffix of files being written. */
+  public static final String TMP_SUFFIX = ".tmp";
+
+  /** the age after which temporary files are considered left-overs (msec). */
+  public static final long TMP_MAX_AGE = 60L * 60L * 1000L;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the maximum size of the memory tier (bytes). */
+  protected long m_MaxMemory;
+
+  /** the directory of the disk tier, null if none. */
+  protected File m_Directory;
+
+  /** the maximum size of the disk tier (bytes). */
+  protected long m_MaxDisk;
+
+  /** the stripes of the memory tier (access order). */
+  protected LinkedHashMap<String,byte[]>[] m_Stripes;
+
+  /** the number of bytes per stripe. */
+  protected long[] m_StripeBytes;
+
+  /** the files of the disk tier (key - size, access order). */
+  protected LinkedHashMap<String,Long> m_Disk;
+
+  /** the number of bytes on disk. */
+  protected long m_DiskBytes;
+
+  /** the number of hits in memory. */
+  protected AtomicLong m_MemoryHits;
+
+  /** the number of hits on disk. */
+  protected AtomicLong m_DiskHits;
+
+  /** the number of misses. */
+  protected AtomicLong m_Misses;
+
+  /** the number of entries evicted from memory. */
+  protected AtomicLong m_MemoryEvictions;
+
+  /** the number of files evicted from disk. */
+  protected AtomicLong m_DiskEvictions;
+
+  /**
+   * Initializes the cache.
+   */
+  public RenderCache() {
+    int		i;
+
+    m_Logger          = Logger.getLogger(getClass().getName());
+    m_MaxMemory       = DEFAULT_MAX_MEMORY;
+    m_Directory       = null;
+    m_MaxDisk         = DEFAULT_MAX_DISK;
+    m_Stripes         = new LinkedHashMap[NUM_STRIPES];
+    m_StripeBytes     = new long[NUM_STRIPES];
+    for (i = 0; i < NUM_STRIPES; i++)
+      m_Stripes[i] = new LinkedHashMap<>(16, 0.75f, true);
+    m_Disk            = new LinkedHashMap<>(16, 0.75f, true);
+    m_DiskBytes       = 0;
+    m_MemoryHits      = new AtomicLong();
+    m_DiskHits        = new AtomicLong();
+    m_Misses          = new AtomicLong();
+    m_MemoryEvictions = new AtomicLong();
+    m_DiskEvictions   = new AtomicLong();
+  }
+
+  /**
+   * Sets the maximum size of the memory tier.
+   *
+   * @param value	the size in bytes, 0 to disable
+   */
+  public void setMaxMemory(long value) {
+    if (value >= 0)
+      m_MaxMemory = value;
+  }
+
+  /**
+   * Returns the maximum size of the memory tier.
+   *
+   * @return		the size in bytes
+   */
+  public long getMaxMemory() {
+    return m_MaxMemory;
+  }
+
+  /**
+   * Sets the directory for the disk tier.
+   *
+   * @param value	the directory, null to disable
+   */
+  public void setDirectory(File value) {
+    m_Directory = value;
+  }
+
+  /**
+   * Returns the directory for the disk tier.
+   *
+   * @return		the directory, null if disabled
+   */
+  public File getDirectory() {
+    return m_Directory;
+  }
+
+  /**
+   * Sets the maximum size of the disk tier.
+   *
+   * @param value	the size in bytes
+   */
+  public void setMaxDisk(long value) {
+    if (value > 0)
+      m_MaxDisk = value;
+  }
+
+  /**
+   * Returns the maximum size of the disk tier.
+   *
+   * @return		the size in bytes
+   */
+  public long getMaxDisk() {
+    return m_MaxDisk;
+  }
+
+  /**
+   * Prepares the disk tier (if enabled), picking up the files of previous
+   * runs (oldest first) and removing any left-over temporary files. The
+   * directory can be shared by several processes, each limiting the
+   * files it knows of.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String open() {
+    List<File>		files;
+    Stream<Path>	paths;
+
+    if (m_Directory == null)
+      return null;
+
+    if (!m_Directory.exists() && !m_Directory.mkdirs())
+      return "Failed to create cache directory: " + m_Directory;
+
+    files = new ArrayList<>();
+    try {
+      paths = Files.walk(m_Directory.toPath(), 2);
+      try {
+	paths
+	  .filter((Path p) -> Files.isRegularFile(p))
+	  .forEach((Path p) -> files.add(p.toFile()));
+      }
+      finally {
+	paths.close();
+      }
+    }
+    catch (Exception e) {
+      return "Failed to scan cache directory '" + m_Directory + "': " + e;
+    }
+    files.sort((File f1, File f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+
+    synchronized(m_Disk) {
+      m_Disk.clear();
+      m_DiskBytes = 0;
+      for (File file: files) {
+	if (file.getName().endsWith(TMP_SUFFIX)) {
+	  // other processes may still be writing
+	  if (file.lastModified() < System.currentTimeMillis() - TMP_MAX_AGE)
+	    file.delete();
+	  continue;
+	}
+	m_Disk.put(file.getName(), file.length());
+	m_DiskBytes += file.length();
+      }
+      evictDisk();
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the stripe index for the key.
+   *
+   * @param key		the key
+   * @return		the index
+   */
+  protected int stripe(String key) {
+    return (int) (LongHashMap.key(key) & (NUM_STRIPES - 1));
+  }
+
+  /**
+   * Returns the file for the key.
+   *
+   * @param key		the key
+   * @return		the file
+   */
+  protected File getFile(String key) {
+    return new File(m_Directory, key.substring(0, Math.min(2, key.length())) + File.separator + key);
+  }
+
+  /**
+   * Returns the encoded output for the key.
+   *
+   * @param key		the key
+   * @return		the read-only output, null if not cached
+   */
+  public ByteBuffer get(String key) {
+    int		index;
+    byte[]	data;
+    File	file;
+
+    index = stripe(key);
+    synchronized(m_Stripes[index]) {
+      data = m_Stripes[index].get(key);
+    }
+    if (data != null) {
+      m_MemoryHits.incrementAndGet();
+      return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    if (m_Directory != null) {
+      synchronized(m_Disk) {
+	if (m_Disk.get(key) == null)
+	  file = null;
+	else
+	  file = getFile(key);
+      }
+      if (file != null) {
+	try {
+	  data = Files.readAllBytes(file.toPath());
+	  file.setLastModified(System.currentTimeMillis());
+	}
+	catch (IOException e) {
+	  // evicted in the meantime
+	  data = null;
+	}
+	if (data != null) {
+	  m_DiskHits.incrementAndGet();
+	  putMemory(key, data);
+	  return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+      }
+    }
+
+    m_Misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Adds the encoded output to the memory tier, evicting the least
+   * recently used entries of the stripe if necessary.
+   *
+   * @param key		the key
+   * @param data	the encoded output
+   */
+  protected void putMemory(String key, byte[] data) {
+    int					index;
+    long				max;
+    byte[]				old;
+    Iterator<Map.Entry<String,byte[]>>	iter;
+
+    index = stripe(key);
+    max   = m_MaxMemory / NUM_STRIPES;
+    if (data.length > max)
+      return;
+
+    synchronized(m_Stripes[index]) {
+      old = m_Stripes[index].put(key, data);
+      if (old != null)
+	m_StripeBytes[index] -= old.length;
+      m_StripeBytes[index] += data.length;
+      iter = m_Stripes[index].entrySet().iterator();
+      while ((m_StripeBytes[index] > max) && iter.hasNext()) {
+	m_StripeBytes[index] -= iter.next().getValue().length;
+	iter.remove();
+	m_MemoryEvictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Deletes the least recently used files until the disk tier is within its
+   * limit. Caller must hold the lock of the disk tier.
+   */
+  protected void evictDisk() {
+    Iterator<Map.Entry<String,Long>>	iter;
+    Map.Entry<String,Long>		entry;
+
+    iter = m_Disk.entrySet().iterator();
+    while ((m_DiskBytes > m_MaxDisk) && iter.hasNext()) {
+      entry = iter.next();
+      iter.remove();
+      m_DiskBytes -= entry.getValue();
+      getFile(entry.getKey()).delete();
+      m_DiskEvictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Adds the encoded output to the disk tier (written to a temporary file
+   * first), evicting the least recently used files if necessary.
+   *
+   * @param key		the key
+   * @param data	the encoded output
+   */
+  protected void putDisk(String key, byte[] data) {
+    File	file;
+    File	tmp;
+    Long	old;
+
+    if (data.length > m_MaxDisk)
+      return;
+
+    file = getFile(key);
+    tmp  = null;
+    try {
+      if (!file.getParentFile().exists() && !file.getParentFile().mkdirs() && !file.getParentFile().exists())
+	throw new IOException("Failed to create directory: " + file.getParentFile());
+      tmp = Files.createTempFile(file.getParentFile().toPath(), key + ".", TMP_SUFFIX).toFile();
+      Files.write(tmp.toPath(), data);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (Exception e) {
+      if (tmp != null)
+	tmp.delete();
+      m_Logger.warning("Failed to write cache file '" + file + "': " + e);
+      return;
+    }
+
+    synchronized(m_Disk) {
+      old = m_Disk.put(key, (long) data.length);
+      if (old != null)
+	m_DiskBytes -= old;
+      m_DiskBytes += data.length;
+      evictDisk();
+    }
+  }
+
+  /**
+   * Adds the encoded output to the cache.
+   *
+   * @param key		the key
+   * @param data	the encoded output (not modified)
+   */
+  public void put(String key, ByteBuffer data) {
+    byte[]	bytes;
+
+    bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+    putMemory(key, bytes);
+    if (m_Directory != null)
+      putDisk(key, bytes);
+  }
+
+  /**
+   * Removes all entries from memory (the disk tier is kept).
+   */
+  public void clear() {
+    int		i;
+
+    for (i = 0; i < NUM_STRIPES; i++) {
+      synchronized(m_Stripes[i]) {
+	m_Stripes[i].clear();
+	m_StripeBytes[i] = 0;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of hits in memory.
+   *
+   * @return		the number
+   */
+  public long getMemoryHits() {
+    return m_MemoryHits.get();
+  }
+
+  /**
+   * Returns the number of hits on disk.
+   *
+   * @return		the number
+   */
+  public long getDiskHits() {
+    return m_DiskHits.get();
+  }
+
+  /**
+   * Returns the number of misses.
+   *
+   * @return		the number
+   */
+  public long getMisses() {
+    return m_Misses.get();
+  }
+
+  /**
+   * Returns the number of entries evicted from memory.
+   *
+   * @return		the number
+   */
+  public long getMemoryEvictions() {
+    return m_MemoryEvictions.get();
+  }
+
+  /**
+   * Returns the number of files evicted from disk.
+   *
+   * @return		the number
+   */
+  public long getDiskEvictions() {
+    return m_DiskEvictions.get();
+  }
+
+  /**
+   * Returns the hit/miss statistics.
+   *
+   * @return		the statistics
+   */
+  public String getStatistics() {
+    long		memory;
+    long		disk;
+    long		total;
+    int			i;
+
+    memory = 0;
+    for (i = 0; i < NUM_STRIPES; i++) {
+      synchronized(m_Stripes[i]) {
+	memory += m_StripeBytes[i];
+      }
+    }
+    synchronized(m_Disk) {
+      disk = m_DiskBytes;
+    }
+    total = getMemoryHits() + getDiskHits() + getMisses();
+
+    return "cache      memory hits=" + getMemoryHits() + ", disk hits=" + getDiskHits() + ", misses=" + getMisses()
+      + ", hit rate=" + ((total == 0) ? 0 : Math.round(100.0 * (total - getMisses()) / total)) + "%"
+      + ", memory=" + memory / 1024 + "KB (evicted " + getMemoryEvictions() + ")"
+      + ((m_Directory == null) ? "" : ", disk=" + disk / 1024 + "KB (evicted " + getDiskEvictions() + ")");
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * SingleFlight.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent computations with the same key: the first caller
+ * computes the value (in its own thread), any caller arriving while the
+ * computation is still in flight waits for and shares that result instead
+ * of computing it again. The entry gets removed once the computation
+ * completes, i.e., results are not cached (see {@link RenderCache} for that).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ * @param <K> the type of key
+ * @param <V> the type of value
+ */
+public class SingleFlight<K,V> {
+
+  /** the computations in flight. */
+  protected ConcurrentHashMap<K,CompletableFuture<V>> m_InFlight;
+
+  /** the number of computations. */
+  protected AtomicLong m_Computed;
+
+  /** the number of calls that shared a computation. */
+  protected AtomicLong m_Shared;
+
+  /**
+   * Initializes the coalescing.
+   */
+  public SingleFlight() {
+    m_InFlight = new ConcurrentHashMap<>();
+    m_Computed = new AtomicLong();
+    m_Shared   = new AtomicLong();
+  }
+
+  /**
+   * Returns the value for the key, either by computing it or, if already
+   * in flight, by waiting for the other computation. Exceptions thrown by
+   * the computation get passed on to all callers sharing it.
+   *
+   * @param key		the key of the computation
+   * @param task	computes the value
+   * @return		the value
+   */
+  public V execute(K key, Supplier<V> task) {
+    CompletableFuture<V>	future;
+    CompletableFuture<V>	existing;
+    V				result;
+
+    future   = new CompletableFuture<>();
+    existing = m_InFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      m_Shared.incrementAndGet();
+      try {
+	return existing.join();
+      }
+      catch (CompletionException e) {
+	if (e.getCause() instanceof RuntimeException)
+	  throw (RuntimeException) e.getCause();
+	if (e.getCause() instanceof Error)
+	  throw (Error) e.getCause();
+	throw e;
+      }
+    }
+
+    m_Computed.incrementAndGet();
+    try {
+      result = task.get();
+      future.complete(result);
+      return result;
+    }
+    catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      m_InFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * Returns whether a computation for the key is currently in flight.
+   *
+   * @param key		the key to check
+   * @return		true if in flight
+   */
+  public boolean isInFlight(K key) {
+    return m_InFlight.containsKey(key);
+  }
+
+  /**
+   * Returns the number of computations currently in flight.
+   *
+   * @return		the number
+   */
+  public int getNumInFlight() {
+    return m_InFlight.size();
+  }
+
+  /**
+   * Returns the number of computations performed.
+   *
+   * @return		the number
+   */
+  public long getNumComputed() {
+    return m_Computed.get();
+  }
+
+  /**
+   * Returns the number of calls that shared another call's computation.
+   *
+   * @return		the number
+   */
+  public long getNumShared() {
+    return m_Shared.get();
+  }
+
+  /**
+   * Returns the statistics as string.
+   *
+   * @return		the statistics
+   */
+  public String getStatistics() {
+    return "Single-flight: " + m_Computed.get() + " computed, " + m_Shared.get() + " shared";
+  }
+}
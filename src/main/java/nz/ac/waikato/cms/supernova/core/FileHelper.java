@@ -0,0 +1,108 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * FileHelper.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Helper class for replacing files.
+ * <br>
+ * Outputs are written to a temporary file next to the target and then
+ * moved over it. Existing files are therefore never modified in place,
+ * which keeps hard links to a previous version intact and prevents readers
+ * from seeing partially written files.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class FileHelper {
+
+  /** the maximum number of attempts for creating a temporary file. */
+  public static final int MAX_ATTEMPTS = 100;
+
+  /**
+   * Creates a temporary file in the same directory as the target.
+   * Unlike {@link Files#createTempFile}, the file gets the default
+   * permissions (i.e., umask), as it will replace the target.
+   *
+   * @param target	the file that will get replaced
+   * @return		the temporary file
+   * @throws IOException	if the file cannot be created
+   */
+  public static File newTempFile(File target) throws IOException {
+    File	dir;
+    File	result;
+    int		i;
+
+    dir = target.getAbsoluteFile().getParentFile();
+    for (i = 0; i < MAX_ATTEMPTS; i++) {
+      result = new File(dir, "." + target.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+      if (result.createNewFile())
+	return result;
+    }
+
+    throw new IOException("Failed to create temporary file for '" + target + "'!");
+  }
+
+  /**
+   * Moves the temporary file over the target, atomically if supported
+   * by the file system.
+   *
+   * @param tmp		the temporary file to move
+   * @param target	the file to replace
+   * @throws IOException	if the move fails
+   */
+  public static void replace(File tmp, File target) throws IOException {
+    Path	src;
+    Path	dest;
+
+    src  = tmp.toPath();
+    dest = target.toPath();
+    try {
+      Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Removes the temporary file, ignoring any errors.
+   *
+   * @param tmp		the file to remove, can be null
+   */
+  public static void discard(File tmp) {
+    if (tmp == null)
+      return;
+    try {
+      Files.deleteIfExists(tmp.toPath());
+    }
+    catch (Exception e) {
+      // ignored
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * HashHelper.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Helper class for hashing.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class HashHelper {
+
+  /** the FNV-1a 64bit offset basis. */
+  public static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  /** the FNV-1a 64bit prime. */
+  public static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Calculates the 64bit FNV-1a hash of the UTF-8 bytes of the string.
+   * Stable across JVMs, unlike {@link String#hashCode()}.
+   *
+   * @param s		the string to hash
+   * @return		the hash
+   */
+  public static long fnv1a64(String s) {
+    long	result;
+    byte[]	data;
+    int		i;
+
+    result = FNV_OFFSET;
+    data   = s.getBytes(StandardCharsets.UTF_8);
+    for (i = 0; i < data.length; i++) {
+      result ^= (data[i] & 0xff);
+      result *= FNV_PRIME;
+    }
+
+    return result;
+  }
+
+  /**
+   * Mixes the bits of the hash (finalizer of MurmurHash3), so that all bits
+   * depend on all bits of the input. FNV-1a alone distributes short inputs
+   * poorly across the high bits.
+   *
+   * @param h		the hash to mix
+   * @return		the mixed hash
+   */
+  public static long mix64(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Calculates the SHA-256 digest of the UTF-8 bytes of the string.
+   *
+   * @param s		the string to hash
+   * @return		the digest as hex string
+   */
+  public static String sha256(String s) {
+    StringBuilder	result;
+    MessageDigest	digest;
+    byte[]		hash;
+
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (Exception e) {
+      // every JVM must support SHA-256
+      throw new IllegalStateException(e);
+    }
+    hash   = digest.digest(s.getBytes(StandardCharsets.UTF_8));
+    result = new StringBuilder();
+    for (byte b: hash)
+      result.append(String.format("%02x", b));
+
+    return result.toString();
+  }
+}
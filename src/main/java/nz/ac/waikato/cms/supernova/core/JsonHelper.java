@@ -0,0 +1,387 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * JsonHelper.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser/generator, sufficient for line-based formats (e.g.,
+ * NDJSON). Objects get parsed into {@link LinkedHashMap}s, arrays into
+ * {@link ArrayList}s, numbers into {@link Double}s.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class JsonHelper {
+
+  /** the text to parse. */
+  protected String m_Text;
+
+  /** the current position. */
+  protected int m_Pos;
+
+  /**
+   * Initializes the parser.
+   *
+   * @param text	the text to parse
+   */
+  protected JsonHelper(String text) {
+    m_Text = text;
+    m_Pos  = 0;
+  }
+
+  /**
+   * Generates an exception for the current position.
+   *
+   * @param msg		the error message
+   * @return		the exception
+   */
+  protected IllegalArgumentException error(String msg) {
+    return new IllegalArgumentException(msg + " at position " + m_Pos);
+  }
+
+  /**
+   * Skips whitespace.
+   */
+  protected void skipWhitespace() {
+    while ((m_Pos < m_Text.length()) && Character.isWhitespace(m_Text.charAt(m_Pos)))
+      m_Pos++;
+  }
+
+  /**
+   * Skips whitespace and returns the next character without consuming it.
+   *
+   * @return		the character
+   */
+  protected char peek() {
+    skipWhitespace();
+    if (m_Pos >= m_Text.length())
+      throw error("Unexpected end of input");
+    return m_Text.charAt(m_Pos);
+  }
+
+  /**
+   * Consumes the expected character.
+   *
+   * @param c		the expected character
+   */
+  protected void expect(char c) {
+    if (peek() != c)
+      throw error("Expected '" + c + "'");
+    m_Pos++;
+  }
+
+  /**
+   * Consumes the literal if present.
+   *
+   * @param literal	the literal to check
+   * @return		true if consumed
+   */
+  protected boolean consume(String literal) {
+    if (!m_Text.startsWith(literal, m_Pos))
+      return false;
+    m_Pos += literal.length();
+    return true;
+  }
+
+  /**
+   * Parses a value.
+   *
+   * @return		the value
+   */
+  protected Object parseValue() {
+    char	c;
+
+    c = peek();
+    if (c == '{')
+      return parseObject();
+    if (c == '[')
+      return parseArray();
+    if (c == '"')
+      return parseString();
+    if (consume("true"))
+      return Boolean.TRUE;
+    if (consume("false"))
+      return Boolean.FALSE;
+    if (consume("null"))
+      return null;
+    return parseNumber();
+  }
+
+  /**
+   * Parses an object.
+   *
+   * @return		the object
+   */
+  protected Map<String,Object> parseObject() {
+    Map<String,Object>	result;
+    String		key;
+
+    result = new LinkedHashMap<>();
+    expect('{');
+    if (peek() == '}') {
+      m_Pos++;
+      return result;
+    }
+    while (true) {
+      if (peek() != '"')
+	throw error("Expected key");
+      key = parseString();
+      expect(':');
+      result.put(key, parseValue());
+      if (peek() == ',') {
+	m_Pos++;
+	continue;
+      }
+      expect('}');
+      return result;
+    }
+  }
+
+  /**
+   * Parses an array.
+   *
+   * @return		the array
+   */
+  protected List<Object> parseArray() {
+    List<Object>	result;
+
+    result = new ArrayList<>();
+    expect('[');
+    if (peek() == ']') {
+      m_Pos++;
+      return result;
+    }
+    while (true) {
+      result.add(parseValue());
+      if (peek() == ',') {
+	m_Pos++;
+	continue;
+      }
+      expect(']');
+      return result;
+    }
+  }
+
+  /**
+   * Parses a string.
+   *
+   * @return		the string
+   */
+  protected String parseString() {
+    StringBuilder	result;
+    char		c;
+
+    result = new StringBuilder();
+    expect('"');
+    while (m_Pos < m_Text.length()) {
+      c = m_Text.charAt(m_Pos++);
+      if (c == '"')
+	return result.toString();
+      if (c != '\\') {
+	result.append(c);
+	continue;
+      }
+      if (m_Pos >= m_Text.length())
+	break;
+      c = m_Text.charAt(m_Pos++);
+      switch (c) {
+	case 'b': result.append('\b'); break;
+	case 'f': result.append('\f'); break;
+	case 'n': result.append('\n'); break;
+	case 'r': result.append('\r'); break;
+	case 't': result.append('\t'); break;
+	case 'u':
+	  if (m_Pos + 4 > m_Text.length())
+	    throw error("Invalid unicode escape");
+	  try {
+	    result.append((char) Integer.parseInt(m_Text.substring(m_Pos, m_Pos + 4), 16));
+	  }
+	  catch (NumberFormatException e) {
+	    throw error("Invalid unicode escape");
+	  }
+	  m_Pos += 4;
+	  break;
+	default:
+	  result.append(c);
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  /**
+   * Parses a number.
+   *
+   * @return		the number
+   */
+  protected Double parseNumber() {
+    int		start;
+    char	c;
+
+    start = m_Pos;
+    while (m_Pos < m_Text.length()) {
+      c = m_Text.charAt(m_Pos);
+      if (((c >= '0') && (c <= '9')) || (c == '-') || (c == '+') || (c == '.') || (c == 'e') || (c == 'E'))
+	m_Pos++;
+      else
+	break;
+    }
+    if (start == m_Pos)
+      throw error("Unexpected character '" + m_Text.charAt(m_Pos) + "'");
+    try {
+      return Double.parseDouble(m_Text.substring(start, m_Pos));
+    }
+    catch (NumberFormatException e) {
+      m_Pos = start;
+      throw error("Invalid number");
+    }
+  }
+
+  /**
+   * Parses the JSON text.
+   *
+   * @param text	the text to parse
+   * @return		the value (map, list, string, double, boolean or null)
+   * @throws IllegalArgumentException	if the text is not valid JSON
+   */
+  public static Object parse(String text) {
+    JsonHelper	parser;
+    Object	result;
+
+    parser = new JsonHelper(text);
+    result = parser.parseValue();
+    parser.skipWhitespace();
+    if (parser.m_Pos < text.length())
+      throw parser.error("Unexpected trailing content");
+
+    return result;
+  }
+
+  /**
+   * Parses the JSON text, which must represent an object.
+   *
+   * @param text	the text to parse
+   * @return		the object
+   * @throws IllegalArgumentException	if the text is not a valid JSON object
+   */
+  public static Map<String,Object> parseObject(String text) {
+    Object	result;
+
+    result = parse(text);
+    if (!(result instanceof Map))
+      throw new IllegalArgumentException("Not a JSON object");
+
+    return (Map<String,Object>) result;
+  }
+
+  /**
+   * Turns the string into a quoted JSON string.
+   *
+   * @param s		the string to quote
+   * @return		the quoted string
+   */
+  public static String quote(String s) {
+    StringBuilder	result;
+    char		c;
+    int			i;
+
+    result = new StringBuilder("\"");
+    for (i = 0; i < s.length(); i++) {
+      c = s.charAt(i);
+      switch (c) {
+	case '"':  result.append("\\\""); break;
+	case '\\': result.append("\\\\"); break;
+	case '\b': result.append("\\b"); break;
+	case '\f': result.append("\\f"); break;
+	case '\n': result.append("\\n"); break;
+	case '\r': result.append("\\r"); break;
+	case '\t': result.append("\\t"); break;
+	default:
+	  if (c < 0x20)
+	    result.append(String.format("\\u%04x", (int) c));
+	  else
+	    result.append(c);
+      }
+    }
+    result.append("\"");
+
+    return result.toString();
+  }
+
+  /**
+   * Turns the value into JSON (single line). Supports maps, lists, strings,
+   * numbers, booleans and null.
+   *
+   * @param value	the value to convert
+   * @return		the JSON string
+   */
+  public static String toJson(Object value) {
+    StringBuilder	result;
+    boolean		first;
+    double		d;
+
+    if (value == null)
+      return "null";
+    if (value instanceof String)
+      return quote((String) value);
+    if (value instanceof Boolean)
+      return value.toString();
+    if (value instanceof Number) {
+      d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d))
+	return "null";
+      if ((d == Math.rint(d)) && (Math.abs(d) < 1e15))
+	return "" + (long) d;
+      return value.toString();
+    }
+
+    result = new StringBuilder();
+    first  = true;
+    if (value instanceof Map) {
+      result.append("{");
+      for (Object key: ((Map) value).keySet()) {
+	if (!first)
+	  result.append(",");
+	result.append(quote("" + key)).append(":").append(toJson(((Map) value).get(key)));
+	first = false;
+      }
+      result.append("}");
+      return result.toString();
+    }
+    if (value instanceof List) {
+      result.append("[");
+      for (Object item: (List) value) {
+	if (!first)
+	  result.append(",");
+	result.append(toJson(item));
+	first = false;
+      }
+      result.append("]");
+      return result.toString();
+    }
+
+    return quote(value.toString());
+  }
+}
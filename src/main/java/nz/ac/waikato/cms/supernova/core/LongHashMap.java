@@ -0,0 +1,212 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * LongHashMap.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.core;
+
+/**
+ * Compact open-addressing hash map from long to long (linear probing), for
+ * keeping track of millions of (hashed) IDs with 16 bytes per entry.
+ * The key 0 is reserved for empty slots. The keys are expected to be
+ * well-mixed hashes already (see {@link HashHelper#mix64(long)}).
+ * Not thread-safe.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class LongHashMap {
+
+  /** the default initial capacity (power of 2). */
+  public static final int INITIAL_CAPACITY = 1024;
+
+  /** the keys (0 = empty). */
+  protected long[] m_Keys;
+
+  /** the values. */
+  protected long[] m_Values;
+
+  /** the number of entries. */
+  protected int m_Size;
+
+  /**
+   * Initializes the map with the default capacity.
+   */
+  public LongHashMap() {
+    this(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Initializes the map.
+   *
+   * @param capacity	the initial capacity (gets rounded up to power of 2)
+   */
+  public LongHashMap(int capacity) {
+    capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    m_Keys   = new long[capacity];
+    m_Values = new long[capacity];
+    m_Size   = 0;
+  }
+
+  /**
+   * Returns a key for the string, i.e., its mixed 64bit FNV-1a hash.
+   *
+   * @param s		the string to get the key for
+   * @return		the key (never 0)
+   */
+  public static long key(String s) {
+    long	result;
+
+    result = HashHelper.mix64(HashHelper.fnv1a64(s));
+    return (result == 0) ? 1 : result;
+  }
+
+  /**
+   * Returns the slot of the key (empty slot if not present).
+   *
+   * @param key		the key to look for
+   * @return		the slot
+   */
+  protected int slot(long key) {
+    int		mask;
+    int		slot;
+
+    mask = m_Keys.length - 1;
+    slot = (int) (key >>> 32) & mask;
+    while ((m_Keys[slot] != 0) && (m_Keys[slot] != key))
+      slot = (slot + 1) & mask;
+
+    return slot;
+  }
+
+  /**
+   * Doubles the capacity.
+   */
+  protected void grow() {
+    long[]	keys;
+    long[]	values;
+    int		i;
+    int		slot;
+
+    keys     = m_Keys;
+    values   = m_Values;
+    m_Keys   = new long[keys.length * 2];
+    m_Values = new long[keys.length * 2];
+    for (i = 0; i < keys.length; i++) {
+      if (keys[i] == 0)
+	continue;
+      slot           = slot(keys[i]);
+      m_Keys[slot]   = keys[i];
+      m_Values[slot] = values[i];
+    }
+  }
+
+  /**
+   * Checks whether the key is present.
+   *
+   * @param key		the key (not 0)
+   * @return		true if present
+   */
+  public boolean containsKey(long key) {
+    return m_Keys[slot(key)] == key;
+  }
+
+  /**
+   * Returns the value for the key.
+   *
+   * @param key		the key (not 0)
+   * @param defValue	the value to return if not present
+   * @return		the value
+   */
+  public long get(long key, long defValue) {
+    int		slot;
+
+    slot = slot(key);
+    return (m_Keys[slot] == key) ? m_Values[slot] : defValue;
+  }
+
+  /**
+   * Stores the value for the key.
+   *
+   * @param key		the key (not 0)
+   * @param value	the value
+   */
+  public void put(long key, long value) {
+    int		slot;
+
+    if (key == 0)
+      throw new IllegalArgumentException("Key 0 is reserved!");
+
+    slot = slot(key);
+    if (m_Keys[slot] == 0) {
+      if ((m_Size + 1) * 2 > m_Keys.length) {
+	grow();
+	slot = slot(key);
+      }
+      m_Keys[slot] = key;
+      m_Size++;
+    }
+    m_Values[slot] = value;
+  }
+
+  /**
+   * Removes the key, moving back entries of the same probe sequence.
+   *
+   * @param key		the key (not 0)
+   * @return		true if the key was present
+   */
+  public boolean remove(long key) {
+    int		mask;
+    int		slot;
+    int		next;
+    int		home;
+
+    slot = slot(key);
+    if (m_Keys[slot] != key)
+      return false;
+
+    mask = m_Keys.length - 1;
+    next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (m_Keys[next] == 0)
+	break;
+      home = (int) (m_Keys[next] >>> 32) & mask;
+      // move back if the home slot is not between the gap and the entry (cyclic)
+      if (((next - home) & mask) >= ((next - slot) & mask)) {
+	m_Keys[slot]   = m_Keys[next];
+	m_Values[slot] = m_Values[next];
+	slot           = next;
+      }
+    }
+    m_Keys[slot]   = 0;
+    m_Values[slot] = 0;
+    m_Size--;
+
+    return true;
+  }
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return		the number
+   */
+  public int size() {
+    return m_Size;
+  }
+}
@@ -21,26 +21,138 @@
 package nz.ac.waikato.cms.supernova.core;
 
 import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.sink.AbstractOutputSink;
 import nz.ac.waikato.cms.supernova.triangle.AbstractTriangleCenterCalculation;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
 
 /**
  * Registry for available classes.
+ * <br>
+ * The classes get listed in index files on the classpath, using the same
+ * format as {@link java.util.ServiceLoader}, i.e., META-INF/services/
+ * followed by the name of the superclass, containing one classname per line.
+ * Plugins can register their classes by supplying such a file. The
+ * classpath only gets scanned (using {@link SupernovaClassLister}) if no
+ * index is found or if the system property {@link #PROPERTY_SCAN} is "true".
  *
  * @author FracPete (fracpete at waikato dot ac dot nz)
  * @version $Revision$
  */
 public class Registry {
 
+  /** the location of the index files. */
+  public static final String SERVICES = "META-INF/services/";
+
+  /** the system property for enabling the classpath scan in addition to the index. */
+  public static final String PROPERTY_SCAN = "supernova.scan";
+
+  /** for logging. */
+  protected static final Logger LOGGER = Logger.getLogger(Registry.class.getName());
+
+  /** the classes determined so far (superclass - classes). */
+  protected static Map<Class,Class[]> m_Classes = new HashMap<>();
+
+  /**
+   * Adds the classes listed in the index files for the superclass.
+   *
+   * @param superclass	the superclass to get the derived classes for
+   * @param classes	for adding the classes (classname - class)
+   * @return		true if at least one index file was found
+   */
+  protected static boolean readIndex(Class superclass, Map<String,Class> classes) {
+    boolean		result;
+    ClassLoader		loader;
+    Enumeration<URL>	urls;
+    URL			url;
+    String		line;
+    Class		cls;
+
+    result = false;
+    loader = Registry.class.getClassLoader();
+    try {
+      urls = loader.getResources(SERVICES + superclass.getName());
+    }
+    catch (Exception e) {
+      LOGGER.warning("Failed to locate index for " + superclass.getName() + ": " + e);
+      return false;
+    }
+
+    while (urls.hasMoreElements()) {
+      url    = urls.nextElement();
+      result = true;
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+	while ((line = reader.readLine()) != null) {
+	  if (line.contains("#"))
+	    line = line.substring(0, line.indexOf('#'));
+	  line = line.trim();
+	  if (line.isEmpty())
+	    continue;
+	  try {
+	    // don't initialize, only the class is required
+	    cls = Class.forName(line, false, loader);
+	    if (!superclass.isAssignableFrom(cls) || Modifier.isAbstract(cls.getModifiers()))
+	      LOGGER.warning("Not a concrete " + superclass.getName() + " (" + url + "): " + line);
+	    else
+	      classes.put(cls.getName(), cls);
+	  }
+	  catch (Throwable t) {
+	    LOGGER.warning("Failed to load class listed in " + url + ": " + line + " (" + t + ")");
+	  }
+	}
+      }
+      catch (Exception e) {
+	LOGGER.warning("Failed to read index " + url + ": " + e);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the classes derived from the superclass, sorted by name.
+   * Uses the index files, the classpath only gets scanned as fallback.
+   *
+   * @param superclass	the superclass to get the derived classes for
+   * @return		the classes
+   */
+  public static synchronized Class[] getClasses(Class superclass) {
+    Map<String,Class>	classes;
+    Class[]		result;
+
+    result = m_Classes.get(superclass);
+    if (result != null)
+      return result;
+
+    classes = new TreeMap<>();
+    if (!readIndex(superclass, classes) || Boolean.getBoolean(PROPERTY_SCAN)) {
+      for (Class cls: SupernovaClassLister.getSingleton().getClasses(superclass))
+	classes.put(cls.getName(), cls);
+    }
+    result = classes.values().toArray(new Class[classes.size()]);
+    m_Classes.put(superclass, result);
+
+    return result;
+  }
+
   /**
    * Returns the available output generators.
    *
    * @return		the generators
    */
   public static Class[] getGenerators() {
-    return SupernovaClassLister.getSingleton().getClasses(AbstractOutputGenerator.class);
+    return getClasses(AbstractOutputGenerator.class);
   }
 
   /**
@@ -49,7 +161,16 @@ public class Registry {
    * @return		the centers
    */
   public static Class[] getCenters() {
-    return SupernovaClassLister.getSingleton().getClasses(AbstractTriangleCenterCalculation.class);
+    return getClasses(AbstractTriangleCenterCalculation.class);
+  }
+
+  /**
+   * Returns the available output sinks.
+   *
+   * @return		the sinks
+   */
+  public static Class[] getSinks() {
+    return getClasses(AbstractOutputSink.class);
   }
 
   /**
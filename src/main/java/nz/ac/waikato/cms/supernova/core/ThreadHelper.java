@@ -0,0 +1,138 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * ThreadHelper.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Helper class for creating threads and executors.
+ * <br>
+ * Blocking I/O (reading input, writing outputs to slow storage) can be run
+ * on virtual threads when running on Java 21 or later, while CPU-bound work
+ * should stay on a pool of platform threads sized to the number of cores.
+ * Virtual threads are accessed via reflection, so the code still compiles
+ * and runs with Java 8 (falling back on platform threads).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class ThreadHelper {
+
+  /** for logging. */
+  protected static final Logger LOGGER = Logger.getLogger(ThreadHelper.class.getName());
+
+  /** the method for creating a thread-per-task executor (Java 21+). */
+  protected static Method m_NewThreadPerTaskExecutor;
+
+  /** the method for obtaining a virtual thread builder (Java 21+). */
+  protected static Method m_OfVirtual;
+
+  /** the method for naming threads of a builder. */
+  protected static Method m_BuilderName;
+
+  /** the method for obtaining a thread factory from a builder. */
+  protected static Method m_BuilderFactory;
+
+  /** whether virtual threads are available. */
+  protected static boolean m_VirtualThreadsAvailable;
+
+  static {
+    Class	builder;
+
+    try {
+      builder                    = Class.forName("java.lang.Thread$Builder");
+      m_OfVirtual                = Thread.class.getMethod("ofVirtual");
+      m_BuilderName              = builder.getMethod("name", String.class, Long.TYPE);
+      m_BuilderFactory           = builder.getMethod("factory");
+      m_NewThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      m_VirtualThreadsAvailable  = true;
+    }
+    catch (Throwable t) {
+      m_VirtualThreadsAvailable  = false;
+    }
+  }
+
+  /**
+   * Returns whether virtual threads are available (Java 21+).
+   *
+   * @return		true if available
+   */
+  public static boolean isVirtualThreadsAvailable() {
+    return m_VirtualThreadsAvailable;
+  }
+
+  /**
+   * Returns the number of available processors.
+   *
+   * @return		the number of cores
+   */
+  public static int getNumCores() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Creates a thread factory for daemon platform threads.
+   *
+   * @param name	the name prefix for the threads
+   * @return		the factory
+   */
+  public static ThreadFactory newPlatformThreadFactory(String name) {
+    AtomicInteger	count;
+
+    count = new AtomicInteger();
+    return (Runnable r) -> {
+      Thread t = new Thread(r, "supernova-" + name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Creates an executor for blocking I/O tasks. Uses a new virtual thread
+   * per task if available, otherwise a cached pool of daemon platform threads.
+   *
+   * @param name	the name prefix for the threads
+   * @return		the executor
+   */
+  public static ExecutorService newIOExecutor(String name) {
+    Object		builder;
+    ThreadFactory	factory;
+
+    if (m_VirtualThreadsAvailable) {
+      try {
+	builder = m_OfVirtual.invoke(null);
+	builder = m_BuilderName.invoke(builder, "supernova-" + name + "-", 1L);
+	factory = (ThreadFactory) m_BuilderFactory.invoke(builder);
+	return (ExecutorService) m_NewThreadPerTaskExecutor.invoke(null, factory);
+      }
+      catch (Exception e) {
+	LOGGER.warning("Failed to create virtual thread executor, falling back on platform threads: " + e);
+      }
+    }
+
+    return Executors.newCachedThreadPool(newPlatformThreadFactory(name));
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * FarmBatch.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.farm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of profiles that gets handed to a worker as a whole.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class FarmBatch {
+
+  /** the ID of the batch. */
+  protected long m_ID;
+
+  /** the IDs of the profiles. */
+  protected List<String> m_IDs;
+
+  /** the test results. */
+  protected List<Map<String,List<Double>>> m_Tests;
+
+  /** the ranks of the inputs the profiles are from. */
+  protected List<Integer> m_Ranks;
+
+  /** the submission times (msec). */
+  protected List<Long> m_Starts;
+
+  /** the number of workers the batch has been handed to. */
+  protected int m_Attempts;
+
+  /**
+   * Initializes the batch.
+   *
+   * @param id		the ID of the batch
+   */
+  public FarmBatch(long id) {
+    m_ID       = id;
+    m_IDs      = new ArrayList<>();
+    m_Tests    = new ArrayList<>();
+    m_Ranks    = new ArrayList<>();
+    m_Starts   = new ArrayList<>();
+    m_Attempts = 0;
+  }
+
+  /**
+   * Returns the ID of the batch.
+   *
+   * @return		the ID
+   */
+  public long getID() {
+    return m_ID;
+  }
+
+  /**
+   * Adds the profile.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input the profile is from
+   * @param start	the submission time (msec)
+   */
+  public void add(String id, Map<String,List<Double>> test, int rank, long start) {
+    m_IDs.add(id);
+    m_Tests.add(test);
+    m_Ranks.add(rank);
+    m_Starts.add(start);
+  }
+
+  /**
+   * Returns the number of profiles.
+   *
+   * @return		the number
+   */
+  public int size() {
+    return m_IDs.size();
+  }
+
+  /**
+   * Returns the ID of the specified profile.
+   *
+   * @param index	the index of the profile
+   * @return		the ID
+   */
+  public String getID(int index) {
+    return m_IDs.get(index);
+  }
+
+  /**
+   * Returns the test results of the specified profile.
+   *
+   * @param index	the index of the profile
+   * @return		the test results
+   */
+  public Map<String,List<Double>> getTest(int index) {
+    return m_Tests.get(index);
+  }
+
+  /**
+   * Returns the rank of the input of the specified profile.
+   *
+   * @param index	the index of the profile
+   * @return		the rank
+   */
+  public int getRank(int index) {
+    return m_Ranks.get(index);
+  }
+
+  /**
+   * Returns the submission time of the specified profile.
+   *
+   * @param index	the index of the profile
+   * @return		the time (msec)
+   */
+  public long getStart(int index) {
+    return m_Starts.get(index);
+  }
+
+  /**
+   * Increments the number of attempts.
+   *
+   * @return		the number of attempts so far
+   */
+  public int incAttempts() {
+    m_Attempts++;
+    return m_Attempts;
+  }
+
+  /**
+   * Returns the number of workers the batch has been handed to.
+   *
+   * @return		the number of attempts
+   */
+  public int getAttempts() {
+    return m_Attempts;
+  }
+}
@@ -0,0 +1,836 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * FarmCoordinator.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.farm;
+
+import nz.ac.waikato.cms.supernova.batch.BatchRenderer;
+import nz.ac.waikato.cms.supernova.batch.RunManifest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinator of a render farm: collects the submitted profiles in batches
+ * and hands them to worker processes (see {@link FarmWorker}) that connect
+ * via TCP, using {@link FarmProtocol}. The workers send back the encoded
+ * outputs, which get stored in the sink (and recorded in the manifest) by
+ * the coordinator, i.e., claims, manifest and sink work the same as with
+ * local rendering. Deduplication is not supported.
+ * <br>
+ * Every worker has a window of batches in flight (number of its threads
+ * plus one). If a worker disconnects or does not send anything (results or
+ * heartbeats) within the timeout, its batches get requeued at the front and
+ * handed to other workers. Batches that failed on too many workers (e.g.,
+ * profiles crashing the workers) get reported as failed.
+ * <br>
+ * Submitting blocks while the maximum number of batches are queued or in
+ * flight. Optionally, workers get launched as local processes.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class FarmCoordinator
+  extends BatchRenderer {
+
+  /** the main class for launching local workers. */
+  public static final String WORKER_CLASS = "nz.ac.waikato.cms.supernova.SupernovaFarmWorker";
+
+  /**
+   * Handles the communication with a single worker.
+   */
+  public class WorkerHandler
+    implements Runnable {
+
+    /** the connection. */
+    protected Socket m_Socket;
+
+    /** the name of the worker. */
+    protected String m_Name;
+
+    /** the number of threads of the worker. */
+    protected int m_NumThreads;
+
+    /** the number of completed batches. */
+    protected int m_NumBatches;
+
+    /** the number of completed profiles. */
+    protected int m_NumProfiles;
+
+    /** the reason for losing the worker, null if still connected or shut down. */
+    protected String m_Failure;
+
+    /** whether the worker is connected. */
+    protected volatile boolean m_Active;
+
+    /**
+     * Initializes the handler.
+     *
+     * @param socket	the connection to the worker
+     */
+    public WorkerHandler(Socket socket) {
+      m_Socket      = socket;
+      m_Name        = "" + socket.getRemoteSocketAddress();
+      m_NumThreads  = 1;
+      m_NumBatches  = 0;
+      m_NumProfiles = 0;
+      m_Failure     = null;
+      m_Active      = true;
+    }
+
+    /**
+     * Returns whether the worker is still connected.
+     *
+     * @return		true if connected
+     */
+    public boolean isActive() {
+      return m_Active;
+    }
+
+    /**
+     * Hands out batches and processes the results until shut down or the
+     * worker gets lost.
+     */
+    @Override
+    public void run() {
+      Map<Long,FarmBatch>	inflight;
+      DataInputStream		in;
+      DataOutputStream		out;
+      FarmBatch			batch;
+      FarmResult		result;
+      int			window;
+      byte			type;
+
+      inflight = new LinkedHashMap<>();
+      try {
+	m_Socket.setSoTimeout(m_Timeout);
+	m_Socket.setTcpNoDelay(true);
+	in  = new DataInputStream(new BufferedInputStream(m_Socket.getInputStream()));
+	out = new DataOutputStream(new BufferedOutputStream(m_Socket.getOutputStream()));
+	if ((in.readByte() != FarmProtocol.HELLO) || (in.readInt() != FarmProtocol.MAGIC))
+	  throw new IOException("Not a farm worker!");
+	if (in.readInt() != FarmProtocol.VERSION)
+	  throw new IOException("Unsupported protocol version!");
+	if (!FarmProtocol.isValidToken(m_Token, in.readUTF()))
+	  throw new IOException("Invalid token!");
+	m_Name       = in.readUTF() + " (" + m_Socket.getRemoteSocketAddress() + ")";
+	m_NumThreads = in.readInt();
+	window       = Math.max(1, m_NumThreads) + 1;
+	FarmProtocol.writeConfig(out, m_Generator, m_FarmConfigHash);
+	out.flush();
+	m_Logger.info("Worker connected: " + m_Name + ", threads: " + m_NumThreads);
+
+	while (true) {
+	  while (inflight.size() < window) {
+	    batch = inflight.isEmpty() ? m_Queue.poll(100, TimeUnit.MILLISECONDS) : m_Queue.poll();
+	    if (batch == null)
+	      break;
+	    batch.incAttempts();
+	    inflight.put(batch.getID(), batch);
+	    FarmProtocol.writeBatch(out, batch);
+	  }
+	  out.flush();
+
+	  if (inflight.isEmpty()) {
+	    if (m_Shutdown) {
+	      out.writeByte(FarmProtocol.SHUTDOWN);
+	      out.flush();
+	      break;
+	    }
+	    continue;
+	  }
+
+	  type = in.readByte();
+	  if (type == FarmProtocol.HEARTBEAT)
+	    continue;
+	  if (type == FarmProtocol.ERROR)
+	    throw new IOException("Worker failed: " + in.readUTF());
+	  if (type != FarmProtocol.RESULT)
+	    throw new IOException("Unexpected message type: " + type);
+	  result = FarmProtocol.readResult(in);
+	  batch  = inflight.get(result.getBatchID());
+	  if (batch == null)
+	    throw new IOException("Unknown batch: #" + result.getBatchID());
+	  if (batch.size() != result.size())
+	    throw new IOException("Batch #" + batch.getID() + " has " + batch.size() + " profiles, but received " + result.size() + " outputs!");
+	  inflight.remove(batch.getID());
+	  process(batch, result);
+	  synchronized(this) {
+	    m_NumBatches++;
+	    m_NumProfiles += batch.size();
+	  }
+	}
+      }
+      catch (Exception e) {
+	m_Failure = e.toString();
+	m_Logger.warning("Lost worker " + m_Name + ": " + e + (inflight.isEmpty() ? "" : ", requeueing " + inflight.size() + " batch(es)"));
+	for (FarmBatch b: inflight.values())
+	  requeue(b, m_Failure);
+      }
+      finally {
+	m_Active = false;
+	try {
+	  m_Socket.close();
+	}
+	catch (Exception e) {
+	  // ignored
+	}
+      }
+    }
+
+    /**
+     * Returns a short description of the worker.
+     *
+     * @return		the description
+     */
+    @Override
+    public synchronized String toString() {
+      return m_Name + ": " + m_NumBatches + " batch(es), " + m_NumProfiles + " profile(s)" + ((m_Failure == null) ? "" : ", lost: " + m_Failure);
+    }
+  }
+
+  /** the port to listen on (0 = any free port). */
+  protected int m_Port;
+
+  /** the token the workers have to present, empty if none. */
+  protected String m_Token;
+
+  /** the number of profiles per batch. */
+  protected int m_BatchSize;
+
+  /** the maximum number of batches queued or in flight. */
+  protected int m_MaxBatches;
+
+  /** the timeout in msec after which a silent worker is considered lost. */
+  protected int m_Timeout;
+
+  /** the maximum number of workers a batch gets handed to. */
+  protected int m_MaxAttempts;
+
+  /** the number of local worker processes to launch. */
+  protected int m_LocalWorkers;
+
+  /** the server socket. */
+  protected ServerSocket m_ServerSocket;
+
+  /** the batches waiting for a worker. */
+  protected LinkedBlockingDeque<FarmBatch> m_Queue;
+
+  /** limits the number of batches queued or in flight. */
+  protected Semaphore m_Slots;
+
+  /** the batch currently being filled. */
+  protected FarmBatch m_Current;
+
+  /** the ID for the next batch. */
+  protected long m_NextBatchID;
+
+  /** the number of batches not finished yet. */
+  protected int m_Pending;
+
+  /** whether all batches have been finished. */
+  protected volatile boolean m_Shutdown;
+
+  /** the hash of the generator settings, verified by the workers. */
+  protected String m_FarmConfigHash;
+
+  /** the worker connections. */
+  protected List<WorkerHandler> m_Handlers;
+
+  /** the threads of the worker connections. */
+  protected List<Thread> m_HandlerThreads;
+
+  /** the local worker processes. */
+  protected List<Process> m_Processes;
+
+  /** the number of requeued batches. */
+  protected AtomicLong m_NumRequeued;
+
+  /**
+   * Initializes the coordinator.
+   */
+  public FarmCoordinator() {
+    super();
+
+    m_Port           = FarmProtocol.DEFAULT_PORT;
+    m_Token          = FarmProtocol.getToken();
+    m_BatchSize      = 64;
+    m_MaxBatches     = 64;
+    m_Timeout        = 30000;
+    m_MaxAttempts    = 3;
+    m_LocalWorkers   = 0;
+    m_ServerSocket   = null;
+    m_Handlers       = new ArrayList<>();
+    m_HandlerThreads = new ArrayList<>();
+    m_Processes      = new ArrayList<>();
+    m_NumRequeued    = new AtomicLong();
+  }
+
+  /**
+   * Sets the port to listen on.
+   *
+   * @param value	the port, 0 for any free port
+   */
+  public void setPort(int value) {
+    if (value >= 0)
+      m_Port = value;
+  }
+
+  /**
+   * Returns the port to listen on. Once opened, the actual port.
+   *
+   * @return		the port
+   */
+  public int getPort() {
+    if (m_ServerSocket != null)
+      return m_ServerSocket.getLocalPort();
+    return m_Port;
+  }
+
+  /**
+   * Sets the token the workers have to present.
+   *
+   * @param value	the token, empty if none
+   */
+  public void setToken(String value) {
+    m_Token = value;
+  }
+
+  /**
+   * Returns the token the workers have to present.
+   *
+   * @return		the token, empty if none
+   */
+  public String getToken() {
+    return m_Token;
+  }
+
+  /**
+   * Sets the number of profiles per batch.
+   *
+   * @param value	the size
+   */
+  public void setBatchSize(int value) {
+    if (value > 0)
+      m_BatchSize = value;
+  }
+
+  /**
+   * Returns the number of profiles per batch.
+   *
+   * @return		the size
+   */
+  public int getBatchSize() {
+    return m_BatchSize;
+  }
+
+  /**
+   * Sets the maximum number of batches queued or in flight.
+   *
+   * @param value	the maximum
+   */
+  public void setMaxBatches(int value) {
+    if (value > 0)
+      m_MaxBatches = value;
+  }
+
+  /**
+   * Returns the maximum number of batches queued or in flight.
+   *
+   * @return		the maximum
+   */
+  public int getMaxBatches() {
+    return m_MaxBatches;
+  }
+
+  /**
+   * Sets the timeout after which a worker that has batches in flight but
+   * does not send anything is considered lost.
+   *
+   * @param value	the timeout in msec
+   */
+  public void setTimeout(int value) {
+    if (value > 0)
+      m_Timeout = value;
+  }
+
+  /**
+   * Returns the timeout after which a silent worker is considered lost.
+   *
+   * @return		the timeout in msec
+   */
+  public int getTimeout() {
+    return m_Timeout;
+  }
+
+  /**
+   * Sets the maximum number of workers a batch gets handed to before its
+   * profiles get reported as failed.
+   *
+   * @param value	the maximum
+   */
+  public void setMaxAttempts(int value) {
+    if (value > 0)
+      m_MaxAttempts = value;
+  }
+
+  /**
+   * Returns the maximum number of workers a batch gets handed to.
+   *
+   * @return		the maximum
+   */
+  public int getMaxAttempts() {
+    return m_MaxAttempts;
+  }
+
+  /**
+   * Sets the number of worker processes to launch on this machine. Each
+   * uses the number of threads of the coordinator.
+   *
+   * @param value	the number of processes
+   * @see		#setNumThreads(int)
+   */
+  public void setLocalWorkers(int value) {
+    if (value >= 0)
+      m_LocalWorkers = value;
+  }
+
+  /**
+   * Returns the number of worker processes to launch on this machine.
+   *
+   * @return		the number of processes
+   */
+  public int getLocalWorkers() {
+    return m_LocalWorkers;
+  }
+
+  /**
+   * Opens the server socket and launches the local workers (if any).
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String open() {
+    ProcessBuilder	builder;
+    String		java;
+    int			i;
+
+    try {
+      m_ServerSocket = new ServerSocket(m_Port);
+    }
+    catch (Exception e) {
+      return "Failed to listen on port " + m_Port + ": " + e;
+    }
+    if (m_Token.isEmpty())
+      m_Logger.warning("No token set (environment variable " + FarmProtocol.ENV_TOKEN + "), accepting any worker connecting to port " + getPort() + "!");
+
+    java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+    for (i = 0; i < m_LocalWorkers; i++) {
+      builder = new ProcessBuilder(
+	java, "-cp", System.getProperty("java.class.path"), WORKER_CLASS,
+	"--host", "localhost",
+	"--port", "" + getPort(),
+	"--threads", "" + m_NumThreads,
+	"--name", "local-" + i);
+      builder.inheritIO();
+      builder.environment().put(FarmProtocol.ENV_TOKEN, m_Token);
+      try {
+	m_Processes.add(builder.start());
+      }
+      catch (Exception e) {
+	close();
+	return "Failed to launch local worker: " + e;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Starts accepting workers.
+   */
+  @Override
+  public void start() {
+    Thread	acceptor;
+
+    if (m_ServerSocket == null)
+      throw new IllegalStateException("Coordinator has not been opened!");
+
+    prepareRun();
+    m_FarmConfigHash = RunManifest.configHash(m_Generator);
+    m_Queue       = new LinkedBlockingDeque<>();
+    m_Slots       = new Semaphore(m_MaxBatches);
+    m_Current     = null;
+    m_NextBatchID = 0;
+    m_Pending     = 0;
+    m_Shutdown    = false;
+    m_NumRequeued.set(0);
+
+    acceptor = new Thread(this::accept, "farm-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    m_Logger.info("Coordinator listening on port " + getPort());
+  }
+
+  /**
+   * Accepts worker connections until the server socket gets closed.
+   */
+  protected void accept() {
+    Socket		socket;
+    WorkerHandler	handler;
+    Thread		thread;
+
+    while (!m_ServerSocket.isClosed()) {
+      try {
+	socket = m_ServerSocket.accept();
+      }
+      catch (IOException e) {
+	if (!m_ServerSocket.isClosed())
+	  m_Logger.warning("Failed to accept worker: " + e);
+	continue;
+      }
+      handler = new WorkerHandler(socket);
+      thread  = new Thread(handler, "farm-" + socket.getRemoteSocketAddress());
+      thread.setDaemon(true);
+      synchronized(m_Handlers) {
+	m_Handlers.add(handler);
+	m_HandlerThreads.add(thread);
+      }
+      thread.start();
+    }
+  }
+
+  /**
+   * Adds the profile to the current batch, which gets queued for the
+   * workers once full. Blocks while the maximum number of batches are
+   * queued or in flight. Can be called from multiple threads.
+   *
+   * @param id		the ID of the output
+   * @param test	the test results (measure - [score, percentile])
+   * @param rank	the rank of the input the profile is from
+   */
+  @Override
+  public void submit(String id, Map<String,List<Double>> test, int rank) {
+    FarmBatch	full;
+    ByteBuffer	data;
+    String	key;
+    long	start;
+
+    if (!begin(id, test, rank))
+      return;
+
+    start = System.currentTimeMillis();
+    if (m_Generator.getCache() != null) {
+      key  = m_Generator.getCacheKey(test);
+      data = m_Generator.getCache().get(key);
+      if (data != null) {
+	finished(id, test, store(id, m_Generator.getExtension(), data, rank), start);
+	return;
+      }
+    }
+
+    full = null;
+    synchronized(this) {
+      if (m_Current == null)
+	m_Current = new FarmBatch(m_NextBatchID++);
+      m_Current.add(id, test, rank, start);
+      if (m_Current.size() >= m_BatchSize) {
+	full      = m_Current;
+	m_Current = null;
+      }
+    }
+    if (full != null)
+      enqueue(full);
+  }
+
+  /**
+   * Queues the batch for the workers, blocks while the maximum number of
+   * batches are queued or in flight. If only local workers were launched
+   * and all of them have exited, the queued batches get reported as failed
+   * to free up slots.
+   *
+   * @param batch	the batch to queue
+   */
+  protected void enqueue(FarmBatch batch) {
+    boolean	interrupted;
+
+    interrupted = false;
+    while (true) {
+      try {
+	if (m_Slots.tryAcquire(1, TimeUnit.SECONDS))
+	  break;
+      }
+      catch (InterruptedException e) {
+	interrupted = true;
+      }
+      if (isAbandoned())
+	failQueued("No workers left");
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    synchronized(this) {
+      m_Pending++;
+    }
+    m_Queue.offerLast(batch);
+  }
+
+  /**
+   * Stores the outputs received for the batch.
+   *
+   * @param batch	the batch
+   * @param result	the outputs of the batch
+   */
+  protected void process(FarmBatch batch, FarmResult result) {
+    String	ext;
+    String	msg;
+    int		i;
+
+    ext = m_Generator.getExtension();
+    for (i = 0; i < batch.size(); i++) {
+      if (result.getError(i) == null) {
+	msg = store(batch.getID(i), ext, result.getData(i), batch.getRank(i));
+	if (m_Generator.getCache() != null)
+	  m_Generator.getCache().put(m_Generator.getCacheKey(batch.getTest(i)), result.getData(i));
+      }
+      else {
+	msg = result.getError(i);
+      }
+      finished(batch.getID(i), batch.getTest(i), msg, batch.getStart(i));
+    }
+    batchFinished();
+  }
+
+  /**
+   * Hands the batch of a lost worker to the other workers again, or fails
+   * its profiles if it has been handed out too often already.
+   *
+   * @param batch	the batch
+   * @param reason	the reason for losing the worker
+   */
+  protected void requeue(FarmBatch batch, String reason) {
+    if (batch.getAttempts() < m_MaxAttempts) {
+      m_NumRequeued.incrementAndGet();
+      m_Queue.offerFirst(batch);
+    }
+    else {
+      fail(batch, "Failed on " + batch.getAttempts() + " worker(s), last: " + reason);
+    }
+  }
+
+  /**
+   * Reports the profiles of the batch as failed.
+   *
+   * @param batch	the batch
+   * @param msg		the error message
+   */
+  protected void fail(FarmBatch batch, String msg) {
+    int		i;
+
+    m_Logger.severe("Batch #" + batch.getID() + ": " + msg);
+    for (i = 0; i < batch.size(); i++)
+      finished(batch.getID(i), batch.getTest(i), msg, batch.getStart(i));
+    batchFinished();
+  }
+
+  /**
+   * Frees the slot of a finished batch.
+   */
+  protected void batchFinished() {
+    m_Slots.release();
+    synchronized(this) {
+      m_Pending--;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Queues the current batch and waits for all outputs submitted so far to
+   * be finished, keeping the workers connected.
+   *
+   * @throws InterruptedException	if interrupted while waiting
+   */
+  @Override
+  public void flush() throws InterruptedException {
+    FarmBatch	current;
+
+    synchronized(this) {
+      current   = m_Current;
+      m_Current = null;
+    }
+    if (current != null)
+      enqueue(current);
+    super.flush();
+  }
+
+  /**
+   * Returns the number of connected workers.
+   *
+   * @return		the number of workers
+   */
+  public int getNumActiveWorkers() {
+    int		result;
+
+    result = 0;
+    synchronized(m_Handlers) {
+      for (WorkerHandler handler: m_Handlers) {
+	if (handler.isActive())
+	  result++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Checks whether any of the local worker processes are still running.
+   *
+   * @return		true if at least one running
+   */
+  protected boolean hasLocalWorkers() {
+    for (Process process: m_Processes) {
+      if (process.isAlive())
+	return true;
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether only local workers were launched and all of them have
+   * exited, i.e., no more batches can get processed.
+   *
+   * @return		true if no workers left
+   */
+  protected boolean isAbandoned() {
+    return (m_Processes.size() > 0) && !hasLocalWorkers() && (getNumActiveWorkers() == 0);
+  }
+
+  /**
+   * Reports all the batches waiting for a worker as failed.
+   *
+   * @param msg		the error message
+   */
+  protected void failQueued(String msg) {
+    FarmBatch	batch;
+
+    while ((batch = m_Queue.poll()) != null)
+      fail(batch, msg);
+  }
+
+  /**
+   * Queues the last batch, waits for all batches to be finished and shuts
+   * down the workers. If only local workers were launched and all of them
+   * have exited, the remaining batches get reported as failed.
+   *
+   * @throws InterruptedException	if interrupted while waiting
+   */
+  @Override
+  public void finish() throws InterruptedException {
+    FarmBatch		last;
+    long		lastReport;
+    List<Thread>	threads;
+
+    synchronized(this) {
+      last      = m_Current;
+      m_Current = null;
+    }
+    if (last != null)
+      enqueue(last);
+
+    lastReport = System.currentTimeMillis();
+    synchronized(this) {
+      while (m_Pending > 0) {
+	wait(1000);
+	if ((m_Pending == 0) || (getNumActiveWorkers() > 0))
+	  continue;
+	if (isAbandoned())
+	  failQueued("No workers left");
+	else if (System.currentTimeMillis() - lastReport >= m_Timeout) {
+	  m_Logger.warning("Waiting for workers to connect to port " + getPort() + ", " + m_Pending + " batch(es) pending");
+	  lastReport = System.currentTimeMillis();
+	}
+      }
+    }
+
+    m_Shutdown = true;
+    synchronized(m_Handlers) {
+      threads = new ArrayList<>(m_HandlerThreads);
+    }
+    for (Thread thread: threads)
+      thread.join(m_Timeout);
+    close();
+  }
+
+  /**
+   * Closes the server socket and waits for the local workers to exit,
+   * killing hung ones.
+   */
+  protected void close() {
+    try {
+      if (m_ServerSocket != null)
+	m_ServerSocket.close();
+    }
+    catch (Exception e) {
+      // ignored
+    }
+
+    for (Process process: m_Processes) {
+      try {
+	if (!process.waitFor(m_Timeout, TimeUnit.MILLISECONDS))
+	  process.destroyForcibly();
+      }
+      catch (InterruptedException e) {
+	process.destroyForcibly();
+      }
+    }
+    m_Processes.clear();
+  }
+
+  /**
+   * Returns statistics about the workers.
+   *
+   * @return		the statistics
+   */
+  public String getStatistics() {
+    StringBuilder	result;
+
+    result = new StringBuilder();
+    synchronized(m_Handlers) {
+      result.append("Farm: ").append(m_Handlers.size()).append(" worker(s), ").append(m_NumRequeued.get()).append(" batch(es) requeued");
+      for (WorkerHandler handler: m_Handlers)
+	result.append("\n  ").append(handler);
+    }
+
+    return result.toString();
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * FarmProtocol.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.farm;
+
+import nz.ac.waikato.cms.supernova.batch.RunManifest;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGeneratorWithDimensions;
+import nz.ac.waikato.cms.supernova.triangle.AbstractTriangleCenterCalculation;
+
+import java.awt.Color;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary protocol between coordinator and workers of a render farm.
+ * Every message starts with its type (byte), followed by:
+ * <ul>
+ *   <li>{@link #HELLO} (worker): magic (int), version (int), token (UTF,
+ *   empty if none), name (UTF), number of threads (int)</li>
+ *   <li>{@link #CONFIG} (coordinator): config hash (UTF), generator class
+ *   (UTF), center class (UTF), only first iteration (boolean), number of
+ *   colors (int) with measure (UTF) and ARGB (int) each, background ARGB
+ *   (int), opacity (double), margin (double), width (int), height (int)</li>
+ *   <li>{@link #BATCH} (coordinator): batch ID (long), number of profiles
+ *   (int), per profile the ID (UTF) and score/percentile (double) for each
+ *   of the {@link AbstractOutputGenerator#MEASURES}</li>
+ *   <li>{@link #RESULT} (worker): batch ID (long), number of outputs (int),
+ *   per output the ID (UTF), error (UTF, empty if successful), duration
+ *   (long) and length (int) plus bytes of the encoded output</li>
+ *   <li>{@link #HEARTBEAT} (worker), {@link #SHUTDOWN} (coordinator):
+ *   no payload</li>
+ *   <li>{@link #ERROR} (worker): message (UTF)</li>
+ * </ul>
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class FarmProtocol {
+
+  /** the magic number ("SNFM"). */
+  public static final int MAGIC = 0x534e464d;
+
+  /** the protocol version. */
+  public static final int VERSION = 2;
+
+  /** the environment variable with the shared token of coordinator and workers. */
+  public static final String ENV_TOKEN = "SUPERNOVA_FARM_TOKEN";
+
+  /** the default port. */
+  public static final int DEFAULT_PORT = 9876;
+
+  /** worker introduces itself. */
+  public static final byte HELLO = 1;
+
+  /** generator settings for the worker. */
+  public static final byte CONFIG = 2;
+
+  /** profiles to generate. */
+  public static final byte BATCH = 3;
+
+  /** generated outputs. */
+  public static final byte RESULT = 4;
+
+  /** worker is still alive. */
+  public static final byte HEARTBEAT = 5;
+
+  /** no more work. */
+  public static final byte SHUTDOWN = 6;
+
+  /** worker failed. */
+  public static final byte ERROR = 7;
+
+  /** the maximum number of items in a message (sanity check). */
+  public static final int MAX_ITEMS = 1024 * 1024;
+
+  /** the maximum size of an encoded output (sanity check). */
+  public static final int MAX_OUTPUT = 256 * 1024 * 1024;
+
+  /**
+   * Returns the shared token from the environment.
+   *
+   * @return		the token, empty if not set
+   * @see		#ENV_TOKEN
+   */
+  public static String getToken() {
+    String	result;
+
+    result = System.getenv(ENV_TOKEN);
+    if (result == null)
+      result = "";
+
+    return result;
+  }
+
+  /**
+   * Compares the tokens in constant time.
+   *
+   * @param expected	the expected token
+   * @param actual	the received token
+   * @return		true if equal
+   */
+  public static boolean isValidToken(String expected, String actual) {
+    return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Writes the HELLO message.
+   *
+   * @param out		the stream to write to
+   * @param token	the shared token, empty if none
+   * @param name	the name of the worker
+   * @param numThreads	the number of threads of the worker
+   * @throws IOException	if writing fails
+   */
+  public static void writeHello(DataOutputStream out, String token, String name, int numThreads) throws IOException {
+    out.writeByte(HELLO);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(token);
+    out.writeUTF(name);
+    out.writeInt(numThreads);
+  }
+
+  /**
+   * Writes the CONFIG message.
+   *
+   * @param out		the stream to write to
+   * @param generator	the generator to send
+   * @param configHash	the hash of the generator settings, for verification
+   * @throws IOException	if writing fails
+   */
+  public static void writeConfig(DataOutputStream out, AbstractOutputGenerator generator, String configHash) throws IOException {
+    Map<String,Color>			colors;
+    AbstractOutputGeneratorWithDimensions	pixel;
+
+    out.writeByte(CONFIG);
+    out.writeUTF(configHash);
+    out.writeUTF(generator.getClass().getName());
+    out.writeUTF(generator.getCenter().getClass().getName());
+    out.writeBoolean(generator.getOnlyFirstIteration());
+    colors = generator.getColors();
+    out.writeInt(colors.size());
+    for (String key: colors.keySet()) {
+      out.writeUTF(key);
+      out.writeInt(colors.get(key).getRGB());
+    }
+    out.writeInt(generator.getBackground().getRGB());
+    out.writeDouble(generator.getOpacity());
+    out.writeDouble(generator.getMargin());
+    if (generator instanceof AbstractOutputGeneratorWithDimensions) {
+      pixel = (AbstractOutputGeneratorWithDimensions) generator;
+      out.writeInt(pixel.getWidth());
+      out.writeInt(pixel.getHeight());
+    }
+    else {
+      out.writeInt(-1);
+      out.writeInt(-1);
+    }
+  }
+
+  /**
+   * Reads the payload of the CONFIG message and sets up the generator.
+   * The hash of the settings of the generator gets compared against the
+   * one computed by the coordinator.
+   *
+   * @param in		the stream to read from
+   * @return		the generator
+   * @throws IOException	if reading fails or the generator cannot be set up
+   */
+  public static AbstractOutputGenerator readConfig(DataInputStream in) throws IOException {
+    AbstractOutputGenerator			result;
+    AbstractOutputGeneratorWithDimensions	pixel;
+    String					configHash;
+    String					generatorCls;
+    String					centerCls;
+    Map<String,Color>				colors;
+    int						numColors;
+    int						i;
+    int						width;
+    int						height;
+
+    configHash   = in.readUTF();
+    generatorCls = in.readUTF();
+    centerCls    = in.readUTF();
+    try {
+      result = (AbstractOutputGenerator) Class.forName(generatorCls).newInstance();
+      result.setCenter((AbstractTriangleCenterCalculation) Class.forName(centerCls).newInstance());
+    }
+    catch (Exception e) {
+      throw new IOException("Failed to instantiate generator " + generatorCls + "/" + centerCls, e);
+    }
+    result.setOnlyFirstIteration(in.readBoolean());
+    colors    = new HashMap<>();
+    numColors = in.readInt();
+    for (i = 0; i < numColors; i++)
+      colors.put(in.readUTF(), new Color(in.readInt(), true));
+    result.setColors(colors);
+    result.setBackground(new Color(in.readInt(), true));
+    result.setOpacity(in.readDouble());
+    result.setMargin(in.readDouble());
+    width  = in.readInt();
+    height = in.readInt();
+    if (result instanceof AbstractOutputGeneratorWithDimensions) {
+      pixel = (AbstractOutputGeneratorWithDimensions) result;
+      pixel.setWidth(width);
+      pixel.setHeight(height);
+    }
+    if (!RunManifest.configHash(result).equals(configHash))
+      throw new IOException("Generator settings differ from coordinator (different versions?): " + result.getConfigString());
+
+    return result;
+  }
+
+  /**
+   * Writes the BATCH message.
+   *
+   * @param out		the stream to write to
+   * @param batch	the batch to send
+   * @throws IOException	if writing fails
+   */
+  public static void writeBatch(DataOutputStream out, FarmBatch batch) throws IOException {
+    Map<String,List<Double>>	test;
+    int				i;
+
+    out.writeByte(BATCH);
+    out.writeLong(batch.getID());
+    out.writeInt(batch.size());
+    for (i = 0; i < batch.size(); i++) {
+      out.writeUTF(batch.getID(i));
+      test = batch.getTest(i);
+      for (String measure: AbstractOutputGenerator.MEASURES) {
+	out.writeDouble(test.get(measure).get(0));
+	out.writeDouble(test.get(measure).get(1));
+      }
+    }
+  }
+
+  /**
+   * Reads the payload of the BATCH message.
+   *
+   * @param in		the stream to read from
+   * @return		the batch
+   * @throws IOException	if reading fails
+   */
+  public static FarmBatch readBatch(DataInputStream in) throws IOException {
+    FarmBatch			result;
+    Map<String,List<Double>>	test;
+    String			id;
+    int				size;
+    int				i;
+
+    result = new FarmBatch(in.readLong());
+    size   = readSize(in, MAX_ITEMS);
+    for (i = 0; i < size; i++) {
+      id   = in.readUTF();
+      test = new HashMap<>();
+      for (String measure: AbstractOutputGenerator.MEASURES)
+	test.put(measure, new ArrayList<>(Arrays.asList(in.readDouble(), in.readDouble())));
+      result.add(id, test, 0, 0L);
+    }
+
+    return result;
+  }
+
+  /**
+   * Writes the RESULT message.
+   *
+   * @param out		the stream to write to
+   * @param result	the outputs to send
+   * @throws IOException	if writing fails
+   */
+  public static void writeResult(DataOutputStream out, FarmResult result) throws IOException {
+    ByteBuffer	data;
+    byte[]	buffer;
+    int		i;
+
+    out.writeByte(RESULT);
+    out.writeLong(result.getBatchID());
+    out.writeInt(result.size());
+    for (i = 0; i < result.size(); i++) {
+      out.writeUTF(result.getID(i));
+      out.writeUTF((result.getError(i) == null) ? "" : result.getError(i));
+      out.writeLong(result.getDuration(i));
+      data = result.getData(i);
+      if (data == null) {
+	out.writeInt(0);
+	continue;
+      }
+      data = data.duplicate();
+      out.writeInt(data.remaining());
+      if (data.hasArray()) {
+	out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      }
+      else {
+	buffer = new byte[data.remaining()];
+	data.get(buffer);
+	out.write(buffer);
+      }
+    }
+  }
+
+  /**
+   * Reads the payload of the RESULT message.
+   *
+   * @param in		the stream to read from
+   * @return		the outputs
+   * @throws IOException	if reading fails
+   */
+  public static FarmResult readResult(DataInputStream in) throws IOException {
+    FarmResult	result;
+    String	id;
+    String	error;
+    long	duration;
+    byte[]	data;
+    int		size;
+    int		i;
+
+    result = new FarmResult(in.readLong());
+    size   = readSize(in, MAX_ITEMS);
+    for (i = 0; i < size; i++) {
+      id       = in.readUTF();
+      error    = in.readUTF();
+      duration = in.readLong();
+      data     = new byte[readSize(in, MAX_OUTPUT)];
+      in.readFully(data);
+      if (error.isEmpty())
+	result.add(id, ByteBuffer.wrap(data), null, duration);
+      else
+	result.add(id, null, error, duration);
+    }
+
+    return result;
+  }
+
+  /**
+   * Reads a size and checks it against the limit.
+   *
+   * @param in		the stream to read from
+   * @param max		the maximum size
+   * @return		the size
+   * @throws IOException	if reading fails or size is out of range
+   */
+  protected static int readSize(DataInputStream in, int max) throws IOException {
+    int		result;
+
+    result = in.readInt();
+    if ((result < 0) || (result > max))
+      throw new IOException("Invalid size (0-" + max + "): " + result);
+
+    return result;
+  }
+}
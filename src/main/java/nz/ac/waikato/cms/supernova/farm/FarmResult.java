@@ -0,0 +1,137 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * FarmResult.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.farm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The encoded outputs of a batch, as sent back by a worker (same order as
+ * the profiles of the batch).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class FarmResult {
+
+  /** the ID of the batch. */
+  protected long m_BatchID;
+
+  /** the IDs of the outputs. */
+  protected List<String> m_IDs;
+
+  /** the encoded outputs, null if failed. */
+  protected List<ByteBuffer> m_Data;
+
+  /** the error messages, null if successful. */
+  protected List<String> m_Errors;
+
+  /** the time it took to generate the outputs (msec). */
+  protected List<Long> m_Durations;
+
+  /**
+   * Initializes the result.
+   *
+   * @param batchID	the ID of the batch
+   */
+  public FarmResult(long batchID) {
+    m_BatchID   = batchID;
+    m_IDs       = new ArrayList<>();
+    m_Data      = new ArrayList<>();
+    m_Errors    = new ArrayList<>();
+    m_Durations = new ArrayList<>();
+  }
+
+  /**
+   * Returns the ID of the batch.
+   *
+   * @return		the ID
+   */
+  public long getBatchID() {
+    return m_BatchID;
+  }
+
+  /**
+   * Adds the output.
+   *
+   * @param id		the ID of the output
+   * @param data	the encoded output, null if failed
+   * @param error	the error message, null if successful
+   * @param duration	the time it took to generate the output (msec)
+   */
+  public void add(String id, ByteBuffer data, String error, long duration) {
+    m_IDs.add(id);
+    m_Data.add(data);
+    m_Errors.add(error);
+    m_Durations.add(duration);
+  }
+
+  /**
+   * Returns the number of outputs.
+   *
+   * @return		the number
+   */
+  public int size() {
+    return m_IDs.size();
+  }
+
+  /**
+   * Returns the ID of the specified output.
+   *
+   * @param index	the index of the output
+   * @return		the ID
+   */
+  public String getID(int index) {
+    return m_IDs.get(index);
+  }
+
+  /**
+   * Returns the encoded output.
+   *
+   * @param index	the index of the output
+   * @return		the output, null if failed
+   */
+  public ByteBuffer getData(int index) {
+    return m_Data.get(index);
+  }
+
+  /**
+   * Returns the error message.
+   *
+   * @param index	the index of the output
+   * @return		the error, null if successful
+   */
+  public String getError(int index) {
+    return m_Errors.get(index);
+  }
+
+  /**
+   * Returns the time it took to generate the output.
+   *
+   * @param index	the index of the output
+   * @return		the duration (msec)
+   */
+  public long getDuration(int index) {
+    return m_Durations.get(index);
+  }
+}
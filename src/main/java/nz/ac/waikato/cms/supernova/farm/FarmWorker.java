@@ -0,0 +1,421 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * FarmWorker.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.farm;
+
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Worker of a render farm: connects to a {@link FarmCoordinator}, receives
+ * the generator settings and batches of profiles, generates the outputs
+ * with a pool of threads (one batch per thread, each with its own copy of
+ * the generator) and sends back the encoded outputs. Sends heartbeats while
+ * busy, so that the coordinator can tell slow from lost workers.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class FarmWorker {
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the host of the coordinator. */
+  protected String m_Host;
+
+  /** the port of the coordinator. */
+  protected int m_Port;
+
+  /** the number of threads. */
+  protected int m_NumThreads;
+
+  /** the name of the worker. */
+  protected String m_Name;
+
+  /** the shared token, empty if none. */
+  protected String m_Token;
+
+  /** the interval for heartbeats in msec. */
+  protected int m_HeartbeatInterval;
+
+  /** how long to keep trying to connect in msec. */
+  protected int m_ConnectTimeout;
+
+  /** the connection. */
+  protected Socket m_Socket;
+
+  /** for sending messages. */
+  protected DataOutputStream m_Out;
+
+  /** the generator copies of the threads. */
+  protected ThreadLocal<AbstractOutputGenerator> m_Generators;
+
+  /** the number of generated outputs. */
+  protected AtomicLong m_NumOutputs;
+
+  /**
+   * Initializes the worker.
+   */
+  public FarmWorker() {
+    super();
+
+    m_Logger            = Logger.getLogger(getClass().getName());
+    m_Host              = "localhost";
+    m_Port              = FarmProtocol.DEFAULT_PORT;
+    m_NumThreads        = 1;
+    m_Name              = "worker";
+    m_Token             = FarmProtocol.getToken();
+    m_HeartbeatInterval = 5000;
+    m_ConnectTimeout    = 30000;
+    m_NumOutputs        = new AtomicLong();
+  }
+
+  /**
+   * Sets the host of the coordinator.
+   *
+   * @param value	the host
+   */
+  public void setHost(String value) {
+    m_Host = value;
+  }
+
+  /**
+   * Returns the host of the coordinator.
+   *
+   * @return		the host
+   */
+  public String getHost() {
+    return m_Host;
+  }
+
+  /**
+   * Sets the port of the coordinator.
+   *
+   * @param value	the port
+   */
+  public void setPort(int value) {
+    if (value > 0)
+      m_Port = value;
+  }
+
+  /**
+   * Returns the port of the coordinator.
+   *
+   * @return		the port
+   */
+  public int getPort() {
+    return m_Port;
+  }
+
+  /**
+   * Sets the number of threads to use.
+   *
+   * @param value	the number of threads (0 = number of cores)
+   */
+  public void setNumThreads(int value) {
+    if (value == 0)
+      m_NumThreads = ThreadHelper.getNumCores();
+    else if (value > 0)
+      m_NumThreads = value;
+  }
+
+  /**
+   * Returns the number of threads to use.
+   *
+   * @return		the number of threads
+   */
+  public int getNumThreads() {
+    return m_NumThreads;
+  }
+
+  /**
+   * Sets the name of the worker (for logging).
+   *
+   * @param value	the name
+   */
+  public void setName(String value) {
+    m_Name = value;
+  }
+
+  /**
+   * Returns the name of the worker.
+   *
+   * @return		the name
+   */
+  public String getName() {
+    return m_Name;
+  }
+
+  /**
+   * Sets the token shared with the coordinator.
+   *
+   * @param value	the token, empty if none
+   */
+  public void setToken(String value) {
+    m_Token = value;
+  }
+
+  /**
+   * Returns the token shared with the coordinator.
+   *
+   * @return		the token, empty if none
+   */
+  public String getToken() {
+    return m_Token;
+  }
+
+  /**
+   * Sets the interval for sending heartbeats.
+   *
+   * @param value	the interval in msec
+   */
+  public void setHeartbeatInterval(int value) {
+    if (value > 0)
+      m_HeartbeatInterval = value;
+  }
+
+  /**
+   * Returns the interval for sending heartbeats.
+   *
+   * @return		the interval in msec
+   */
+  public int getHeartbeatInterval() {
+    return m_HeartbeatInterval;
+  }
+
+  /**
+   * Sets how long to keep trying to connect to the coordinator.
+   *
+   * @param value	the timeout in msec
+   */
+  public void setConnectTimeout(int value) {
+    if (value >= 0)
+      m_ConnectTimeout = value;
+  }
+
+  /**
+   * Returns how long to keep trying to connect to the coordinator.
+   *
+   * @return		the timeout in msec
+   */
+  public int getConnectTimeout() {
+    return m_ConnectTimeout;
+  }
+
+  /**
+   * Returns the number of generated outputs.
+   *
+   * @return		the number of outputs
+   */
+  public long getNumOutputs() {
+    return m_NumOutputs.get();
+  }
+
+  /**
+   * Connects to the coordinator, retrying until the connect timeout has
+   * been reached (workers can get started before the coordinator).
+   *
+   * @return		the connection
+   * @throws IOException	if connecting fails
+   */
+  protected Socket connect() throws IOException {
+    Socket	result;
+    long	end;
+
+    end = System.currentTimeMillis() + m_ConnectTimeout;
+    while (true) {
+      result = new Socket();
+      try {
+	result.connect(new InetSocketAddress(m_Host, m_Port));
+	result.setTcpNoDelay(true);
+	return result;
+      }
+      catch (IOException e) {
+	result.close();
+	if (System.currentTimeMillis() >= end)
+	  throw e;
+      }
+      try {
+	Thread.sleep(1000);
+      }
+      catch (InterruptedException e) {
+	throw new IOException("Interrupted while connecting", e);
+      }
+    }
+  }
+
+  /**
+   * Connects to the coordinator and generates outputs until the coordinator
+   * shuts the worker down.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String run() {
+    String			result;
+    DataInputStream		in;
+    AbstractOutputGenerator	generator;
+    ExecutorService		executor;
+    ScheduledExecutorService	heartbeat;
+    byte			type;
+
+    result    = null;
+    executor  = null;
+    heartbeat = null;
+    try {
+      m_Socket = connect();
+      in       = new DataInputStream(new BufferedInputStream(m_Socket.getInputStream()));
+      m_Out    = new DataOutputStream(new BufferedOutputStream(m_Socket.getOutputStream()));
+      FarmProtocol.writeHello(m_Out, m_Token, m_Name, m_NumThreads);
+      m_Out.flush();
+
+      type = in.readByte();
+      if (type != FarmProtocol.CONFIG)
+	throw new IOException("Expected generator settings, but received message type: " + type);
+      try {
+	generator = FarmProtocol.readConfig(in);
+      }
+      catch (IOException e) {
+	m_Out.writeByte(FarmProtocol.ERROR);
+	m_Out.writeUTF(e.getMessage());
+	m_Out.flush();
+	throw e;
+      }
+      m_Generators = ThreadLocal.withInitial(() -> generator.copy());
+      m_Logger.info("Connected to " + m_Host + ":" + m_Port + ", generating " + generator.getExtension() + " with " + m_NumThreads + " thread(s)");
+
+      executor  = Executors.newFixedThreadPool(m_NumThreads, ThreadHelper.newPlatformThreadFactory("farm-render"));
+      heartbeat = Executors.newSingleThreadScheduledExecutor(ThreadHelper.newPlatformThreadFactory("farm-heartbeat"));
+      heartbeat.scheduleAtFixedRate(this::heartbeat, m_HeartbeatInterval, m_HeartbeatInterval, TimeUnit.MILLISECONDS);
+
+      while (true) {
+	type = in.readByte();
+	if (type == FarmProtocol.SHUTDOWN)
+	  break;
+	if (type != FarmProtocol.BATCH)
+	  throw new IOException("Unexpected message type: " + type);
+	FarmBatch batch = FarmProtocol.readBatch(in);
+	executor.execute(() -> render(batch));
+      }
+      m_Logger.info("Shut down by coordinator, generated " + m_NumOutputs.get() + " output(s)");
+    }
+    catch (Exception e) {
+      result = "Lost connection to coordinator " + m_Host + ":" + m_Port + ": " + e;
+    }
+    finally {
+      if (heartbeat != null)
+	heartbeat.shutdownNow();
+      if (executor != null)
+	executor.shutdownNow();
+      close();
+    }
+
+    return result;
+  }
+
+  /**
+   * Generates the outputs of the batch and sends them to the coordinator.
+   *
+   * @param batch	the batch to generate
+   */
+  protected void render(FarmBatch batch) {
+    AbstractOutputGenerator	generator;
+    FarmResult			result;
+    StringBuilder		errors;
+    ByteBuffer			data;
+    String			error;
+    long			start;
+    int				i;
+
+    generator = m_Generators.get();
+    result    = new FarmResult(batch.getID());
+    for (i = 0; i < batch.size(); i++) {
+      start  = System.currentTimeMillis();
+      errors = new StringBuilder();
+      error  = null;
+      try {
+	data = generator.generate(batch.getTest(i), errors);
+	if (data == null)
+	  error = (errors.length() > 0) ? errors.toString() : "Failed to generate output";
+      }
+      catch (Exception e) {
+	data  = null;
+	error = "Failed to generate output: " + e;
+      }
+      result.add(batch.getID(i), data, error, System.currentTimeMillis() - start);
+    }
+    m_NumOutputs.addAndGet(batch.size());
+
+    try {
+      synchronized(m_Out) {
+	FarmProtocol.writeResult(m_Out, result);
+	m_Out.flush();
+      }
+    }
+    catch (IOException e) {
+      m_Logger.severe("Failed to send batch #" + batch.getID() + ": " + e);
+      close();
+    }
+  }
+
+  /**
+   * Sends a heartbeat to the coordinator.
+   */
+  protected void heartbeat() {
+    try {
+      synchronized(m_Out) {
+	m_Out.writeByte(FarmProtocol.HEARTBEAT);
+	m_Out.flush();
+      }
+    }
+    catch (IOException e) {
+      close();
+    }
+  }
+
+  /**
+   * Closes the connection.
+   */
+  protected void close() {
+    try {
+      if (m_Socket != null)
+	m_Socket.close();
+    }
+    catch (Exception e) {
+      // ignored
+    }
+  }
+}
@@ -30,10 +30,14 @@ import nz.ac.waikato.cms.gui.core.DirectoryChooserPanel;
 import nz.ac.waikato.cms.gui.core.ExtensionFileFilter;
 import nz.ac.waikato.cms.gui.core.FileChooserPanel;
 import nz.ac.waikato.cms.gui.core.GUIHelper;
+import nz.ac.waikato.cms.supernova.batch.BatchRenderer;
+import nz.ac.waikato.cms.supernova.batch.RenderResult;
 import nz.ac.waikato.cms.supernova.core.Registry;
+import nz.ac.waikato.cms.supernova.input.ProfileGrouper;
 import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
 import nz.ac.waikato.cms.supernova.io.AbstractOutputGeneratorWithDimensions;
 import nz.ac.waikato.cms.supernova.io.PNG;
+import nz.ac.waikato.cms.supernova.sink.DirectorySink;
 import nz.ac.waikato.cms.supernova.triangle.AbstractTriangleCenterCalculation;
 import nz.ac.waikato.cms.supernova.triangle.Incenter;
 import org.apache.commons.csv.CSVFormat;
@@ -62,12 +66,9 @@ import java.awt.Font;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -669,21 +670,20 @@ public class Supernova
   protected void generateBatchOutput() {
     String			cls;
     AbstractOutputGenerator	generator;
+    DirectorySink		sink;
+    BatchRenderer		renderer;
+    ProfileGrouper		grouper;
     int 			colID;
     int 			colMeasure;
     int 			colScore;
     int 			colPercentile;
     Reader 			reader;
     CSVParser 			csvparser;
-    String 			oldID;
-    Map<String,List<Double>> 	test;
     String 			id;
-    File 			outfile;
     String 			msg;
     String 			measure;
     double 			score;
     double 			percentile;
-    String			error;
 
     m_BatchLog.setText("");
     m_BatchGenerate.setEnabled(false);
@@ -697,53 +697,64 @@ public class Supernova
       generator = new PNG();
     }
 
+    sink = new DirectorySink();
+    sink.setOutput(m_BatchOutput.getCurrent());
+    msg = sink.open();
+    if (msg != null) {
+      batchLog(msg, true);
+      m_BatchGenerate.setEnabled(true);
+      return;
+    }
+
+    // rasterize on all cores, write on virtual threads
+    renderer = new BatchRenderer();
+    renderer.setGenerator(generator);
+    renderer.setSink(sink);
+    renderer.setNumThreads(0);
+    renderer.setVirtualThreads(true);
+    renderer.setListener((RenderResult result) -> {
+      if (result.isSuccess())
+	SwingUtilities.invokeLater(() -> batchLog("Generated: " + result.getID(), false));
+      else
+	SwingUtilities.invokeLater(() -> batchLog("Failed to generate output for ID: " + result.getID(), true));
+    });
+    renderer.start();
+
     try {
       colID         = 0;
       colMeasure    = 1;
       colScore      = 2;
       colPercentile = 3;
+      grouper       = new ProfileGrouper(renderer::submit);
+      grouper.setIncompleteHandler((String incID, Map<String,List<Double>> test) ->
+	batchLog("Incomplete profile for ID: " + incID + " " + test.keySet(), true));
       reader        = new FileReader(m_BatchCSV.getCurrent());
       csvparser     = new CSVParser(reader, CSVFormat.EXCEL.withHeader());
-      oldID         = "";
-      test          = new HashMap<>();
       for (CSVRecord rec : csvparser) {
 	if (rec.size() < 4)
 	  continue;
-	id = rec.get(colID);
-	if (!id.equals(oldID)) {
-	  if (!test.isEmpty()) {
-	    outfile = new File(m_BatchOutput.getCurrent() + File.separator + oldID + "." + generator.getExtension());
-	    batchLog("Generating: " + outfile, false);
-	    batchLog("Using: " + test, false);
-	    msg     = generator.generate(test, outfile);
-	    if (msg != null) {
-	      error = "Failed to generate output for ID: " + oldID;
-	      batchLog(error, true);
-	    }
-	  }
-	  test.clear();
-	  oldID = id;
-	}
+	id         = rec.get(colID);
 	measure    = rec.get(colMeasure);
 	score      = Double.parseDouble(rec.get(colScore));
 	percentile = Double.parseDouble(rec.get(colPercentile));
-	test.put(measure, new ArrayList<>(Arrays.asList(new Double[]{score, percentile})));
-      }
-      if (!test.isEmpty()) {
-	outfile = new File(m_BatchOutput.getCurrent() + File.separator + oldID + "." + generator.getExtension());
-	batchLog("Generating: " + outfile, false);
-	batchLog("Using: " + test, false);
-	msg     = generator.generate(test, outfile);
-	if (msg != null) {
-	  error = "Failed to generate output for ID: " + oldID;
-	  batchLog(error, true);
-	}
+	grouper.add(id, measure, score, percentile);
       }
+      grouper.finish();
     }
     catch (Exception e) {
       batchLog("Failed to generate output!", e);
     }
 
+    try {
+      renderer.finish();
+    }
+    catch (Exception e) {
+      batchLog("Interrupted while waiting for outputs!", e);
+    }
+    msg = sink.close();
+    if (msg != null)
+      batchLog(msg, true);
+
     m_BatchGenerate.setEnabled(true);
   }
 
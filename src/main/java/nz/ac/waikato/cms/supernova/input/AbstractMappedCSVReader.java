@@ -0,0 +1,559 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * AbstractMappedCSVReader.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Ancestor for fast CSV readers. The file gets memory-mapped and split into
+ * line-aligned byte ranges, which get parsed in parallel. Only the columns
+ * returned by {@link #getColumns()} get extracted from a line, the derived
+ * classes parse them straight from the bytes (numbers without creating
+ * strings) and hand them on in blocks.
+ * <br>
+ * Quoted fields are supported, but not line breaks within fields.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ * @param <B> the type of block for collecting parsed lines
+ */
+public abstract class AbstractMappedCSVReader<B> {
+
+  /** the maximum size of a byte range to map. */
+  public static final int MAX_RANGE = 256 * 1024 * 1024;
+
+  /** the number of lines to hand on at once. */
+  public static final int BLOCK_SIZE = 4096;
+
+  /** the exactly representable powers of ten. */
+  protected static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  /** the measures as bytes, to avoid creating strings. */
+  protected static final byte[][] MEASURE_BYTES;
+  static {
+    MEASURE_BYTES = new byte[AbstractOutputGenerator.MEASURES.length][];
+    for (int i = 0; i < MEASURE_BYTES.length; i++)
+      MEASURE_BYTES[i] = AbstractOutputGenerator.MEASURES[i].getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the file to read. */
+  protected File m_File;
+
+  /** whether the file has a header row. */
+  protected boolean m_Header;
+
+  /** the number of threads for parsing. */
+  protected int m_NumThreads;
+
+  /** the number of lines read. */
+  protected AtomicLong m_NumRecords;
+
+  /** the number of lines skipped (too few columns). */
+  protected AtomicLong m_NumSkipped;
+
+  /** whether parsing failed. */
+  protected volatile boolean m_Failed;
+
+  /**
+   * Initializes the reader.
+   *
+   * @param file	the file to read
+   */
+  public AbstractMappedCSVReader(File file) {
+    m_Logger     = Logger.getLogger(getClass().getName());
+    m_File       = file;
+    m_Header     = true;
+    m_NumThreads = ThreadHelper.getNumCores();
+    m_NumRecords = new AtomicLong();
+    m_NumSkipped = new AtomicLong();
+    m_Failed     = false;
+  }
+
+  /**
+   * Sets whether the file has a header row (gets skipped).
+   *
+   * @param value	true if header present
+   */
+  public void setHeader(boolean value) {
+    m_Header = value;
+  }
+
+  /**
+   * Returns whether the file has a header row (gets skipped).
+   *
+   * @return		true if header present
+   */
+  public boolean getHeader() {
+    return m_Header;
+  }
+
+  /**
+   * Sets the number of threads for parsing.
+   *
+   * @param value	the number of threads, 0 for the number of cores
+   */
+  public void setNumThreads(int value) {
+    if (value == 0)
+      m_NumThreads = ThreadHelper.getNumCores();
+    else if (value > 0)
+      m_NumThreads = value;
+  }
+
+  /**
+   * Returns the number of threads for parsing.
+   *
+   * @return		the number of threads
+   */
+  public int getNumThreads() {
+    return m_NumThreads;
+  }
+
+  /**
+   * Returns the number of lines read.
+   *
+   * @return		the number
+   */
+  public long getNumRecords() {
+    return m_NumRecords.get();
+  }
+
+  /**
+   * Returns the number of lines skipped, due to too few columns.
+   *
+   * @return		the number
+   */
+  public long getNumSkipped() {
+    return m_NumSkipped.get();
+  }
+
+  /**
+   * Locates the start of the line following the position.
+   *
+   * @param channel	the channel to read from
+   * @param pos		the position to start searching from
+   * @param size	the size of the file
+   * @return		the start of the next line, size if none
+   * @throws IOException	if reading fails
+   */
+  protected long nextLine(FileChannel channel, long pos, long size) throws IOException {
+    ByteBuffer	buffer;
+    int		read;
+    int		i;
+
+    buffer = ByteBuffer.allocate(8192);
+    while (pos < size) {
+      buffer.clear();
+      read = channel.read(buffer, pos);
+      if (read <= 0)
+	break;
+      for (i = 0; i < read; i++) {
+	if (buffer.get(i) == '\n')
+	  return pos + i + 1;
+      }
+      pos += read;
+    }
+
+    return size;
+  }
+
+  /**
+   * Splits the file into line-aligned byte ranges.
+   *
+   * @param channel	the channel to read from
+   * @param size	the size of the file
+   * @return		the boundaries of the ranges (first: start, last: end)
+   * @throws IOException	if reading fails
+   */
+  protected List<Long> split(FileChannel channel, long size) throws IOException {
+    List<Long>	result;
+    long	start;
+    long	rangeSize;
+    long	pos;
+
+    result = new ArrayList<>();
+    start  = m_Header ? nextLine(channel, 0, size) : 0;
+    result.add(start);
+    // several ranges per thread for balancing the load
+    rangeSize = Math.max(1, (size - start) / (m_NumThreads * 4L));
+    rangeSize = Math.min(rangeSize, MAX_RANGE / 2);
+    pos       = start;
+    while (pos < size) {
+      pos = nextLine(channel, pos + rangeSize - 1, size);
+      result.add(pos);
+    }
+
+    return result;
+  }
+
+  /**
+   * Creates a string from the bytes.
+   *
+   * @param buffer	the buffer to read from
+   * @param start	the start of the bytes
+   * @param end		the end of the bytes (excluded)
+   * @param quoted	whether the field was quoted
+   * @param scratch	the scratch array to use
+   * @return		the string
+   */
+  protected static String toString(ByteBuffer buffer, int start, int end, boolean quoted, byte[] scratch) {
+    String	result;
+    int		i;
+
+    for (i = start; i < end; i++)
+      scratch[i - start] = buffer.get(i);
+    result = new String(scratch, 0, end - start, StandardCharsets.UTF_8);
+    if (quoted && (result.indexOf('"') > -1))
+      result = result.replace("\"\"", "\"");
+
+    return result;
+  }
+
+  /**
+   * Returns the measure, avoiding to create new strings for known measures.
+   *
+   * @param buffer	the buffer to read from
+   * @param start	the start of the bytes
+   * @param end		the end of the bytes (excluded)
+   * @param quoted	whether the field was quoted
+   * @param scratch	the scratch array to use
+   * @return		the measure
+   */
+  protected static String toMeasure(ByteBuffer buffer, int start, int end, boolean quoted, byte[] scratch) {
+    int		i;
+    int		n;
+    boolean	match;
+
+    for (i = 0; i < MEASURE_BYTES.length; i++) {
+      if (MEASURE_BYTES[i].length != end - start)
+	continue;
+      match = true;
+      for (n = 0; n < MEASURE_BYTES[i].length; n++) {
+	if (MEASURE_BYTES[i][n] != buffer.get(start + n)) {
+	  match = false;
+	  break;
+	}
+      }
+      if (match)
+	return AbstractOutputGenerator.MEASURES[i];
+    }
+
+    return toString(buffer, start, end, quoted, scratch);
+  }
+
+  /**
+   * Parses the number from the bytes. Plain decimal numbers with up to 15
+   * digits get calculated directly (exact, as both mantissa and the power
+   * of ten are representable), anything else gets parsed via
+   * {@link Double#parseDouble(String)}.
+   *
+   * @param buffer	the buffer to read from
+   * @param start	the start of the bytes
+   * @param end		the end of the bytes (excluded)
+   * @param scratch	the scratch array to use
+   * @return		the number
+   * @throws NumberFormatException	if not a number
+   */
+  protected static double toDouble(ByteBuffer buffer, int start, int end, byte[] scratch) {
+    int		i;
+    byte	b;
+    boolean	negative;
+    boolean	dot;
+    long	mantissa;
+    int		digits;
+    int		decimals;
+    double	result;
+
+    i        = start;
+    negative = false;
+    dot      = false;
+    mantissa = 0;
+    digits   = 0;
+    decimals = 0;
+    if (i < end) {
+      b = buffer.get(i);
+      if ((b == '-') || (b == '+')) {
+	negative = (b == '-');
+	i++;
+      }
+    }
+    for (; i < end; i++) {
+      b = buffer.get(i);
+      if ((b >= '0') && (b <= '9')) {
+	mantissa = mantissa * 10 + (b - '0');
+	digits++;
+	if (dot)
+	  decimals++;
+	if (digits > 15)
+	  break;
+      }
+      else if ((b == '.') && !dot) {
+	dot = true;
+      }
+      else {
+	break;
+      }
+    }
+
+    if ((i < end) || (digits == 0))
+      return Double.parseDouble(toString(buffer, start, end, false, scratch));
+
+    result = mantissa / POWERS_OF_TEN[decimals];
+    return negative ? -result : result;
+  }
+
+  /**
+   * Gets called before splitting the file, e.g., for inspecting the header.
+   *
+   * @param channel	the channel to read from
+   * @param size	the size of the file
+   * @return		null if successful, otherwise error message
+   * @throws IOException	if reading fails
+   */
+  protected String prepare(FileChannel channel, long size) throws IOException {
+    return null;
+  }
+
+  /**
+   * Returns the 0-based columns to extract from each line.
+   *
+   * @return		the columns
+   */
+  protected abstract int[] getColumns();
+
+  /**
+   * Creates a new block for collecting parsed lines.
+   *
+   * @return		the block
+   */
+  protected abstract B newBlock();
+
+  /**
+   * Parses the extracted columns of a line and adds them to the block.
+   * Hands on the block when full.
+   *
+   * @param block	the block to add to
+   * @param buffer	the buffer to read from
+   * @param starts	the starts of the columns
+   * @param ends	the ends of the columns (excluded)
+   * @param quoted	whether the columns were quoted
+   * @param scratch	the scratch array to use (large enough for the line)
+   * @throws IOException	if handing on fails
+   * @throws NumberFormatException	if a number cannot be parsed
+   */
+  protected abstract void add(B block, ByteBuffer buffer, int[] starts, int[] ends, boolean[] quoted, byte[] scratch) throws IOException;
+
+  /**
+   * Hands on the lines collected in the block and empties it.
+   *
+   * @param block	the block to hand on
+   * @throws IOException	if handing on fails
+   */
+  protected abstract void flush(B block) throws IOException;
+
+  /**
+   * Parses the byte range.
+   *
+   * @param channel	the channel to map
+   * @param start	the start of the range
+   * @param end		the end of the range (excluded)
+   * @throws IOException	if mapping, parsing or handing on fails
+   */
+  protected void parse(FileChannel channel, long start, long end) throws IOException {
+    MappedByteBuffer	buffer;
+    B			block;
+    byte[]		scratch;
+    int[]		cols;
+    int[]		starts;
+    int[]		ends;
+    boolean[]		quoted;
+    int			maxCol;
+    int			limit;
+    int			pos;
+    int			lineStart;
+    int			col;
+    int			fieldStart;
+    int			fieldEnd;
+    boolean		quote;
+    byte		b;
+    int			found;
+    int			i;
+
+    buffer  = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    limit   = buffer.limit();
+    block   = newBlock();
+    scratch = new byte[1024];
+    cols    = getColumns();
+    starts  = new int[cols.length];
+    ends    = new int[cols.length];
+    quoted  = new boolean[cols.length];
+    maxCol  = 0;
+    for (i = 0; i < cols.length; i++)
+      maxCol = Math.max(maxCol, cols[i]);
+    pos     = 0;
+
+    while ((pos < limit) && !m_Failed) {
+      lineStart = pos;
+      col       = 0;
+      found     = 0;
+      while (true) {
+	quote = (pos < limit) && (buffer.get(pos) == '"');
+	if (quote) {
+	  fieldStart = ++pos;
+	  while (pos < limit) {
+	    if (buffer.get(pos) == '"') {
+	      if ((pos + 1 < limit) && (buffer.get(pos + 1) == '"'))
+		pos++;
+	      else
+		break;
+	    }
+	    pos++;
+	  }
+	  fieldEnd = pos;
+	  while ((pos < limit) && ((b = buffer.get(pos)) != ',') && (b != '\n'))
+	    pos++;
+	}
+	else {
+	  fieldStart = pos;
+	  while ((pos < limit) && ((b = buffer.get(pos)) != ',') && (b != '\n'))
+	    pos++;
+	  fieldEnd = pos;
+	  if ((fieldEnd > fieldStart) && (buffer.get(fieldEnd - 1) == '\r') && ((pos >= limit) || (buffer.get(pos) == '\n')))
+	    fieldEnd--;
+	}
+	for (i = 0; i < cols.length; i++) {
+	  if (cols[i] == col) {
+	    starts[i] = fieldStart;
+	    ends[i]   = fieldEnd;
+	    quoted[i] = quote;
+	    found++;
+	  }
+	}
+	col++;
+	if ((pos >= limit) || (buffer.get(pos) == '\n') || (col > maxCol)) {
+	  while ((pos < limit) && (buffer.get(pos) != '\n'))
+	    pos++;
+	  pos++;
+	  break;
+	}
+	pos++;
+      }
+
+      if (found < cols.length) {
+	m_NumSkipped.incrementAndGet();
+	continue;
+      }
+
+      if (scratch.length < pos - lineStart)
+	scratch = new byte[pos - lineStart];
+      try {
+	add(block, buffer, starts, ends, quoted, scratch);
+      }
+      catch (NumberFormatException e) {
+	throw new IOException("Failed to parse line at byte offset " + (start + lineStart) + ": " + e.getMessage());
+      }
+      m_NumRecords.incrementAndGet();
+    }
+
+    flush(block);
+  }
+
+  /**
+   * Reads the file in parallel.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  protected String doRead() {
+    String		result;
+    ExecutorService	executor;
+    List<Future<?>>	futures;
+    List<Long>		ranges;
+    long		size;
+    int			i;
+
+    result = null;
+    m_NumRecords.set(0);
+    m_NumSkipped.set(0);
+    m_Failed = false;
+
+    try (FileChannel channel = FileChannel.open(m_File.toPath(), StandardOpenOption.READ)) {
+      size   = channel.size();
+      result = prepare(channel, size);
+      if (result != null)
+	return result;
+      ranges   = split(channel, size);
+      executor = Executors.newFixedThreadPool(m_NumThreads, ThreadHelper.newPlatformThreadFactory("csv"));
+      futures  = new ArrayList<>();
+      for (i = 0; i < ranges.size() - 1; i++) {
+	final long start = ranges.get(i);
+	final long end   = ranges.get(i + 1);
+	futures.add(executor.submit(() -> {
+	  try {
+	    parse(channel, start, end);
+	  }
+	  catch (IOException | RuntimeException e) {
+	    m_Failed = true;
+	    throw e;
+	  }
+	  return null;
+	}));
+      }
+      executor.shutdown();
+      for (Future<?> future: futures) {
+	try {
+	  future.get();
+	}
+	catch (ExecutionException e) {
+	  if (result == null)
+	    result = "Failed to read '" + m_File + "': " + e.getCause().getMessage();
+	}
+      }
+    }
+    catch (Exception e) {
+      result = "Failed to read '" + m_File + "': " + e;
+    }
+
+    m_Logger.info("Read " + m_NumRecords.get() + " lines from '" + m_File + "', skipped " + m_NumSkipped.get() + " lines");
+
+    return result;
+  }
+}
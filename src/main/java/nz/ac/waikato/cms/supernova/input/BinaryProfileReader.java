@@ -0,0 +1,193 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * BinaryProfileReader.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Reads profiles from a binary profile file, as generated by
+ * {@link BinaryProfileWriter}. The file consists of:
+ * <ul>
+ *   <li>header: magic (int), version (int), number of profiles (long),
+ *   offset of the data (long), offset of the ID dictionary (long)</li>
+ *   <li>data: per profile 10 floats, score and percentile for each of the
+ *   {@link AbstractOutputGenerator#MEASURES} (in that order)</li>
+ *   <li>ID dictionary: per profile the length (int) and UTF-8 bytes of the ID</li>
+ * </ul>
+ * The fixed-width data gets memory-mapped and scanned sequentially.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class BinaryProfileReader
+  implements ProfileSource {
+
+  /** the magic number ("SNPF"). */
+  public static final int MAGIC = 0x534e5046;
+
+  /** the version of the format. */
+  public static final int VERSION = 1;
+
+  /** the size of the header in bytes. */
+  public static final int HEADER_SIZE = 32;
+
+  /** the number of floats per profile. */
+  public static final int NUM_VALUES = AbstractOutputGenerator.MEASURES.length * 2;
+
+  /** the size of a profile in bytes. */
+  public static final int RECORD_SIZE = NUM_VALUES * 4;
+
+  /** the maximum number of profiles to map at once. */
+  public static final int MAX_WINDOW = 1 << 24;
+
+  /** the powers of ten for restoring decimals. */
+  protected static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6};
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the file to read. */
+  protected File m_File;
+
+  /** the number of profiles read. */
+  protected long m_NumProfiles;
+
+  /**
+   * Initializes the reader.
+   *
+   * @param file	the file to read
+   */
+  public BinaryProfileReader(File file) {
+    m_Logger      = Logger.getLogger(getClass().getName());
+    m_File        = file;
+    m_NumProfiles = 0;
+  }
+
+  /**
+   * Returns the number of profiles read.
+   *
+   * @return		the number
+   */
+  public long getNumProfiles() {
+    return m_NumProfiles;
+  }
+
+  /**
+   * Restores the decimal number that was stored as float, i.e., the number
+   * with the fewest decimals (up to 6) that results in the same float.
+   * For example, 0.1f gets turned into 0.1 rather than 0.10000000149.
+   * Numbers with more digits than a float can hold come back as is.
+   *
+   * @param value	the stored value
+   * @return		the restored value
+   */
+  public static double restore(float value) {
+    double	result;
+    int		i;
+
+    for (i = 0; i < POWERS_OF_TEN.length; i++) {
+      result = Math.round(value * POWERS_OF_TEN[i]) / POWERS_OF_TEN[i];
+      if ((float) result == value)
+	return result;
+    }
+
+    return value;
+  }
+
+  /**
+   * Reads the profiles and hands them to the handler.
+   *
+   * @param handler	the handler for the profiles
+   * @return		null if successful, otherwise error message
+   */
+  public String read(ProfileHandler handler) {
+    ByteBuffer			header;
+    FloatBuffer			data;
+    DataInputStream		ids;
+    long			count;
+    long			dataOffset;
+    long			dictOffset;
+    long			first;
+    int				window;
+    int				i;
+    int				n;
+    byte[]			bytes;
+    String			id;
+    Map<String,List<Double>>	test;
+
+    m_NumProfiles = 0;
+    try (FileChannel channel = FileChannel.open(m_File.toPath(), StandardOpenOption.READ)) {
+      header = ByteBuffer.allocate(HEADER_SIZE);
+      channel.read(header, 0);
+      header.flip();
+      if ((header.remaining() < HEADER_SIZE) || (header.getInt() != MAGIC))
+	return "Not a binary profile file: " + m_File;
+      if (header.getInt() != VERSION)
+	return "Unsupported version of binary profile file: " + m_File;
+      count      = header.getLong();
+      dataOffset = header.getLong();
+      dictOffset = header.getLong();
+
+      ids   = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(dictOffset)), 64 * 1024));
+      bytes = new byte[256];
+      for (first = 0; first < count; first += window) {
+	window = (int) Math.min(MAX_WINDOW, count - first);
+	data   = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first * RECORD_SIZE, (long) window * RECORD_SIZE).asFloatBuffer();
+	for (i = 0; i < window; i++) {
+	  n = ids.readInt();
+	  if (bytes.length < n)
+	    bytes = new byte[n];
+	  ids.readFully(bytes, 0, n);
+	  id   = new String(bytes, 0, n, StandardCharsets.UTF_8);
+	  test = new HashMap<>();
+	  for (String measure: AbstractOutputGenerator.MEASURES)
+	    test.put(measure, new ArrayList<>(Arrays.asList(restore(data.get()), restore(data.get()))));
+	  handler.handleProfile(id, test);
+	  m_NumProfiles++;
+	}
+      }
+    }
+    catch (Exception e) {
+      return "Failed to read binary profile file '" + m_File + "': " + e;
+    }
+
+    m_Logger.info("Read " + m_NumProfiles + " profiles from '" + m_File + "'");
+
+    return null;
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * BinaryProfileWriter.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Writes complete profiles to a binary profile file (see
+ * {@link BinaryProfileReader} for the format). The IDs get collected in a
+ * temporary file and appended when closing.
+ * <br>
+ * Scores and percentiles get stored as floats. Values that cannot be
+ * restored exactly (more digits than a float can hold) get counted.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class BinaryProfileWriter
+  implements ProfileHandler, Closeable {
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the file to write to. */
+  protected File m_File;
+
+  /** the temporary file for the IDs. */
+  protected File m_IDFile;
+
+  /** the channel for the file. */
+  protected FileChannel m_Channel;
+
+  /** the buffer for the data. */
+  protected ByteBuffer m_Buffer;
+
+  /** the stream for the IDs. */
+  protected DataOutputStream m_IDs;
+
+  /** the number of profiles written. */
+  protected long m_NumProfiles;
+
+  /** the number of values that cannot be restored exactly. */
+  protected long m_NumLossy;
+
+  /**
+   * Creates the file.
+   *
+   * @param file	the file to write to
+   * @throws IOException	if creating fails
+   */
+  public BinaryProfileWriter(File file) throws IOException {
+    m_Logger      = Logger.getLogger(getClass().getName());
+    m_File        = file;
+    m_IDFile      = File.createTempFile("supernova-ids-", ".bin", file.getAbsoluteFile().getParentFile());
+    m_IDFile.deleteOnExit();
+    m_IDs         = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_IDFile), 64 * 1024));
+    m_Channel     = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    m_Channel.position(BinaryProfileReader.HEADER_SIZE);
+    m_Buffer      = ByteBuffer.allocate(BinaryProfileReader.RECORD_SIZE * 4096);
+    m_NumProfiles = 0;
+    m_NumLossy    = 0;
+  }
+
+  /**
+   * Returns the number of profiles written.
+   *
+   * @return		the number
+   */
+  public long getNumProfiles() {
+    return m_NumProfiles;
+  }
+
+  /**
+   * Returns the number of values that cannot be restored exactly.
+   *
+   * @return		the number
+   */
+  public long getNumLossy() {
+    return m_NumLossy;
+  }
+
+  /**
+   * Stores the value as float.
+   *
+   * @param value	the value to store
+   */
+  protected void put(double value) {
+    m_Buffer.putFloat((float) value);
+    if (BinaryProfileReader.restore((float) value) != value)
+      m_NumLossy++;
+  }
+
+  /**
+   * Writes the buffered data to the file.
+   *
+   * @throws IOException	if writing fails
+   */
+  protected void flushBuffer() throws IOException {
+    m_Buffer.flip();
+    while (m_Buffer.hasRemaining())
+      m_Channel.write(m_Buffer);
+    m_Buffer.clear();
+  }
+
+  /**
+   * Writes the profile. Must contain all the measures.
+   *
+   * @param id		the ID of the profile
+   * @param test	the test results (measure - [score, percentile])
+   * @throws IOException	if writing fails or measures are missing
+   */
+  @Override
+  public synchronized void handleProfile(String id, Map<String,List<Double>> test) throws IOException {
+    byte[]	bytes;
+
+    for (String measure: AbstractOutputGenerator.MEASURES) {
+      if (!test.containsKey(measure))
+	throw new IOException("Measure '" + measure + "' missing for ID: " + id);
+    }
+
+    if (m_Buffer.remaining() < BinaryProfileReader.RECORD_SIZE)
+      flushBuffer();
+    for (String measure: AbstractOutputGenerator.MEASURES) {
+      put(test.get(measure).get(0));
+      put(test.get(measure).get(1));
+    }
+    bytes = id.getBytes(StandardCharsets.UTF_8);
+    m_IDs.writeInt(bytes.length);
+    m_IDs.write(bytes);
+    m_NumProfiles++;
+  }
+
+  /**
+   * Appends the IDs, writes the header and closes the file.
+   *
+   * @throws IOException	if writing fails
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    ByteBuffer	header;
+    long	dictOffset;
+    long	pos;
+    long	size;
+
+    if (m_Channel == null)
+      return;
+
+    try {
+      flushBuffer();
+      m_IDs.close();
+      dictOffset = m_Channel.position();
+      try (FileChannel ids = FileChannel.open(m_IDFile.toPath(), StandardOpenOption.READ)) {
+	size = ids.size();
+	pos  = 0;
+	while (pos < size)
+	  pos += m_Channel.transferFrom(ids, dictOffset + pos, size - pos);
+      }
+
+      header = ByteBuffer.allocate(BinaryProfileReader.HEADER_SIZE);
+      header.putInt(BinaryProfileReader.MAGIC);
+      header.putInt(BinaryProfileReader.VERSION);
+      header.putLong(m_NumProfiles);
+      header.putLong(BinaryProfileReader.HEADER_SIZE);
+      header.putLong(dictOffset);
+      header.flip();
+      while (header.hasRemaining())
+	m_Channel.write(header, header.position());
+    }
+    finally {
+      m_Channel.close();
+      m_Channel = null;
+      m_IDFile.delete();
+    }
+
+    m_Logger.info("Wrote " + m_NumProfiles + " profiles to '" + m_File + "'");
+    if (m_NumLossy > 0)
+      m_Logger.warning(m_NumLossy + " values cannot be restored exactly from float: " + m_File);
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * InputFiles.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Expands files, directories and glob patterns into a sorted list of
+ * input files. The position of a file in the list is its rank, which
+ * determines which file wins in case of ID collisions (lowest rank).
+ * <br>
+ * Glob patterns (see {@link FileSystems#getPathMatcher(String)}) get
+ * matched against the files below the longest leading path without glob
+ * characters, e.g., <code>data/2017-*&#47;*.csv</code> or
+ * <code>data/**.csv</code>. Directories get listed (not recursively)
+ * using the supplied file name pattern. "-" represents stdin.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class InputFiles {
+
+  /** the path that represents stdin. */
+  public static final String STDIN = "-";
+
+  /** the characters that make a path a glob pattern. */
+  public static final String GLOB_CHARS = "*?[{";
+
+  /**
+   * Checks whether the path contains glob characters.
+   *
+   * @param path	the path to check
+   * @return		true if a glob pattern
+   */
+  public static boolean isGlob(String path) {
+    int		i;
+
+    for (i = 0; i < GLOB_CHARS.length(); i++) {
+      if (path.indexOf(GLOB_CHARS.charAt(i)) > -1)
+	return true;
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether the file represents stdin.
+   *
+   * @param file	the file to check
+   * @return		true if stdin
+   */
+  public static boolean isStdin(File file) {
+    return file.getPath().equals(STDIN);
+  }
+
+  /**
+   * Returns the directory to start the search for the glob pattern in,
+   * i.e., the longest leading path without glob characters.
+   *
+   * @param glob	the glob pattern
+   * @return		the directory, null if the pattern starts with glob characters
+   */
+  protected static Path getBaseDir(String glob) {
+    Path	result;
+    Path	path;
+    int		i;
+
+    path   = Paths.get(glob);
+    result = path.getRoot();
+    for (i = 0; i < path.getNameCount(); i++) {
+      if (isGlob(path.getName(i).toString()))
+	break;
+      result = (result == null) ? path.getName(i) : result.resolve(path.getName(i));
+    }
+
+    return result;
+  }
+
+  /**
+   * Adds the files matching the glob pattern.
+   *
+   * @param glob	the glob pattern
+   * @param files	for adding the files to
+   * @throws IOException	if searching fails
+   */
+  protected static void addGlob(String glob, TreeSet<File> files) throws IOException {
+    Path		base;
+    Path		start;
+    PathMatcher		matcher;
+    Stream<Path>	paths;
+
+    base    = getBaseDir(glob);
+    start   = (base == null) ? Paths.get(".") : base;
+    matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    if (!Files.isDirectory(start))
+      return;
+    paths = Files.walk(start);
+    try {
+      // without base directory, the pattern is relative to the current directory
+      paths
+	.filter((Path p) -> Files.isRegularFile(p))
+	.filter((Path p) -> matcher.matches((base == null) ? start.relativize(p) : p))
+	.forEach((Path p) -> files.add(((base == null) ? start.relativize(p) : p).toFile()));
+    }
+    finally {
+      paths.close();
+    }
+  }
+
+  /**
+   * Adds the files in the directory matching the file name pattern.
+   *
+   * @param dir		the directory to list
+   * @param pattern	the glob pattern for the file names
+   * @param files	for adding the files to
+   * @throws IOException	if listing fails
+   */
+  protected static void addDir(File dir, String pattern, TreeSet<File> files) throws IOException {
+    DirectoryStream<Path>	stream;
+
+    stream = Files.newDirectoryStream(dir.toPath(), pattern);
+    try {
+      for (Path p: stream) {
+	if (Files.isRegularFile(p))
+	  files.add(p.toFile());
+      }
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Expands the files, directories and glob patterns into a sorted list
+   * of files without duplicates.
+   *
+   * @param paths	the files, directories and glob patterns
+   * @param pattern	the glob pattern for the file names when listing directories
+   * @return		the files
+   * @throws IOException	if a file or directory does not exist, or a glob pattern
+   * 			does not match any files
+   */
+  public static List<File> expand(List<String> paths, String pattern) throws IOException {
+    TreeSet<File>	result;
+    File		file;
+    int			size;
+
+    result = new TreeSet<>();
+    for (String path: paths) {
+      size = result.size();
+      if (path.equals(STDIN)) {
+	result.add(new File(STDIN));
+	continue;
+      }
+      if (isGlob(path)) {
+	addGlob(path, result);
+	if (result.size() == size)
+	  throw new FileNotFoundException("No files matching: " + path);
+	continue;
+      }
+      file = new File(path);
+      if (file.isDirectory())
+	addDir(file, pattern, result);
+      else if (file.exists())
+	result.add(file);
+      else
+	throw new FileNotFoundException("File not found: " + path);
+    }
+
+    return new ArrayList<>(result);
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * InputFormat.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+/**
+ * The supported formats for the profiles.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public enum InputFormat {
+  /** CSV with one measure per row (ID, measure, score, percentile). */
+  CSV,
+  /** CSV with one row per ID (ID, score/percentile columns per measure), see {@link WideCSVReader}. */
+  WIDE,
+  /** binary profile file, see {@link BinaryProfileReader}. */
+  BINARY,
+  /** one JSON object per line and ID, see {@link NDJSONReader}. */
+  NDJSON
+}
@@ -0,0 +1,204 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * InputStatistics.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and error accounting for a single input file.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class InputStatistics {
+
+  /** the input file. */
+  protected File m_File;
+
+  /** the rank of the input (lower wins ID collisions). */
+  protected int m_Rank;
+
+  /** the number of complete profiles read. */
+  protected AtomicLong m_NumProfiles;
+
+  /** the number of incomplete profiles. */
+  protected AtomicLong m_NumIncomplete;
+
+  /** the number of profiles lost to ID collisions with inputs of lower rank. */
+  protected long m_NumLost;
+
+  /** the error message, null if none. */
+  protected String m_Error;
+
+  /** the time it took to read the input (msec), -1 if not finished. */
+  protected long m_Duration;
+
+  /**
+   * Initializes the statistics.
+   *
+   * @param file	the input file
+   * @param rank	the rank of the input
+   */
+  public InputStatistics(File file, int rank) {
+    m_File          = file;
+    m_Rank          = rank;
+    m_NumProfiles   = new AtomicLong();
+    m_NumIncomplete = new AtomicLong();
+    m_NumLost       = 0;
+    m_Error         = null;
+    m_Duration      = -1;
+  }
+
+  /**
+   * Returns the input file.
+   *
+   * @return		the file
+   */
+  public File getFile() {
+    return m_File;
+  }
+
+  /**
+   * Returns the rank of the input.
+   *
+   * @return		the rank
+   */
+  public int getRank() {
+    return m_Rank;
+  }
+
+  /**
+   * Increments the number of complete profiles read.
+   */
+  public void incProfiles() {
+    m_NumProfiles.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of complete profiles read.
+   *
+   * @return		the number
+   */
+  public long getNumProfiles() {
+    return m_NumProfiles.get();
+  }
+
+  /**
+   * Increments the number of incomplete profiles.
+   */
+  public void incIncomplete() {
+    m_NumIncomplete.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of incomplete profiles.
+   *
+   * @return		the number
+   */
+  public long getNumIncomplete() {
+    return m_NumIncomplete.get();
+  }
+
+  /**
+   * Sets the number of profiles lost to ID collisions with inputs of lower rank.
+   *
+   * @param value	the number
+   */
+  public void setNumLost(long value) {
+    m_NumLost = value;
+  }
+
+  /**
+   * Returns the number of profiles lost to ID collisions with inputs of lower rank.
+   *
+   * @return		the number
+   */
+  public long getNumLost() {
+    return m_NumLost;
+  }
+
+  /**
+   * Sets the error that occurred while reading.
+   *
+   * @param value	the error, null if none
+   */
+  public void setError(String value) {
+    m_Error = value;
+  }
+
+  /**
+   * Returns the error that occurred while reading.
+   *
+   * @return		the error, null if none
+   */
+  public String getError() {
+    return m_Error;
+  }
+
+  /**
+   * Returns whether the input was read without errors.
+   *
+   * @return		true if no errors
+   */
+  public boolean isSuccess() {
+    return (m_Error == null);
+  }
+
+  /**
+   * Sets the time it took to read the input.
+   *
+   * @param value	the duration (msec)
+   */
+  public void setDuration(long value) {
+    m_Duration = value;
+  }
+
+  /**
+   * Returns the time it took to read the input.
+   *
+   * @return		the duration (msec), -1 if not finished
+   */
+  public long getDuration() {
+    return m_Duration;
+  }
+
+  /**
+   * Returns a short description of the statistics.
+   *
+   * @return		the description
+   */
+  @Override
+  public String toString() {
+    StringBuilder	result;
+
+    result = new StringBuilder();
+    result.append("#").append(m_Rank).append(" ").append(m_File);
+    result.append(": profiles=").append(getNumProfiles());
+    result.append(", incomplete=").append(getNumIncomplete());
+    result.append(", lost=").append(getNumLost());
+    result.append(", time=").append(getDuration()).append("ms");
+    if (m_Error != null)
+      result.append(", error=").append(m_Error);
+
+    return result.toString();
+  }
+}
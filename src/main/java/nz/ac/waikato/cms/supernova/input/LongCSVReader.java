@@ -0,0 +1,295 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * LongCSVReader.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.function.Predicate;
+
+/**
+ * Reads profiles from CSV files in long format, i.e., one row per ID and
+ * measure with the columns ID, measure, score and percentile (with header
+ * row). The rows get grouped into profiles via a {@link ProfileGrouper},
+ * so the rows of an ID do not have to be contiguous. Files can be parsed
+ * memory-mapped (see {@link MappedCSVReader}), readers (e.g., stdin) get
+ * parsed sequentially.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class LongCSVReader
+  implements ProfileSource {
+
+  /** the file to read, null if reading from reader. */
+  protected File m_File;
+
+  /** the reader to read from, null if reading from file. */
+  protected Reader m_Reader;
+
+  /** the 0-based columns of ID, measure, score and percentile. */
+  protected int[] m_Columns;
+
+  /** whether to parse the file memory-mapped. */
+  protected boolean m_Mapped;
+
+  /** the number of threads for parsing memory-mapped. */
+  protected int m_NumThreads;
+
+  /** the maximum number of IDs to keep in memory before spilling to disk. */
+  protected int m_MaxProfiles;
+
+  /** the directory for spilling. */
+  protected File m_TempDir;
+
+  /** the handler for incomplete profiles, can be null. */
+  protected ProfileHandler m_IncompleteHandler;
+
+  /** the filter for the IDs, can be null. */
+  protected Predicate<String> m_IDFilter;
+
+  /**
+   * Initializes the reader.
+   *
+   * @param file	the file to read
+   */
+  public LongCSVReader(File file) {
+    this(file, null);
+  }
+
+  /**
+   * Initializes the reader.
+   *
+   * @param reader	the reader to read from (gets closed)
+   */
+  public LongCSVReader(Reader reader) {
+    this(null, reader);
+  }
+
+  /**
+   * Initializes the reader.
+   *
+   * @param file	the file to read, null if reading from reader
+   * @param reader	the reader to read from, null if reading from file
+   */
+  protected LongCSVReader(File file, Reader reader) {
+    super();
+
+    m_File              = file;
+    m_Reader            = reader;
+    m_Columns           = new int[]{0, 1, 2, 3};
+    m_Mapped            = false;
+    m_NumThreads        = 1;
+    m_MaxProfiles       = 100000;
+    m_TempDir           = new File(System.getProperty("java.io.tmpdir"));
+    m_IncompleteHandler = null;
+    m_IDFilter          = null;
+  }
+
+  /**
+   * Sets the 0-based columns to parse.
+   *
+   * @param id		the column of the ID
+   * @param measure	the column of the measure
+   * @param score	the column of the score
+   * @param percentile	the column of the percentile
+   */
+  public void setColumns(int id, int measure, int score, int percentile) {
+    m_Columns = new int[]{id, measure, score, percentile};
+  }
+
+  /**
+   * Sets whether to parse the file memory-mapped (files only).
+   *
+   * @param value	true if memory-mapped
+   */
+  public void setMapped(boolean value) {
+    m_Mapped = value;
+  }
+
+  /**
+   * Returns whether to parse the file memory-mapped.
+   *
+   * @return		true if memory-mapped
+   */
+  public boolean getMapped() {
+    return m_Mapped;
+  }
+
+  /**
+   * Sets the number of threads for parsing memory-mapped.
+   *
+   * @param value	the number of threads, 0 for the number of cores
+   */
+  public void setNumThreads(int value) {
+    m_NumThreads = value;
+  }
+
+  /**
+   * Returns the number of threads for parsing memory-mapped.
+   *
+   * @return		the number of threads
+   */
+  public int getNumThreads() {
+    return m_NumThreads;
+  }
+
+  /**
+   * Sets the maximum number of IDs to keep in memory before spilling to disk.
+   *
+   * @param value	the maximum
+   * @see		ProfileGrouper#setMaxProfiles(int)
+   */
+  public void setMaxProfiles(int value) {
+    m_MaxProfiles = value;
+  }
+
+  /**
+   * Returns the maximum number of IDs to keep in memory before spilling to disk.
+   *
+   * @return		the maximum
+   */
+  public int getMaxProfiles() {
+    return m_MaxProfiles;
+  }
+
+  /**
+   * Sets the directory for spilling.
+   *
+   * @param value	the directory
+   */
+  public void setTempDir(File value) {
+    m_TempDir = value;
+  }
+
+  /**
+   * Returns the directory for spilling.
+   *
+   * @return		the directory
+   */
+  public File getTempDir() {
+    return m_TempDir;
+  }
+
+  /**
+   * Sets the handler for incomplete profiles.
+   *
+   * @param value	the handler, null to ignore them
+   */
+  public void setIncompleteHandler(ProfileHandler value) {
+    m_IncompleteHandler = value;
+  }
+
+  /**
+   * Returns the handler for incomplete profiles.
+   *
+   * @return		the handler, null if ignored
+   */
+  public ProfileHandler getIncompleteHandler() {
+    return m_IncompleteHandler;
+  }
+
+  /**
+   * Sets the filter for the IDs. Rows of other IDs get dropped before
+   * grouping.
+   *
+   * @param value	the filter, null to accept all IDs
+   */
+  public void setIDFilter(Predicate<String> value) {
+    m_IDFilter = value;
+  }
+
+  /**
+   * Returns the filter for the IDs.
+   *
+   * @return		the filter, null if accepting all IDs
+   */
+  public Predicate<String> getIDFilter() {
+    return m_IDFilter;
+  }
+
+  /**
+   * Reads the rows, groups them and hands the profiles to the handler.
+   *
+   * @param handler	the handler for the profiles
+   * @return		null if successful, otherwise error message
+   */
+  public String read(ProfileHandler handler) {
+    ProfileGrouper	grouper;
+    RecordHandler	records;
+    MappedCSVReader	mapped;
+    CSVParser		parser;
+    String		msg;
+
+    if (m_Mapped && (m_File == null))
+      return "Memory-mapped parsing requires a file!";
+
+    grouper = new ProfileGrouper(handler);
+    grouper.setMaxProfiles(m_MaxProfiles);
+    grouper.setTempDir(m_TempDir);
+    grouper.setIncompleteHandler(m_IncompleteHandler);
+    records = (String id, String measure, double score, double percentile) -> {
+      if ((m_IDFilter == null) || m_IDFilter.test(id))
+	grouper.add(id, measure, score, percentile);
+    };
+
+    try {
+      if (m_Mapped) {
+	mapped = new MappedCSVReader(m_File);
+	mapped.setColumns(m_Columns[0], m_Columns[1], m_Columns[2], m_Columns[3]);
+	mapped.setNumThreads(m_NumThreads);
+	msg = mapped.read(records);
+	if (msg != null)
+	  return msg;
+      }
+      else {
+	parser = new CSVParser((m_File != null) ? new FileReader(m_File) : m_Reader, CSVFormat.EXCEL.withHeader());
+	try {
+	  for (CSVRecord rec: parser) {
+	    if (rec.size() < 4)
+	      continue;
+	    records.handleRecord(
+	      rec.get(m_Columns[0]),
+	      rec.get(m_Columns[1]),
+	      Double.parseDouble(rec.get(m_Columns[2])),
+	      Double.parseDouble(rec.get(m_Columns[3])));
+	  }
+	}
+	finally {
+	  parser.close();
+	}
+      }
+      grouper.finish();
+    }
+    catch (Exception e) {
+      return "Failed to read CSV: " + e;
+    }
+    finally {
+      grouper.cleanUp();
+    }
+
+    return null;
+  }
+}
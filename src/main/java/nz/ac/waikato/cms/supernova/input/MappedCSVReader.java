@@ -0,0 +1,162 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * MappedCSVReader.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fast reader for CSV files with records (ID, measure, score, percentile).
+ * Only the four configured columns get parsed.
+ * <br>
+ * The records get handed on in blocks and in no particular order, so the
+ * handler should be a {@link ProfileGrouper}. The handler gets called by
+ * one thread at a time (synchronized on the handler).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class MappedCSVReader
+  extends AbstractMappedCSVReader<MappedCSVReader.Block> {
+
+  /**
+   * Block of parsed records.
+   */
+  protected static class Block {
+
+    /** the IDs. */
+    public String[] ids = new String[BLOCK_SIZE];
+
+    /** the measures. */
+    public String[] measures = new String[BLOCK_SIZE];
+
+    /** the scores. */
+    public double[] scores = new double[BLOCK_SIZE];
+
+    /** the percentiles. */
+    public double[] percentiles = new double[BLOCK_SIZE];
+
+    /** the number of records. */
+    public int size;
+  }
+
+  /** the 0-based columns of ID, measure, score and percentile. */
+  protected int[] m_Columns;
+
+  /** the handler for the records. */
+  protected RecordHandler m_Handler;
+
+  /**
+   * Initializes the reader.
+   *
+   * @param file	the file to read
+   */
+  public MappedCSVReader(File file) {
+    super(file);
+
+    m_Columns = new int[]{0, 1, 2, 3};
+    m_Handler = null;
+  }
+
+  /**
+   * Sets the 0-based columns to parse.
+   *
+   * @param id		the column of the ID
+   * @param measure	the column of the measure
+   * @param score	the column of the score
+   * @param percentile	the column of the percentile
+   */
+  public void setColumns(int id, int measure, int score, int percentile) {
+    m_Columns = new int[]{id, measure, score, percentile};
+  }
+
+  /**
+   * Returns the 0-based columns to extract from each line.
+   *
+   * @return		the columns
+   */
+  @Override
+  protected int[] getColumns() {
+    return m_Columns;
+  }
+
+  /**
+   * Creates a new block for collecting parsed lines.
+   *
+   * @return		the block
+   */
+  @Override
+  protected Block newBlock() {
+    return new Block();
+  }
+
+  /**
+   * Parses the extracted columns of a line and adds them to the block.
+   * Hands on the block when full.
+   *
+   * @param block	the block to add to
+   * @param buffer	the buffer to read from
+   * @param starts	the starts of the columns
+   * @param ends	the ends of the columns (excluded)
+   * @param quoted	whether the columns were quoted
+   * @param scratch	the scratch array to use (large enough for the line)
+   * @throws IOException	if handing on fails
+   */
+  @Override
+  protected void add(Block block, ByteBuffer buffer, int[] starts, int[] ends, boolean[] quoted, byte[] scratch) throws IOException {
+    block.ids[block.size]         = toString(buffer, starts[0], ends[0], quoted[0], scratch);
+    block.measures[block.size]    = toMeasure(buffer, starts[1], ends[1], quoted[1], scratch);
+    block.scores[block.size]      = toDouble(buffer, starts[2], ends[2], scratch);
+    block.percentiles[block.size] = toDouble(buffer, starts[3], ends[3], scratch);
+    block.size++;
+    if (block.size == BLOCK_SIZE)
+      flush(block);
+  }
+
+  /**
+   * Hands the records to the handler.
+   *
+   * @param block	the records
+   * @throws IOException	if the handler fails
+   */
+  @Override
+  protected void flush(Block block) throws IOException {
+    int		i;
+
+    synchronized(m_Handler) {
+      for (i = 0; i < block.size; i++)
+	m_Handler.handleRecord(block.ids[i], block.measures[i], block.scores[i], block.percentiles[i]);
+    }
+    block.size = 0;
+  }
+
+  /**
+   * Reads the file and hands the records to the handler.
+   *
+   * @param handler	the handler for the records
+   * @return		null if successful, otherwise error message
+   */
+  public String read(RecordHandler handler) {
+    m_Handler = handler;
+    return doRead();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * NDJSONReader.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import nz.ac.waikato.cms.supernova.core.JsonHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Reads profiles in NDJSON format (newline-delimited JSON), i.e., one JSON
+ * object per line and profile, e.g.:
+ * <pre>
+ * {"id": "me", "openness_score": 4.3, "openness_percentile": 59, ...}
+ * </pre>
+ * The score/percentile of a measure can also be supplied as array, e.g.,
+ * <code>"openness": [4.3, 59]</code>. Each line gets handed on as soon as
+ * it has been read, making the reader suitable for streams (e.g., stdin).
+ * Invalid or incomplete lines get skipped.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class NDJSONReader
+  implements ProfileSource {
+
+  /** the default key of the ID. */
+  public static final String ID_KEY = "id";
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the reader to read from. */
+  protected Reader m_Reader;
+
+  /** the key of the ID. */
+  protected String m_IDKey;
+
+  /** the suffix of the scores. */
+  protected String m_ScoreSuffix;
+
+  /** the suffix of the percentiles. */
+  protected String m_PercentileSuffix;
+
+  /** the number of skipped lines. */
+  protected long m_NumSkipped;
+
+  /**
+   * Initializes the reader.
+   *
+   * @param reader	the reader to read from (gets closed)
+   */
+  public NDJSONReader(Reader reader) {
+    super();
+
+    m_Logger           = Logger.getLogger(getClass().getName());
+    m_Reader           = reader;
+    m_IDKey            = ID_KEY;
+    m_ScoreSuffix      = WideCSVReader.SCORE_SUFFIX;
+    m_PercentileSuffix = WideCSVReader.PERCENTILE_SUFFIX;
+    m_NumSkipped       = 0;
+  }
+
+  /**
+   * Sets the key of the ID.
+   *
+   * @param value	the key
+   */
+  public void setIDKey(String value) {
+    m_IDKey = value;
+  }
+
+  /**
+   * Returns the key of the ID.
+   *
+   * @return		the key
+   */
+  public String getIDKey() {
+    return m_IDKey;
+  }
+
+  /**
+   * Sets the suffixes of the score and percentile keys.
+   *
+   * @param score	the suffix for the scores
+   * @param percentile	the suffix for the percentiles
+   */
+  public void setSuffixes(String score, String percentile) {
+    m_ScoreSuffix      = score;
+    m_PercentileSuffix = percentile;
+  }
+
+  /**
+   * Returns the number of skipped (invalid or incomplete) lines.
+   *
+   * @return		the number of lines
+   */
+  public long getNumSkipped() {
+    return m_NumSkipped;
+  }
+
+  /**
+   * Turns the value into a number.
+   *
+   * @param value	the value (number or numeric string)
+   * @return		the number, null if not numeric
+   */
+  protected Double toNumber(Object value) {
+    if (value instanceof Double)
+      return (Double) value;
+    if (value instanceof String) {
+      try {
+	return Double.parseDouble((String) value);
+      }
+      catch (Exception e) {
+	// ignored
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Turns the JSON object into a profile.
+   *
+   * @param obj		the object to convert
+   * @return		the profile, null if incomplete
+   */
+  protected Map<String,List<Double>> toProfile(Map<String,Object> obj) {
+    Map<String,List<Double>>	result;
+    Object			pair;
+    Double			score;
+    Double			percentile;
+
+    result = new HashMap<>();
+    for (String measure: AbstractOutputGenerator.MEASURES) {
+      pair = obj.get(measure);
+      if ((pair instanceof List) && (((List) pair).size() == 2)) {
+	score      = toNumber(((List) pair).get(0));
+	percentile = toNumber(((List) pair).get(1));
+      }
+      else {
+	score      = toNumber(obj.get(measure + m_ScoreSuffix));
+	percentile = toNumber(obj.get(measure + m_PercentileSuffix));
+      }
+      if ((score == null) || (percentile == null))
+	return null;
+      result.put(measure, new ArrayList<>(Arrays.asList(score, percentile)));
+    }
+
+    return result;
+  }
+
+  /**
+   * Reads the profiles and hands them to the handler.
+   *
+   * @param handler	the handler for the profiles
+   * @return		null if successful, otherwise error message
+   */
+  public String read(ProfileHandler handler) {
+    BufferedReader		reader;
+    Map<String,Object>		obj;
+    Map<String,List<Double>>	test;
+    Object			id;
+    String			line;
+    long			lineNo;
+
+    lineNo = 0;
+    try {
+      reader = new BufferedReader(m_Reader);
+      try {
+	while ((line = reader.readLine()) != null) {
+	  lineNo++;
+	  if (line.trim().isEmpty())
+	    continue;
+	  try {
+	    obj = JsonHelper.parseObject(line);
+	  }
+	  catch (Exception e) {
+	    m_NumSkipped++;
+	    m_Logger.warning("Line " + lineNo + ": " + e.getMessage());
+	    continue;
+	  }
+	  id   = obj.get(m_IDKey);
+	  test = toProfile(obj);
+	  if ((id == null) || (test == null)) {
+	    m_NumSkipped++;
+	    m_Logger.warning("Line " + lineNo + ": missing ID or scores/percentiles");
+	    continue;
+	  }
+	  if (id instanceof Double)
+	    id = JsonHelper.toJson(id);
+	  handler.handleProfile("" + id, test);
+	}
+      }
+      finally {
+	reader.close();
+      }
+    }
+    catch (Exception e) {
+      return "Failed to read NDJSON (line " + lineNo + "): " + e;
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,520 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * ProfileGrouper.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Assembles profiles from records (ID, measure, score, percentile) that can
+ * arrive in any order. Records get collected per ID in memory and a profile
+ * gets handed on as soon as all the {@link AbstractOutputGenerator#MEASURES}
+ * have arrived.
+ * <br>
+ * Once the maximum number of IDs is being held in memory, the incomplete
+ * profiles get sorted by ID and spilled to a run file on disk. When
+ * finishing, all runs get merged (k-way, in multiple passes if there are
+ * too many runs) and the profiles assembled from the merged records. Profiles
+ * that are still incomplete at the end get handed to the incomplete handler.
+ * <br>
+ * Not thread-safe.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class ProfileGrouper
+  implements RecordHandler {
+
+  /** the maximum number of runs to merge at once. */
+  public static final int MERGE_FANIN = 64;
+
+  /** the buffer size for reading/writing runs. */
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Reads the records of a run file, one ID at a time.
+   */
+  protected static class RunReader
+    implements Comparable<RunReader> {
+
+    /** the run file. */
+    public File file;
+
+    /** the stream to read from. */
+    public DataInputStream input;
+
+    /** the current ID, null if exhausted. */
+    public String id;
+
+    /** the current test results. */
+    public Map<String,List<Double>> test;
+
+    /**
+     * Opens the run file and reads the first ID.
+     *
+     * @param file	the run file
+     * @throws IOException	if reading fails
+     */
+    public RunReader(File file) throws IOException {
+      this.file  = file;
+      this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      next();
+    }
+
+    /**
+     * Reads the next ID and its test results.
+     *
+     * @throws IOException	if reading fails
+     */
+    public void next() throws IOException {
+      int	count;
+      int	i;
+
+      try {
+	id = input.readUTF();
+      }
+      catch (EOFException e) {
+	id   = null;
+	test = null;
+	input.close();
+	return;
+      }
+      count = input.readInt();
+      test  = new HashMap<>();
+      for (i = 0; i < count; i++)
+	test.put(input.readUTF(), new ArrayList<>(Arrays.asList(input.readDouble(), input.readDouble())));
+    }
+
+    /**
+     * Closes the run and deletes the file.
+     */
+    public void close() {
+      try {
+	input.close();
+      }
+      catch (Exception e) {
+	// ignored
+      }
+      file.delete();
+    }
+
+    /**
+     * Compares the current IDs.
+     *
+     * @param o		the other reader
+     * @return		less than, equal to, or greater than zero
+     */
+    @Override
+    public int compareTo(RunReader o) {
+      return id.compareTo(o.id);
+    }
+  }
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the maximum number of IDs to keep in memory. */
+  protected int m_MaxProfiles;
+
+  /** the directory for the runs. */
+  protected File m_TempDir;
+
+  /** the handler for the complete profiles. */
+  protected ProfileHandler m_Handler;
+
+  /** the handler for the incomplete profiles, can be null. */
+  protected ProfileHandler m_IncompleteHandler;
+
+  /** the incomplete profiles in memory. */
+  protected Map<String,Map<String,List<Double>>> m_Pending;
+
+  /** the runs spilled to disk. */
+  protected List<File> m_Runs;
+
+  /** the number of complete profiles. */
+  protected long m_NumComplete;
+
+  /** the number of incomplete profiles. */
+  protected long m_NumIncomplete;
+
+  /** the number of spills. */
+  protected int m_NumSpills;
+
+  /**
+   * Initializes the grouper.
+   *
+   * @param handler	the handler for the complete profiles
+   */
+  public ProfileGrouper(ProfileHandler handler) {
+    m_Logger            = Logger.getLogger(getClass().getName());
+    m_MaxProfiles       = 100000;
+    m_TempDir           = new File(System.getProperty("java.io.tmpdir"));
+    m_Handler           = handler;
+    m_IncompleteHandler = null;
+    m_Pending           = new HashMap<>();
+    m_Runs              = new ArrayList<>();
+    m_NumComplete       = 0;
+    m_NumIncomplete     = 0;
+    m_NumSpills         = 0;
+  }
+
+  /**
+   * Sets the maximum number of IDs to keep in memory before spilling to disk.
+   *
+   * @param value	the maximum
+   */
+  public void setMaxProfiles(int value) {
+    if (value > 0)
+      m_MaxProfiles = value;
+  }
+
+  /**
+   * Returns the maximum number of IDs to keep in memory before spilling to disk.
+   *
+   * @return		the maximum
+   */
+  public int getMaxProfiles() {
+    return m_MaxProfiles;
+  }
+
+  /**
+   * Sets the directory for the runs spilled to disk.
+   *
+   * @param value	the directory
+   */
+  public void setTempDir(File value) {
+    m_TempDir = value;
+  }
+
+  /**
+   * Returns the directory for the runs spilled to disk.
+   *
+   * @return		the directory
+   */
+  public File getTempDir() {
+    return m_TempDir;
+  }
+
+  /**
+   * Sets the handler for profiles that are still incomplete at the end.
+   *
+   * @param value	the handler, null to ignore them
+   */
+  public void setIncompleteHandler(ProfileHandler value) {
+    m_IncompleteHandler = value;
+  }
+
+  /**
+   * Returns the handler for profiles that are still incomplete at the end.
+   *
+   * @return		the handler, null if ignored
+   */
+  public ProfileHandler getIncompleteHandler() {
+    return m_IncompleteHandler;
+  }
+
+  /**
+   * Returns the number of complete profiles handed on so far.
+   *
+   * @return		the number
+   */
+  public long getNumComplete() {
+    return m_NumComplete;
+  }
+
+  /**
+   * Returns the number of incomplete profiles.
+   *
+   * @return		the number
+   */
+  public long getNumIncomplete() {
+    return m_NumIncomplete;
+  }
+
+  /**
+   * Returns the number of times records were spilled to disk.
+   *
+   * @return		the number
+   */
+  public int getNumSpills() {
+    return m_NumSpills;
+  }
+
+  /**
+   * Checks whether all measures are present.
+   *
+   * @param test	the test results to check
+   * @return		true if complete
+   */
+  public static boolean isComplete(Map<String,List<Double>> test) {
+    for (String measure: AbstractOutputGenerator.MEASURES) {
+      if (!test.containsKey(measure))
+	return false;
+    }
+    return true;
+  }
+
+  /**
+   * Adds the record. Hands on the profile if complete.
+   *
+   * @param id		the ID
+   * @param measure	the measure
+   * @param score	the score
+   * @param percentile	the percentile
+   * @throws IOException	if spilling to disk or the handler fails
+   */
+  public void add(String id, String measure, double score, double percentile) throws IOException {
+    Map<String,List<Double>>	test;
+
+    test = m_Pending.get(id);
+    if (test == null) {
+      if (m_Pending.size() >= m_MaxProfiles)
+	spill();
+      test = new HashMap<>();
+      m_Pending.put(id, test);
+    }
+    test.put(measure, new ArrayList<>(Arrays.asList(score, percentile)));
+    if (isComplete(test)) {
+      m_Pending.remove(id);
+      complete(id, test);
+    }
+  }
+
+  /**
+   * Processes the record.
+   *
+   * @param id		the ID
+   * @param measure	the measure
+   * @param score	the score
+   * @param percentile	the percentile
+   * @throws IOException	if spilling to disk fails
+   * @see		#add(String, String, double, double)
+   */
+  @Override
+  public void handleRecord(String id, String measure, double score, double percentile) throws IOException {
+    add(id, measure, score, percentile);
+  }
+
+  /**
+   * Hands on the complete profile.
+   *
+   * @param id		the ID
+   * @param test	the test results
+   * @throws IOException	if the handler fails
+   */
+  protected void complete(String id, Map<String,List<Double>> test) throws IOException {
+    m_NumComplete++;
+    m_Handler.handleProfile(id, test);
+  }
+
+  /**
+   * Hands on the incomplete profile.
+   *
+   * @param id		the ID
+   * @param test	the test results
+   * @throws IOException	if the handler fails
+   */
+  protected void incomplete(String id, Map<String,List<Double>> test) throws IOException {
+    m_NumIncomplete++;
+    if (m_IncompleteHandler != null)
+      m_IncompleteHandler.handleProfile(id, test);
+  }
+
+  /**
+   * Writes the test results of an ID to the run.
+   *
+   * @param output	the run to write to
+   * @param id		the ID
+   * @param test	the test results
+   * @throws IOException	if writing fails
+   */
+  protected void write(DataOutputStream output, String id, Map<String,List<Double>> test) throws IOException {
+    output.writeUTF(id);
+    output.writeInt(test.size());
+    for (String measure: test.keySet()) {
+      output.writeUTF(measure);
+      output.writeDouble(test.get(measure).get(0));
+      output.writeDouble(test.get(measure).get(1));
+    }
+  }
+
+  /**
+   * Creates a new run file and adds it to the runs, so that it gets deleted
+   * by {@link #cleanUp()} in any case.
+   *
+   * @return		the file
+   * @throws IOException	if creating fails
+   */
+  protected File newRun() throws IOException {
+    File	result;
+
+    result = File.createTempFile("supernova-run-", ".bin", m_TempDir);
+    m_Runs.add(result);
+    return result;
+  }
+
+  /**
+   * Sorts the incomplete profiles in memory by ID and writes them to a run.
+   *
+   * @throws IOException	if writing fails
+   */
+  protected void spill() throws IOException {
+    File					run;
+    TreeMap<String,Map<String,List<Double>>>	sorted;
+
+    run    = newRun();
+    sorted = new TreeMap<>(m_Pending);
+    m_Pending.clear();
+    try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+      for (String id: sorted.keySet())
+	write(output, id, sorted.get(id));
+    }
+    m_NumSpills++;
+    m_Logger.info("Spilled " + sorted.size() + " incomplete profiles to " + run);
+  }
+
+  /**
+   * Merges the runs, combining the test results of the same ID.
+   *
+   * @param runs	the runs to merge (get deleted)
+   * @param output	the run to write to, null to hand on the profiles
+   * @throws IOException	if reading/writing fails
+   */
+  protected void merge(List<File> runs, DataOutputStream output) throws IOException {
+    PriorityQueue<RunReader>	queue;
+    RunReader			reader;
+    String			id;
+    Map<String,List<Double>>	test;
+
+    queue = new PriorityQueue<>();
+    try {
+      for (File run: runs) {
+	reader = new RunReader(run);
+	if (reader.id != null)
+	  queue.add(reader);
+	else
+	  reader.close();
+      }
+
+      while (!queue.isEmpty()) {
+	id   = queue.peek().id;
+	test = new HashMap<>();
+	while (!queue.isEmpty() && queue.peek().id.equals(id)) {
+	  reader = queue.poll();
+	  // not using putAll, which pre-sizes the map: the drawing order depends
+	  // on the iteration order, which must match the one of in-memory profiles
+	  for (String measure: reader.test.keySet())
+	    test.put(measure, reader.test.get(measure));
+	  reader.next();
+	  if (reader.id != null)
+	    queue.add(reader);
+	  else
+	    reader.close();
+	}
+	if (output != null)
+	  write(output, id, test);
+	else if (isComplete(test))
+	  complete(id, test);
+	else
+	  incomplete(id, test);
+      }
+    }
+    finally {
+      for (RunReader r: queue)
+	r.close();
+      for (File run: runs)
+	run.delete();
+    }
+  }
+
+  /**
+   * Merges the runs spilled to disk (if any) and hands on the remaining
+   * profiles, complete or incomplete. The runs get deleted, even if
+   * merging fails.
+   *
+   * @throws IOException	if reading/writing the runs fails
+   */
+  public void finish() throws IOException {
+    List<File>		runs;
+    File		run;
+
+    if (m_Runs.isEmpty()) {
+      for (String id: new TreeMap<>(m_Pending).keySet())
+	incomplete(id, m_Pending.get(id));
+      m_Pending.clear();
+      return;
+    }
+
+    try {
+      // the remaining records might complete profiles on disk
+      if (!m_Pending.isEmpty())
+	spill();
+
+      // reduce the number of runs
+      while (m_Runs.size() > MERGE_FANIN) {
+	runs = new ArrayList<>(m_Runs.subList(0, MERGE_FANIN));
+	m_Runs.subList(0, MERGE_FANIN).clear();
+	run  = newRun();
+	try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+	  merge(runs, output);
+	}
+      }
+
+      runs = new ArrayList<>(m_Runs);
+      m_Runs.clear();
+      merge(runs, null);
+    }
+    finally {
+      cleanUp();
+    }
+  }
+
+  /**
+   * Deletes the runs spilled to disk and discards the incomplete profiles
+   * held in memory. To be called if the records do not get passed on to
+   * {@link #finish()}, e.g., when reading them failed.
+   */
+  public void cleanUp() {
+    for (File run: m_Runs) {
+      if (run.exists() && !run.delete())
+	m_Logger.warning("Failed to delete run: " + run);
+    }
+    m_Runs.clear();
+    m_Pending.clear();
+  }
+}
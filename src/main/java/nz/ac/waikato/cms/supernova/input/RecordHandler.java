@@ -0,0 +1,44 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * RecordHandler.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import java.io.IOException;
+
+/**
+ * Interface for classes that process single input records
+ * (ID, measure, score, percentile).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public interface RecordHandler {
+
+  /**
+   * Processes the record.
+   *
+   * @param id		the ID
+   * @param measure	the measure
+   * @param score	the score
+   * @param percentile	the percentile
+   * @throws IOException	if processing fails
+   */
+  public void handleRecord(String id, String measure, double score, double percentile) throws IOException;
+}
@@ -0,0 +1,380 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * WatchFolder.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory for input files (via {@link WatchService}) and
+ * returns them once they have settled, i.e., their size and timestamp have
+ * not changed for the settle time. That way, files that are still being
+ * copied or appended to do not get read prematurely. Processed files get
+ * moved to an archive directory (failed ones to its "failed" sub-directory).
+ * <br>
+ * Files already present when opening get returned as well. Events that got
+ * lost (overflow) result in listing the directory again.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class WatchFolder {
+
+  /** the name of the default archive directory (below the watched directory). */
+  public static final String DEFAULT_ARCHIVE = "archive";
+
+  /** the name of the archive sub-directory for failed files. */
+  public static final String FAILED = "failed";
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the directory to watch. */
+  protected File m_Directory;
+
+  /** the directory to move processed files to. */
+  protected File m_Archive;
+
+  /** the glob pattern for the file names. */
+  protected String m_Pattern;
+
+  /** the time in msec a file must be unchanged. */
+  protected int m_SettleTime;
+
+  /** the interval in msec for checking files that are settling. */
+  protected int m_PollInterval;
+
+  /** for matching the file names. */
+  protected PathMatcher m_Matcher;
+
+  /** the watch service. */
+  protected WatchService m_Watcher;
+
+  /** the files that are settling (size, timestamp, time of last change). */
+  protected Map<Path,long[]> m_Pending;
+
+  /**
+   * Initializes the watcher.
+   *
+   * @param directory	the directory to watch
+   */
+  public WatchFolder(File directory) {
+    super();
+
+    m_Logger       = Logger.getLogger(getClass().getName());
+    m_Directory    = directory;
+    m_Archive      = new File(directory, DEFAULT_ARCHIVE);
+    m_Pattern      = "*.csv";
+    m_SettleTime   = 1000;
+    m_PollInterval = 250;
+    m_Watcher      = null;
+    m_Pending      = new HashMap<>();
+  }
+
+  /**
+   * Returns the directory to watch.
+   *
+   * @return		the directory
+   */
+  public File getDirectory() {
+    return m_Directory;
+  }
+
+  /**
+   * Sets the directory to move processed files to.
+   *
+   * @param value	the directory
+   */
+  public void setArchive(File value) {
+    m_Archive = value;
+  }
+
+  /**
+   * Returns the directory to move processed files to.
+   *
+   * @return		the directory
+   */
+  public File getArchive() {
+    return m_Archive;
+  }
+
+  /**
+   * Sets the glob pattern for the file names.
+   *
+   * @param value	the pattern
+   */
+  public void setPattern(String value) {
+    m_Pattern = value;
+  }
+
+  /**
+   * Returns the glob pattern for the file names.
+   *
+   * @return		the pattern
+   */
+  public String getPattern() {
+    return m_Pattern;
+  }
+
+  /**
+   * Sets the time a file must be unchanged before it gets returned.
+   *
+   * @param value	the time in msec
+   */
+  public void setSettleTime(int value) {
+    if (value >= 0)
+      m_SettleTime = value;
+  }
+
+  /**
+   * Returns the time a file must be unchanged before it gets returned.
+   *
+   * @return		the time in msec
+   */
+  public int getSettleTime() {
+    return m_SettleTime;
+  }
+
+  /**
+   * Starts watching the directory and lists the files already present.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String open() {
+    if (!m_Directory.isDirectory())
+      return "Not a directory: " + m_Directory;
+    if (!m_Archive.exists() && !m_Archive.mkdirs())
+      return "Failed to create archive directory: " + m_Archive;
+
+    m_Matcher = FileSystems.getDefault().getPathMatcher("glob:" + m_Pattern);
+    try {
+      m_Watcher = FileSystems.getDefault().newWatchService();
+      m_Directory.toPath().register(
+	m_Watcher,
+	StandardWatchEventKinds.ENTRY_CREATE,
+	StandardWatchEventKinds.ENTRY_MODIFY,
+	StandardWatchEventKinds.ENTRY_DELETE);
+      rescan();
+    }
+    catch (Exception e) {
+      close();
+      return "Failed to watch directory " + m_Directory + ": " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Lists the directory and adds all matching files as settling.
+   *
+   * @throws IOException	if listing fails
+   */
+  protected void rescan() throws IOException {
+    TreeSet<File>	files;
+
+    files = new TreeSet<>();
+    InputFiles.addDir(m_Directory, m_Pattern, files);
+    for (File file: files)
+      changed(file.toPath());
+  }
+
+  /**
+   * Records the file as (re-)settling.
+   *
+   * @param path	the file that was created or modified
+   */
+  protected void changed(Path path) {
+    if (!m_Matcher.matches(path.getFileName()) || !Files.isRegularFile(path))
+      return;
+    m_Pending.put(path, new long[]{-1, -1, System.currentTimeMillis()});
+  }
+
+  /**
+   * Removes the files from the settling ones that have not changed for the
+   * settle time.
+   *
+   * @return		the settled files, sorted
+   */
+  protected List<File> settled() {
+    List<File>				result;
+    Iterator<Map.Entry<Path,long[]>>	iter;
+    Map.Entry<Path,long[]>		entry;
+    long[]				state;
+    long				size;
+    long				modified;
+    long				now;
+
+    result = new ArrayList<>();
+    now    = System.currentTimeMillis();
+    iter   = m_Pending.entrySet().iterator();
+    while (iter.hasNext()) {
+      entry = iter.next();
+      state = entry.getValue();
+      try {
+	size     = Files.size(entry.getKey());
+	modified = Files.getLastModifiedTime(entry.getKey()).toMillis();
+      }
+      catch (IOException e) {
+	// gone (e.g., renamed)
+	iter.remove();
+	continue;
+      }
+      if ((size != state[0]) || (modified != state[1])) {
+	state[0] = size;
+	state[1] = modified;
+	state[2] = now;
+      }
+      else if (now - state[2] >= m_SettleTime) {
+	result.add(entry.getKey().toFile());
+	iter.remove();
+      }
+    }
+    Collections.sort(result);
+
+    return result;
+  }
+
+  /**
+   * Waits for files to settle.
+   *
+   * @return		the settled files (sorted), null if closed
+   * @throws InterruptedException	if interrupted while waiting
+   */
+  public List<File> next() throws InterruptedException {
+    List<File>		result;
+    WatchKey		key;
+    Path		path;
+
+    while (true) {
+      result = settled();
+      if (!result.isEmpty())
+	return result;
+
+      try {
+	key = m_Watcher.poll(m_PollInterval, TimeUnit.MILLISECONDS);
+      }
+      catch (ClosedWatchServiceException e) {
+	return null;
+      }
+      if (key == null)
+	continue;
+
+      for (WatchEvent<?> event: key.pollEvents()) {
+	if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+	  try {
+	    rescan();
+	  }
+	  catch (IOException e) {
+	    m_Logger.severe("Failed to list directory " + m_Directory + ": " + e);
+	  }
+	  continue;
+	}
+	path = m_Directory.toPath().resolve((Path) event.context());
+	if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+	  m_Pending.remove(path);
+	else
+	  changed(path);
+      }
+      if (!key.reset()) {
+	m_Logger.severe("Directory no longer accessible: " + m_Directory);
+	return null;
+      }
+    }
+  }
+
+  /**
+   * Moves the processed file to the archive directory. If a file with the
+   * same name already exists there, a timestamp gets added to the name.
+   *
+   * @param file	the file to archive
+   * @param failed	whether processing the file failed
+   * @return		null if successful, otherwise error message
+   */
+  public String archive(File file, boolean failed) {
+    File	dir;
+    File	target;
+    String	name;
+    int		pos;
+
+    dir = failed ? new File(m_Archive, FAILED) : m_Archive;
+    if (!dir.exists() && !dir.mkdirs())
+      return "Failed to create archive directory: " + dir;
+
+    target = new File(dir, file.getName());
+    if (target.exists()) {
+      name = file.getName();
+      pos  = name.lastIndexOf('.');
+      if (pos > 0)
+	name = name.substring(0, pos) + "-" + System.currentTimeMillis() + name.substring(pos);
+      else
+	name = name + "-" + System.currentTimeMillis();
+      target = new File(dir, name);
+    }
+
+    try {
+      try {
+	Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+	Files.move(file.toPath(), target.toPath());
+      }
+    }
+    catch (Exception e) {
+      return "Failed to move " + file + " to " + target + ": " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Stops watching the directory, {@link #next()} returns null.
+   */
+  public void close() {
+    try {
+      if (m_Watcher != null)
+	m_Watcher.close();
+    }
+    catch (Exception e) {
+      // ignored
+    }
+  }
+}
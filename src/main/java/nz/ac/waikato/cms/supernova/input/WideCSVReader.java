@@ -0,0 +1,312 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * WideCSVReader.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.input;
+
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fast reader for CSV files in wide format, i.e., one row per ID with
+ * score and percentile columns for each of the
+ * {@link AbstractOutputGenerator#MEASURES}. Only the ID column and the ten
+ * value columns get parsed. The columns get located via the header
+ * (measure + suffix, e.g., "openness_score", case-insensitive), unless
+ * specified explicitly.
+ * <br>
+ * As each row is a complete profile, no grouping is necessary. The profiles
+ * get handed on in blocks and in no particular order. The handler gets
+ * called by one thread at a time (synchronized on the handler).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class WideCSVReader
+  extends AbstractMappedCSVReader<WideCSVReader.Block>
+  implements ProfileSource {
+
+  /** the default suffix for score columns. */
+  public static final String SCORE_SUFFIX = "_score";
+
+  /** the default suffix for percentile columns. */
+  public static final String PERCENTILE_SUFFIX = "_percentile";
+
+  /** the number of values per row. */
+  public static final int NUM_VALUES = AbstractOutputGenerator.MEASURES.length * 2;
+
+  /**
+   * Block of parsed rows.
+   */
+  protected static class Block {
+
+    /** the IDs. */
+    public String[] ids = new String[BLOCK_SIZE];
+
+    /** the values (score/percentile per measure, per row). */
+    public double[] values = new double[BLOCK_SIZE * NUM_VALUES];
+
+    /** the number of rows. */
+    public int size;
+  }
+
+  /** the 0-based column of the ID. */
+  protected int m_IDColumn;
+
+  /** the 0-based value columns (score/percentile per measure), null to use header. */
+  protected int[] m_ValueColumns;
+
+  /** the suffix for score columns. */
+  protected String m_ScoreSuffix;
+
+  /** the suffix for percentile columns. */
+  protected String m_PercentileSuffix;
+
+  /** the columns to extract (ID, then value columns). */
+  protected int[] m_Columns;
+
+  /** the handler for the profiles. */
+  protected ProfileHandler m_Handler;
+
+  /**
+   * Initializes the reader.
+   *
+   * @param file	the file to read
+   */
+  public WideCSVReader(File file) {
+    super(file);
+
+    m_IDColumn         = 0;
+    m_ValueColumns     = null;
+    m_ScoreSuffix      = SCORE_SUFFIX;
+    m_PercentileSuffix = PERCENTILE_SUFFIX;
+    m_Columns          = null;
+    m_Handler          = null;
+  }
+
+  /**
+   * Sets the 0-based column of the ID.
+   *
+   * @param value	the column
+   */
+  public void setIDColumn(int value) {
+    m_IDColumn = value;
+  }
+
+  /**
+   * Returns the 0-based column of the ID.
+   *
+   * @return		the column
+   */
+  public int getIDColumn() {
+    return m_IDColumn;
+  }
+
+  /**
+   * Sets the 0-based value columns explicitly: score and percentile for
+   * each of the {@link AbstractOutputGenerator#MEASURES} (in that order).
+   *
+   * @param value	the ten columns, null to locate them via the header
+   */
+  public void setValueColumns(int[] value) {
+    if ((value != null) && (value.length != NUM_VALUES))
+      throw new IllegalArgumentException("Expected " + NUM_VALUES + " columns, but got " + value.length + "!");
+    m_ValueColumns = value;
+  }
+
+  /**
+   * Returns the 0-based value columns.
+   *
+   * @return		the columns, null if located via the header
+   */
+  public int[] getValueColumns() {
+    return m_ValueColumns;
+  }
+
+  /**
+   * Sets the suffixes of the score and percentile columns for locating
+   * them via the header.
+   *
+   * @param score	the suffix for the scores
+   * @param percentile	the suffix for the percentiles
+   */
+  public void setSuffixes(String score, String percentile) {
+    m_ScoreSuffix      = score;
+    m_PercentileSuffix = percentile;
+  }
+
+  /**
+   * Locates the columns via the header, if necessary.
+   *
+   * @param channel	the channel to read from
+   * @param size	the size of the file
+   * @return		null if successful, otherwise error message
+   * @throws IOException	if reading fails
+   */
+  @Override
+  protected String prepare(FileChannel channel, long size) throws IOException {
+    ByteBuffer		buffer;
+    long		end;
+    CSVRecord		header;
+    Map<String,Integer>	names;
+    List<String>	missing;
+    int[]		values;
+    String		name;
+    int			i;
+
+    values = m_ValueColumns;
+    if (values == null) {
+      if (!m_Header)
+	return "Header required for locating the columns by name!";
+      end = nextLine(channel, 0, size);
+      if (end > Integer.MAX_VALUE)
+	return "Header too long!";
+      buffer = ByteBuffer.allocate((int) end);
+      channel.read(buffer, 0);
+      try (CSVParser parser = CSVParser.parse(new String(buffer.array(), StandardCharsets.UTF_8), CSVFormat.EXCEL)) {
+	header = parser.iterator().next();
+      }
+      names = new HashMap<>();
+      for (i = 0; i < header.size(); i++)
+	names.put(header.get(i).trim().toLowerCase(), i);
+      values  = new int[NUM_VALUES];
+      missing = new ArrayList<>();
+      for (i = 0; i < AbstractOutputGenerator.MEASURES.length; i++) {
+	name = (AbstractOutputGenerator.MEASURES[i] + m_ScoreSuffix).toLowerCase();
+	if (names.containsKey(name))
+	  values[i * 2] = names.get(name);
+	else
+	  missing.add(name);
+	name = (AbstractOutputGenerator.MEASURES[i] + m_PercentileSuffix).toLowerCase();
+	if (names.containsKey(name))
+	  values[i * 2 + 1] = names.get(name);
+	else
+	  missing.add(name);
+      }
+      if (!missing.isEmpty())
+	return "Columns missing from header: " + missing;
+    }
+
+    m_Columns    = new int[NUM_VALUES + 1];
+    m_Columns[0] = m_IDColumn;
+    System.arraycopy(values, 0, m_Columns, 1, NUM_VALUES);
+
+    return null;
+  }
+
+  /**
+   * Returns the 0-based columns to extract from each line.
+   *
+   * @return		the columns
+   */
+  @Override
+  protected int[] getColumns() {
+    return m_Columns;
+  }
+
+  /**
+   * Creates a new block for collecting parsed lines.
+   *
+   * @return		the block
+   */
+  @Override
+  protected Block newBlock() {
+    return new Block();
+  }
+
+  /**
+   * Parses the extracted columns of a line and adds them to the block.
+   * Hands on the block when full.
+   *
+   * @param block	the block to add to
+   * @param buffer	the buffer to read from
+   * @param starts	the starts of the columns
+   * @param ends	the ends of the columns (excluded)
+   * @param quoted	whether the columns were quoted
+   * @param scratch	the scratch array to use (large enough for the line)
+   * @throws IOException	if handing on fails
+   */
+  @Override
+  protected void add(Block block, ByteBuffer buffer, int[] starts, int[] ends, boolean[] quoted, byte[] scratch) throws IOException {
+    int		offset;
+    int		i;
+
+    block.ids[block.size] = toString(buffer, starts[0], ends[0], quoted[0], scratch);
+    offset = block.size * NUM_VALUES;
+    for (i = 0; i < NUM_VALUES; i++)
+      block.values[offset + i] = toDouble(buffer, starts[i + 1], ends[i + 1], scratch);
+    block.size++;
+    if (block.size == BLOCK_SIZE)
+      flush(block);
+  }
+
+  /**
+   * Hands the profiles to the handler.
+   *
+   * @param block	the profiles
+   * @throws IOException	if the handler fails
+   */
+  @Override
+  protected void flush(Block block) throws IOException {
+    List<Map<String,List<Double>>>	tests;
+    Map<String,List<Double>>		test;
+    int					offset;
+    int					i;
+    int					n;
+
+    tests = new ArrayList<>(block.size);
+    for (i = 0; i < block.size; i++) {
+      offset = i * NUM_VALUES;
+      test   = new HashMap<>();
+      for (n = 0; n < AbstractOutputGenerator.MEASURES.length; n++)
+	test.put(AbstractOutputGenerator.MEASURES[n], new ArrayList<>(Arrays.asList(block.values[offset + n * 2], block.values[offset + n * 2 + 1])));
+      tests.add(test);
+    }
+
+    synchronized(m_Handler) {
+      for (i = 0; i < block.size; i++)
+	m_Handler.handleProfile(block.ids[i], tests.get(i));
+    }
+    block.size = 0;
+  }
+
+  /**
+   * Reads the file and hands the profiles to the handler.
+   *
+   * @param handler	the handler for the profiles
+   * @return		null if successful, otherwise error message
+   */
+  public String read(ProfileHandler handler) {
+    m_Handler = handler;
+    return doRead();
+  }
+}
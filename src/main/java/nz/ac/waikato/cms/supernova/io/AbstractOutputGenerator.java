@@ -20,17 +20,30 @@
 
 package nz.ac.waikato.cms.supernova.io;
 
+import nz.ac.waikato.cms.supernova.cache.RenderCache;
+import nz.ac.waikato.cms.supernova.cache.SingleFlight;
+import nz.ac.waikato.cms.supernova.core.FileHelper;
+import nz.ac.waikato.cms.supernova.core.HashHelper;
 import nz.ac.waikato.cms.supernova.gui.ColorHelper;
 import nz.ac.waikato.cms.supernova.triangle.AbstractTriangleCenterCalculation;
 import nz.ac.waikato.cms.supernova.triangle.Incenter;
 
 import java.awt.Color;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 /**
@@ -52,6 +65,15 @@ public abstract class AbstractOutputGenerator<T> {
 
   public static final String OPENNESS = "openness";
 
+  /** the initial buffer size for in-memory output. */
+  public static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  /** the error message when the generation got stopped. */
+  public static final String STOPPED = "Generation stopped";
+
+  /** the estimated memory per triangle in bytes (vector output). */
+  public static final int BYTES_PER_TRIANGLE = 256;
+
   public static final String[] MEASURES = new String[]{
     OPENNESS,
     EXTRAVERSION,
@@ -84,6 +106,15 @@ public abstract class AbstractOutputGenerator<T> {
   /** the triangle center algorithm. */
   protected AbstractTriangleCenterCalculation m_Center;
 
+  /** the cache for the encoded outputs, null if none. */
+  protected RenderCache m_Cache;
+
+  /** for coalescing concurrent generation of identical outputs, null if none. */
+  protected SingleFlight<String,ByteBuffer> m_SingleFlight;
+
+  /** whether the generation got stopped. */
+  protected volatile boolean m_Stopped;
+
   /**
    * Default constructor.
    *
@@ -105,6 +136,65 @@ public abstract class AbstractOutputGenerator<T> {
     m_Center             = new Incenter();
     m_Colors             = getDefaultColors();
     m_OnlyFirstIteration = false;
+    m_Cache              = null;
+    m_SingleFlight       = null;
+    m_Stopped            = false;
+  }
+
+  /**
+   * Copies the settings of the other generator.
+   *
+   * @param other	the generator to copy the settings from
+   */
+  protected void assign(AbstractOutputGenerator other) {
+    m_Verbose            = other.getVerbose();
+    m_OnlyFirstIteration = other.getOnlyFirstIteration();
+    m_Colors             = new HashMap<>(other.getColors());
+    m_Background         = other.getBackground();
+    m_Opacity            = other.getOpacity();
+    m_Margin             = other.getMargin();
+    m_Center             = other.getCenter();
+    m_Cache              = other.getCache();
+    m_SingleFlight       = other.getSingleFlight();
+  }
+
+  /**
+   * Returns a new instance of the generator with the same settings,
+   * e.g., for use in another thread.
+   *
+   * @return		the copy
+   */
+  public AbstractOutputGenerator<T> copy() {
+    AbstractOutputGenerator<T>	result;
+
+    try {
+      result = getClass().newInstance();
+    }
+    catch (Exception e) {
+      throw new IllegalStateException("Failed to instantiate " + getClass().getName(), e);
+    }
+    result.assign(this);
+
+    return result;
+  }
+
+  /**
+   * Stops the generation in progress between triangles (and any further
+   * ones of this instance), which then fails with {@link #STOPPED}.
+   * Used for cancelling {@link #generateAsync(Map, Executor)}, which
+   * generates with a copy of this generator.
+   */
+  public void stopExecution() {
+    m_Stopped = true;
+  }
+
+  /**
+   * Returns whether the generation got stopped.
+   *
+   * @return		true if stopped
+   */
+  public boolean isStopped() {
+    return m_Stopped;
   }
 
   /**
@@ -235,6 +325,44 @@ public abstract class AbstractOutputGenerator<T> {
     return m_Center;
   }
 
+  /**
+   * Sets the cache for the encoded outputs (shared by copies).
+   *
+   * @param value	the cache, null to disable
+   */
+  public void setCache(RenderCache value) {
+    m_Cache = value;
+  }
+
+  /**
+   * Returns the cache for the encoded outputs.
+   *
+   * @return		the cache, null if disabled
+   */
+  public RenderCache getCache() {
+    return m_Cache;
+  }
+
+  /**
+   * Sets the coalescing of concurrent in-memory generation of identical
+   * outputs (profile and settings), see {@link #generate(Map, StringBuilder)}.
+   * Share the same instance across generators/threads.
+   *
+   * @param value	the coalescing, null to disable
+   */
+  public void setSingleFlight(SingleFlight<String,ByteBuffer> value) {
+    m_SingleFlight = value;
+  }
+
+  /**
+   * Returns the coalescing of concurrent generation of identical outputs.
+   *
+   * @return		the coalescing, null if disabled
+   */
+  public SingleFlight<String,ByteBuffer> getSingleFlight() {
+    return m_SingleFlight;
+  }
+
   /**
    * Adjusts the alpha value of the color using the current opacity.
    *
@@ -303,6 +431,77 @@ public abstract class AbstractOutputGenerator<T> {
     return result;
   }
 
+  /**
+   * Returns a string representation of all the settings that influence
+   * the generated output.
+   *
+   * @return		the configuration
+   */
+  public String getConfigString() {
+    StringBuilder	result;
+    Map<String,Color>	colors;
+
+    result = new StringBuilder();
+    result.append(getClass().getName());
+    colors = new TreeMap<>(m_Colors);
+    for (String key: colors.keySet())
+      result.append("|").append(key).append("=").append(ColorHelper.toHex(colors.get(key)));
+    result.append("|background=").append(ColorHelper.toHex(m_Background));
+    result.append("|opacity=").append(m_Opacity);
+    result.append("|margin=").append(m_Margin);
+    result.append("|center=").append(m_Center.getClass().getName());
+    result.append("|onlyFirst=").append(m_OnlyFirstIteration);
+
+    return result.toString();
+  }
+
+  /**
+   * Turns the test results into a normalized string (sorted on measure).
+   *
+   * @param test	the test results (measure - [score, percentile])
+   * @return		the normalized string
+   */
+  public static String toProfileString(Map<String,List<Double>> test) {
+    StringBuilder		result;
+    Map<String,List<Double>>	sorted;
+
+    result = new StringBuilder();
+    sorted = new TreeMap<>(test);
+    for (String key: sorted.keySet()) {
+      if (result.length() > 0)
+	result.append("|");
+      result.append(key).append("=").append(sorted.get(key).get(0)).append("/").append(sorted.get(key).get(1));
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Returns the content key for the test results, i.e., a hash of the
+   * normalized test results and the configuration. Identical keys result
+   * in identical output.
+   *
+   * @param test	the test results (measure - [score, percentile])
+   * @return		the key
+   * @see		#getConfigString()
+   * @see		#toProfileString(Map)
+   */
+  public String getContentKey(Map<String,List<Double>> test) {
+    return HashHelper.sha256(getConfigString() + "\n" + toProfileString(test));
+  }
+
+  /**
+   * Returns the key for caching the encoded output, i.e., the content key
+   * plus extension.
+   *
+   * @param test	the test results (measure - [score, percentile])
+   * @return		the key
+   * @see		#getContentKey(Map)
+   */
+  public String getCacheKey(Map<String,List<Double>> test) {
+    return getContentKey(test) + "." + getExtension();
+  }
+
   /**
    * Returns the default extension to use.
    *
@@ -318,6 +517,47 @@ public abstract class AbstractOutputGenerator<T> {
    * @return			null if successfully generated, otherwise error message
    */
   public T generatePlot(Map<String,List<Double>> test, StringBuilder errors) {
+    return generatePlot(test, calcGeometry(test), errors);
+  }
+
+  /**
+   * Returns the number of triangles that get drawn for the test results.
+   *
+   * @param test	the test results (measure - [score, percentile])
+   * @return		the number of triangles
+   */
+  public int getNumTriangles(Map<String,List<Double>> test) {
+    int		result;
+
+    if (m_OnlyFirstIteration)
+      return test.size();
+
+    result = 0;
+    for (int flips: calcNumFlips(test).values())
+      result += flips;
+
+    return result * (int) calcOverallFlipCycles(test);
+  }
+
+  /**
+   * Estimates the memory in bytes required for generating the output,
+   * e.g., for admission control. Based on the number of triangles.
+   *
+   * @param test	the test results (measure - [score, percentile])
+   * @return		the estimated memory
+   * @see		#getNumTriangles(Map)
+   */
+  public long estimateMemory(Map<String,List<Double>> test) {
+    return INITIAL_BUFFER_SIZE + (long) getNumTriangles(test) * BYTES_PER_TRIANGLE;
+  }
+
+  /**
+   * Calculates the geometry parameters for the test results.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @return			the geometry
+   */
+  public PlotGeometry calcGeometry(Map<String,List<Double>> test) {
     if (m_Verbose) {
       Map<String,String> colorsStr = new HashMap<>();
       for (String key: m_Colors.keySet())
@@ -341,7 +581,20 @@ public abstract class AbstractOutputGenerator<T> {
     if (m_Verbose)
       m_Logger.info("Overall flip cycles: " + overallFlipCycles);
 
-    return generatePlot(test, angle, numFlips, (int) overallFlipCycles, errors);
+    return new PlotGeometry(angle, numFlips, (int) overallFlipCycles);
+  }
+
+  /**
+   * Generates the intermediate data structure from pre-calculated geometry.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param geometry		the geometry to use
+   * @param errors		for storing error messages
+   * @return			the generated data structure
+   * @see			#calcGeometry(Map)
+   */
+  public T generatePlot(Map<String,List<Double>> test, PlotGeometry geometry, StringBuilder errors) {
+    return generatePlot(test, geometry.getAngle(), geometry.getNumFlips(), geometry.getOverallFlipCycles(), errors);
   }
 
   /**
@@ -365,6 +618,15 @@ public abstract class AbstractOutputGenerator<T> {
    */
   public abstract String savePlot(T plot, File output);
 
+  /**
+   * Writes the encoded output to the stream. The stream is not closed.
+   *
+   * @param plot		the plot to save
+   * @param output		the stream to write the result to
+   * @return			null if successfully generated, otherwise error message
+   */
+  public abstract String savePlot(T plot, OutputStream output);
+
   /**
    * Generates the output.
    *
@@ -373,8 +635,56 @@ public abstract class AbstractOutputGenerator<T> {
    * @return			null if successfully generated, otherwise error message
    */
   public String generate(Map<String,List<Double>> test, File output) {
+    File	tmp;
+    String	result;
+
+    // never rewrite in place, as the file may be hard-linked by duplicates
+    try {
+      tmp = FileHelper.newTempFile(output);
+    }
+    catch (Exception e) {
+      return "Failed to write output to '" + output + "': " + e;
+    }
+    result = doGenerate(test, tmp);
+    if (result == null) {
+      try {
+	FileHelper.replace(tmp, output);
+      }
+      catch (Exception e) {
+	result = "Failed to write output to '" + output + "': " + e;
+      }
+    }
+    if (result != null)
+      FileHelper.discard(tmp);
+
+    return result;
+  }
+
+  /**
+   * Generates the output and saves it in the specified file.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param output		the file to save the result in
+   * @return			null if successfully generated, otherwise error message
+   */
+  protected String doGenerate(Map<String,List<Double>> test, File output) {
     StringBuilder	errors;
     T			plot;
+    ByteBuffer		data;
+
+    if (m_Cache != null) {
+      errors = new StringBuilder();
+      data   = generate(test, errors);
+      if (data == null)
+	return errors.toString();
+      try (FileOutputStream fos = new FileOutputStream(output)) {
+	write(data, fos);
+      }
+      catch (Exception e) {
+	return "Failed to write output to '" + output + "': " + e;
+      }
+      return null;
+    }
 
     if (m_Verbose) {
       Map<String,String> colorsStr = new HashMap<>();
@@ -407,6 +717,228 @@ public abstract class AbstractOutputGenerator<T> {
     return savePlot(plot, output);
   }
 
+  /**
+   * Generates the output and writes it to the stream. The stream is not closed.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param output		the stream to write the result to
+   * @return			null if successfully generated, otherwise error message
+   */
+  public String generate(Map<String,List<Double>> test, OutputStream output) {
+    StringBuilder	errors;
+    ByteBuffer		data;
+
+    if (m_Cache == null)
+      return doGenerate(test, output);
+
+    errors = new StringBuilder();
+    data   = generate(test, errors);
+    if (data == null)
+      return errors.toString();
+    try {
+      write(data, output);
+    }
+    catch (Exception e) {
+      return "Failed to write output: " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Writes the encoded output to the stream. The stream is not closed.
+   *
+   * @param data	the encoded output (not modified)
+   * @param output	the stream to write to
+   * @throws IOException	if writing fails
+   */
+  protected void write(ByteBuffer data, OutputStream output) throws IOException {
+    byte[]	bytes;
+
+    if (data.hasArray()) {
+      output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+    else {
+      bytes = new byte[data.remaining()];
+      data.duplicate().get(bytes);
+      output.write(bytes);
+    }
+  }
+
+  /**
+   * Generates the output (bypassing the cache) and writes it to the stream.
+   * The stream is not closed.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param output		the stream to write the result to
+   * @return			null if successfully generated, otherwise error message
+   */
+  protected String doGenerate(Map<String,List<Double>> test, OutputStream output) {
+    StringBuilder	errors;
+    T			plot;
+
+    errors = new StringBuilder();
+    plot   = generatePlot(test, errors);
+    if (errors.length() != 0)
+      return errors.toString();
+    if (m_Stopped)
+      return STOPPED;
+
+    return savePlot(plot, output);
+  }
+
+  /**
+   * Generates the output in memory. Uses the cache, if set. With
+   * single-flight coalescing set, concurrent calls for the same profile
+   * and settings share a single generation.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param errors		for storing error messages
+   * @return			the encoded output, null in case of an error
+   */
+  public ByteBuffer generate(Map<String,List<Double>> test, StringBuilder errors) {
+    String	key;
+    ByteBuffer	result;
+
+    if (m_SingleFlight == null)
+      return generate(test, null, errors);
+
+    key = getCacheKey(test);
+    while (true) {
+      try {
+	result = m_SingleFlight.execute(key, () -> {
+	  StringBuilder ownErrors = new StringBuilder();
+	  ByteBuffer data = generate(test, key, ownErrors);
+	  if (data == null)
+	    throw new IllegalStateException(ownErrors.toString());
+	  return data;
+	});
+	break;
+      }
+      catch (IllegalStateException e) {
+	// the caller that owned the generation got stopped, but not this one
+	if (STOPPED.equals(e.getMessage()) && !m_Stopped)
+	  continue;
+	errors.append(e.getMessage());
+	return null;
+      }
+    }
+
+    // every caller gets its own position/limit
+    return result.duplicate();
+  }
+
+  /**
+   * Generates the output in memory. Uses the cache, if set.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param key			the cache key, null to determine if required
+   * @param errors		for storing error messages
+   * @return			the encoded output, null in case of an error
+   */
+  protected ByteBuffer generate(Map<String,List<Double>> test, String key, StringBuilder errors) {
+    ByteBufferOutputStream	output;
+    String			msg;
+    ByteBuffer			result;
+
+    if (m_Cache != null) {
+      if (key == null)
+	key = getCacheKey(test);
+      result = m_Cache.get(key);
+      if (result != null)
+	return result;
+    }
+
+    output = new ByteBufferOutputStream(INITIAL_BUFFER_SIZE);
+    msg    = doGenerate(test, output);
+    if (msg != null) {
+      errors.append(msg);
+      return null;
+    }
+    result = output.toByteBuffer();
+    if (m_Cache != null)
+      m_Cache.put(key, result);
+
+    return result;
+  }
+
+  /**
+   * Generates the output in memory with a copy of this generator, using
+   * the specified executor. Cancelling the future stops the generation
+   * between triangles. Errors complete the future with a
+   * {@link GenerationException}.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param executor		the executor to generate the output with
+   * @return			the future for the encoded output
+   */
+  public CompletableFuture<ByteBuffer> generateAsync(Map<String,List<Double>> test, Executor executor) {
+    final AbstractOutputGenerator<T>		generator;
+    final CompletableFuture<ByteBuffer>		result;
+
+    generator = copy();
+    result    = new CompletableFuture<>();
+    result.whenComplete((ByteBuffer data, Throwable t) -> {
+      if (result.isCancelled())
+	generator.stopExecution();
+    });
+
+    try {
+      executor.execute(() -> {
+	if (result.isDone())
+	  return;
+	StringBuilder errors = new StringBuilder();
+	try {
+	  ByteBuffer data = generator.generate(test, errors);
+	  if (data == null)
+	    result.completeExceptionally(new GenerationException(errors.toString()));
+	  else
+	    result.complete(data);
+	}
+	catch (Throwable t) {
+	  result.completeExceptionally(new GenerationException("Failed to generate output: " + t, t));
+	}
+      });
+    }
+    catch (RejectedExecutionException e) {
+      result.completeExceptionally(new GenerationException("Failed to schedule generation: " + e, e));
+    }
+
+    return result;
+  }
+
+  /**
+   * Generates the output with a copy of this generator, using the specified
+   * executor, and writes it to the sink (not closed). Cancelling the future
+   * stops the generation between triangles. Errors complete the future with
+   * a {@link GenerationException}.
+   *
+   * @param test		the test results (measure - [score, percentile])
+   * @param sink		the stream to write the output to
+   * @param executor		the executor to generate the output with
+   * @return			the future, completing once the output is written
+   */
+  public CompletableFuture<Void> generateAsync(Map<String,List<Double>> test, OutputStream sink, Executor executor) {
+    final CompletableFuture<ByteBuffer>	generation;
+    final CompletableFuture<Void>	result;
+
+    generation = generateAsync(test, executor);
+    result     = generation.thenAccept((ByteBuffer data) -> {
+      try {
+	write(data, sink);
+      }
+      catch (IOException e) {
+	throw new CompletionException(new GenerationException("Failed to write output: " + e, e));
+      }
+    });
+    result.whenComplete((Void v, Throwable t) -> {
+      if (result.isCancelled())
+	generation.cancel(true);
+    });
+
+    return result;
+  }
+
   /**
    * Returns the default colors.
    *
@@ -50,6 +50,20 @@ public abstract class AbstractOutputGeneratorWithDimensions<T>
     setHeight(2000);
   }
 
+  /**
+   * Copies the settings of the other generator.
+   *
+   * @param other	the generator to copy the settings from
+   */
+  @Override
+  protected void assign(AbstractOutputGenerator other) {
+    super.assign(other);
+    if (other instanceof AbstractOutputGeneratorWithDimensions) {
+      m_Width  = ((AbstractOutputGeneratorWithDimensions) other).getWidth();
+      m_Height = ((AbstractOutputGeneratorWithDimensions) other).getHeight();
+    }
+  }
+
   /**
    * Sets the width to use.
    *
@@ -88,6 +102,17 @@ public abstract class AbstractOutputGeneratorWithDimensions<T>
     return m_Height;
   }
 
+  /**
+   * Returns a string representation of all the settings that influence
+   * the generated output.
+   *
+   * @return		the configuration
+   */
+  @Override
+  public String getConfigString() {
+    return super.getConfigString() + "|width=" + m_Width + "|height=" + m_Height;
+  }
+
   /**
    * Generates the intermediate data structure.
    *
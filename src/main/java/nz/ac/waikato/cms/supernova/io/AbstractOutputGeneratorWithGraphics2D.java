@@ -124,6 +124,10 @@ public abstract class AbstractOutputGeneratorWithGraphics2D<T>
 	m_Logger.info(measure + " - triangle center: " + tc[0] + "/" + tc[1]);
       for (cycle = 0; cycle < overallFlipCycles; cycle++) {
 	for (flip = 0; flip < numFlips.get(measure); flip++) {
+	  if (m_Stopped) {
+	    errors.append(STOPPED);
+	    return;
+	  }
 	  dx = (int) (cx - tc[0]);
 	  dy = (int) (cy - tc[1]);
 	  a  = rotate(new double[]{0, h}, tc, currentAngle);
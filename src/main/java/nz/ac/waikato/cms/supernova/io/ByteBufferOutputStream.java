@@ -0,0 +1,54 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * ByteBufferOutputStream.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte array output stream that can hand out its content as
+ * {@link ByteBuffer} without copying it.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class ByteBufferOutputStream
+  extends ByteArrayOutputStream {
+
+  /**
+   * Initializes the stream with the specified initial size.
+   *
+   * @param size	the initial size
+   */
+  public ByteBufferOutputStream(int size) {
+    super(size);
+  }
+
+  /**
+   * Returns the content as buffer, backed by the internal array.
+   * Must not be used while still writing to the stream.
+   *
+   * @return		the buffer (position 0, limit = size)
+   */
+  public synchronized ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(buf, 0, count);
+  }
+}
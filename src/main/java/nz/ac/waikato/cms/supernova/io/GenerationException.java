@@ -0,0 +1,54 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * GenerationException.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.io;
+
+/**
+ * Gets thrown if generating an output fails (asynchronous API).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ * @see AbstractOutputGenerator#generateAsync(java.util.Map, java.util.concurrent.Executor)
+ */
+public class GenerationException
+  extends Exception {
+
+  private static final long serialVersionUID = -2817349012874562201L;
+
+  /**
+   * Initializes the exception.
+   *
+   * @param message	the error message
+   */
+  public GenerationException(String message) {
+    super(message);
+  }
+
+  /**
+   * Initializes the exception.
+   *
+   * @param message	the error message
+   * @param cause	the cause
+   */
+  public GenerationException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -33,6 +33,7 @@ import java.awt.Graphics2D;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -134,4 +135,22 @@ public class PDF
 
     return null;
   }
+
+  /**
+   * Writes the encoded output to the stream. The stream is not closed.
+   *
+   * @param plot		the plot to save
+   * @param output		the stream to write the result to
+   * @return			null if successfully generated, otherwise error message
+   */
+  public String savePlot(ByteArrayOutputStream plot, OutputStream output) {
+    try {
+      plot.writeTo(output);
+    }
+    catch (Exception e) {
+      return "Failed to write output to stream: " + e;
+    }
+
+    return null;
+  }
 }
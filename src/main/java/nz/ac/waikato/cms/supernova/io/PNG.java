@@ -24,6 +24,7 @@ import javax.imageio.ImageIO;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -45,6 +46,18 @@ public class PNG
     return "png";
   }
 
+  /**
+   * Estimates the memory in bytes required for generating the output:
+   * the ARGB image plus roughly one byte per pixel for encoding.
+   *
+   * @param test	the test results (measure - [score, percentile])
+   * @return		the estimated memory
+   */
+  @Override
+  public long estimateMemory(Map<String,List<Double>> test) {
+    return (long) m_Width * m_Height * 5 + super.estimateMemory(test);
+  }
+
   /**
    * Generates the intermediate data structure.
    *
@@ -84,4 +97,22 @@ public class PNG
 
     return null;
   }
+
+  /**
+   * Writes the encoded output to the stream. The stream is not closed.
+   *
+   * @param plot		the plot to save
+   * @param output		the stream to write the result to
+   * @return			null if successfully generated, otherwise error message
+   */
+  public String savePlot(BufferedImage plot, OutputStream output) {
+    try {
+      ImageIO.write(plot, "png", output);
+    }
+    catch (Exception e) {
+      return "Failed to write output to stream: " + e;
+    }
+
+    return null;
+  }
 }
@@ -0,0 +1,92 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * PlotGeometry.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.io;
+
+import java.util.Map;
+
+/**
+ * The geometry parameters derived from the test results, i.e., everything
+ * that is needed for drawing the plot apart from the test results.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class PlotGeometry {
+
+  /** the angle. */
+  protected double m_Angle;
+
+  /** the number of flips per measure. */
+  protected Map<String,Integer> m_NumFlips;
+
+  /** the overall flip cycles. */
+  protected int m_OverallFlipCycles;
+
+  /**
+   * Initializes the geometry.
+   *
+   * @param angle		the angle
+   * @param numFlips		the number of flips per measure
+   * @param overallFlipCycles	the overall flip cycles
+   */
+  public PlotGeometry(double angle, Map<String,Integer> numFlips, int overallFlipCycles) {
+    m_Angle             = angle;
+    m_NumFlips          = numFlips;
+    m_OverallFlipCycles = overallFlipCycles;
+  }
+
+  /**
+   * Returns the angle.
+   *
+   * @return		the angle
+   */
+  public double getAngle() {
+    return m_Angle;
+  }
+
+  /**
+   * Returns the number of flips per measure.
+   *
+   * @return		the flips
+   */
+  public Map<String,Integer> getNumFlips() {
+    return m_NumFlips;
+  }
+
+  /**
+   * Returns the overall flip cycles.
+   *
+   * @return		the cycles
+   */
+  public int getOverallFlipCycles() {
+    return m_OverallFlipCycles;
+  }
+
+  /**
+   * Returns a short description of the geometry.
+   *
+   * @return		the description
+   */
+  @Override
+  public String toString() {
+    return "angle=" + m_Angle + ", #flips=" + m_NumFlips + ", overallFlipCycles=" + m_OverallFlipCycles;
+  }
+}
@@ -26,6 +26,9 @@ import org.jfree.graphics2d.svg.SVGGraphics2D;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -98,4 +101,26 @@ public class SVG
 
     return null;
   }
+
+  /**
+   * Writes the encoded output to the stream. The stream is not closed.
+   *
+   * @param plot		the plot to save
+   * @param output		the stream to write the result to
+   * @return			null if successfully generated, otherwise error message
+   */
+  public String savePlot(String plot, OutputStream output) {
+    OutputStreamWriter	writer;
+
+    try {
+      writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+      writer.write(plot);
+      writer.flush();
+    }
+    catch (Exception e) {
+      return "Failed to write output to stream: " + e;
+    }
+
+    return null;
+  }
 }
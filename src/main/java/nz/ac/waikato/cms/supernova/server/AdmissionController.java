@@ -0,0 +1,410 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * AdmissionController.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.server;
+
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Admits requests based on their estimated memory against a budget of
+ * CPU slots (concurrent generations) and memory. Requests that cannot be
+ * admitted straight away wait in a bounded queue (FIFO) for up to the
+ * queue timeout, requests beyond the queue size get rejected immediately.
+ * Small and large requests (see {@link #setLargeThreshold(long)}) have
+ * separate queues ("lanes") and large ones can only occupy a limited number
+ * of slots, so that a few poster-size requests cannot starve small ones.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class AdmissionController {
+
+  /** the lane for small requests. */
+  public static final int SMALL = 0;
+
+  /** the lane for large requests. */
+  public static final int LARGE = 1;
+
+  /**
+   * The outcome of an admission request. Admitted permits must be released
+   * via {@link AdmissionController#release(Permit)}.
+   */
+  public static class Permit {
+
+    /** the lane. */
+    protected int m_Lane;
+
+    /** the estimated memory. */
+    protected long m_Memory;
+
+    /** the reason for the rejection, null if admitted. */
+    protected String m_Error;
+
+    /**
+     * Initializes the permit.
+     *
+     * @param lane	the lane
+     * @param memory	the estimated memory
+     * @param error	the reason for the rejection, null if admitted
+     */
+    protected Permit(int lane, long memory, String error) {
+      m_Lane   = lane;
+      m_Memory = memory;
+      m_Error  = error;
+    }
+
+    /**
+     * Returns the lane.
+     *
+     * @return		the lane
+     */
+    public int getLane() {
+      return m_Lane;
+    }
+
+    /**
+     * Returns the estimated memory.
+     *
+     * @return		the memory in bytes
+     */
+    public long getMemory() {
+      return m_Memory;
+    }
+
+    /**
+     * Returns whether the request got admitted.
+     *
+     * @return		true if admitted
+     */
+    public boolean isAdmitted() {
+      return (m_Error == null);
+    }
+
+    /**
+     * Returns the reason for the rejection.
+     *
+     * @return		the reason, null if admitted
+     */
+    public String getError() {
+      return m_Error;
+    }
+  }
+
+  /** the number of slots. */
+  protected int m_Slots;
+
+  /** the number of slots that large requests can occupy. */
+  protected int m_LargeSlots;
+
+  /** the memory budget in bytes. */
+  protected long m_MaxMemory;
+
+  /** the memory from which on a request counts as large. */
+  protected long m_LargeThreshold;
+
+  /** the maximum number of waiting requests per lane. */
+  protected int m_MaxQueued;
+
+  /** the maximum time in msec to wait in the queue. */
+  protected long m_QueueTimeout;
+
+  /** the occupied slots. */
+  protected int m_UsedSlots;
+
+  /** the slots occupied by large requests. */
+  protected int m_UsedLargeSlots;
+
+  /** the memory in use. */
+  protected long m_UsedMemory;
+
+  /** the waiting requests per lane. */
+  protected Deque<Object>[] m_Queues;
+
+  /** the number of admitted requests. */
+  protected long m_Admitted;
+
+  /** the number of requests rejected because of a full queue. */
+  protected long m_Rejected;
+
+  /** the number of requests that timed out in the queue. */
+  protected long m_TimedOut;
+
+  /**
+   * Initializes the controller.
+   */
+  public AdmissionController() {
+    super();
+    initialize();
+  }
+
+  /**
+   * Initializes the members.
+   */
+  protected void initialize() {
+    m_Slots          = ThreadHelper.getNumCores();
+    m_LargeSlots     = Math.max(1, m_Slots / 2);
+    m_MaxMemory      = Runtime.getRuntime().maxMemory() / 2;
+    m_LargeThreshold = 16 * 1024L * 1024L;
+    m_MaxQueued      = 16;
+    m_QueueTimeout   = 5000;
+    m_UsedSlots      = 0;
+    m_UsedLargeSlots = 0;
+    m_UsedMemory     = 0;
+    m_Queues         = new Deque[]{new ArrayDeque<>(), new ArrayDeque<>()};
+    m_Admitted       = 0;
+    m_Rejected       = 0;
+    m_TimedOut       = 0;
+  }
+
+  /**
+   * Sets the number of slots, i.e., concurrent generations.
+   *
+   * @param value	the slots, 0 for the number of cores
+   */
+  public synchronized void setSlots(int value) {
+    if (value <= 0)
+      value = ThreadHelper.getNumCores();
+    m_Slots = value;
+  }
+
+  /**
+   * Returns the number of slots, i.e., concurrent generations.
+   *
+   * @return		the slots
+   */
+  public synchronized int getSlots() {
+    return m_Slots;
+  }
+
+  /**
+   * Sets the number of slots that large requests can occupy.
+   *
+   * @param value	the slots, 0 for half of the slots
+   */
+  public synchronized void setLargeSlots(int value) {
+    if (value <= 0)
+      value = Math.max(1, m_Slots / 2);
+    m_LargeSlots = value;
+  }
+
+  /**
+   * Returns the number of slots that large requests can occupy.
+   *
+   * @return		the slots
+   */
+  public synchronized int getLargeSlots() {
+    return m_LargeSlots;
+  }
+
+  /**
+   * Sets the memory budget.
+   *
+   * @param value	the budget in bytes
+   */
+  public synchronized void setMaxMemory(long value) {
+    m_MaxMemory = value;
+  }
+
+  /**
+   * Returns the memory budget.
+   *
+   * @return		the budget in bytes
+   */
+  public synchronized long getMaxMemory() {
+    return m_MaxMemory;
+  }
+
+  /**
+   * Sets the estimated memory from which on requests count as large.
+   *
+   * @param value	the threshold in bytes
+   */
+  public synchronized void setLargeThreshold(long value) {
+    m_LargeThreshold = value;
+  }
+
+  /**
+   * Returns the estimated memory from which on requests count as large.
+   *
+   * @return		the threshold in bytes
+   */
+  public synchronized long getLargeThreshold() {
+    return m_LargeThreshold;
+  }
+
+  /**
+   * Sets the maximum number of waiting requests per lane.
+   *
+   * @param value	the maximum, 0 to reject if not admitted straight away
+   */
+  public synchronized void setMaxQueued(int value) {
+    m_MaxQueued = value;
+  }
+
+  /**
+   * Returns the maximum number of waiting requests per lane.
+   *
+   * @return		the maximum
+   */
+  public synchronized int getMaxQueued() {
+    return m_MaxQueued;
+  }
+
+  /**
+   * Sets the maximum time to wait in the queue.
+   *
+   * @param value	the timeout in msec
+   */
+  public synchronized void setQueueTimeout(long value) {
+    m_QueueTimeout = value;
+  }
+
+  /**
+   * Returns the maximum time to wait in the queue.
+   *
+   * @return		the timeout in msec
+   */
+  public synchronized long getQueueTimeout() {
+    return m_QueueTimeout;
+  }
+
+  /**
+   * Returns the lane for the estimated memory.
+   *
+   * @param memory	the estimated memory in bytes
+   * @return		the lane
+   */
+  public synchronized int getLane(long memory) {
+    return (memory >= m_LargeThreshold) ? LARGE : SMALL;
+  }
+
+  /**
+   * Checks whether a request can get admitted with the current usage.
+   *
+   * @param lane	the lane of the request
+   * @param memory	the estimated memory
+   * @return		true if it can get admitted
+   */
+  protected boolean canAdmit(int lane, long memory) {
+    if (m_UsedSlots >= m_Slots)
+      return false;
+    if ((lane == LARGE) && (m_UsedLargeSlots >= m_LargeSlots))
+      return false;
+    return (m_UsedMemory + memory <= m_MaxMemory);
+  }
+
+  /**
+   * Occupies slot and memory for the request.
+   *
+   * @param lane	the lane of the request
+   * @param memory	the estimated memory
+   * @return		the permit
+   */
+  protected Permit admit(int lane, long memory) {
+    m_UsedSlots++;
+    if (lane == LARGE)
+      m_UsedLargeSlots++;
+    m_UsedMemory += memory;
+    m_Admitted++;
+    return new Permit(lane, memory, null);
+  }
+
+  /**
+   * Tries to admit a request with the estimated memory, waiting in the
+   * queue of its lane if necessary.
+   *
+   * @param memory	the estimated memory in bytes
+   * @return		the permit, check {@link Permit#isAdmitted()}
+   */
+  public synchronized Permit acquire(long memory) {
+    int		lane;
+    Object	token;
+    long	end;
+    long	remaining;
+
+    lane = getLane(memory);
+    if (memory > m_MaxMemory) {
+      m_Rejected++;
+      return new Permit(lane, memory, "Request too large: needs " + (memory / 1024 / 1024) + "MB, budget is " + (m_MaxMemory / 1024 / 1024) + "MB");
+    }
+    if (m_Queues[lane].isEmpty() && canAdmit(lane, memory))
+      return admit(lane, memory);
+    if (m_Queues[lane].size() >= m_MaxQueued) {
+      m_Rejected++;
+      return new Permit(lane, memory, "Too many requests queued (" + (lane == LARGE ? "large" : "small") + ")");
+    }
+
+    token = new Object();
+    m_Queues[lane].addLast(token);
+    end = System.currentTimeMillis() + m_QueueTimeout;
+    try {
+      while (true) {
+	if ((m_Queues[lane].peekFirst() == token) && canAdmit(lane, memory)) {
+	  m_Queues[lane].removeFirst();
+	  // the next one in line may fit as well
+	  notifyAll();
+	  return admit(lane, memory);
+	}
+	remaining = end - System.currentTimeMillis();
+	if (remaining <= 0) {
+	  m_Queues[lane].remove(token);
+	  notifyAll();
+	  m_TimedOut++;
+	  return new Permit(lane, memory, "Timed out waiting for admission");
+	}
+	wait(remaining);
+      }
+    }
+    catch (InterruptedException e) {
+      m_Queues[lane].remove(token);
+      notifyAll();
+      Thread.currentThread().interrupt();
+      return new Permit(lane, memory, "Interrupted while waiting for admission");
+    }
+  }
+
+  /**
+   * Releases slot and memory of an admitted request.
+   *
+   * @param permit	the permit to release, ignored if null or not admitted
+   */
+  public synchronized void release(Permit permit) {
+    if ((permit == null) || !permit.isAdmitted())
+      return;
+    m_UsedSlots--;
+    if (permit.getLane() == LARGE)
+      m_UsedLargeSlots--;
+    m_UsedMemory -= permit.getMemory();
+    notifyAll();
+  }
+
+  /**
+   * Returns the statistics as string.
+   *
+   * @return		the statistics
+   */
+  public synchronized String getStatistics() {
+    return "Admission: " + m_Admitted + " admitted, " + m_Rejected + " rejected, " + m_TimedOut + " timed out";
+  }
+}
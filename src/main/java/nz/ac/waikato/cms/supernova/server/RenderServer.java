@@ -0,0 +1,677 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * RenderServer.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import nz.ac.waikato.cms.supernova.Supernova;
+import nz.ac.waikato.cms.supernova.cache.RenderCache;
+import nz.ac.waikato.cms.supernova.cache.SingleFlight;
+import nz.ac.waikato.cms.supernova.core.Registry;
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.triangle.AbstractTriangleCenterCalculation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP service for generating outputs, using the JDK's built-in server.
+ * GET requests to {@link #CONTEXT} take the same parameters as
+ * {@link Supernova} (without the leading dashes) in the query string, e.g.:
+ * <pre>
+ * /render?openness_score=4.3&amp;openness_percentile=59&amp;...&amp;generator=PNG&amp;width=500
+ * </pre>
+ * The ETag of a response is the content key of the profile and generator
+ * settings, so a matching If-None-Match gets answered with 304 without
+ * generating the output. Concurrent requests for the same output share a
+ * single generation (see {@link SingleFlight}). With an
+ * {@link AdmissionController}, requests get admitted based on their
+ * estimated memory and rejected with 503 when overloaded. Responses have a fixed
+ * length, so connections are kept alive.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class RenderServer {
+
+  /** the path for rendering. */
+  public static final String CONTEXT = "/render";
+
+  /** the default port. */
+  public static final int DEFAULT_PORT = 8080;
+
+  /** the default address to listen on (loopback only). */
+  public static final String DEFAULT_ADDRESS = "127.0.0.1";
+
+  /** the system property for the idle time of keep-alive connections (seconds). */
+  public static final String PROPERTY_IDLE_INTERVAL = "sun.net.httpserver.idleInterval";
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** the port to listen on (0 for any free one). */
+  protected int m_Port;
+
+  /** the address to listen on (0.0.0.0 for all interfaces). */
+  protected String m_Address;
+
+  /** the maximum number of pending connections (0 for system default). */
+  protected int m_Backlog;
+
+  /** the executor for handling the requests. */
+  protected ExecutorService m_Executor;
+
+  /** the executor for rejecting requests that the handlers cannot take on, can be null. */
+  protected ExecutorService m_Overflow;
+
+  /** whether the current thread is rejecting a request. */
+  protected ThreadLocal<Boolean> m_Overloaded;
+
+  /** the cache for the outputs, can be null. */
+  protected RenderCache m_Cache;
+
+  /** for coalescing concurrent requests for the same output, can be null. */
+  protected SingleFlight<String,ByteBuffer> m_SingleFlight;
+
+  /** the admission control, can be null. */
+  protected AdmissionController m_Admission;
+
+  /** the max-age of the responses in seconds (negative to omit). */
+  protected int m_MaxAge;
+
+  /** the parser for the parameters. */
+  protected ArgumentParser m_Parser;
+
+  /** the generators of the threads (classname - generator). */
+  protected ThreadLocal<Map<String,AbstractOutputGenerator>> m_Generators;
+
+  /** the center calculations of the threads (classname - calculation). */
+  protected ThreadLocal<Map<String,AbstractTriangleCenterCalculation>> m_Centers;
+
+  /** the server. */
+  protected HttpServer m_Server;
+
+  /**
+   * Initializes the server.
+   */
+  public RenderServer() {
+    super();
+    initialize();
+  }
+
+  /**
+   * Initializes the members.
+   */
+  protected void initialize() {
+    m_Logger       = Logger.getLogger(getClass().getName());
+    m_Port         = DEFAULT_PORT;
+    m_Address      = DEFAULT_ADDRESS;
+    m_Backlog      = 0;
+    m_Executor     = null;
+    m_Overflow     = null;
+    m_Overloaded   = ThreadLocal.withInitial(() -> false);
+    m_Cache        = null;
+    m_SingleFlight = new SingleFlight<>();
+    m_Admission    = null;
+    m_MaxAge       = 3600;
+    m_Parser       = Supernova.createParser();
+    m_Generators   = ThreadLocal.withInitial(HashMap::new);
+    m_Centers      = ThreadLocal.withInitial(HashMap::new);
+    m_Server       = null;
+  }
+
+  /**
+   * Sets the port to listen on.
+   *
+   * @param value	the port, 0 for any free one
+   */
+  public void setPort(int value) {
+    m_Port = value;
+  }
+
+  /**
+   * Returns the port to listen on. Once started, the actual port.
+   *
+   * @return		the port
+   */
+  public int getPort() {
+    if (m_Server != null)
+      return m_Server.getAddress().getPort();
+    return m_Port;
+  }
+
+  /**
+   * Sets the address to listen on.
+   *
+   * @param value	the address, 0.0.0.0 for all interfaces
+   */
+  public void setAddress(String value) {
+    m_Address = value;
+  }
+
+  /**
+   * Returns the address to listen on.
+   *
+   * @return		the address
+   */
+  public String getAddress() {
+    return m_Address;
+  }
+
+  /**
+   * Sets the maximum number of pending connections.
+   *
+   * @param value	the backlog, 0 for system default
+   */
+  public void setBacklog(int value) {
+    m_Backlog = value;
+  }
+
+  /**
+   * Returns the maximum number of pending connections.
+   *
+   * @return		the backlog, 0 for system default
+   */
+  public int getBacklog() {
+    return m_Backlog;
+  }
+
+  /**
+   * Sets the executor for handling the requests.
+   *
+   * @param value	the executor, null to handle them on the dispatcher thread
+   */
+  public void setExecutor(ExecutorService value) {
+    m_Executor = value;
+  }
+
+  /**
+   * Returns the executor for handling the requests.
+   *
+   * @return		the executor, null if using the dispatcher thread
+   */
+  public ExecutorService getExecutor() {
+    return m_Executor;
+  }
+
+  /**
+   * Creates a pool of platform threads for handling the requests with a
+   * bounded queue. Requests that find the queue full get answered with 503
+   * on a separate thread right away, instead of waiting for a handler.
+   *
+   * @param numThreads	the number of handler threads
+   * @param queueSize	the number of requests waiting for a handler, 0 for none
+   * @return		the executor, to be set via {@link #setExecutor(ExecutorService)}
+   */
+  public ExecutorService newBoundedExecutor(int numThreads, int queueSize) {
+    BlockingQueue<Runnable>	queue;
+
+    if (m_Overflow == null)
+      m_Overflow = Executors.newSingleThreadExecutor(ThreadHelper.newPlatformThreadFactory("http-overflow"));
+    if (queueSize > 0)
+      queue = new ArrayBlockingQueue<>(queueSize);
+    else
+      queue = new SynchronousQueue<>();
+
+    return new ThreadPoolExecutor(
+      numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, queue, ThreadHelper.newPlatformThreadFactory("http"),
+      (Runnable r, ThreadPoolExecutor executor) -> m_Overflow.execute(() -> {
+	m_Overloaded.set(true);
+	try {
+	  r.run();
+	}
+	finally {
+	  m_Overloaded.remove();
+	}
+      }));
+  }
+
+  /**
+   * Sets the cache for the outputs.
+   *
+   * @param value	the cache, null to disable
+   */
+  public void setCache(RenderCache value) {
+    m_Cache = value;
+  }
+
+  /**
+   * Returns the cache for the outputs.
+   *
+   * @return		the cache, null if disabled
+   */
+  public RenderCache getCache() {
+    return m_Cache;
+  }
+
+  /**
+   * Sets the coalescing of concurrent requests for the same output.
+   *
+   * @param value	the coalescing, null to disable
+   */
+  public void setSingleFlight(SingleFlight<String,ByteBuffer> value) {
+    m_SingleFlight = value;
+  }
+
+  /**
+   * Returns the coalescing of concurrent requests for the same output.
+   *
+   * @return		the coalescing, null if disabled
+   */
+  public SingleFlight<String,ByteBuffer> getSingleFlight() {
+    return m_SingleFlight;
+  }
+
+  /**
+   * Sets the admission control.
+   *
+   * @param value	the admission control, null to admit all requests
+   */
+  public void setAdmission(AdmissionController value) {
+    m_Admission = value;
+  }
+
+  /**
+   * Returns the admission control.
+   *
+   * @return		the admission control, null if all requests get admitted
+   */
+  public AdmissionController getAdmission() {
+    return m_Admission;
+  }
+
+  /**
+   * Sets the max-age for the Cache-Control header.
+   *
+   * @param value	the max-age in seconds, negative to omit the header
+   */
+  public void setMaxAge(int value) {
+    m_MaxAge = value;
+  }
+
+  /**
+   * Returns the max-age for the Cache-Control header.
+   *
+   * @return		the max-age in seconds, negative if omitted
+   */
+  public int getMaxAge() {
+    return m_MaxAge;
+  }
+
+  /**
+   * Sets how long idle keep-alive connections are kept open. Must be called
+   * before the first server gets created, as the JDK reads it only once.
+   *
+   * @param seconds	the idle time in seconds
+   */
+  public static void setIdleInterval(int seconds) {
+    System.setProperty(PROPERTY_IDLE_INTERVAL, "" + seconds);
+  }
+
+  /**
+   * Starts the server.
+   *
+   * @return		null if successfully started, otherwise error message
+   */
+  public String start() {
+    if (m_Server != null)
+      return "Server already started!";
+
+    try {
+      m_Server = HttpServer.create(new InetSocketAddress(m_Address, m_Port), m_Backlog);
+    }
+    catch (IOException e) {
+      return "Failed to listen on " + m_Address + ":" + m_Port + ": " + e;
+    }
+    m_Server.createContext(CONTEXT, this::handle);
+    m_Server.setExecutor(m_Executor);
+    m_Server.start();
+    m_Logger.info("Listening on " + m_Address + ":" + getPort());
+
+    return null;
+  }
+
+  /**
+   * Turns the query string into command-line options. Parameters without
+   * value or with value "true" become flags, "false" omits them.
+   *
+   * @param query	the raw query, can be null
+   * @return		the options
+   * @throws IllegalArgumentException	if a parameter is not supported
+   * @throws UnsupportedEncodingException	never (UTF-8 is always supported)
+   */
+  protected List<String> toOptions(String query) throws UnsupportedEncodingException {
+    List<String>	result;
+    String		key;
+    String		value;
+    int			pos;
+
+    result = new ArrayList<>();
+    if (query == null)
+      return result;
+
+    for (String param: query.split("&")) {
+      if (param.isEmpty())
+	continue;
+      pos = param.indexOf('=');
+      if (pos == -1) {
+	key   = URLDecoder.decode(param, "UTF-8");
+	value = "";
+      }
+      else {
+	key   = URLDecoder.decode(param.substring(0, pos), "UTF-8");
+	value = URLDecoder.decode(param.substring(pos + 1), "UTF-8");
+      }
+      if (key.equals(Supernova.OUTPUT) || key.startsWith("-"))
+	throw new IllegalArgumentException("Unsupported parameter: " + key);
+      if (value.equals("false"))
+	continue;
+      result.add("--" + key);
+      if (!value.isEmpty() && !value.equals("true"))
+	result.add(value);
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the registered class with the specified name. Only registered
+   * classes get instantiated, as the name comes from the request.
+   *
+   * @param classes	the registered classes
+   * @param cls		the classname to look for
+   * @param type	the type of class, for the error message
+   * @return		the class
+   * @throws IllegalArgumentException	if not registered
+   */
+  protected Class getRegistered(Class[] classes, String cls, String type) {
+    for (Class c: classes) {
+      if (c.getName().equals(cls))
+	return c;
+    }
+    throw new IllegalArgumentException("Unknown " + type + ": " + cls);
+  }
+
+  /**
+   * Returns the generator of the current thread for the options.
+   *
+   * @param namespace	the parsed options
+   * @return		the configured generator
+   * @throws IllegalArgumentException	if generator or center are not registered
+   * @throws Exception	if instantiation fails
+   */
+  protected AbstractOutputGenerator getGenerator(Namespace namespace) throws Exception {
+    AbstractOutputGenerator		result;
+    AbstractTriangleCenterCalculation	center;
+    String				cls;
+
+    cls    = Supernova.getCenterClassname(namespace);
+    center = m_Centers.get().get(cls);
+    if (center == null) {
+      center = (AbstractTriangleCenterCalculation) getRegistered(Registry.getCenters(), cls, "center").newInstance();
+      m_Centers.get().put(cls, center);
+    }
+
+    cls    = Supernova.getGeneratorClassname(namespace);
+    result = m_Generators.get().get(cls);
+    if (result == null) {
+      result = (AbstractOutputGenerator) getRegistered(Registry.getGenerators(), cls, "generator").newInstance();
+      m_Generators.get().put(cls, result);
+    }
+    Supernova.configure(result, center, namespace);
+    result.setCache(m_Cache);
+    result.setSingleFlight(m_SingleFlight);
+
+    return result;
+  }
+
+  /**
+   * Returns the content type for the extension.
+   *
+   * @param ext		the extension (without dot)
+   * @return		the content type
+   */
+  protected String getContentType(String ext) {
+    switch (ext.toLowerCase()) {
+      case "png":
+	return "image/png";
+      case "svg":
+	return "image/svg+xml";
+      case "pdf":
+	return "application/pdf";
+      default:
+	return "application/octet-stream";
+    }
+  }
+
+  /**
+   * Checks whether the If-None-Match header matches the ETag.
+   *
+   * @param exchange	the exchange to check
+   * @param etag	the (quoted) ETag of the output
+   * @return		true if matching
+   */
+  protected boolean matches(HttpExchange exchange, String etag) {
+    List<String>	values;
+    String		tag;
+
+    values = exchange.getRequestHeaders().get("If-None-Match");
+    if (values == null)
+      return false;
+    for (String value: values) {
+      for (String part: value.split(",")) {
+	tag = part.trim();
+	if (tag.startsWith("W/"))
+	  tag = tag.substring(2);
+	if (tag.equals("*") || tag.equals(etag))
+	  return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Sends a plain text response.
+   *
+   * @param exchange	the exchange to respond to
+   * @param code	the status code
+   * @param msg		the message
+   * @throws IOException	if sending fails
+   */
+  protected void sendText(HttpExchange exchange, int code, String msg) throws IOException {
+    byte[]	data;
+
+    data = (msg + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(code, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(code, data.length);
+    exchange.getResponseBody().write(data);
+  }
+
+  /**
+   * Sends the encoded output.
+   *
+   * @param exchange	the exchange to respond to
+   * @param data	the output
+   * @throws IOException	if sending fails
+   */
+  protected void sendData(HttpExchange exchange, ByteBuffer data) throws IOException {
+    OutputStream	out;
+    WritableByteChannel	channel;
+    ByteBuffer		buffer;
+
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    buffer = data.duplicate();
+    exchange.sendResponseHeaders(200, buffer.remaining());
+    out = exchange.getResponseBody();
+    if (buffer.hasArray()) {
+      out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    else {
+      channel = Channels.newChannel(out);
+      while (buffer.hasRemaining())
+	channel.write(buffer);
+    }
+  }
+
+  /**
+   * Handles the request.
+   *
+   * @param exchange	the exchange to handle
+   * @throws IOException	if sending the response fails
+   */
+  protected void handle(HttpExchange exchange) throws IOException {
+    Namespace			namespace;
+    AbstractOutputGenerator	generator;
+    Map<String,List<Double>>	test;
+    StringBuilder		errors;
+    ByteBuffer			data;
+    String			key;
+    String			etag;
+    AdmissionController.Permit	permit;
+
+    try {
+      if (m_Overloaded.get()) {
+	exchange.getResponseHeaders().set("Retry-After", "1");
+	sendText(exchange, 503, "Too many requests waiting");
+	return;
+      }
+      if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+	exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+	sendText(exchange, 405, "Method not allowed: " + exchange.getRequestMethod());
+	return;
+      }
+      if (!exchange.getRequestURI().getPath().equals(CONTEXT)) {
+	sendText(exchange, 404, "Not found: " + exchange.getRequestURI().getPath());
+	return;
+      }
+
+      try {
+	synchronized (m_Parser) {
+	  namespace = m_Parser.parseArgs(toOptions(exchange.getRequestURI().getRawQuery()).toArray(new String[0]));
+	}
+	generator = getGenerator(namespace);
+      }
+      catch (ArgumentParserException | IllegalArgumentException e) {
+	sendText(exchange, 400, e.getMessage());
+	return;
+      }
+
+      test      = Supernova.getTest(namespace);
+      key       = generator.getCacheKey(test);
+      etag      = "\"" + key + "\"";
+      exchange.getResponseHeaders().set("ETag", etag);
+      if (m_MaxAge >= 0)
+	exchange.getResponseHeaders().set("Cache-Control", "public, max-age=" + m_MaxAge);
+      if (matches(exchange, etag)) {
+	exchange.sendResponseHeaders(304, -1);
+	return;
+      }
+
+      // requests joining an identical generation in flight don't need a slot
+      permit = null;
+      if ((m_Admission != null) && ((m_SingleFlight == null) || !m_SingleFlight.isInFlight(key))) {
+	permit = m_Admission.acquire(generator.estimateMemory(test));
+	if (!permit.isAdmitted()) {
+	  exchange.getResponseHeaders().remove("ETag");
+	  exchange.getResponseHeaders().remove("Cache-Control");
+	  exchange.getResponseHeaders().set("Retry-After", "1");
+	  sendText(exchange, 503, permit.getError());
+	  return;
+	}
+      }
+      errors = new StringBuilder();
+      try {
+	data = generator.generate(test, errors);
+      }
+      finally {
+	if (permit != null)
+	  m_Admission.release(permit);
+      }
+      if (data == null) {
+	exchange.getResponseHeaders().remove("ETag");
+	exchange.getResponseHeaders().remove("Cache-Control");
+	sendText(exchange, 500, errors.toString());
+	return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", getContentType(generator.getExtension()));
+      sendData(exchange, data);
+    }
+    catch (IOException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      m_Logger.log(Level.SEVERE, "Failed to handle request: " + exchange.getRequestURI(), e);
+      sendText(exchange, 500, e.toString());
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Stops the server.
+   *
+   * @param delay	the maximum time in seconds to wait for active requests
+   */
+  public void stop(int delay) {
+    if (m_Server == null)
+      return;
+    m_Server.stop(delay);
+    m_Server = null;
+    if (m_Executor != null)
+      m_Executor.shutdown();
+    if (m_Overflow != null)
+      m_Overflow.shutdown();
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * AbstractOutputSink.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.sink;
+
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Ancestor for sinks that store the outputs of a batch run under their ID.
+ * Writing and linking must be thread-safe, as batch runs can use multiple
+ * threads.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public abstract class AbstractOutputSink {
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** verbose flag. */
+  protected boolean m_Verbose;
+
+  /** the output location. */
+  protected File m_Output;
+
+  /**
+   * Default constructor.
+   *
+   * @see #initialize()
+   */
+  protected AbstractOutputSink() {
+    initialize();
+  }
+
+  /**
+   * For initializing the members.
+   */
+  protected void initialize() {
+    m_Logger  = Logger.getLogger(getClass().getName());
+    m_Verbose = false;
+    m_Output  = new File(".");
+  }
+
+  /**
+   * Sets whether to use verbose mode.
+   *
+   * @param value	true if to use verbose
+   */
+  public void setVerbose(boolean value) {
+    m_Verbose = value;
+  }
+
+  /**
+   * Returns whether to use verbose mode.
+   *
+   * @return		true if to use verbose
+   */
+  public boolean getVerbose() {
+    return m_Verbose;
+  }
+
+  /**
+   * Sets the output location (usually a directory).
+   *
+   * @param value	the output
+   */
+  public void setOutput(File value) {
+    m_Output = value;
+  }
+
+  /**
+   * Returns the output location (usually a directory).
+   *
+   * @return		the output
+   */
+  public File getOutput() {
+    return m_Output;
+  }
+
+  /**
+   * Prepares the sink for writing.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String open() {
+    return null;
+  }
+
+  /**
+   * Generates and stores the output for the ID.
+   *
+   * @param id			the ID of the output
+   * @param generator		the generator to use
+   * @param test		the test results (measure - [score, percentile])
+   * @return			null if successfully generated, otherwise error message
+   */
+  public abstract <T> String write(String id, AbstractOutputGenerator<T> generator, Map<String,List<Double>> test);
+
+  /**
+   * Stores the already encoded output for the ID.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @param data		the encoded output
+   * @return			null if successfully stored, otherwise error message
+   */
+  public abstract String write(String id, String extension, ByteBuffer data);
+
+  /**
+   * Makes the output of an already written ID available under another ID
+   * as well, without generating it again (content-addressed deduplication).
+   *
+   * @param id			the ID of the duplicate
+   * @param existing		the ID of the output already written
+   * @param generator		the generator that was used
+   * @return			null if successfully linked, otherwise error message
+   */
+  public abstract String link(String id, String existing, AbstractOutputGenerator generator);
+
+  /**
+   * Returns where the output for the ID gets stored, e.g., for the run
+   * manifest.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @return			the location
+   */
+  public String getLocation(String id, String extension) {
+    return id + "." + extension;
+  }
+
+  /**
+   * Returns the size of the stored output for the ID.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @return			the size in bytes, -1 if not present or unknown
+   */
+  public long size(String id, String extension) {
+    return -1;
+  }
+
+  /**
+   * Finishes up writing.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String close() {
+    return null;
+  }
+}
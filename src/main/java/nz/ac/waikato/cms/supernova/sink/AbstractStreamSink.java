@@ -0,0 +1,381 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * AbstractStreamSink.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.sink;
+
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Ancestor for sinks that write all outputs sequentially into a single
+ * stream, either stdout (output "-") or a file, e.g., for Unix pipelines.
+ * The outputs get handed to a writer thread via a bounded queue, so that
+ * writing overlaps with generating while memory stays constant; a slow
+ * consumer blocks the generation once the queue is full.
+ * <br>
+ * As writing happens asynchronously, write errors (e.g., the consumer
+ * closing the pipe) get reported by subsequent writes and by
+ * {@link #close()}.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public abstract class AbstractStreamSink
+  extends AbstractOutputSink {
+
+  /** the output that represents stdout. */
+  public static final String STDOUT = "-";
+
+  /** the buffer size for the stream. */
+  public static final int BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * An output (or link) waiting to be written.
+   */
+  protected static class Entry {
+
+    /** the name of the output. */
+    public String name;
+
+    /** the encoded output, null if link. */
+    public ByteBuffer data;
+
+    /** the name of the linked output, null if not a link. */
+    public String link;
+  }
+
+  /** marks the end of the queue. */
+  protected static final Entry END = new Entry();
+
+  /** the maximum number of outputs waiting to be written. */
+  protected int m_QueueSize;
+
+  /** the outputs waiting to be written. */
+  protected BlockingQueue<Entry> m_Queue;
+
+  /** the stream to write to. */
+  protected DataOutputStream m_Stream;
+
+  /** the writer thread. */
+  protected Thread m_Writer;
+
+  /** the first write error, null if none. */
+  protected volatile String m_Error;
+
+  /**
+   * For initializing the members.
+   */
+  @Override
+  protected void initialize() {
+    super.initialize();
+    m_QueueSize = 64;
+    m_Queue     = null;
+    m_Stream    = null;
+    m_Writer    = null;
+    m_Error     = null;
+  }
+
+  /**
+   * Sets the maximum number of outputs waiting to be written.
+   *
+   * @param value	the maximum
+   */
+  public void setQueueSize(int value) {
+    if (value > 0)
+      m_QueueSize = value;
+  }
+
+  /**
+   * Returns the maximum number of outputs waiting to be written.
+   *
+   * @return		the maximum
+   */
+  public int getQueueSize() {
+    return m_QueueSize;
+  }
+
+  /**
+   * Returns whether the outputs get written to stdout.
+   *
+   * @return		true if stdout
+   */
+  public boolean isStdout() {
+    return m_Output.getPath().equals(STDOUT);
+  }
+
+  /**
+   * Opens the stream and starts the writer thread.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  @Override
+  public String open() {
+    OutputStream	out;
+
+    try {
+      if (isStdout()) {
+	// not System.out, which swallows errors
+	out = new FileOutputStream(FileDescriptor.out);
+      }
+      else {
+	if ((m_Output.getParentFile() != null) && !m_Output.getParentFile().exists() && !m_Output.getParentFile().mkdirs())
+	  return "Failed to create output directory: " + m_Output.getParentFile();
+	out = new FileOutputStream(m_Output);
+      }
+      m_Stream = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+      writeHeader(m_Stream);
+    }
+    catch (Exception e) {
+      return "Failed to open output stream '" + m_Output + "': " + e;
+    }
+
+    m_Error  = null;
+    m_Queue  = new ArrayBlockingQueue<>(m_QueueSize);
+    m_Writer = new Thread(this::drain, "supernova-" + getClass().getSimpleName());
+    m_Writer.setDaemon(true);
+    m_Writer.start();
+
+    return null;
+  }
+
+  /**
+   * Writes the outputs in the queue until the end marker is encountered.
+   * After an error, outputs get discarded (so that producers do not block).
+   */
+  protected void drain() {
+    Entry	entry;
+
+    while (true) {
+      try {
+	entry = m_Queue.take();
+      }
+      catch (InterruptedException e) {
+	m_Error = "Interrupted while writing to '" + m_Output + "'";
+	return;
+      }
+      if (entry == END)
+	return;
+      if (m_Error != null)
+	continue;
+      try {
+	writeEntry(m_Stream, entry);
+	// hand on to the consumer right away unless more outputs are waiting
+	if (m_Queue.isEmpty())
+	  m_Stream.flush();
+      }
+      catch (Exception e) {
+	m_Error = "Failed to write '" + entry.name + "' to '" + m_Output + "': " + e;
+	m_Logger.severe(m_Error);
+      }
+    }
+  }
+
+  /**
+   * Returns the first write error, e.g., for aborting when the consumer
+   * has closed the pipe.
+   *
+   * @return		the error, null if none
+   */
+  public String getError() {
+    return m_Error;
+  }
+
+  /**
+   * Queues the entry for writing, blocks while the queue is full.
+   *
+   * @param entry	the entry to write
+   * @return		null if successfully queued, otherwise error message
+   */
+  protected String queue(Entry entry) {
+    if (m_Error != null)
+      return m_Error;
+    if (m_Queue == null)
+      return "Stream not open!";
+
+    try {
+      m_Queue.put(entry);
+    }
+    catch (InterruptedException e) {
+      return "Interrupted while queuing '" + entry.name + "'";
+    }
+    if (m_Verbose)
+      m_Logger.info("Queued: " + entry.name);
+
+    return null;
+  }
+
+  /**
+   * Generates and writes the output for the ID.
+   *
+   * @param id			the ID of the output
+   * @param generator		the generator to use
+   * @param test		the test results (measure - [score, percentile])
+   * @return			null if successfully generated, otherwise error message
+   */
+  @Override
+  public <T> String write(String id, AbstractOutputGenerator<T> generator, Map<String,List<Double>> test) {
+    StringBuilder	errors;
+    ByteBuffer		data;
+
+    errors = new StringBuilder();
+    data   = generator.generate(test, errors);
+    if (data == null)
+      return errors.toString();
+
+    return write(id, generator.getExtension(), data);
+  }
+
+  /**
+   * Writes the already encoded output for the ID.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @param data		the encoded output
+   * @return			null if successfully queued, otherwise error message
+   */
+  @Override
+  public String write(String id, String extension, ByteBuffer data) {
+    Entry	entry;
+
+    entry      = new Entry();
+    entry.name = getLocation(id, extension);
+    entry.data = data;
+
+    return queue(entry);
+  }
+
+  /**
+   * Writes a reference to an already written output.
+   *
+   * @param id			the ID of the duplicate
+   * @param existing		the ID of the output already written
+   * @param generator		the generator that was used
+   * @return			null if successfully queued, otherwise error message
+   */
+  @Override
+  public String link(String id, String existing, AbstractOutputGenerator generator) {
+    Entry	entry;
+
+    entry      = new Entry();
+    entry.name = getLocation(id, generator.getExtension());
+    entry.link = getLocation(existing, generator.getExtension());
+
+    return queue(entry);
+  }
+
+  /**
+   * Writes the bytes of the buffer (position to limit) to the stream,
+   * without modifying the buffer.
+   *
+   * @param out		the stream to write to
+   * @param data	the data to write
+   * @throws IOException	if writing fails
+   */
+  protected static void writeData(OutputStream out, ByteBuffer data) throws IOException {
+    byte[]	buffer;
+
+    data = data.duplicate();
+    if (data.hasArray()) {
+      out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+    else {
+      buffer = new byte[data.remaining()];
+      data.get(buffer);
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Writes any data that precedes the outputs.
+   *
+   * @param out		the stream to write to
+   * @throws IOException	if writing fails
+   */
+  protected void writeHeader(DataOutputStream out) throws IOException {
+  }
+
+  /**
+   * Writes the output (or link).
+   *
+   * @param out		the stream to write to
+   * @param entry	the entry to write
+   * @throws IOException	if writing fails
+   */
+  protected abstract void writeEntry(DataOutputStream out, Entry entry) throws IOException;
+
+  /**
+   * Writes any data that follows the outputs.
+   *
+   * @param out		the stream to write to
+   * @throws IOException	if writing fails
+   */
+  protected void writeTrailer(DataOutputStream out) throws IOException {
+  }
+
+  /**
+   * Waits for the queued outputs to be written, writes the trailer and
+   * closes the stream (stdout only gets flushed).
+   *
+   * @return		null if successful, otherwise error message
+   */
+  @Override
+  public String close() {
+    if (m_Writer == null)
+      return null;
+
+    try {
+      m_Queue.put(END);
+      m_Writer.join();
+    }
+    catch (InterruptedException e) {
+      return "Interrupted while waiting for outputs to be written to '" + m_Output + "'";
+    }
+    m_Writer = null;
+    m_Queue  = null;
+
+    try {
+      if (m_Error == null)
+	writeTrailer(m_Stream);
+      if (isStdout())
+	m_Stream.flush();
+      else
+	m_Stream.close();
+    }
+    catch (Exception e) {
+      if (m_Error == null)
+	m_Error = "Failed to finish writing to '" + m_Output + "': " + e;
+    }
+    m_Stream = null;
+
+    return m_Error;
+  }
+}
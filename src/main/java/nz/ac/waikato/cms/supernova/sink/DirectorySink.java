@@ -0,0 +1,574 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * DirectorySink.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.sink;
+
+import nz.ac.waikato.cms.core.FileUtils;
+import nz.ac.waikato.cms.supernova.core.FileHelper;
+import nz.ac.waikato.cms.supernova.core.HashHelper;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores each output as a separate file in the output directory, using
+ * the ID as file name.
+ * <br>
+ * With a fan-out greater than zero, the files get distributed across
+ * sub-directories derived from the hash of the ID, e.g., "ab/cd/ID.png"
+ * for a fan-out of 2. Each level uses two hex digits (i.e., 256 sub-directories).
+ * The location of an ID can be computed with {@link #getFile(String, String)},
+ * the optional index file lists ID and relative path (tab-separated).
+ * The index gets appended to, i.e., an ID that got written again is listed
+ * more than once and the last entry wins (see {@link #readIndex(File)}).
+ * Outdated entries get removed when the sink is opened again.
+ * <br>
+ * Duplicates (see {@link #link(String, String, AbstractOutputGenerator)})
+ * are either hard-linked, sym-linked, copied or only recorded in the index
+ * (pointing to the file of the original ID).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class DirectorySink
+  extends AbstractOutputSink {
+
+  /** the default name of the index file. */
+  public static final String INDEX_FILE = "index.tsv";
+
+  /**
+   * How to store duplicate outputs.
+   */
+  public enum LinkType {
+    /** hard link to original file, falls back to copying. */
+    HARDLINK,
+    /** symbolic link to original file. */
+    SYMLINK,
+    /** copy of the original file. */
+    COPY,
+    /** only reference the original file in the index. */
+    INDEX
+  }
+
+  /** the maximum number of fan-out levels. */
+  public static final int MAX_FANOUT = 8;
+
+  /** the number of fan-out levels (0 = flat). */
+  protected int m_FanOut;
+
+  /** whether to write an index file. */
+  protected boolean m_WriteIndex;
+
+  /** how to store duplicates. */
+  protected LinkType m_LinkType;
+
+  /** the directories that have already been created. */
+  protected Set<String> m_Created;
+
+  /** the writer for the index. */
+  protected BufferedWriter m_IndexWriter;
+
+  /** the file name of the index. */
+  protected String m_IndexName;
+
+  /**
+   * For initializing the members.
+   */
+  @Override
+  protected void initialize() {
+    super.initialize();
+    m_FanOut      = 0;
+    m_WriteIndex  = false;
+    m_LinkType    = LinkType.HARDLINK;
+    m_Created     = ConcurrentHashMap.newKeySet();
+    m_IndexWriter = null;
+    m_IndexName   = INDEX_FILE;
+  }
+
+  /**
+   * Sets the number of fan-out levels.
+   *
+   * @param value	the levels (0 = flat)
+   */
+  public void setFanOut(int value) {
+    if ((value >= 0) && (value <= MAX_FANOUT))
+      m_FanOut = value;
+  }
+
+  /**
+   * Returns the number of fan-out levels.
+   *
+   * @return		the levels (0 = flat)
+   */
+  public int getFanOut() {
+    return m_FanOut;
+  }
+
+  /**
+   * Sets whether to write an index file mapping ID to path.
+   *
+   * @param value	true if to write index
+   */
+  public void setWriteIndex(boolean value) {
+    m_WriteIndex = value;
+  }
+
+  /**
+   * Returns whether to write an index file mapping ID to path.
+   *
+   * @return		true if to write index
+   */
+  public boolean getWriteIndex() {
+    return m_WriteIndex;
+  }
+
+  /**
+   * Sets the file name of the index (in the output directory).
+   *
+   * @param value	the file name
+   */
+  public void setIndexName(String value) {
+    m_IndexName = value;
+  }
+
+  /**
+   * Returns the file name of the index (in the output directory).
+   *
+   * @return		the file name
+   */
+  public String getIndexName() {
+    return m_IndexName;
+  }
+
+  /**
+   * Sets how to store duplicate outputs.
+   *
+   * @param value	the type
+   */
+  public void setLinkType(LinkType value) {
+    m_LinkType = value;
+  }
+
+  /**
+   * Returns how to store duplicate outputs.
+   *
+   * @return		the type
+   */
+  public LinkType getLinkType() {
+    return m_LinkType;
+  }
+
+  /**
+   * Returns the path of the file relative to the output directory.
+   *
+   * @param id		the ID of the output
+   * @param extension	the extension (excluding dot)
+   * @return		the relative path
+   */
+  public String getRelativePath(String id, String extension) {
+    StringBuilder	result;
+    String		hash;
+    int			i;
+
+    result = new StringBuilder();
+    if (m_FanOut > 0) {
+      hash = String.format("%016x", HashHelper.mix64(HashHelper.fnv1a64(id)));
+      for (i = 0; i < m_FanOut; i++) {
+	result.append(hash, i * 2, i * 2 + 2);
+	result.append(File.separator);
+      }
+    }
+    result.append(id).append(".").append(extension);
+
+    return result.toString();
+  }
+
+  /**
+   * Returns the file to use for the ID.
+   *
+   * @param id		the ID of the output
+   * @param extension	the extension (excluding dot)
+   * @return		the file
+   */
+  public File getFile(String id, String extension) {
+    return new File(m_Output + File.separator + getRelativePath(id, extension));
+  }
+
+  /**
+   * Returns the path of the output relative to the output directory.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @return			the location
+   */
+  @Override
+  public String getLocation(String id, String extension) {
+    return getRelativePath(id, extension);
+  }
+
+  /**
+   * Returns the size of the output file for the ID.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @return			the size in bytes, -1 if not present
+   */
+  @Override
+  public long size(String id, String extension) {
+    File	file;
+
+    file = getFile(id, extension);
+    if (!file.isFile())
+      return -1;
+    return file.length();
+  }
+
+  /**
+   * Reads the index file into the map (ID - relative path). IDs that are
+   * listed more than once get the path of the last entry. Invalid lines
+   * (e.g., the last line of a run that died) are skipped.
+   *
+   * @param file	the index file to read
+   * @param index	the map to add the entries to
+   * @return		the number of lines read
+   * @throws IOException	if reading fails
+   */
+  protected static int readIndex(File file, Map<String,String> index) throws IOException {
+    int		result;
+    String	line;
+    int		pos;
+
+    result = 0;
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      while ((line = reader.readLine()) != null) {
+	result++;
+	pos = line.indexOf('\t');
+	if ((pos < 1) || (pos == line.length() - 1))
+	  continue;
+	index.put(line.substring(0, pos), line.substring(pos + 1));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Reads the index file. IDs that are listed more than once get the path
+   * of the last entry.
+   *
+   * @param file	the index file to read
+   * @return		the index (ID - relative path), in order of first occurrence
+   * @throws IOException	if reading fails
+   */
+  public static Map<String,String> readIndex(File file) throws IOException {
+    Map<String,String>	result;
+
+    result = new LinkedHashMap<>();
+    readIndex(file, result);
+
+    return result;
+  }
+
+  /**
+   * Checks whether the file is empty or its last line is complete.
+   *
+   * @param file	the file to check
+   * @return		true if empty or ending with a new line
+   * @throws IOException	if reading fails
+   */
+  protected static boolean endsWithNewLine(File file) throws IOException {
+    if (file.length() == 0)
+      return true;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      raf.seek(file.length() - 1);
+      return (raf.read() == '\n');
+    }
+  }
+
+  /**
+   * Rewrites the existing index if it contains outdated entries (IDs
+   * listed more than once), invalid lines or an incomplete last line.
+   *
+   * @param file	the index file
+   * @throws IOException	if reading/writing fails
+   */
+  protected void compactIndex(File file) throws IOException {
+    Map<String,String>	index;
+    int			numLines;
+    File		tmp;
+
+    index    = new LinkedHashMap<>();
+    numLines = readIndex(file, index);
+    if ((numLines == index.size()) && endsWithNewLine(file))
+      return;
+
+    tmp = FileHelper.newTempFile(file);
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+	for (Map.Entry<String,String> entry: index.entrySet()) {
+	  writer.write(entry.getKey());
+	  writer.write('\t');
+	  writer.write(entry.getValue());
+	  writer.newLine();
+	}
+      }
+      FileHelper.replace(tmp, file);
+    }
+    finally {
+      FileHelper.discard(tmp);
+    }
+  }
+
+  /**
+   * Prepares the sink for writing.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  @Override
+  public String open() {
+    File	index;
+
+    m_Created.clear();
+    if ((m_LinkType == LinkType.INDEX) && !m_WriteIndex)
+      return "Link type " + LinkType.INDEX + " requires the index to be enabled!";
+    if (m_WriteIndex) {
+      index = new File(m_Output, m_IndexName);
+      try {
+	if (index.exists())
+	  compactIndex(index);
+	m_IndexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(index, true), StandardCharsets.UTF_8));
+      }
+      catch (Exception e) {
+	return "Failed to open index file '" + index + "': " + e;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Ensures that the parent directory of the file exists.
+   *
+   * @param file	the file to check
+   * @return		null if exists/created, otherwise error message
+   */
+  protected String ensureParent(File file) {
+    File	parent;
+
+    parent = file.getParentFile();
+    if ((parent == null) || m_Created.contains(parent.getPath()))
+      return null;
+    if (!parent.exists() && !parent.mkdirs() && !parent.exists())
+      return "Failed to create directory: " + parent;
+    m_Created.add(parent.getPath());
+
+    return null;
+  }
+
+  /**
+   * Adds the ID and relative path to the index (if enabled).
+   *
+   * @param id		the ID
+   * @param path	the relative path
+   * @return		null if successful, otherwise error message
+   */
+  protected synchronized String addToIndex(String id, String path) {
+    if (m_IndexWriter == null)
+      return null;
+
+    try {
+      m_IndexWriter.write(id);
+      m_IndexWriter.write('\t');
+      m_IndexWriter.write(path);
+      m_IndexWriter.newLine();
+    }
+    catch (Exception e) {
+      return "Failed to update index with ID '" + id + "': " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Generates and stores the output for the ID.
+   *
+   * @param id			the ID of the output
+   * @param generator		the generator to use
+   * @param test		the test results (measure - [score, percentile])
+   * @return			null if successfully generated, otherwise error message
+   */
+  @Override
+  public <T> String write(String id, AbstractOutputGenerator<T> generator, Map<String,List<Double>> test) {
+    String	path;
+    File	file;
+    String	msg;
+
+    path = getRelativePath(id, generator.getExtension());
+    file = new File(m_Output + File.separator + path);
+    if (m_FanOut > 0) {
+      msg = ensureParent(file);
+      if (msg != null)
+	return msg;
+    }
+    msg = generator.generate(test, file);
+    if (msg != null)
+      return msg;
+
+    return addToIndex(id, path);
+  }
+
+  /**
+   * Stores the already encoded output for the ID.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @param data		the encoded output
+   * @return			null if successfully stored, otherwise error message
+   */
+  @Override
+  public String write(String id, String extension, ByteBuffer data) {
+    String	path;
+    File	file;
+    File	tmp;
+    String	msg;
+
+    path = getRelativePath(id, extension);
+    file = new File(m_Output + File.separator + path);
+    if (m_FanOut > 0) {
+      msg = ensureParent(file);
+      if (msg != null)
+	return msg;
+    }
+
+    // never rewrite in place, as the file may be hard-linked by duplicates
+    tmp = null;
+    try {
+      tmp = FileHelper.newTempFile(file);
+      try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+	while (data.hasRemaining())
+	  channel.write(data);
+      }
+      FileHelper.replace(tmp, file);
+    }
+    catch (Exception e) {
+      FileHelper.discard(tmp);
+      return "Failed to write output to '" + file + "': " + e;
+    }
+
+    return addToIndex(id, path);
+  }
+
+  /**
+   * Makes the output of an already written ID available under another ID.
+   *
+   * @param id			the ID of the duplicate
+   * @param existing		the ID of the output already written
+   * @param generator		the generator that was used
+   * @return			null if successfully linked, otherwise error message
+   */
+  @Override
+  public String link(String id, String existing, AbstractOutputGenerator generator) {
+    String	existingPath;
+    String	path;
+    File	source;
+    File	target;
+    String	msg;
+
+    existingPath = getRelativePath(existing, generator.getExtension());
+    if (m_LinkType == LinkType.INDEX)
+      return addToIndex(id, existingPath);
+
+    path   = getRelativePath(id, generator.getExtension());
+    source = new File(m_Output + File.separator + existingPath);
+    target = new File(m_Output + File.separator + path);
+    msg    = ensureParent(target);
+    if (msg != null)
+      return msg;
+
+    try {
+      Files.deleteIfExists(target.toPath());
+      switch (m_LinkType) {
+	case HARDLINK:
+	  try {
+	    Files.createLink(target.toPath(), source.toPath());
+	  }
+	  catch (Exception e) {
+	    // eg different file system or not supported
+	    Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	  }
+	  break;
+	case SYMLINK:
+	  Files.createSymbolicLink(target.toPath(), target.getParentFile().toPath().relativize(source.toPath()));
+	  break;
+	case COPY:
+	  Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	  break;
+	default:
+	  throw new IllegalStateException("Unhandled link type: " + m_LinkType);
+      }
+    }
+    catch (Exception e) {
+      return "Failed to link '" + target + "' to '" + source + "': " + e;
+    }
+
+    return addToIndex(id, path);
+  }
+
+  /**
+   * Finishes up writing.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  @Override
+  public synchronized String close() {
+    if (m_IndexWriter == null)
+      return null;
+
+    try {
+      m_IndexWriter.flush();
+    }
+    catch (Exception e) {
+      return "Failed to write index: " + e;
+    }
+    finally {
+      FileUtils.closeQuietly(m_IndexWriter);
+      m_IndexWriter = null;
+    }
+
+    return null;
+  }
+}
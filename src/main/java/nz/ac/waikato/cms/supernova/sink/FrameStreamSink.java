@@ -0,0 +1,79 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * FrameStreamSink.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.sink;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the outputs as length-prefixed frames, to stdout (output "-") or
+ * a file. Each frame consists of (integers are 32bit big-endian):
+ * <ul>
+ *   <li>length of the name (int) and UTF-8 bytes of the name (ID plus
+ *   extension)</li>
+ *   <li>length of the output (int) and bytes of the output</li>
+ * </ul>
+ * Duplicates (when deduplicating) use -1 as length of the output, followed
+ * by length (int) and UTF-8 bytes of the name of the already written output.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class FrameStreamSink
+  extends AbstractStreamSink {
+
+  /**
+   * Writes the length-prefixed string.
+   *
+   * @param out		the stream to write to
+   * @param s		the string to write
+   * @throws IOException	if writing fails
+   */
+  protected void writeString(DataOutputStream out, String s) throws IOException {
+    byte[]	bytes;
+
+    bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes the output (or link) as frame.
+   *
+   * @param out		the stream to write to
+   * @param entry	the entry to write
+   * @throws IOException	if writing fails
+   */
+  @Override
+  protected void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    writeString(out, entry.name);
+    if (entry.link != null) {
+      out.writeInt(-1);
+      writeString(out, entry.link);
+    }
+    else {
+      out.writeInt(entry.data.remaining());
+      writeData(out, entry.data);
+    }
+  }
+}
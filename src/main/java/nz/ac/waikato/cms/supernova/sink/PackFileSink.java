@@ -0,0 +1,233 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * PackFileSink.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.sink;
+
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.store.PackFileStore;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends the encoded outputs to a {@link PackFileStore} in the output
+ * directory instead of generating a file per ID.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class PackFileSink
+  extends AbstractOutputSink {
+
+  /** the default base name of the pack/index files. */
+  public static final String DEFAULT_NAME = "supernova";
+
+  /** the base name of the pack/index files. */
+  protected String m_Name;
+
+  /** the store in use. */
+  protected PackFileStore m_Store;
+
+  /**
+   * For initializing the members.
+   */
+  @Override
+  protected void initialize() {
+    super.initialize();
+    m_Name  = DEFAULT_NAME;
+    m_Store = null;
+  }
+
+  /**
+   * Sets the base name of the pack/index files.
+   *
+   * @param value	the name (no extension)
+   */
+  public void setName(String value) {
+    m_Name = value;
+  }
+
+  /**
+   * Returns the base name of the pack/index files.
+   *
+   * @return		the name (no extension)
+   */
+  public String getName() {
+    return m_Name;
+  }
+
+  /**
+   * Returns the underlying store.
+   *
+   * @return		the store, null if not open
+   */
+  public PackFileStore getStore() {
+    return m_Store;
+  }
+
+  /**
+   * Opens the pack file store.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  @Override
+  public String open() {
+    try {
+      if (!m_Output.exists() && !m_Output.mkdirs())
+	return "Failed to create output directory: " + m_Output;
+      m_Store = new PackFileStore(new File(m_Output, m_Name));
+      if (m_Verbose)
+	m_Logger.info("Pack file: " + m_Store.getPackFile() + ", IDs: " + m_Store.size());
+    }
+    catch (Exception e) {
+      return "Failed to open pack file store in '" + m_Output + "': " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Generates and appends the output for the ID to the pack file.
+   *
+   * @param id			the ID of the output
+   * @param generator		the generator to use
+   * @param test		the test results (measure - [score, percentile])
+   * @return			null if successfully generated, otherwise error message
+   */
+  @Override
+  public <T> String write(String id, AbstractOutputGenerator<T> generator, Map<String,List<Double>> test) {
+    StringBuilder	errors;
+    ByteBuffer		data;
+
+    if (m_Store == null)
+      return "Pack file store not open!";
+
+    errors = new StringBuilder();
+    data   = generator.generate(test, errors);
+    if (data == null)
+      return errors.toString();
+
+    return write(id, generator.getExtension(), data);
+  }
+
+  /**
+   * Appends the already encoded output for the ID to the pack file.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @param data		the encoded output
+   * @return			null if successfully stored, otherwise error message
+   */
+  @Override
+  public String write(String id, String extension, ByteBuffer data) {
+    if (m_Store == null)
+      return "Pack file store not open!";
+
+    try {
+      m_Store.append(id, data);
+    }
+    catch (Exception e) {
+      return "Failed to append output for ID '" + id + "' to " + m_Store.getPackFile() + ": " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Adds an alias for the existing ID to the pack file.
+   *
+   * @param id			the ID of the duplicate
+   * @param existing		the ID of the output already written
+   * @param generator		the generator that was used
+   * @return			null if successfully linked, otherwise error message
+   */
+  @Override
+  public String link(String id, String existing, AbstractOutputGenerator generator) {
+    if (m_Store == null)
+      return "Pack file store not open!";
+
+    try {
+      if (!m_Store.alias(id, existing))
+	return "ID '" + existing + "' not present in " + m_Store.getPackFile();
+    }
+    catch (Exception e) {
+      return "Failed to add alias '" + id + "' for '" + existing + "' to " + m_Store.getPackFile() + ": " + e;
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the name of the pack file and the ID.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @return			the location
+   */
+  @Override
+  public String getLocation(String id, String extension) {
+    return m_Name + ":" + id;
+  }
+
+  /**
+   * Returns the size of the output stored under the ID.
+   *
+   * @param id			the ID of the output
+   * @param extension		the extension of the output (excluding dot)
+   * @return			the size in bytes, -1 if not present
+   */
+  @Override
+  public long size(String id, String extension) {
+    if (m_Store == null)
+      return -1;
+
+    try {
+      return m_Store.length(id);
+    }
+    catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Closes the pack file store.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  @Override
+  public String close() {
+    if (m_Store == null)
+      return null;
+
+    try {
+      m_Store.close();
+    }
+    catch (Exception e) {
+      return "Failed to close pack file store: " + e;
+    }
+    finally {
+      m_Store = null;
+    }
+
+    return null;
+  }
+}
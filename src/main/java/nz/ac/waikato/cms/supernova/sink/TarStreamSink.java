@@ -0,0 +1,239 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * TarStreamSink.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the outputs as tar stream (POSIX ustar), to stdout (output "-")
+ * or a file, one entry per ID. Names or link targets that do not fit into
+ * the ustar header get stored in PAX extended headers. Duplicates (when
+ * deduplicating) get stored as hard links.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class TarStreamSink
+  extends AbstractStreamSink {
+
+  /** the size of a tar block. */
+  public static final int BLOCK_SIZE = 512;
+
+  /** the maximum length of names in the ustar header. */
+  public static final int MAX_NAME = 100;
+
+  /** type flag: regular file. */
+  public static final byte TYPE_FILE = '0';
+
+  /** type flag: hard link. */
+  public static final byte TYPE_LINK = '1';
+
+  /** type flag: PAX extended header. */
+  public static final byte TYPE_PAX = 'x';
+
+  /** the modification time of the entries (sec). */
+  protected long m_Time;
+
+  /**
+   * For initializing the members.
+   */
+  @Override
+  protected void initialize() {
+    super.initialize();
+    m_Time = System.currentTimeMillis() / 1000;
+  }
+
+  /**
+   * Stores the string in the header field (truncated if necessary).
+   *
+   * @param header	the header
+   * @param offset	the offset of the field
+   * @param length	the length of the field
+   * @param value	the value
+   */
+  protected void putString(byte[] header, int offset, int length, String value) {
+    byte[]	bytes;
+
+    bytes = value.getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+  }
+
+  /**
+   * Stores the number as zero-padded octal, terminated by NUL.
+   *
+   * @param header	the header
+   * @param offset	the offset of the field
+   * @param length	the length of the field
+   * @param value	the value
+   */
+  protected void putOctal(byte[] header, int offset, int length, long value) {
+    String	octal;
+
+    octal = Long.toOctalString(value);
+    while (octal.length() < length - 1)
+      octal = "0" + octal;
+    putString(header, offset, length - 1, octal);
+    header[offset + length - 1] = 0;
+  }
+
+  /**
+   * Checks whether the name fits into the ustar header.
+   *
+   * @param name	the name to check
+   * @return		true if it fits
+   */
+  protected boolean fits(String name) {
+    byte[]	bytes;
+    int		i;
+
+    bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_NAME)
+      return false;
+    for (i = 0; i < bytes.length; i++) {
+      if (bytes[i] < 0)
+	return false;
+    }
+    return true;
+  }
+
+  /**
+   * Generates a PAX record ("length key=value\n", length including itself).
+   *
+   * @param key		the key
+   * @param value	the value
+   * @return		the record
+   */
+  protected byte[] paxRecord(String key, String value) {
+    byte[]	body;
+    int		length;
+
+    body   = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+    length = body.length + ("" + body.length).length();
+    if (("" + length).length() != ("" + body.length).length())
+      length = body.length + ("" + length).length();
+
+    return (length + new String(body, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes the header block of an entry.
+   *
+   * @param out		the stream to write to
+   * @param name	the name of the entry
+   * @param size	the size of the data
+   * @param type	the type of entry
+   * @param link	the link target, null if none
+   * @throws IOException	if writing fails
+   */
+  protected void writeEntryHeader(DataOutputStream out, String name, long size, byte type, String link) throws IOException {
+    byte[]	header;
+    long	checksum;
+    int		i;
+
+    header = new byte[BLOCK_SIZE];
+    putString(header, 0, MAX_NAME, name);
+    putOctal(header, 100, 8, 0644);
+    putOctal(header, 108, 8, 0);
+    putOctal(header, 116, 8, 0);
+    putOctal(header, 124, 12, size);
+    putOctal(header, 136, 12, m_Time);
+    header[156] = type;
+    if (link != null)
+      putString(header, 157, MAX_NAME, link);
+    putString(header, 257, 6, "ustar");
+    putString(header, 263, 2, "00");
+
+    // checksum gets calculated with the checksum field filled with spaces
+    for (i = 148; i < 156; i++)
+      header[i] = ' ';
+    checksum = 0;
+    for (i = 0; i < BLOCK_SIZE; i++)
+      checksum += header[i] & 0xff;
+    putOctal(header, 148, 7, checksum);
+    header[155] = ' ';
+
+    out.write(header);
+  }
+
+  /**
+   * Pads the data to a multiple of the block size.
+   *
+   * @param out		the stream to write to
+   * @param size	the size of the data
+   * @throws IOException	if writing fails
+   */
+  protected void pad(DataOutputStream out, long size) throws IOException {
+    int		remainder;
+
+    remainder = (int) (size % BLOCK_SIZE);
+    if (remainder > 0)
+      out.write(new byte[BLOCK_SIZE - remainder]);
+  }
+
+  /**
+   * Writes the output (or hard link) as tar entry.
+   *
+   * @param out		the stream to write to
+   * @param entry	the entry to write
+   * @throws IOException	if writing fails
+   */
+  @Override
+  protected void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    ByteArrayOutputStream	pax;
+    long			size;
+
+    pax = new ByteArrayOutputStream();
+    if (!fits(entry.name))
+      pax.write(paxRecord("path", entry.name));
+    if ((entry.link != null) && !fits(entry.link))
+      pax.write(paxRecord("linkpath", entry.link));
+    if (pax.size() > 0) {
+      writeEntryHeader(out, "PaxHeader", pax.size(), TYPE_PAX, null);
+      pax.writeTo(out);
+      pad(out, pax.size());
+    }
+
+    if (entry.link != null) {
+      writeEntryHeader(out, entry.name, 0, TYPE_LINK, entry.link);
+    }
+    else {
+      size = entry.data.remaining();
+      writeEntryHeader(out, entry.name, size, TYPE_FILE, null);
+      writeData(out, entry.data);
+      pad(out, size);
+    }
+  }
+
+  /**
+   * Writes the end-of-archive marker (two empty blocks).
+   *
+   * @param out		the stream to write to
+   * @throws IOException	if writing fails
+   */
+  @Override
+  protected void writeTrailer(DataOutputStream out) throws IOException {
+    out.write(new byte[BLOCK_SIZE * 2]);
+  }
+}
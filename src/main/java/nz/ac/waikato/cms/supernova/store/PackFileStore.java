@@ -0,0 +1,738 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * PackFileStore.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.store;
+
+import nz.ac.waikato.cms.supernova.core.HashHelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only store for encoded outputs. The data gets appended to a pack
+ * file, a fixed-width, memory-mapped hash index (open addressing, linear
+ * probing) maps the ID to the location in the pack file.
+ * <br>
+ * Pack file record: [int: ID length][ID (UTF-8)][int: data length][data]
+ * <br>
+ * Alias record: [int: ID length][ID (UTF-8)][int: -1][long: offset of the record storing the data]
+ * <br>
+ * Index file: [int: magic][int: version][int: capacity][int: count][long: indexed pack length],
+ * followed by "capacity" slots of [long: ID hash][long: record offset + 1][long: data offset][int: ID length][int: data length]
+ * <br>
+ * Storing an existing ID again appends the new data and updates the index,
+ * i.e., the last write wins. Aliases share the data of another ID without
+ * storing it again. When opening, records appended after the indexed pack
+ * length (e.g., after a crash) get indexed, an index that covers more than
+ * the pack file gets rebuilt. The index can also be rebuilt from the pack
+ * file with {@link #rebuildIndex()}.
+ * <br>
+ * Not thread-safe for writing from multiple processes.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class PackFileStore
+  implements Closeable {
+
+  /** the extension for pack files. */
+  public static final String PACK_EXTENSION = ".pack";
+
+  /** the extension for index files. */
+  public static final String INDEX_EXTENSION = ".idx";
+
+  /** the magic number of the index ("SNIX"). */
+  public static final int MAGIC = 0x534e4958;
+
+  /** the version of the index format (2: slots include data offset, 3: header includes indexed pack length). */
+  public static final int VERSION = 3;
+
+  /** the size of the index header. */
+  public static final int HEADER_SIZE = 24;
+
+  /** the position of the indexed pack length in the header. */
+  public static final int INDEXED_POS = 16;
+
+  /** the size of an index slot. */
+  public static final int SLOT_SIZE = 32;
+
+  /** the data length that marks an alias record. */
+  public static final int ALIAS = -1;
+
+  /** the default capacity of the index (power of 2). */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /** the maximum capacity of the index (slots must fit into a single mapping). */
+  public static final int MAX_CAPACITY = 1 << 25;
+
+  /** the maximum load factor before the index gets grown. */
+  public static final double MAX_LOAD = 0.7;
+
+  /** the pack file. */
+  protected File m_PackFile;
+
+  /** the index file. */
+  protected File m_IndexFile;
+
+  /** the pack file channel. */
+  protected FileChannel m_Pack;
+
+  /** the index file channel. */
+  protected FileChannel m_Index;
+
+  /** the memory-mapped index. */
+  protected MappedByteBuffer m_Map;
+
+  /** the number of slots in the index. */
+  protected int m_Capacity;
+
+  /** the number of IDs in the index. */
+  protected int m_Count;
+
+  /** the current size of the pack file. */
+  protected long m_PackSize;
+
+  /**
+   * Opens/creates the store, using "base.pack" and "base.idx" as files.
+   *
+   * @param base	the base name of the files (without extension)
+   * @throws IOException	if opening fails
+   */
+  public PackFileStore(File base) throws IOException {
+    super();
+
+    m_PackFile  = new File(base.getPath() + PACK_EXTENSION);
+    m_IndexFile = new File(base.getPath() + INDEX_EXTENSION);
+    m_Pack      = FileChannel.open(m_PackFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    m_PackSize  = m_Pack.size();
+    if (!m_IndexFile.exists() || !openIndex(m_IndexFile)) {
+      createIndex(m_IndexFile, DEFAULT_CAPACITY);
+      scan(0);
+    }
+    else if (m_Map.getLong(INDEXED_POS) < m_PackSize) {
+      // records appended after the index was last updated
+      scan(m_Map.getLong(INDEXED_POS));
+    }
+  }
+
+  /**
+   * Returns the pack file.
+   *
+   * @return		the file
+   */
+  public File getPackFile() {
+    return m_PackFile;
+  }
+
+  /**
+   * Returns the index file.
+   *
+   * @return		the file
+   */
+  public File getIndexFile() {
+    return m_IndexFile;
+  }
+
+  /**
+   * Maps the existing index file. An index of a different version or size
+   * (e.g., from an older release or an interrupted grow) or one that covers
+   * more than the pack file is not used, as it can be rebuilt from the pack
+   * file.
+   *
+   * @param file	the index file
+   * @return		true if opened, false if the index needs rebuilding
+   * @throws IOException	if mapping fails or not an index file
+   */
+  protected boolean openIndex(File file) throws IOException {
+    m_Index = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (m_Index.size() < HEADER_SIZE) {
+      m_Index.close();
+      return false;
+    }
+    m_Map = m_Index.map(FileChannel.MapMode.READ_WRITE, 0, m_Index.size());
+    if (m_Map.getInt(0) != MAGIC) {
+      m_Index.close();
+      throw new IOException("Not an index file: " + file);
+    }
+    m_Capacity = m_Map.getInt(8);
+    m_Count    = m_Map.getInt(12);
+    if ((m_Map.getInt(4) != VERSION) || (m_Index.size() != HEADER_SIZE + (long) m_Capacity * SLOT_SIZE)) {
+      m_Index.close();
+      return false;
+    }
+    if (m_Map.getLong(INDEXED_POS) > m_PackSize) {
+      m_Index.close();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Creates a new, empty index file and maps it.
+   *
+   * @param file	the index file
+   * @param capacity	the number of slots
+   * @throws IOException	if creating fails
+   */
+  protected void createIndex(File file, int capacity) throws IOException {
+    m_Index = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    m_Map   = m_Index.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+    m_Map.putInt(0, MAGIC);
+    m_Map.putInt(4, VERSION);
+    m_Map.putInt(8, capacity);
+    m_Map.putInt(12, 0);
+    m_Map.putLong(INDEXED_POS, 0);
+    m_Capacity = capacity;
+    m_Count    = 0;
+  }
+
+  /**
+   * Returns the position of the slot in the index.
+   *
+   * @param slot	the slot
+   * @return		the position
+   */
+  protected int slotPos(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /**
+   * Returns the first slot to probe for the hash.
+   *
+   * @param hash	the ID hash
+   * @param capacity	the capacity of the index
+   * @return		the slot
+   */
+  protected int firstSlot(long hash, int capacity) {
+    return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+  }
+
+  /**
+   * Reads the ID of the record at the specified offset.
+   *
+   * @param offset	the offset of the record in the pack file
+   * @param idLen	the length of the ID in bytes
+   * @return		the ID
+   * @throws IOException	if reading fails
+   */
+  protected String readID(long offset, int idLen) throws IOException {
+    ByteBuffer	buffer;
+
+    buffer = ByteBuffer.allocate(idLen);
+    readFully(buffer, offset + 4);
+    return new String(buffer.array(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Fills the buffer with data from the pack file.
+   *
+   * @param buffer	the buffer to fill
+   * @param position	the position in the pack file
+   * @throws IOException	if reading fails or end of file reached
+   */
+  protected void readFully(ByteBuffer buffer, long position) throws IOException {
+    int		read;
+
+    while (buffer.hasRemaining()) {
+      read = m_Pack.read(buffer, position);
+      if (read < 0)
+	throw new IOException("Unexpected end of pack file: " + m_PackFile);
+      position += read;
+    }
+  }
+
+  /**
+   * Follows alias records until reaching the record that stores the data.
+   * Aliases only ever reference earlier records, anything else is treated
+   * as corrupt.
+   *
+   * @param offset	the offset of the record in the pack file
+   * @return		the offset of the data record, the data offset and the data length
+   * @throws IOException	if reading fails or invalid reference encountered
+   */
+  protected long[] resolveRecord(long offset) throws IOException {
+    ByteBuffer	intBuf;
+    ByteBuffer	longBuf;
+    int		idLen;
+    int		dataLen;
+    long	target;
+
+    intBuf  = ByteBuffer.allocate(4);
+    longBuf = ByteBuffer.allocate(8);
+    while (true) {
+      intBuf.clear();
+      readFully(intBuf, offset);
+      idLen = intBuf.getInt(0);
+      intBuf.clear();
+      readFully(intBuf, offset + 4 + idLen);
+      dataLen = intBuf.getInt(0);
+      if (dataLen != ALIAS)
+	return new long[]{offset, offset + 4 + idLen + 4, dataLen};
+      longBuf.clear();
+      readFully(longBuf, offset + 4 + idLen + 4);
+      target = longBuf.getLong(0);
+      if ((target < 0) || (target >= offset))
+	throw new IOException("Invalid alias reference at " + offset + ": " + m_PackFile);
+      offset = target;
+    }
+  }
+
+  /**
+   * Locates the slot for the ID.
+   *
+   * @param id		the ID to look for
+   * @param hash	the hash of the ID
+   * @return		the slot, either containing the ID or the empty one to use
+   * @throws IOException	if reading of IDs fails
+   */
+  protected int findSlot(String id, long hash) throws IOException {
+    int		slot;
+    int		pos;
+    long	offset;
+    int		idLen;
+
+    slot = firstSlot(hash, m_Capacity);
+    while (true) {
+      pos    = slotPos(slot);
+      offset = m_Map.getLong(pos + 8);
+      if (offset == 0)
+	return slot;
+      idLen  = m_Map.getInt(pos + 24);
+      // slots referencing records beyond the pack file cannot match
+      if ((m_Map.getLong(pos) == hash) && (offset - 1 + 4 + idLen <= m_PackSize) && readID(offset - 1, idLen).equals(id))
+	return slot;
+      slot = (slot + 1) & (m_Capacity - 1);
+    }
+  }
+
+  /**
+   * Stores the location in the slot.
+   *
+   * @param map		the index to update
+   * @param slot	the slot to update
+   * @param hash	the ID hash
+   * @param offset	the record offset in the pack file
+   * @param dataOffset	the data offset in the pack file
+   * @param idLen	the length of the ID in bytes
+   * @param dataLen	the length of the data in bytes
+   */
+  protected void putSlot(MappedByteBuffer map, int slot, long hash, long offset, long dataOffset, int idLen, int dataLen) {
+    int		pos;
+
+    pos = slotPos(slot);
+    map.putLong(pos, hash);
+    map.putLong(pos + 8, offset + 1);
+    map.putLong(pos + 16, dataOffset);
+    map.putInt(pos + 24, idLen);
+    map.putInt(pos + 28, dataLen);
+  }
+
+  /**
+   * Doubles the capacity of the index. The new index gets written to a
+   * temporary file first, which then replaces the current index file.
+   *
+   * @throws IOException	if growing fails
+   */
+  protected void growIndex() throws IOException {
+    File		tmpFile;
+    MappedByteBuffer	oldMap;
+    int			oldCapacity;
+    int			count;
+    int			i;
+    int			pos;
+    int			slot;
+    long		hash;
+
+    if (m_Capacity >= MAX_CAPACITY)
+      throw new IOException("Maximum index capacity reached: " + MAX_CAPACITY);
+
+    oldMap      = m_Map;
+    oldCapacity = m_Capacity;
+    count       = m_Count;
+    m_Index.close();
+
+    tmpFile = new File(m_IndexFile.getPath() + ".tmp");
+    createIndex(tmpFile, oldCapacity * 2);
+    for (i = 0; i < oldCapacity; i++) {
+      pos = slotPos(i);
+      if (oldMap.getLong(pos + 8) == 0)
+	continue;
+      hash = oldMap.getLong(pos);
+      slot = firstSlot(hash, m_Capacity);
+      while (m_Map.getLong(slotPos(slot) + 8) != 0)
+	slot = (slot + 1) & (m_Capacity - 1);
+      putSlot(m_Map, slot, hash, oldMap.getLong(pos + 8) - 1, oldMap.getLong(pos + 16), oldMap.getInt(pos + 24), oldMap.getInt(pos + 28));
+    }
+    m_Count = count;
+    m_Map.putInt(12, m_Count);
+    m_Map.putLong(INDEXED_POS, oldMap.getLong(INDEXED_POS));
+    m_Map.force();
+    Files.move(tmpFile.toPath(), m_IndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Adds the location of a record to the index.
+   *
+   * @param id		the ID
+   * @param offset	the record offset in the pack file
+   * @param dataOffset	the data offset in the pack file
+   * @param idLen	the length of the ID in bytes
+   * @param dataLen	the length of the data in bytes
+   * @throws IOException	if updating fails
+   */
+  protected void index(String id, long offset, long dataOffset, int idLen, int dataLen) throws IOException {
+    long	hash;
+    int		slot;
+    boolean	isNew;
+
+    if (m_Count + 1 > m_Capacity * MAX_LOAD)
+      growIndex();
+
+    hash  = HashHelper.fnv1a64(id);
+    slot  = findSlot(id, hash);
+    isNew = (m_Map.getLong(slotPos(slot) + 8) == 0);
+    putSlot(m_Map, slot, hash, offset, dataOffset, idLen, dataLen);
+    if (isNew) {
+      m_Count++;
+      m_Map.putInt(12, m_Count);
+    }
+  }
+
+  /**
+   * Records the length of the pack file covered by the index, i.e., all
+   * records up to that length have been indexed.
+   *
+   * @param value	the length
+   */
+  protected void setIndexed(long value) {
+    m_Map.putLong(INDEXED_POS, value);
+  }
+
+  /**
+   * Appends the data under the specified ID.
+   *
+   * @param id		the ID to store the data under
+   * @param data	the data to store (from position to limit)
+   * @throws IOException	if writing fails
+   */
+  public synchronized void append(String id, ByteBuffer data) throws IOException {
+    byte[]	idBytes;
+    ByteBuffer	header;
+    ByteBuffer	lenBuf;
+    ByteBuffer[]	buffers;
+    long	offset;
+    long	written;
+    long	total;
+    int		dataLen;
+
+    idBytes = id.getBytes(StandardCharsets.UTF_8);
+    dataLen = data.remaining();
+    header  = ByteBuffer.allocate(4 + idBytes.length);
+    header.putInt(idBytes.length);
+    header.put(idBytes);
+    header.flip();
+    lenBuf  = ByteBuffer.allocate(4);
+    lenBuf.putInt(dataLen);
+    lenBuf.flip();
+    buffers = new ByteBuffer[]{header, lenBuf, data};
+    total   = header.remaining() + 4 + dataLen;
+
+    offset  = m_PackSize;
+    m_Pack.position(offset);
+    written = 0;
+    while (written < total)
+      written += m_Pack.write(buffers);
+    m_PackSize += total;
+
+    index(id, offset, offset + 4 + idBytes.length + 4, idBytes.length, dataLen);
+    setIndexed(m_PackSize);
+  }
+
+  /**
+   * Appends the data under the specified ID.
+   *
+   * @param id		the ID to store the data under
+   * @param data	the data to store
+   * @throws IOException	if writing fails
+   */
+  public void append(String id, byte[] data) throws IOException {
+    append(id, ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Stores an alias that shares the data of an existing ID.
+   *
+   * @param id		the ID of the alias
+   * @param existing	the ID of the existing data
+   * @return		true if added, false if the existing ID is not present
+   * @throws IOException	if writing fails
+   */
+  public synchronized boolean alias(String id, String existing) throws IOException {
+    int		slot;
+    int		pos;
+    long	target;
+    long	dataOffset;
+    int		dataLen;
+    byte[]	idBytes;
+    ByteBuffer	record;
+    long	offset;
+
+    slot   = findSlot(existing, HashHelper.fnv1a64(existing));
+    pos    = slotPos(slot);
+    target = m_Map.getLong(pos + 8);
+    if (target == 0)
+      return false;
+    dataOffset = m_Map.getLong(pos + 16);
+    dataLen    = m_Map.getInt(pos + 28);
+    // reference the data record itself, not another alias
+    target     = resolveRecord(target - 1)[0];
+
+    idBytes = id.getBytes(StandardCharsets.UTF_8);
+    record  = ByteBuffer.allocate(4 + idBytes.length + 4 + 8);
+    record.putInt(idBytes.length);
+    record.put(idBytes);
+    record.putInt(ALIAS);
+    record.putLong(target);
+    record.flip();
+
+    offset = m_PackSize;
+    m_Pack.position(offset);
+    while (record.hasRemaining())
+      m_Pack.write(record);
+    m_PackSize += record.limit();
+
+    index(id, offset, dataOffset, idBytes.length, dataLen);
+    setIndexed(m_PackSize);
+
+    return true;
+  }
+
+  /**
+   * Locates the data of the ID. Slots whose data lies beyond the pack
+   * file (e.g., index persisted, but not the pack file) get ignored.
+   *
+   * @param id		the ID to look for
+   * @return		the data offset and length, null if not present
+   * @throws IOException	if look up fails
+   */
+  protected synchronized long[] locate(String id) throws IOException {
+    int		slot;
+    int		pos;
+    long	offset;
+    long	dataOffset;
+    int		dataLen;
+
+    slot   = findSlot(id, HashHelper.fnv1a64(id));
+    pos    = slotPos(slot);
+    offset = m_Map.getLong(pos + 8);
+    if (offset == 0)
+      return null;
+    dataOffset = m_Map.getLong(pos + 16);
+    dataLen    = m_Map.getInt(pos + 28);
+    if ((dataOffset < 0) || (dataLen < 0) || (dataOffset + dataLen > m_PackSize))
+      return null;
+
+    return new long[]{dataOffset, dataLen};
+  }
+
+  /**
+   * Checks whether the ID is present.
+   *
+   * @param id		the ID to look for
+   * @return		true if present
+   * @throws IOException	if look up fails
+   */
+  public boolean contains(String id) throws IOException {
+    return (locate(id) != null);
+  }
+
+  /**
+   * Returns the length of the data stored under the ID.
+   *
+   * @param id		the ID to look for
+   * @return		the length, -1 if not present
+   * @throws IOException	if look up fails
+   */
+  public long length(String id) throws IOException {
+    long[]	loc;
+
+    loc = locate(id);
+    if (loc == null)
+      return -1;
+    return loc[1];
+  }
+
+  /**
+   * Transfers the data stored under the ID to the channel, using
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)} (zero-copy
+   * where supported by the operating system).
+   *
+   * @param id		the ID of the data to transfer
+   * @param target	the channel to transfer the data to
+   * @return		the number of bytes transferred, -1 if ID not present
+   * @throws IOException	if transfer fails
+   */
+  public long transferTo(String id, WritableByteChannel target) throws IOException {
+    long[]	loc;
+    long	done;
+    long	count;
+
+    loc = locate(id);
+    if (loc == null)
+      return -1;
+
+    done = 0;
+    while (done < loc[1]) {
+      count = m_Pack.transferTo(loc[0] + done, loc[1] - done, target);
+      if (count <= 0)
+	throw new IOException("Failed to transfer data for ID '" + id + "' from " + m_PackFile);
+      done += count;
+    }
+
+    return done;
+  }
+
+  /**
+   * Returns the data stored under the ID.
+   *
+   * @param id		the ID to retrieve
+   * @return		the data, null if not present
+   * @throws IOException	if reading fails
+   */
+  public byte[] get(String id) throws IOException {
+    long[]	loc;
+    ByteBuffer	buffer;
+
+    loc = locate(id);
+    if (loc == null)
+      return null;
+
+    buffer = ByteBuffer.allocate((int) loc[1]);
+    readFully(buffer, loc[0]);
+    return buffer.array();
+  }
+
+  /**
+   * Returns the number of IDs stored.
+   *
+   * @return		the number of IDs
+   */
+  public synchronized int size() {
+    return m_Count;
+  }
+
+  /**
+   * Rebuilds the index from scratch by scanning the pack file. Any
+   * incomplete record at the end of the pack file gets truncated.
+   *
+   * @throws IOException	if rebuilding fails
+   */
+  public synchronized void rebuildIndex() throws IOException {
+    m_Index.close();
+    createIndex(m_IndexFile, DEFAULT_CAPACITY);
+    scan(0);
+  }
+
+  /**
+   * Indexes the records of the pack file, starting at the specified offset
+   * (must be the start of a record). Any incomplete record at the end of the
+   * pack file gets truncated.
+   *
+   * @param from	the offset to start at
+   * @throws IOException	if scanning fails
+   */
+  protected void scan(long from) throws IOException {
+    ByteBuffer	intBuf;
+    long	offset;
+    long[]	target;
+    int		idLen;
+    int		dataLen;
+    String	id;
+
+    intBuf = ByteBuffer.allocate(4);
+    offset = from;
+    while (offset + 8 <= m_PackSize) {
+      intBuf.clear();
+      readFully(intBuf, offset);
+      idLen = intBuf.getInt(0);
+      if ((idLen < 0) || (offset + 4 + idLen + 4 > m_PackSize))
+	break;
+      intBuf.clear();
+      readFully(intBuf, offset + 4 + idLen);
+      dataLen = intBuf.getInt(0);
+      id      = readID(offset, idLen);
+      if (dataLen == ALIAS) {
+	if (offset + 4 + idLen + 4 + 8 > m_PackSize)
+	  break;
+	// older stores may contain aliases of aliases
+	target = resolveRecord(offset);
+	index(id, offset, target[1], idLen, (int) target[2]);
+	offset += 4 + idLen + 4 + 8;
+      }
+      else {
+	if ((dataLen < 0) || (offset + 4 + idLen + 4 + dataLen > m_PackSize))
+	  break;
+	index(id, offset, offset + 4 + idLen + 4, idLen, dataLen);
+	offset += 4 + idLen + 4 + dataLen;
+      }
+    }
+
+    if (offset < m_PackSize) {
+      m_Pack.truncate(offset);
+      m_PackSize = offset;
+    }
+    setIndexed(m_PackSize);
+  }
+
+  /**
+   * Forces pack file and index to be written to disk.
+   *
+   * @throws IOException	if flushing fails
+   */
+  public synchronized void flush() throws IOException {
+    m_Pack.force(false);
+    m_Map.force();
+  }
+
+  /**
+   * Flushes and closes the store.
+   *
+   * @throws IOException	if closing fails
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+    }
+    finally {
+      m_Index.close();
+      m_Pack.close();
+    }
+  }
+}
@@ -0,0 +1,446 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * RenderPublisher.java
+ * Copyright (C) 2017 University of Waikato, Hamilton, NZ
+ */
+
+package nz.ac.waikato.cms.supernova.batch;
+
+import nz.ac.waikato.cms.supernova.core.ThreadHelper;
+import nz.ac.waikato.cms.supernova.input.ProfileSource;
+import nz.ac.waikato.cms.supernova.io.AbstractOutputGenerator;
+import nz.ac.waikato.cms.supernova.sink.AbstractOutputSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the results of a batch run for the profiles of a source as
+ * they complete, for consuming batch runs programmatically. The outputs get
+ * generated by a {@link BatchRenderer} (using its threads, deduplication,
+ * manifest, etc.), the results get passed on via its {@link RenderListener}.
+ * With a sink, the outputs get stored and the results contain their
+ * location, otherwise they contain the encoded outputs.
+ * <br>
+ * Honors the demand of the subscriber: a profile only gets read and
+ * submitted to the renderer if the subscriber has requested a result for
+ * it (at most the number of threads of the renderer at a time), so slow
+ * subscribers throttle reading and generating rather than results piling
+ * up in memory. Cancelling the subscription stops reading, outputs already
+ * submitted get finished but not published. Supports a single subscriber.
+ * <br>
+ * Requires Java 9+ (java21 profile).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ * @version $Revision$
+ */
+public class RenderPublisher
+  implements Flow.Publisher<RenderResult> {
+
+  /** the error message when the subscription got cancelled. */
+  public static final String CANCELLED = "Subscription cancelled";
+
+  /**
+   * Keeps the encoded outputs in memory until they get published.
+   */
+  protected static class MemorySink
+    extends AbstractOutputSink {
+
+    /** the encoded outputs (ID - output). */
+    protected Map<String,ByteBuffer> m_Outputs;
+
+    /**
+     * For initializing the members.
+     */
+    @Override
+    protected void initialize() {
+      super.initialize();
+      m_Outputs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Generates and keeps the output for the ID.
+     *
+     * @param id		the ID of the output
+     * @param generator		the generator to use
+     * @param test		the test results (measure - [score, percentile])
+     * @return			null if successfully generated, otherwise error message
+     */
+    @Override
+    public <T> String write(String id, AbstractOutputGenerator<T> generator, Map<String,List<Double>> test) {
+      StringBuilder	errors;
+      ByteBuffer	data;
+
+      errors = new StringBuilder();
+      data   = generator.generate(test, errors);
+      if (data == null)
+	return errors.toString();
+      m_Outputs.put(id, data);
+      return null;
+    }
+
+    /**
+     * Keeps the encoded output for the ID.
+     *
+     * @param id		the ID of the output
+     * @param extension		the extension of the output (excluding dot)
+     * @param data		the encoded output
+     * @return			null if successfully stored, otherwise error message
+     */
+    @Override
+    public String write(String id, String extension, ByteBuffer data) {
+      m_Outputs.put(id, data);
+      return null;
+    }
+
+    /**
+     * Not supported, as outputs get removed once published.
+     *
+     * @param id		the ID of the duplicate
+     * @param existing		the ID of the output already written
+     * @param generator		the generator that was used
+     * @return			the error message
+     */
+    @Override
+    public String link(String id, String existing, AbstractOutputGenerator generator) {
+      return "Linking not supported!";
+    }
+
+    /**
+     * Outputs are not stored anywhere.
+     *
+     * @param id		the ID of the output
+     * @param extension		the extension of the output (excluding dot)
+     * @return			always null
+     */
+    @Override
+    public String getLocation(String id, String extension) {
+      return null;
+    }
+
+    /**
+     * Removes the output for the ID.
+     *
+     * @param id		the ID of the output
+     * @return		the output, null if not available
+     */
+    public ByteBuffer remove(String id) {
+      return m_Outputs.remove(id);
+    }
+  }
+
+  /**
+   * The subscription, reading the profiles in a separate thread.
+   */
+  protected class BatchSubscription
+    implements Flow.Subscription, RenderListener, Runnable {
+
+    /** the subscriber. */
+    protected Flow.Subscriber<? super RenderResult> m_Subscriber;
+
+    /** the outstanding demand. */
+    protected long m_Demand;
+
+    /** the number of outputs submitted but not yet published. */
+    protected int m_Pending;
+
+    /** whether the subscription got cancelled. */
+    protected volatile boolean m_Cancelled;
+
+    /**
+     * Initializes the subscription.
+     *
+     * @param subscriber	the subscriber
+     */
+    protected BatchSubscription(Flow.Subscriber<? super RenderResult> subscriber) {
+      m_Subscriber = subscriber;
+      m_Demand     = 0;
+      m_Pending    = 0;
+      m_Cancelled  = false;
+    }
+
+    /**
+     * Adds to the demand of the subscriber.
+     *
+     * @param n		the number of further results
+     */
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+	cancel();
+	synchronized(m_Subscriber) {
+	  m_Subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+	}
+	return;
+      }
+      synchronized(this) {
+	m_Demand += n;
+	// saturate at "unbounded"
+	if (m_Demand < 0)
+	  m_Demand = Long.MAX_VALUE;
+	notifyAll();
+      }
+    }
+
+    /**
+     * Cancels the subscription: stops reading.
+     */
+    @Override
+    public synchronized void cancel() {
+      m_Cancelled = true;
+      notifyAll();
+    }
+
+    /**
+     * Waits until the subscriber has requested a further result and a
+     * thread of the renderer is available.
+     *
+     * @return		true if the profile can get submitted, false if cancelled
+     * @throws InterruptedException	if interrupted while waiting
+     */
+    protected synchronized boolean acquire() throws InterruptedException {
+      while (!m_Cancelled && ((m_Pending >= m_Demand) || (m_Pending >= m_Renderer.getNumThreads())))
+	wait();
+      if (m_Cancelled)
+	return false;
+      m_Pending++;
+      return true;
+    }
+
+    /**
+     * Releases a submission that did not get published.
+     */
+    protected synchronized void release() {
+      m_Pending--;
+      notifyAll();
+    }
+
+    /**
+     * Submits the profile to the renderer once the subscriber has
+     * requested a further result.
+     *
+     * @param id	the ID of the profile
+     * @param test	the test results (measure - [score, percentile])
+     * @throws IOException	if cancelled
+     */
+    protected void submit(String id, Map<String,List<Double>> test) throws IOException {
+      long	begun;
+
+      try {
+	if (!acquire())
+	  throw new IOException(CANCELLED);
+      }
+      catch (InterruptedException e) {
+	throw new IOException(CANCELLED, e);
+      }
+
+      // skipped profiles (e.g., up-to-date) do not produce a result
+      begun = m_Renderer.getNumBegun();
+      m_Renderer.submit(id, test);
+      if (m_Renderer.getNumBegun() == begun)
+	release();
+    }
+
+    /**
+     * Passes the result on to the subscriber.
+     *
+     * @param result	the result
+     */
+    @Override
+    public void renderFinished(RenderResult result) {
+      if (m_Memory != null)
+	result = new RenderResult(result.getID(), result.getError(), result.getDuration(), null, m_Memory.remove(result.getID()));
+
+      synchronized(m_Subscriber) {
+	if (!m_Cancelled)
+	  m_Subscriber.onNext(result);
+      }
+
+      synchronized(this) {
+	if (m_Demand != Long.MAX_VALUE)
+	  m_Demand--;
+	m_Pending--;
+	notifyAll();
+      }
+    }
+
+    /**
+     * Reads the profiles and generates the outputs, then signals completion.
+     */
+    @Override
+    public void run() {
+      String	msg;
+
+      m_Renderer.setListener(this);
+      m_Renderer.start();
+      try {
+	msg = m_Source.read(this::submit);
+      }
+      catch (Throwable t) {
+	msg = "Failed to read profiles: " + t;
+      }
+      finally {
+	try {
+	  m_Renderer.flush();
+	  m_Renderer.finish();
+	}
+	catch (InterruptedException e) {
+	  // ignored
+	}
+      }
+
+      synchronized(m_Subscriber) {
+	if (m_Cancelled)
+	  return;
+	if (msg == null)
+	  m_Subscriber.onComplete();
+	else
+	  m_Subscriber.onError(new IOException(msg));
+      }
+    }
+  }
+
+  /** the source of the profiles. */
+  protected ProfileSource m_Source;
+
+  /** the renderer for generating the outputs. */
+  protected BatchRenderer m_Renderer;
+
+  /** the sink for keeping the outputs until published, null if using a sink. */
+  protected MemorySink m_Memory;
+
+  /** whether a subscriber has subscribed. */
+  protected AtomicBoolean m_Subscribed;
+
+  /**
+   * Initializes the publisher, publishing the encoded outputs using as
+   * many threads as there are cores.
+   *
+   * @param source	the source of the profiles
+   * @param generator	the generator to use
+   */
+  public RenderPublisher(ProfileSource source, AbstractOutputGenerator generator) {
+    this(source, new BatchRenderer());
+    m_Renderer.setGenerator(generator);
+    m_Renderer.setNumThreads(0);
+    setSink(null);
+  }
+
+  /**
+   * Initializes the publisher. The listener of the renderer gets replaced
+   * when subscribing.
+   *
+   * @param source	the source of the profiles
+   * @param renderer	the configured renderer (not started)
+   */
+  public RenderPublisher(ProfileSource source, BatchRenderer renderer) {
+    m_Source     = source;
+    m_Renderer   = renderer;
+    m_Memory     = null;
+    m_Subscribed = new AtomicBoolean(false);
+  }
+
+  /**
+   * Returns the renderer for generating the outputs.
+   *
+   * @return		the renderer
+   */
+  public BatchRenderer getRenderer() {
+    return m_Renderer;
+  }
+
+  /**
+   * Sets the sink for storing the outputs. Without a sink, the outputs
+   * get published instead and deduplication gets turned off.
+   *
+   * @param value	the sink (opened), null to publish the encoded outputs
+   */
+  public void setSink(AbstractOutputSink value) {
+    if (value == null) {
+      m_Memory = new MemorySink();
+      m_Renderer.setSink(m_Memory);
+      m_Renderer.setDeduplicate(false);
+    }
+    else {
+      m_Memory = null;
+      m_Renderer.setSink(value);
+    }
+  }
+
+  /**
+   * Returns the sink for storing the outputs.
+   *
+   * @return		the sink, null if publishing the encoded outputs
+   */
+  public AbstractOutputSink getSink() {
+    if (m_Memory != null)
+      return null;
+    return m_Renderer.getSink();
+  }
+
+  /**
+   * Sets the number of threads of the renderer, i.e., the maximum number
+   * of outputs generated concurrently.
+   *
+   * @param value	the number, 0 for the number of cores
+   */
+  public void setNumThreads(int value) {
+    m_Renderer.setNumThreads(value);
+  }
+
+  /**
+   * Returns the number of threads of the renderer.
+   *
+   * @return		the number
+   */
+  public int getNumThreads() {
+    return m_Renderer.getNumThreads();
+  }
+
+  /**
+   * Subscribes the subscriber, which starts reading the profiles.
+   *
+   * @param subscriber	the subscriber
+   */
+  @Override
+  public void subscribe(Flow.Subscriber<? super RenderResult> subscriber) {
+    BatchSubscription	subscription;
+
+    if (!m_Subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+	@Override
+	public void request(long n) {
+	}
+	@Override
+	public void cancel() {
+	}
+      });
+      subscriber.onError(new IllegalStateException("Only a single subscriber is supported!"));
+      return;
+    }
+
+    subscription = new BatchSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    ThreadHelper.newPlatformThreadFactory("publisher-reader").newThread(subscription).start();
+  }
+}